@@ -0,0 +1,81 @@
+package com.securechat.benchmarks;
+
+import com.securechat.common.util.FileFingerprint;
+import com.securechat.common.util.FileTransferUtil;
+import com.securechat.common.util.MerkleTree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File-side costs of a transfer: chunking, whole-file checksum, Merkle leaf
+ * hashing and the sampled fingerprint. The file is page-cached after the
+ * first iteration, so these measure CPU and allocation, not the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FileTransferBenchmark {
+
+    @Param({ "1048576", "16777216" })
+    public int fileSize;
+
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("securechat-bench", ".bin");
+        byte[] block = new byte[64 * 1024];
+        Random random = new Random(7);
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            for (int written = 0; written < fileSize; written += block.length) {
+                random.nextBytes(block);
+                fos.write(block, 0, Math.min(block.length, fileSize - written));
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public List<byte[]> splitFile() throws IOException {
+        return FileTransferUtil.splitFile(file);
+    }
+
+    @Benchmark
+    public String checksum() throws IOException {
+        return FileTransferUtil.calculateChecksum(file);
+    }
+
+    @Benchmark
+    public byte[][] merkleLeaves() throws IOException {
+        return MerkleTree.hashChunks(file, FileTransferUtil.CHUNK_SIZE);
+    }
+
+    @Benchmark
+    public String sampledFingerprint() throws IOException {
+        return FileFingerprint.sampled(file);
+    }
+}
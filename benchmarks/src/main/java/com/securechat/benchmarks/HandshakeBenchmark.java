@@ -0,0 +1,86 @@
+package com.securechat.benchmarks;
+
+import com.securechat.common.crypto.CipherSuite;
+import com.securechat.common.crypto.CryptoUtil;
+import com.securechat.common.crypto.SessionHandshake;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-side handshake cost, single-threaded so ops/s reads as handshakes
+ * per second per core: the old RSA-2048 key transport (one private-key
+ * decrypt) against the X25519 handshake (ephemeral keygen, two agreements,
+ * HKDF), and the X25519 handshake with the server ephemeral reused as
+ * HandshakeService does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Threads(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HandshakeBenchmark {
+
+    private KeyPair rsaIdentity;
+    private byte[] rsaWrappedKey;
+
+    private KeyPair x25519Identity;
+    private KeyPair x25519Ephemeral;
+    private byte[] clientHello;
+
+    @Setup
+    public void setup() throws Exception {
+        rsaIdentity = CryptoUtil.generateRSAKeyPair();
+        rsaWrappedKey = CryptoUtil.encryptRSA(CryptoUtil.generateAESKey().getEncoded(), rsaIdentity.getPublic());
+
+        x25519Identity = CryptoUtil.generateX25519KeyPair();
+        x25519Ephemeral = CryptoUtil.generateX25519KeyPair();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        byte[] ephemeral = CryptoUtil.generateX25519KeyPair().getPublic().getEncoded();
+        dos.writeInt(SessionHandshake.MAGIC);
+        dos.writeByte(SessionHandshake.MODE_FULL);
+        byte[] offers = CipherSuite.offers();
+        dos.writeShort(offers.length);
+        dos.write(offers);
+        dos.writeShort(ephemeral.length);
+        dos.write(ephemeral);
+        clientHello = bos.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] rsaServer() throws Exception {
+        return CryptoUtil.decryptRSA(rsaWrappedKey, rsaIdentity.getPrivate());
+    }
+
+    @Benchmark
+    public Object x25519Server() throws Exception {
+        SessionHandshake.ClientHello hello = SessionHandshake
+                .readClientHello(new DataInputStream(new ByteArrayInputStream(clientHello)));
+        return SessionHandshake.respond(hello, x25519Identity);
+    }
+
+    @Benchmark
+    public Object x25519ServerReusedEphemeral() throws Exception {
+        SessionHandshake.ClientHello hello = SessionHandshake
+                .readClientHello(new DataInputStream(new ByteArrayInputStream(clientHello)));
+        return SessionHandshake.respond(hello, x25519Identity, x25519Ephemeral);
+    }
+}
@@ -0,0 +1,74 @@
+package com.securechat.benchmarks;
+
+import com.securechat.common.protocol.Packet;
+import com.securechat.common.protocol.PacketCodec;
+import com.securechat.common.protocol.PacketType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packet wire codec as used by ClientHandler/NetworkClient (PacketCodec),
+ * by payload size: 0 = control packet, 1 KB = message chunk, 64 KB = file
+ * chunk. Small packets are measured in steady state, with their names and
+ * IDs already bound to slots; 64 KB packets are always encoded literally.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PacketSerializationBenchmark {
+
+    @Param({ "0", "1024", "65536" })
+    public int payloadSize;
+
+    private Packet packet;
+    private PacketCodec encoder;
+    private PacketCodec decoder;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        packet = new Packet(PacketType.FILE_CHUNK, 3);
+        packet.setSender("alice");
+        packet.setReceiver("bob");
+        packet.setTransactionId("d1f2c3b4-0000-4000-8000-123456789abc");
+        packet.setFileId("9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08");
+        packet.setChunkIndex(7);
+        packet.setTotalChunks(100);
+        packet.setPayload(new byte[payloadSize]);
+        encoder = new PacketCodec();
+        decoder = new PacketCodec();
+        decoder.decode(ByteBuffer.wrap(encoder.encode(packet))); // Binds the slots on both sides
+        encoded = encoder.encode(packet);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return encoder.encode(packet);
+    }
+
+    @Benchmark
+    public Packet deserialize() throws IOException {
+        return decoder.decode(ByteBuffer.wrap(encoded));
+    }
+
+    @Benchmark
+    public Packet roundTrip() throws IOException {
+        return decoder.decode(ByteBuffer.wrap(encoder.encode(packet)));
+    }
+}
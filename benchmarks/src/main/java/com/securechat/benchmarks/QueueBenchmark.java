@@ -0,0 +1,181 @@
+package com.securechat.benchmarks;
+
+import com.securechat.common.protocol.Packet;
+import com.securechat.common.protocol.PacketType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The dispatch queue (ServerState's PriorityBlockingQueue) against
+ * alternatives, with several client handler threads enqueuing and one
+ * dispatcher dequeuing. "lanes" is one ConcurrentLinkedQueue per priority
+ * level, polled highest priority first: same ordering guarantees between
+ * levels, FIFO within a level, no global lock or heap sift.
+ *
+ * The consumer polls instead of take() so the group can stop cleanly at the
+ * end of an iteration; producers back off once BACKLOG packets are waiting
+ * so the unbounded queues don't grow without limit.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class QueueBenchmark {
+
+    private static final int BACKLOG = 1024;
+
+    // Minimal queue surface the dispatcher needs
+    interface PacketQueue {
+        boolean offer(Packet packet);
+
+        Packet poll();
+    }
+
+    @Param({ "priorityBlocking", "linkedBlocking", "arrayBlocking", "concurrentLinked", "lanes" })
+    public String impl;
+
+    private PacketQueue queue;
+    private final AtomicInteger backlog = new AtomicInteger();
+    private Packet[] packets;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        queue = create(impl);
+        backlog.set(0);
+        // Realistic mix: mostly file chunks (P3) with chat (P1) and group traffic (P2)
+        packets = new Packet[64];
+        for (int i = 0; i < packets.length; i++) {
+            int priority = (i % 8 == 0) ? 1 : (i % 8 == 1) ? 2 : 3;
+            packets[i] = new Packet(priority == 3 ? PacketType.FILE_CHUNK : PacketType.DM, priority);
+            packets[i].setSequenceNumber(i);
+        }
+    }
+
+    private static PacketQueue create(String impl) {
+        switch (impl) {
+            case "priorityBlocking": {
+                PriorityBlockingQueue<Packet> q = new PriorityBlockingQueue<>(1000,
+                        Comparator.comparingInt(Packet::getPriority).thenComparingLong(Packet::getSequenceNumber));
+                return wrap(q::offer, q::poll);
+            }
+            case "linkedBlocking": {
+                LinkedBlockingQueue<Packet> q = new LinkedBlockingQueue<>();
+                return wrap(q::offer, q::poll);
+            }
+            case "arrayBlocking": {
+                ArrayBlockingQueue<Packet> q = new ArrayBlockingQueue<>(BACKLOG * 2);
+                return wrap(q::offer, q::poll);
+            }
+            case "concurrentLinked": {
+                ConcurrentLinkedQueue<Packet> q = new ConcurrentLinkedQueue<>();
+                return wrap(q::offer, q::poll);
+            }
+            case "lanes": {
+                @SuppressWarnings("unchecked")
+                ConcurrentLinkedQueue<Packet>[] lanes = new ConcurrentLinkedQueue[3];
+                for (int i = 0; i < lanes.length; i++)
+                    lanes[i] = new ConcurrentLinkedQueue<>();
+                return new PacketQueue() {
+                    @Override
+                    public boolean offer(Packet packet) {
+                        return lanes[packet.getPriority() - 1].offer(packet);
+                    }
+
+                    @Override
+                    public Packet poll() {
+                        for (ConcurrentLinkedQueue<Packet> lane : lanes) {
+                            Packet p = lane.poll();
+                            if (p != null)
+                                return p;
+                        }
+                        return null;
+                    }
+                };
+            }
+            default:
+                throw new IllegalArgumentException(impl);
+        }
+    }
+
+    private static PacketQueue wrap(java.util.function.Predicate<Packet> offer,
+            java.util.function.Supplier<Packet> poll) {
+        return new PacketQueue() {
+            @Override
+            public boolean offer(Packet packet) {
+                return offer.test(packet);
+            }
+
+            @Override
+            public Packet poll() {
+                return poll.get();
+            }
+        };
+    }
+
+    @State(Scope.Thread)
+    public static class ProducerState {
+        int next;
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public boolean enqueue(ProducerState producer) {
+        if (backlog.get() >= BACKLOG) {
+            Thread.onSpinWait();
+            return false;
+        }
+        Packet packet = packets[producer.next++ & (packets.length - 1)];
+        boolean added = queue.offer(packet);
+        if (added)
+            backlog.incrementAndGet();
+        return added;
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public Packet dequeue() {
+        Packet packet = queue.poll();
+        if (packet != null)
+            backlog.decrementAndGet();
+        return packet;
+    }
+
+    // Single thread, steady backlog: isolates the per-operation ordering cost
+    @Benchmark
+    @Group("uncontended")
+    @GroupThreads(1)
+    public Packet offerThenPoll(ProducerState producer) {
+        if (backlog.get() < BACKLOG) {
+            for (int i = 0; i < BACKLOG; i++) {
+                queue.offer(packets[i & (packets.length - 1)]);
+            }
+            backlog.set(BACKLOG);
+        }
+        queue.offer(packets[producer.next++ & (packets.length - 1)]);
+        return queue.poll();
+    }
+}
@@ -0,0 +1,115 @@
+package com.securechat.server;
+
+import com.securechat.common.protocol.Packet;
+import com.securechat.common.protocol.PacketType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PacketDispatcher.processPacket routing to in-memory handlers: the lookup,
+ * logging and fan-out cost per packet, without sockets or encryption.
+ * Lives in the server package to reach processPacket.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DispatchBenchmark {
+
+    private static final String GROUP = "bench-group";
+
+    // Counts deliveries instead of serializing + writing to a socket
+    static class MockClientHandler extends ClientHandler {
+        private final String name;
+        long delivered;
+
+        MockClientHandler(String name) {
+            super(null);
+            this.name = name;
+        }
+
+        @Override
+        public void sendPacket(Packet packet) {
+            delivered++;
+        }
+
+        @Override
+        public void cork() {
+        }
+
+        @Override
+        public void uncork() {
+        }
+
+        @Override
+        public String getUsername() {
+            return name;
+        }
+    }
+
+    @Param({ "2", "10", "50" })
+    public int groupSize;
+
+    private PacketDispatcher dispatcher;
+    private Packet dm;
+    private Packet fileChunk;
+    private Packet groupMessage;
+
+    @Setup
+    public void setup() {
+        ServerState state = ServerState.getInstance();
+        state.getNetworkLog().setConsoleEnabled(false);
+        state.createGroup(GROUP);
+        for (int i = 0; i < groupSize; i++) {
+            MockClientHandler handler = new MockClientHandler("user" + i);
+            state.addClient(handler.getUsername(), handler);
+            state.joinGroup(GROUP, handler);
+        }
+        dispatcher = new PacketDispatcher();
+
+        dm = new Packet(PacketType.DM, 1);
+        dm.setSender("user0");
+        dm.setReceiver("user1");
+        dm.setPayload(new byte[256]);
+
+        fileChunk = new Packet(PacketType.FILE_CHUNK, 3);
+        fileChunk.setSender("user0");
+        fileChunk.setReceiver("user1");
+        fileChunk.setChunkIndex(5);
+        fileChunk.setTotalChunks(100);
+        fileChunk.setPayload(new byte[64 * 1024]);
+
+        groupMessage = new Packet(PacketType.GROUP_MESSAGE, 2);
+        groupMessage.setSender("user0");
+        groupMessage.setGroup(GROUP);
+        groupMessage.setPayload(new byte[256]);
+    }
+
+    @Benchmark
+    public void routeDm() {
+        dispatcher.processPacket(dm);
+    }
+
+    @Benchmark
+    public void routeFileChunk() {
+        dispatcher.processPacket(fileChunk);
+    }
+
+    @Benchmark
+    public void routeGroupMessage() {
+        dispatcher.processPacket(groupMessage);
+    }
+}
@@ -0,0 +1,127 @@
+package com.securechat.client.core;
+
+/**
+ * Something the UI (or a bot/load generator) may want to show or act on.
+ * Published by NetworkClient from its network threads; subscribers decide
+ * which thread to handle them on.
+ */
+public class ClientEvent {
+
+    public enum Type {
+        NOTICE, // System line: text for the conversation's window, fallbackText for the main window
+        MESSAGE, // Reassembled (and decrypted) chat message
+        DELIVERY_ACK, // Recipient confirmed a DM or group message
+        USER_LIST, // items = "username:status", the whole list
+        PRESENCE, // One user's change: sender = username, text = status, or null if they went offline
+        GROUP_LIST, // items = group names
+        FILE_OFFER // Someone wants to send a file: answer with NetworkClient.respondToFileOffer
+    }
+
+    private final Type type;
+    private final String conversation; // User or group this belongs to (null = main window only)
+    private final boolean group;
+    private final String sender;
+    private final String text;
+    private final String fallbackText;
+    private final String[] items;
+    private final String fileId;
+    private final String fileName;
+    private final long fileSize;
+
+    private ClientEvent(Type type, String conversation, boolean group, String sender, String text,
+            String fallbackText, String[] items, String fileId, String fileName, long fileSize) {
+        this.type = type;
+        this.conversation = conversation;
+        this.group = group;
+        this.sender = sender;
+        this.text = text;
+        this.fallbackText = fallbackText;
+        this.items = items;
+        this.fileId = fileId;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+    }
+
+    public static ClientEvent notice(String text) {
+        return notice(null, text, text);
+    }
+
+    public static ClientEvent notice(String conversation, String text) {
+        return notice(conversation, text, text);
+    }
+
+    public static ClientEvent notice(String conversation, String text, String fallbackText) {
+        return new ClientEvent(Type.NOTICE, conversation, false, null, text, fallbackText, null, null, null, 0);
+    }
+
+    public static ClientEvent message(String conversation, boolean group, String sender, String text) {
+        return new ClientEvent(Type.MESSAGE, conversation, group, sender, text, null, null, null, null, 0);
+    }
+
+    public static ClientEvent deliveryAck(String conversation, boolean group, String sender) {
+        return new ClientEvent(Type.DELIVERY_ACK, conversation, group, sender, null, null, null, null, null, 0);
+    }
+
+    public static ClientEvent userList(String[] entries) {
+        return new ClientEvent(Type.USER_LIST, null, false, null, null, null, entries, null, null, 0);
+    }
+
+    public static ClientEvent presence(String username, String status) {
+        return new ClientEvent(Type.PRESENCE, null, false, username, status, null, null, null, null, 0);
+    }
+
+    public static ClientEvent groupList(String[] groups) {
+        return new ClientEvent(Type.GROUP_LIST, null, false, null, null, null, groups, null, null, 0);
+    }
+
+    public static ClientEvent fileOffer(String sender, String group, String fileId, String fileName, long fileSize) {
+        return new ClientEvent(Type.FILE_OFFER, group != null ? group : sender, group != null, sender, null, null,
+                null, fileId, fileName, fileSize);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getConversation() {
+        return conversation;
+    }
+
+    public boolean isGroup() {
+        return group;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getFallbackText() {
+        return fallbackText;
+    }
+
+    public String[] getItems() {
+        return items;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    @Override
+    public String toString() {
+        return type + (conversation != null ? "[" + conversation + "]" : "")
+                + (text != null ? " " + text : "") + (fileName != null ? " " + fileName : "");
+    }
+}
@@ -0,0 +1,292 @@
+package com.securechat.client.core;
+
+import com.securechat.common.util.FileFingerprint;
+import com.securechat.common.util.FileTransferUtil;
+import com.securechat.common.util.MerkleTree;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Content-derived file IDs for uploads, with the full SHA-256 and Merkle
+ * leaves of each file cached by path + mtime + size + sampled fingerprint,
+ * so an unchanged file is neither rehashed nor re-treed.
+ *
+ * The ID is normally the sampled fingerprint, available at once. Because
+ * the fingerprint skips most of the file, each one is claimed by the full
+ * hash of the content first sent under it; a fingerprint claimed by other
+ * content (an edit between the samples) is not reused, the full hash is the
+ * ID instead, so resume data is only ever matched to the same bytes. Claims
+ * are checked against the full hash, which a new file waits for only if its
+ * fingerprint was seen before.
+ *
+ * Both tables are bounded (least recently used entries go first) and saved
+ * only when a new file's hashes are complete.
+ */
+public class FileIdentityCache {
+
+    private static final String CACHE_FILE = "file_identity_cache.properties";
+    private static final String LEAVES_DIR = "file_identity_leaves";
+    private static final int MAX_FILES = 1000;
+    private static final int MAX_CLAIMS = 4096;
+    private static final String PENDING = "?"; // Claimed, full hash not known yet
+
+    public static class FileIdentity {
+        private final String fileId;
+        private final CompletableFuture<String> fullHash;
+        private final CompletableFuture<MerkleTree> tree;
+
+        FileIdentity(String fileId, CompletableFuture<String> fullHash, CompletableFuture<MerkleTree> tree) {
+            this.fileId = fileId;
+            this.fullHash = fullHash;
+            this.tree = tree;
+        }
+
+        public String getFileId() {
+            return fileId;
+        }
+
+        // Whole-file SHA-256 (hex), sent with FILE_COMPLETE
+        public CompletableFuture<String> getFullHash() {
+            return fullHash;
+        }
+
+        public CompletableFuture<MerkleTree> getTree() {
+            return tree;
+        }
+    }
+
+    private final File cacheFile;
+    private final File leavesDir;
+    // "path|mtime|size" -> "fingerprint,sha256,lastUsed", least recently used first; guarded by itself
+    private final LinkedHashMap<String, String> files = new LinkedHashMap<>(16, 0.75f, true);
+    // fingerprint -> sha256 of the content it was first sent for (or PENDING); guarded by files
+    private final LinkedHashMap<String, String> claims = new LinkedHashMap<>(16, 0.75f, true);
+    private final ExecutorService hasher = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "file-hasher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public FileIdentityCache() {
+        this(null);
+    }
+
+    // Cache file and leaves under directory (null: the working directory)
+    public FileIdentityCache(File directory) {
+        this.cacheFile = new File(directory, CACHE_FILE);
+        this.leavesDir = new File(directory, LEAVES_DIR);
+        if (cacheFile.exists()) {
+            Properties props = new Properties();
+            try (FileInputStream fis = new FileInputStream(cacheFile)) {
+                props.load(fis);
+            } catch (IOException e) {
+                System.err.println("Failed to load file identity cache: " + e.getMessage());
+            }
+            // Restore recency order from the saved timestamps
+            List<String[]> entries = new ArrayList<>();
+            for (String key : props.stringPropertyNames()) {
+                String value = props.getProperty(key);
+                String[] parts = value.split(",");
+                if (key.startsWith("claim.") && parts.length == 2) {
+                    entries.add(new String[] { key, parts[0], parts[1] });
+                } else if (!key.startsWith("claim.") && parts.length == 3) {
+                    entries.add(new String[] { key, parts[0] + "," + parts[1], parts[2] });
+                }
+            }
+            entries.sort((a, b) -> Long.compare(parseLong(a[2]), parseLong(b[2])));
+            for (String[] entry : entries) {
+                if (entry[0].startsWith("claim."))
+                    claims.put(entry[0].substring("claim.".length()), entry[1] + "," + entry[2]);
+                else
+                    files.put(entry[0], entry[1] + "," + entry[2]);
+            }
+        }
+    }
+
+    public FileIdentity identify(File file) throws IOException {
+        String key = cacheKey(file);
+        // Cheap and always fresh: an edit that keeps size and mtime still misses
+        String fingerprint = FileFingerprint.sampled(file);
+        String knownHash = null;
+        String claim;
+        boolean firstClaim = false;
+        synchronized (files) {
+            String cached = files.get(key);
+            if (cached != null) {
+                String[] parts = cached.split(",");
+                if (parts[0].equals(fingerprint)) {
+                    knownHash = parts[1];
+                    files.put(key, parts[0] + "," + parts[1] + "," + System.currentTimeMillis());
+                }
+            }
+            claim = claimOf(fingerprint);
+            if (claim == null) {
+                claim = (knownHash != null) ? knownHash : PENDING;
+                putClaim(fingerprint, claim);
+                firstClaim = (knownHash == null);
+            }
+        }
+
+        CompletableFuture<String> fullHash;
+        CompletableFuture<MerkleTree> tree;
+        if (knownHash != null) {
+            String hash = knownHash;
+            fullHash = CompletableFuture.completedFuture(hash);
+            byte[][] leaves = loadLeaves(hash, file.length());
+            tree = (leaves != null) ? CompletableFuture.completedFuture(new MerkleTree(leaves)) : buildTree(file);
+            if (leaves == null)
+                tree.thenAccept(t -> saveLeaves(hash, t));
+        } else {
+            fullHash = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return FileTransferUtil.calculateChecksum(file);
+                } catch (IOException e) {
+                    throw new java.io.UncheckedIOException(e);
+                }
+            }, hasher);
+            tree = buildTree(file);
+            boolean claimOnHash = firstClaim;
+            fullHash.thenAcceptBoth(tree, (hash, t) -> {
+                saveLeaves(hash, t);
+                synchronized (files) {
+                    files.put(key, fingerprint + "," + hash + "," + System.currentTimeMillis());
+                    if (claimOnHash && PENDING.equals(claimOf(fingerprint)))
+                        putClaim(fingerprint, hash);
+                    save();
+                }
+            });
+            if (firstClaim)
+                return new FileIdentity(fingerprint, fullHash, tree);
+        }
+
+        // The fingerprint was seen before: reuse it only for the content that claimed it
+        String hash;
+        try {
+            hash = fullHash.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing " + file.getName());
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to hash " + file.getName(), e.getCause());
+        }
+        return new FileIdentity(claim.equals(hash) ? fingerprint : hash, fullHash, tree);
+    }
+
+    // Stops the background hashing; identities already handed out may never complete
+    public void shutdown() {
+        hasher.shutdownNow();
+    }
+
+    private CompletableFuture<MerkleTree> buildTree(File file) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return MerkleTree.build(file, FileTransferUtil.CHUNK_SIZE);
+            } catch (IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+        }, hasher);
+    }
+
+    private static String cacheKey(File file) {
+        return file.getAbsolutePath() + "|" + file.lastModified() + "|" + file.length();
+    }
+
+    private static long parseLong(String s) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Caller holds files
+    private String claimOf(String fingerprint) {
+        String claim = claims.get(fingerprint);
+        return (claim != null) ? claim.split(",")[0] : null;
+    }
+
+    // Caller holds files
+    private void putClaim(String fingerprint, String hash) {
+        claims.put(fingerprint, hash + "," + System.currentTimeMillis());
+        while (claims.size() > MAX_CLAIMS) {
+            claims.remove(claims.keySet().iterator().next());
+        }
+    }
+
+    // Null if missing or not the leaf count of a file of this size
+    private byte[][] loadLeaves(String hash, long size) {
+        File leaves = new File(leavesDir, hash + ".leaves");
+        long expected = Math.max(1, (size + FileTransferUtil.CHUNK_SIZE - 1) / FileTransferUtil.CHUNK_SIZE);
+        if (leaves.length() != expected * MerkleTree.HASH_SIZE)
+            return null;
+        try {
+            return MerkleTree.split(Files.readAllBytes(leaves.toPath()));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void saveLeaves(String hash, MerkleTree tree) {
+        byte[][] leaves = new byte[tree.getLeafCount()][];
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = tree.getLeaf(i);
+        }
+        try {
+            Files.createDirectories(leavesDir.toPath());
+            File tmp = new File(leavesDir, hash + ".leaves.tmp");
+            Files.write(tmp.toPath(), MerkleTree.concat(leaves));
+            Files.move(tmp.toPath(), new File(leavesDir, hash + ".leaves").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to save Merkle leaves: " + e.getMessage());
+        }
+    }
+
+    // Caller holds files. Evicts past MAX_FILES (with leaves no file refers to any more), then rewrites
+    private void save() {
+        List<String> evictedHashes = new ArrayList<>();
+        while (files.size() > MAX_FILES) {
+            String eldest = files.keySet().iterator().next();
+            evictedHashes.add(files.remove(eldest).split(",")[1]);
+        }
+        for (String value : files.values()) {
+            evictedHashes.remove(value.split(",")[1]);
+        }
+        for (String hash : evictedHashes) {
+            new File(leavesDir, hash + ".leaves").delete();
+        }
+
+        Properties props = new Properties();
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            props.setProperty(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, String> entry : claims.entrySet()) {
+            props.setProperty("claim." + entry.getKey(), entry.getValue());
+        }
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                props.store(fos, "File Identity Cache (path|mtime|size = fingerprint,sha256,lastUsed;"
+                        + " claim.fingerprint = sha256,lastUsed)");
+            }
+            Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to save file identity cache: " + e.getMessage());
+        }
+    }
+}
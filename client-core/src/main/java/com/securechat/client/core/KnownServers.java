@@ -0,0 +1,93 @@
+package com.securechat.client.core;
+
+import com.securechat.common.crypto.CryptoUtil;
+import com.securechat.common.crypto.SessionHandshake;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.Properties;
+
+/**
+ * Trust-on-first-use pins for server identities: the first static key seen
+ * for host:port is stored, and any later handshake presenting a different
+ * key is refused. Delete the entry (or the file) after a deliberate server
+ * key rotation.
+ */
+public class KnownServers {
+
+    private final File file;
+
+    public KnownServers(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns true if the key was pinned just now, false if it matched an
+     * existing pin. Throws SecurityException on a mismatch.
+     */
+    public synchronized boolean verify(String host, int port, PublicKey serverKey) {
+        String id = host + ":" + port;
+        String encoded = Base64.getEncoder().encodeToString(serverKey.getEncoded());
+        Properties props = load();
+        String pinned = props.getProperty(id);
+        if (pinned == null) {
+            props.setProperty(id, encoded);
+            // Through a temp file: a torn write would lose every other pin
+            File tmp = new File(file.getPath() + ".tmp");
+            try {
+                try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                    props.store(fos, "SecureChat Known Server Identities");
+                }
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Failed to save server pin: " + e.getMessage());
+            }
+            return true;
+        }
+        if (!pinned.equals(encoded)) {
+            throw new SecurityException("Server identity for " + id + " has changed (now " + fingerprint(serverKey)
+                    + "). Refusing to connect; remove the entry from " + file.getName() + " if this is expected.");
+        }
+        return false;
+    }
+
+    // The pinned key for host:port, or null if this server has not been seen yet
+    public synchronized PublicKey lookup(String host, int port) {
+        String pinned = load().getProperty(host + ":" + port);
+        if (pinned == null)
+            return null;
+        try {
+            return CryptoUtil.decodeX25519PublicKey(Base64.getDecoder().decode(pinned));
+        } catch (Exception e) {
+            System.err.println("Ignoring unreadable server pin for " + host + ":" + port);
+            return null;
+        }
+    }
+
+    private Properties load() {
+        Properties props = new Properties();
+        if (file.exists()) {
+            try (FileInputStream fis = new FileInputStream(file)) {
+                props.load(fis);
+            } catch (IOException e) {
+                System.err.println("Failed to load server pins: " + e.getMessage());
+            }
+        }
+        return props;
+    }
+
+    private static String fingerprint(PublicKey key) {
+        try {
+            return SessionHandshake.fingerprint(key);
+        } catch (Exception e) {
+            return "?";
+        }
+    }
+}
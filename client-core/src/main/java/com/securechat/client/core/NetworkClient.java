@@ -0,0 +1,1752 @@
+package com.securechat.client.core;
+
+import com.securechat.common.crypto.CryptoUtil;
+import com.securechat.common.crypto.RecordWriter;
+import com.securechat.common.crypto.SegmentedFrames;
+import com.securechat.common.crypto.SessionCipher;
+import com.securechat.common.crypto.SessionHandshake;
+import com.securechat.common.crypto.SessionTicket;
+import com.securechat.common.protocol.Packet;
+import com.securechat.common.protocol.PacketCodec;
+import com.securechat.common.protocol.PacketType;
+import com.securechat.common.protocol.Presence;
+import com.securechat.common.util.ChunkBitmap;
+import com.securechat.common.util.FileTransferUtil;
+import com.securechat.common.util.MerkleTree;
+import com.securechat.common.util.MessageReassembler;
+import com.securechat.common.util.ProtocolUtil;
+import com.securechat.common.util.RttEstimator;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.security.PublicKey;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * UI-free client: connection, handshake, E2EE, message reassembly and file
+ * transfers. Everything a user would see is published as a ClientEvent;
+ * subscribers are called on publisher threads, never on the network thread.
+ */
+public final class NetworkClient {
+    private Socket socket;
+    private String lastUsername;
+    private String lastPassword;
+    private volatile boolean intentionallyClosed = false;
+    private volatile boolean authSuccess = false;
+    // At most one reconnect loop at a time, whoever notices the connection drop
+    private final AtomicBoolean reconnecting = new AtomicBoolean();
+    // Bumped when a reconnect retires a connection; a listener or heartbeat of an older one stops quietly
+    private final AtomicInteger connectionGeneration = new AtomicInteger();
+
+    private DataInputStream in;
+    private DataOutputStream out;
+    private SecretKey aesKey;
+    // Packet encryption for the current connection; replaced with the key on every (re)connect
+    private volatile SessionCipher sessionCipher;
+    // Joins segments and batches back into packets; per connection like the cipher
+    private volatile SegmentedFrames frames;
+    // Batches small outgoing packets and segments large ones, with the packet codec whose name
+    // tables it is in step with; per connection like the cipher, replaced as a pair
+    private volatile Outbound outbound;
+    // Decodes with the server's name tables for this connection; used only by the listener
+    private volatile PacketCodec inboundCodec;
+    private boolean running = true;
+    private String myUsername;
+    // Online users as of the last snapshot plus the deltas since; touched by the listener thread
+    private final Presence presence = Presence.unsynced();
+    private long presenceResyncFrom = -1; // Version a resync was last requested from
+
+    private final String serverIp;
+    private final int serverPort;
+
+    // Events are delivered to each subscriber in order on the publisher's own threads. submit()
+    // blocks when a subscriber's buffer is full, so a stalled consumer slows the client down
+    // instead of losing events.
+    private final SubmissionPublisher<ClientEvent> events = new SubmissionPublisher<>(
+            Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "client-events");
+                t.setDaemon(true);
+                return t;
+            }), Flow.defaultBufferSize());
+
+    // File Reassembly State: FileID -> RandomAccessFile
+    private final Map<String, RandomAccessFile> activeDownloads = new ConcurrentHashMap<>();
+    // Chunks written per download, mirrored to <download>.map so resume survives a restart
+    private final Map<String, ChunkBitmap> receivedChunks = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, CompletableFuture<Void>>> pendingAcks = new ConcurrentHashMap<>();
+
+    // E2EE Management: per-peer DM keys agreed over X25519 identity keys and persisted by PeerKeyStore
+    private final Map<String, SecretKey> e2eKeyMap = new ConcurrentHashMap<>();
+    private final Set<String> pendingKeyExchanges = ConcurrentHashMap.newKeySet();
+    private final Map<String, Queue<String>> pendingMessages = new ConcurrentHashMap<>();
+    private volatile CompletableFuture<PeerKeyStore> peerKeys = new CompletableFuture<>();
+    private volatile String peerKeysUser;
+    // Work that needs the key store (DMs, key exchanges) waits for it here, in arrival order,
+    // instead of on the listener thread
+    private final ExecutorService e2eWork = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "client-e2e");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Universal Reassembly: 64 MB per message, 256 MB in memory and 512 MB on disk in flight, 2 min idle
+    // TTL, > 8 MB assembled on disk
+    private final MessageReassembler reassembler = new MessageReassembler(64L << 20, 256L << 20, 512L << 20,
+            120_000, 8L << 20, new File(System.getProperty("java.io.tmpdir")));
+
+    // Resume Coordination: FileID -> Future of the chunks the target already has
+    private final Map<String, CompletableFuture<ChunkBitmap>> pendingResumeRequests = new ConcurrentHashMap<>();
+    private final Set<String> activeUploads = Collections.synchronizedSet(new HashSet<>());
+    private final TransferManager transferManager; // Its workers call back into this client
+    private CompletableFuture<String> loginFuture;
+
+    // Permission Handshake: FileID -> Future<Boolean> (True=Approved, False=Denied)
+    private final Map<String, CompletableFuture<Boolean>> pendingFileRequests = new ConcurrentHashMap<>();
+
+    // Projected transfer time is multiplied by this before a transfer is declared stalled
+    private static final int TRANSFER_DEADLINE_SLACK = 4;
+
+    // Integrity: resend a chunk at most this often after failed proofs before giving up
+    private static final int MAX_CHUNK_NACKS = 5;
+    private static final long REPAIR_WINDOW_MILLIS = 10 * 60 * 1000;
+
+    // Finished uploads kept briefly so receivers can request targeted repair
+    private static class CompletedUpload {
+        final File file;
+        final long fileSize;
+        final String checksum;
+        final MerkleTree tree;
+        final String target; // Receiver, or group
+        final boolean isGroup;
+        final long completedAt = System.currentTimeMillis();
+
+        CompletedUpload(File file, long fileSize, String checksum, MerkleTree tree, String target, boolean isGroup) {
+            this.file = file;
+            this.fileSize = fileSize;
+            this.checksum = checksum;
+            this.tree = tree;
+            this.target = target;
+            this.isGroup = isGroup;
+        }
+    }
+
+    private final Map<String, CompletedUpload> completedUploads = new ConcurrentHashMap<>();
+    // "fileId|requester" of repairs queued or running, so repeated requests don't pile up
+    private final Set<String> queuedRepairs = ConcurrentHashMap.newKeySet();
+    // Members of the groups we are in, as last sent by the server (USER_LIST_UPDATE with a group)
+    private final Map<String, Set<String>> groupMembers = new ConcurrentHashMap<>();
+    private final FileIdentityCache fileIdentities;
+
+    // Receiver side: announced Merkle root per fileId, used to verify chunks as they arrive
+    private final Map<String, byte[]> merkleRoots = new ConcurrentHashMap<>();
+    private final Map<String, File> downloadTargets = new ConcurrentHashMap<>();
+
+    // Tracks which files we (as a receiver) have explicitly accepted.
+    private final Set<String> acceptedFileTransfers = Collections.synchronizedSet(new HashSet<>());
+
+    private final KnownServers knownServers;
+    private final File dataDirectory; // Null: the working directory
+
+    // Latest resumption ticket from the server; single use, so cleared once offered
+    private volatile SessionTicket sessionTicket;
+    private volatile byte[] resumptionSecret;
+    private volatile long ticketExpiresAtNanos;
+
+    // Incoming FILE_REQs waiting for respondToFileOffer: FileID -> request
+    private final Map<String, Packet> pendingFileOffers = new ConcurrentHashMap<>();
+
+    public NetworkClient(String serverIp, int serverPort) {
+        this(serverIp, serverPort, null);
+    }
+
+    // Transfer journals, the file identity cache, pinned server keys and E2EE key stores go in
+    // dataDirectory (null: the working directory), so several clients in one process keep apart
+    public NetworkClient(String serverIp, int serverPort, File dataDirectory) {
+        this.serverIp = serverIp;
+        this.serverPort = serverPort;
+        this.dataDirectory = dataDirectory;
+        if (dataDirectory != null)
+            dataDirectory.mkdirs();
+        this.fileIdentities = new FileIdentityCache(dataDirectory);
+        this.knownServers = new KnownServers(new File(dataDirectory, "known_servers.properties"));
+        // Last: the workers start now and may run performFileTransfer, which needs every other field
+        this.transferManager = new TransferManager(this::performFileTransfer, TransferManager.DEFAULT_MAX_CONCURRENT,
+                dataDirectory);
+    }
+
+    public Flow.Publisher<ClientEvent> getEvents() {
+        return events;
+    }
+
+    // Convenience subscriber with unbounded demand
+    public void addListener(java.util.function.Consumer<ClientEvent> listener) {
+        events.subscribe(new Flow.Subscriber<ClientEvent>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ClientEvent event) {
+                listener.accept(event);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                System.err.println("Client event listener failed: " + throwable.getMessage());
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+    }
+
+    private void publish(ClientEvent event) {
+        if (!events.isClosed()) {
+            events.submit(event);
+        }
+    }
+
+    private void notice(String text) {
+        publish(ClientEvent.notice(text));
+    }
+
+    public void connect(String username) throws Exception {
+        this.myUsername = username;
+        openSocket();
+
+        // 1. Handshake
+        performHandshake();
+
+        // 2. Start Listener Thread
+        startListener();
+    }
+
+    /**
+     * connect() and login() in a single flight: once the server's key is
+     * pinned, LOGIN travels inside the ClientHello and the auth result, user
+     * list and group list come back together with the ServerHello.
+     */
+    public CompletableFuture<String> connectAndLogin(String username, String password) throws Exception {
+        this.myUsername = username;
+        this.lastUsername = username;
+        this.lastPassword = password;
+        openSocket();
+        CompletableFuture<String> auth = handshakeAndLogin();
+
+        startListener();
+        return auth;
+    }
+
+    private void openSocket() throws IOException {
+        socket = new Socket(serverIp, serverPort);
+        socket.setTcpNoDelay(true); // The RecordWriter decides when to flush; batches go through sendCorked
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), RecordWriter.FLUSH_BYTES));
+    }
+
+    // Closes the connection for good (no auto-reconnect), stops the upload workers and file
+    // hashing, and completes event subscribers
+    public void disconnect() {
+        intentionallyClosed = true;
+        running = false;
+        cleanup();
+        transferManager.shutdown();
+        fileIdentities.shutdown();
+        e2eWork.shutdownNow();
+        events.close();
+    }
+
+    private void performHandshake() throws Exception {
+        // X25519 key agreement; the server's long-term key is pinned on first use
+        SessionHandshake.ClientSession session = SessionHandshake.client(in, out, this::verifyServerKey);
+        setSession(session);
+
+        System.out.println("Handshake complete (" + session.getCipherSuite() + ").");
+    }
+
+    // Full handshake with LOGIN as early data; sent again normally if the server did not take it
+    private CompletableFuture<String> handshakeAndLogin() throws Exception {
+        Packet login = loginPacket(lastUsername, lastPassword);
+        loginFuture = new CompletableFuture<>();
+        ByteArrayOutputStream early = new ByteArrayOutputStream();
+        ProtocolUtil.writeFrame(new DataOutputStream(early), PacketCodec.encodeLiteral(login));
+
+        SessionHandshake.ClientSession session = SessionHandshake.client(in, out, this::verifyServerKey,
+                knownServers.lookup(serverIp, serverPort), early.toByteArray());
+        setSession(session);
+        if (session.isEarlyDataAccepted()) {
+            System.out.println("Handshake complete (" + session.getCipherSuite() + ", login in first flight).");
+        } else {
+            System.out.println("Handshake complete (" + session.getCipherSuite() + ").");
+            sendPacket(login);
+        }
+        return loginFuture;
+    }
+
+    private void setSession(SessionHandshake.ClientSession session) throws Exception {
+        this.aesKey = session.getSessionKey();
+        this.sessionCipher = SessionCipher.forClient(session.getSessionKey(), session.getCipherSuite());
+        this.frames = new SegmentedFrames();
+        this.inboundCodec = new PacketCodec();
+        this.outbound = new Outbound(new RecordWriter(out, sessionCipher, null), new PacketCodec());
+    }
+
+    private static final class Outbound {
+        final RecordWriter writer;
+        final PacketCodec codec;
+
+        Outbound(RecordWriter writer, PacketCodec codec) {
+            this.writer = writer;
+            this.codec = codec;
+        }
+    }
+
+    private void verifyServerKey(PublicKey serverKey) {
+        if (knownServers.verify(serverIp, serverPort, serverKey)) {
+            try {
+                notice("System: Pinned server identity " + SessionHandshake.fingerprint(serverKey) + " for "
+                        + serverIp + ":" + serverPort);
+            } catch (Exception e) {
+                // Fingerprint is informational only
+            }
+        }
+    }
+
+    // Offers the stored ticket; false means no usable ticket or the server declined it
+    private boolean resumeSession() throws Exception {
+        SessionTicket ticket = sessionTicket;
+        byte[] secret = resumptionSecret;
+        sessionTicket = null;
+        if (ticket == null || secret == null || System.nanoTime() - ticketExpiresAtNanos > 0)
+            return false;
+        loginFuture = new CompletableFuture<>();
+        SessionHandshake.ClientSession session = SessionHandshake.resume(in, out, ticket.getTicket(), secret);
+        if (session == null) {
+            System.out.println("Session ticket declined; falling back to a full handshake.");
+            return false;
+        }
+        setSession(session);
+        return true;
+    }
+
+    // The listener keeps the streams and cipher of the connection it was started for, so one
+    // whose connection a reconnect has replaced can never read from the new socket
+    private void startListener() {
+        int generation = connectionGeneration.get();
+        DataInputStream input = in;
+        SegmentedFrames segments = frames;
+        SessionCipher cipher = sessionCipher;
+        PacketCodec codec = inboundCodec;
+        Thread listenerThread = new Thread(() -> listen(generation, input, segments, cipher, codec));
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+    }
+
+    private void listen(int generation, DataInputStream input, SegmentedFrames segments, SessionCipher cipher,
+            PacketCodec codec) {
+        try {
+            // Stop also with packets still buffered from a retired connection
+            while (generation == connectionGeneration.get()) {
+                java.nio.ByteBuffer packetData = segments.next(input, cipher);
+                Packet packet = codec.decode(packetData);
+
+                handlePacket(packet);
+            }
+        } catch (Exception e) {
+            // Closed by disconnect(), or retired by a reconnect that has already moved on: leave quietly
+            if (intentionallyClosed || generation != connectionGeneration.get())
+                return;
+            System.err.println("Listener error: " + e.getMessage());
+            cleanup();
+            if (authSuccess) {
+                attemptReconnect();
+            }
+        }
+    }
+
+    // Closes the current connection; its listener and heartbeat see the new generation and stop
+    private void retireConnection() {
+        connectionGeneration.incrementAndGet();
+        cleanup();
+    }
+
+    private void attemptReconnect() {
+        if (!reconnecting.compareAndSet(false, true))
+            return; // Already reconnecting
+        Thread reconnectThread = new Thread(() -> {
+            try {
+                reconnectLoop();
+            } finally {
+                reconnecting.set(false);
+            }
+        }, "client-reconnect");
+        reconnectThread.setDaemon(true);
+        reconnectThread.start();
+    }
+
+    private void reconnectLoop() {
+        while (!intentionallyClosed) {
+            try {
+                Thread.sleep(3000); // Wait 3 seconds to retry
+                System.out.println("Attempting to reconnect...");
+                // Close existing resources (and a previous attempt's listener) before reconnecting
+                retireConnection();
+                // Re-establish socket and handshake
+                openSocket();
+                // One round trip with a ticket; otherwise key agreement with LOGIN in the same flight
+                boolean resumed = resumeSession();
+                CompletableFuture<String> auth = resumed ? loginFuture : handshakeAndLogin();
+
+                // The listener has to be running to receive AUTH_RESPONSE
+                startListener();
+                String result = auth.get(25, java.util.concurrent.TimeUnit.SECONDS);
+                if (result.startsWith("SUCCESS")) {
+                    System.out.println(resumed ? "Auto-reconnected with session ticket."
+                            : "Auto-reconnected and logged in.");
+                    notice("System: Connection restored. Automatic resume possible.");
+                    // Restart heartbeat thread, bound to this connection
+                    int generation = connectionGeneration.get();
+                    Thread h = new Thread(() -> sendHeartbeat(generation));
+                    h.setDaemon(true);
+                    h.start();
+                    break;
+                } else {
+                    // Authentication failed during reconnect - stop retrying, also when this socket drops
+                    authSuccess = false;
+                    retireConnection();
+                    System.err.println("Reconnect failed: Authentication error.");
+                    notice("System: Reconnect failed (Auth Error).");
+                    break;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                System.err.println("Reconnection failed: " + e.getMessage());
+                notice("System: Reconnection failed. Retrying...");
+            }
+        }
+    }
+
+    private void cleanup() {
+        try {
+            if (socket != null && !socket.isClosed()) {
+                socket.close();
+            }
+            if (in != null)
+                in.close();
+            if (out != null)
+                out.close();
+        } catch (IOException e) {
+            System.err.println("Error during cleanup: " + e.getMessage());
+        }
+    }
+
+    private void sendHeartbeat(int generation) {
+        try {
+            while (running && !intentionallyClosed && generation == connectionGeneration.get()) {
+                Thread.sleep(10000); // Send heartbeat every 10 seconds
+                Packet heartbeat = new Packet(PacketType.HEARTBEAT, 0);
+                sendPacket(heartbeat);
+                reassembler.evictExpired(System.currentTimeMillis()); // Even when no more chunks arrive
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Heartbeat thread interrupted.");
+        } catch (Exception e) {
+            System.err.println("Heartbeat error: " + e.getMessage());
+        }
+    }
+
+    private void handlePacket(Packet packet) {
+        switch (packet.getType()) {
+            case DM:
+            case GROUP_MESSAGE:
+                String transId = packet.getTransactionId();
+                if (transId == null) {
+                    processFullMessage(packet);
+                    break;
+                }
+
+                MessageReassembler.Message message = reassembler.accept(transId, packet.getChunkIndex(),
+                        packet.getTotalChunks(), packet.getPayload());
+                if (message != null) {
+                    System.out.println("[REASSEMBLY] Completed message for transaction " + transId + " ("
+                            + packet.getTotalChunks() + " chunks)");
+                    if (message.isSpilled()) {
+                        processFullMessage(packet, message); // Closes it once read
+                    } else {
+                        packet.setPayload(message.getBytes());
+                        processFullMessage(packet, null);
+                    }
+
+                    // Send ACKs for Direct and Group Messages
+                    PacketType ackType = (packet.getType() == PacketType.DM) ? PacketType.DM_ACK
+                            : PacketType.GROUP_ACK;
+                    Packet ack = new Packet(ackType, 1);
+                    ack.setSender(myUsername);
+                    ack.setReceiver(packet.getSender()); // Send directly back to sender
+                    ack.setGroup(packet.getGroup()); // Include group context if applicable
+                    ack.setTransactionId(transId);
+                    ack.setTotalChunks(packet.getTotalChunks());
+                    sendPacket(ack);
+                }
+                break;
+
+            case GROUP_LIST_UPDATE:
+                String listPayload = new String(packet.getPayload(), java.nio.charset.StandardCharsets.UTF_8);
+                String[] groups = listPayload.split(",");
+                publish(ClientEvent.groupList(groups));
+                break;
+
+            case FILE_INIT: {
+                if (packet.getGroup() != null) {
+                    // Check if we accepted this file
+                    if (!acceptedFileTransfers.contains(packet.getFileId())) {
+                        System.out.println("[FILTER] Ignoring un-accepted group file: " + packet.getFileName());
+                        return;
+                    }
+                }
+
+                String context = (packet.getGroup() != null) ? "Group " + packet.getGroup() : "Private Chat";
+                String targetKey = (packet.getGroup() != null) ? packet.getGroup() : packet.getSender();
+                String senderName = (packet.getSender() != null) ? packet.getSender() : "Someone";
+
+                String receivingMsg = "System: Receiving file '" + packet.getFileName() + "' from " + senderName
+                        + " in " + context;
+                publish(ClientEvent.notice(targetKey, receivingMsg, receivingMsg + " (Open chat to see progress)"));
+                try {
+                    File downloadDir = new File("downloads");
+                    if (!downloadDir.exists())
+                        downloadDir.mkdir();
+
+                    File file = new File(downloadDir, packet.getFileName());
+                    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                    activeDownloads.put(packet.getFileId(), raf);
+                    downloadTargets.put(packet.getFileId(), file);
+                    openChunkMap(packet.getFileId(), file);
+                    if (packet.getMerkleRoot() != null) {
+                        merkleRoots.put(packet.getFileId(), packet.getMerkleRoot());
+                    }
+                    System.out.println("System: Started receiving file " + packet.getFileName());
+                } catch (Exception e) {
+                    System.err.println("ERROR: Failed to initialize file download!");
+                    e.printStackTrace();
+                    notice("System: ERROR - Cannot save file! Check console.");
+                }
+                break;
+            }
+
+            case FILE_CHUNK: {
+                try {
+                    String fileId = packet.getFileId();
+
+                    // FILTER: If this is a group chunk and we typically don't track it, IGNORE IT.
+                    // However, we only have activeDownloads if FILE_INIT passed.
+                    // But if we joined LATE (sending Auto-Recovery), we must also check permission.
+                    if (packet.getGroup() != null && !acceptedFileTransfers.contains(fileId)) {
+                        return; // Silent Drop
+                    }
+
+                    RandomAccessFile raf = activeDownloads.get(fileId);
+
+                    if (raf == null) {
+                        System.out.println("[RECOVERY] Received mid-transfer chunk for unknown fileId: " + fileId
+                                + ". Attempting auto-recovery...");
+                        // Receiver Auto-Recovery: Missing FILE_INIT (happens after reconnection)
+                        File downloadDir = new File("downloads");
+                        if (!downloadDir.exists())
+                            downloadDir.mkdir();
+
+                        File file = new File(downloadDir, packet.getFileName() + ".part");
+                        raf = new RandomAccessFile(file, "rw");
+                        activeDownloads.put(fileId, raf);
+                        downloadTargets.put(fileId, file);
+                        openChunkMap(fileId, file);
+
+                        String recoveryContext = (packet.getGroup() != null) ? "Group " + packet.getGroup()
+                                : "Private Chat";
+                        notice("System: Resuming reception of '" + packet.getFileName() + "' in " + recoveryContext
+                                + " (.part mode)");
+                    }
+
+                    // Verify against the announced Merkle root before touching disk
+                    byte[] root = merkleRoots.get(fileId);
+                    if (root != null && !MerkleTree.verify(packet.getPayload(), packet.getChunkIndex(),
+                            packet.getTotalChunks(), packet.getChunkProof(), root)) {
+                        System.err.println("[INTEGRITY] Chunk " + packet.getChunkIndex() + " of " + fileId
+                                + " failed Merkle proof, requesting resend");
+                        Packet nack = new Packet(PacketType.CHUNK_NACK, 1);
+                        nack.setFileId(fileId);
+                        nack.setChunkIndex(packet.getChunkIndex());
+                        nack.setSender(myUsername);
+                        nack.setReceiver(packet.getSender());
+                        sendPacket(nack);
+                        break;
+                    }
+
+                    if (raf != null) {
+                        raf.seek((long) packet.getChunkIndex() * FileTransferUtil.CHUNK_SIZE);
+                        raf.write(packet.getPayload());
+                        raf.getFD().sync(); // Force persistence to prevent corruption on crash/flicker
+
+                        // Track unique chunks; the map is written after the data is synced
+                        ChunkBitmap chunks = receivedChunks.computeIfAbsent(fileId, k -> new ChunkBitmap());
+                        File target = downloadTargets.get(fileId);
+                        if (chunks.set(packet.getChunkIndex()) && target != null) {
+                            chunks.save(ChunkBitmap.mapFileFor(target), fileId);
+                        }
+
+                        // Send ACK (Now includes total chunks for progress tracking)
+                        Packet ack = new Packet(PacketType.CHUNK_ACK, 1);
+                        ack.setFileId(fileId);
+                        ack.setChunkIndex(packet.getChunkIndex());
+                        ack.setTotalChunks(packet.getTotalChunks());
+                        ack.setSender(myUsername);
+                        ack.setReceiver(packet.getSender());
+
+                        System.out.println(
+                                "[FLOW] Sending CHUNK_ACK for chunk " + packet.getChunkIndex() + " of file " + fileId);
+                        sendPacket(ack);
+
+                        if (chunks.isComplete(packet.getTotalChunks())) {
+                            raf.close();
+                            activeDownloads.remove(fileId);
+                            downloadTargets.remove(fileId);
+                            receivedChunks.remove(fileId);
+                            if (target != null)
+                                ChunkBitmap.mapFileFor(target).delete();
+                            transferManager.completeDownload(fileId);
+                            String fileKey = (packet.getGroup() != null) ? packet.getGroup() : packet.getSender();
+                            publish(ClientEvent.notice(fileKey, "System: File download complete: "
+                                    + packet.getFileName() + " (Saved to ./downloads folder)"));
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("[RECOVERY] Error during file write or recovery: " + e.getMessage());
+                    e.printStackTrace();
+                }
+                break;
+            }
+
+            case AUTH_RESPONSE:
+                if (loginFuture != null) {
+                    String resp = new String(packet.getPayload(), java.nio.charset.StandardCharsets.UTF_8);
+                    if (resp.startsWith("SUCCESS")) {
+                        authSuccess = true;
+                        openPeerKeys();
+                        // Pick up transfers that were in flight before a restart or reconnect
+                        transferManager.openJournal(myUsername);
+                        acceptedFileTransfers.addAll(transferManager.getJournaledDownloadIds());
+                    }
+                    loginFuture.complete(resp);
+                }
+                break;
+            case USER_LIST_UPDATE:
+                String userPayload = new String(packet.getPayload(), java.nio.charset.StandardCharsets.UTF_8);
+                if (packet.getGroup() != null)
+                    groupMembers.put(packet.getGroup(), Set.copyOf(java.util.Arrays.asList(userPayload.split(","))));
+                publish(ClientEvent.userList(userPayload.split(",")));
+                break;
+
+            case USER_LIST:
+                // Presence snapshot: replaces the whole list, whatever version we were at
+                presence.loadSnapshot(new String(packet.getPayload(), java.nio.charset.StandardCharsets.UTF_8));
+                publish(ClientEvent.userList(presence.entries()));
+                break;
+
+            case PRESENCE_DELTA:
+                List<String[]> changes = presence
+                        .applyDelta(new String(packet.getPayload(), java.nio.charset.StandardCharsets.UTF_8));
+                if (changes == null) {
+                    // Missed changes: ask for them (once per version we are stuck at)
+                    if (presenceResyncFrom != presence.getVersion()) {
+                        presenceResyncFrom = presence.getVersion();
+                        requestUserList();
+                    }
+                    break;
+                }
+                for (String[] change : changes) {
+                    publish(ClientEvent.presence(change[0], change[1]));
+                }
+                break;
+
+            case KEY_EXCHANGE:
+                handleKeyExchange(packet);
+                break;
+
+            case PREKEY_PUBLISH:
+                handlePrekey(packet);
+                break;
+
+            case DM_ACK:
+            case GROUP_ACK:
+                String ackSender = packet.getSender();
+                String targetWindow = (packet.getType() == PacketType.DM_ACK) ? ackSender : packet.getGroup();
+                publish(ClientEvent.deliveryAck(targetWindow, packet.getType() == PacketType.GROUP_ACK, ackSender));
+                break;
+
+            case SESSION_TICKET:
+                try {
+                    SessionTicket ticket = SessionTicket.fromBytes(packet.getPayload());
+                    // Derived from the key of the session the ticket arrived on
+                    resumptionSecret = SessionHandshake.resumptionSecret(aesKey, ticket.getNonce());
+                    ticketExpiresAtNanos = System.nanoTime()
+                            + java.util.concurrent.TimeUnit.SECONDS.toNanos(ticket.getLifetimeSeconds());
+                    sessionTicket = ticket;
+                } catch (Exception e) {
+                    System.err.println("Ignoring malformed session ticket: " + e.getMessage());
+                }
+                break;
+
+            case RESUME_INFO:
+                String fid = packet.getFileId();
+                if (fid != null && pendingResumeRequests.containsKey(fid)) {
+                    try {
+                        // Peers without chunk maps only report a contiguous prefix
+                        pendingResumeRequests.get(fid).complete(packet.getPayload() != null
+                                ? ChunkBitmap.fromBytes(packet.getPayload())
+                                : ChunkBitmap.upTo(packet.getChunkIndex()));
+                    } catch (IOException e) {
+                        pendingResumeRequests.get(fid).completeExceptionally(e);
+                    }
+                }
+                break;
+            case LOGIN:
+            case GROUP_CREATE:
+            case GROUP_JOIN:
+            case GROUP_LEAVE:
+            case CHUNK_ACK:
+                String fileIdForAck = packet.getFileId();
+                int idx = packet.getChunkIndex();
+                System.out.println("[FLOW] Received CHUNK_ACK for file " + fileIdForAck + ", chunk " + idx);
+                Map<Integer, CompletableFuture<Void>> fileAcks = pendingAcks.get(fileIdForAck);
+                if (fileAcks != null) {
+                    CompletableFuture<Void> future = fileAcks.remove(idx);
+                    if (future != null) {
+                        future.complete(null);
+                        System.out.println("[FLOW] Completed future for chunk " + idx);
+                    } else {
+                        System.out.println(
+                                "[FLOW] No future found for chunk " + idx + " (Maybe already handled or timed out)");
+                    }
+                } else {
+                    System.out.println("[FLOW] No active ACK tracking map found for file " + fileIdForAck);
+                }
+                break;
+            case CHUNK_NACK: {
+                String nackFileId = packet.getFileId();
+                if (packet.getChunkIndex() < 0) {
+                    // Post-completion repair request carrying the receiver's leaf hashes
+                    String requester = packet.getSender();
+                    byte[] receiverLeaves = packet.getPayload() != null ? packet.getPayload() : new byte[0];
+                    CompletedUpload upload = completedUploads.get(nackFileId);
+                    if (upload == null || !isRecipient(upload, requester)) {
+                        System.out.println("[INTEGRITY] Ignoring repair request for " + nackFileId + " from "
+                                + requester + ": not a recipient of that upload");
+                    } else if (queuedRepairs.add(nackFileId + "|" + requester)) {
+                        transferManager.submitRepair(upload.file, requester, t -> {
+                            try {
+                                repairUpload(nackFileId, requester, receiverLeaves);
+                            } finally {
+                                queuedRepairs.remove(nackFileId + "|" + requester);
+                            }
+                            return TransferManager.State.COMPLETED;
+                        });
+                    }
+                } else {
+                    Map<Integer, CompletableFuture<Void>> nackAcks = pendingAcks.get(nackFileId);
+                    CompletableFuture<Void> future = (nackAcks != null) ? nackAcks.get(packet.getChunkIndex()) : null;
+                    if (future != null) {
+                        future.completeExceptionally(
+                                new IOException("Chunk " + packet.getChunkIndex() + " rejected by " + packet.getSender()));
+                    }
+                }
+                break;
+            }
+            case FILE_COMPLETE: {
+                try {
+                    String fileId = packet.getFileId();
+                    System.out.println("[INTEGRITY] Received FILE_COMPLETE for " + packet.getFileName());
+
+                    File downloadDir = new File("downloads");
+                    File partFile = new File(downloadDir, packet.getFileName() + ".part");
+                    File finalFile = new File(downloadDir, packet.getFileName());
+
+                    // A still-open download (resume, or chunks we rejected) is verified in place;
+                    // otherwise only a leftover .part needs checking.
+                    RandomAccessFile raf = activeDownloads.get(fileId);
+                    File received = (raf != null) ? downloadTargets.get(fileId) : (partFile.exists() ? partFile : null);
+                    if (raf != null) {
+                        try {
+                            if (packet.getFileSize() > 0 && raf.length() > packet.getFileSize())
+                                raf.setLength(packet.getFileSize()); // Drop stale tail from an older copy
+                            raf.getFD().sync();
+                        } catch (Exception e) {
+                            /* already closed or errored */ }
+                    }
+
+                    boolean match = true;
+                    byte[][] localLeaves = null;
+                    if (received != null) {
+                        if (packet.getMerkleRoot() != null) {
+                            // Leaf hashes computed in parallel across cores
+                            localLeaves = MerkleTree.hashChunks(received, FileTransferUtil.CHUNK_SIZE);
+                            match = java.security.MessageDigest.isEqual(new MerkleTree(localLeaves).getRoot(),
+                                    packet.getMerkleRoot());
+                        } else {
+                            String senderHash = new String(packet.getPayload());
+                            match = senderHash.equalsIgnoreCase(FileTransferUtil.calculateChecksum(received));
+                        }
+                    }
+
+                    final String targetKey = (packet.getGroup() != null) ? packet.getGroup() : packet.getSender();
+                    if (!match && localLeaves != null) {
+                        // Targeted repair: send our leaf hashes, the sender re-sends only chunks that differ
+                        if (raf == null) {
+                            raf = new RandomAccessFile(received, "rw");
+                            activeDownloads.put(fileId, raf);
+                            downloadTargets.put(fileId, received);
+                        }
+                        merkleRoots.put(fileId, packet.getMerkleRoot());
+                        Packet repair = new Packet(PacketType.CHUNK_NACK, 1);
+                        repair.setFileId(fileId);
+                        repair.setChunkIndex(-1);
+                        repair.setSender(myUsername);
+                        repair.setReceiver(packet.getSender());
+                        repair.setPayload(MerkleTree.concat(localLeaves));
+                        sendPacket(repair);
+
+                        String repairMsg = "System: [INTEGRITY] '" + packet.getFileName()
+                                + "' has corrupted chunks, requesting repair...";
+                        System.err.println(repairMsg);
+                        publish(ClientEvent.notice(targetKey, repairMsg));
+                        break;
+                    }
+
+                    // Transfer is finished: release its state
+                    acceptedFileTransfers.remove(fileId); // Clean up for next time
+                    activeDownloads.remove(fileId);
+                    downloadTargets.remove(fileId);
+                    merkleRoots.remove(fileId);
+                    receivedChunks.remove(fileId);
+                    if (received != null)
+                        ChunkBitmap.mapFileFor(received).delete();
+                    if (raf != null) {
+                        try {
+                            raf.close();
+                            System.out.println("[INTEGRITY] Closed active file handle for " + packet.getFileName());
+                        } catch (Exception e) {
+                            /* already closed or errored */ }
+                    }
+                    if (received == null)
+                        break; // Completed normally, every chunk was verified on arrival
+
+                    if (match) {
+                        boolean renamed = true;
+                        if (received.equals(partFile)) {
+                            if (finalFile.exists())
+                                finalFile.delete(); // Replace old version
+                            renamed = partFile.renameTo(finalFile);
+                        }
+                        transferManager.completeDownload(fileId);
+                        String resultMsg = renamed
+                                ? "System: [INTEGRITY] '" + packet.getFileName() + "' Verified & Saved ✅"
+                                : "System: [INTEGRITY] '" + packet.getFileName()
+                                        + "' Verified but Rename Failed ⚠️";
+                        System.out.println(resultMsg);
+                        publish(ClientEvent.notice(targetKey, resultMsg));
+                    } else {
+                        String errorMsg = "System: [INTEGRITY] '" + packet.getFileName()
+                                + "' CORRUPTED ❌ (Checksum Mismatch!)";
+                        System.err.println(errorMsg);
+                        publish(ClientEvent.notice(targetKey, errorMsg));
+                    }
+                } catch (Exception e) {
+                    System.err.println("[INTEGRITY] Error during verification: " + e.getMessage());
+                    e.printStackTrace();
+                }
+                break;
+            }
+            case RESUME_QUERY:
+                handleResumeQuery(packet);
+                break;
+
+            case STATUS_UPDATE:
+            case USER_LIST_QUERY:
+            case HEARTBEAT: // Heartbeat received, do nothing specific, just keeps connection alive
+                break;
+
+            case FILE_REQ: {
+                // Someone wants to send us a file. Ask User.
+                String fId = packet.getFileId();
+                pendingFileOffers.put(fId, packet);
+                if (transferManager.isJournaledDownload(fId)) {
+                    // A transfer we accepted before a restart resumes without asking again
+                    respondToFileOffer(fId, true);
+                } else {
+                    publish(ClientEvent.fileOffer(packet.getSender(), packet.getGroup(), fId, packet.getFileName(),
+                            packet.getFileSize()));
+                }
+                break;
+            }
+
+            case FILE_RESP: {
+                // We asked, they answered.
+                String fId = packet.getFileId();
+                if (pendingFileRequests.containsKey(fId)) {
+                    String ans = new String(packet.getPayload());
+                    boolean approved = "YES".equalsIgnoreCase(ans);
+
+                    CompletableFuture<Boolean> future = pendingFileRequests.get(fId);
+
+                    // LOGIC CHANGE:
+                    // If Private Chat: Forward result immediately (Yes or No).
+                    // If Group Chat:
+                    // - If YES: Complete immediately (Start sending).
+                    // - If NO: IGNORE IT. (Wait for someone else to say Yes).
+
+                    if (packet.getGroup() == null) {
+                        // Private
+                        future.complete(approved);
+                    } else {
+                        // Group
+                        if (approved) {
+                            // Correct: Found at least one person who wants it.
+                            future.complete(true);
+                        } else {
+                            // Ignore "NO" in groups. Let the timeout handle it if NO ONE says yes.
+                            System.out.println("[FLOW] User rejected group file. Waiting for others...");
+                        }
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    // Answer to a FILE_OFFER event
+    public void respondToFileOffer(String fileId, boolean accept) {
+        Packet packet = pendingFileOffers.remove(fileId);
+        if (packet == null)
+            return;
+        String snder = packet.getSender();
+        String fName = packet.getFileName();
+
+        // Send Response
+        Packet resp = new Packet(PacketType.FILE_RESP, 2);
+        resp.setFileId(fileId);
+        resp.setReceiver(snder); // Reply to sender
+        if (packet.getGroup() != null)
+            resp.setGroup(packet.getGroup());
+
+        if (accept) {
+            acceptedFileTransfers.add(fileId); // <--- MARK AS ACCEPTED
+            transferManager.journalDownload(fileId, fName, snder, packet.getGroup());
+            resp.setPayload("YES".getBytes());
+            notice("System: You accepted file '" + fName + "'");
+        } else {
+            acceptedFileTransfers.remove(fileId); // Ensure removed
+            resp.setPayload("NO".getBytes());
+            notice("System: You rejected file '" + fName + "'");
+        }
+        sendPacket(resp);
+    }
+
+    public void sendPacket(Packet packet) {
+        try {
+            Outbound o = outbound;
+            o.writer.send(() -> o.codec.encode(packet), packet.getType().isUrgent());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Several packets in one flush: back-to-back small writes would otherwise wait on Nagle for an ACK
+    private void sendCorked(Runnable sends) {
+        RecordWriter w = outbound.writer;
+        w.cork();
+        try {
+            sends.run();
+        } finally {
+            try {
+                w.uncork();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void sendGroupMessage(String groupName, String message) {
+        // One packet however long; the transport segments large ones
+        Packet packet = new Packet(PacketType.GROUP_MESSAGE, 2);
+        packet.setGroup(groupName);
+        packet.setTransactionId(java.util.UUID.randomUUID().toString());
+        packet.setChunkIndex(0);
+        packet.setTotalChunks(1);
+        packet.setPayload(message.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        sendPacket(packet);
+    }
+
+    private void processFullMessage(Packet packet) {
+        processFullMessage(packet, null);
+    }
+
+    // spilled: a reassembled message left on disk, read from its file instead of the payload and
+    // closed once read
+    private void processFullMessage(Packet packet, MessageReassembler.Message spilled) {
+        if (packet.getPayload() == null && spilled == null)
+            return;
+        // Decrypted off the UI thread: DMs once the key store is open (known contacts' keys load
+        // with it), group messages here on the network thread
+        if (packet.getType() == PacketType.DM) {
+            withPeerKeys(store -> {
+                try {
+                    decryptDirectMessage(packet, spilled);
+                } finally {
+                    if (spilled != null)
+                        spilled.close();
+                }
+            });
+        } else if (packet.getType() == PacketType.GROUP_MESSAGE && packet.getGroup() != null) {
+            String msgPayload;
+            if (spilled != null) {
+                try (MessageReassembler.Message body = spilled; InputStream in = body.openStream()) {
+                    msgPayload = readText(in);
+                } catch (IOException e) {
+                    notice("[System] Failed to read message from " + packet.getSender() + ": " + e.getMessage());
+                    return;
+                }
+            } else {
+                msgPayload = new String(packet.getPayload(), java.nio.charset.StandardCharsets.UTF_8);
+            }
+            publish(ClientEvent.message(packet.getGroup(), true, packet.getSender(), msgPayload));
+        } else if (spilled != null) {
+            spilled.close();
+        }
+        System.out.println("Message reassembled for "
+                + (packet.getGroup() != null ? "group " + packet.getGroup() : "user " + packet.getSender()));
+    }
+
+    // On the e2e thread, after the key store has opened (or failed to)
+    private void decryptDirectMessage(Packet packet, MessageReassembler.Message spilled) {
+        try {
+            SecretKey key = e2eKeyMap.get(packet.getSender());
+            String decryptedMsg;
+            if (key != null && spilled != null) {
+                try (InputStream in = CryptoUtil.decryptAES(spilled.openStream(), key)) {
+                    decryptedMsg = readText(in);
+                }
+            } else if (key != null) {
+                byte[] decryptedBytes = CryptoUtil.decryptAES(packet.getPayload(), key);
+                decryptedMsg = new String(decryptedBytes, java.nio.charset.StandardCharsets.UTF_8);
+            } else {
+                decryptedMsg = "[Encrypted Content - No Key]";
+                repairE2E(packet.getSender());
+            }
+            publish(ClientEvent.message(packet.getSender(), false, packet.getSender(), decryptedMsg));
+        } catch (Exception e) {
+            notice("[System] Failed to decrypt DM from " + packet.getSender());
+            repairE2E(packet.getSender());
+        }
+    }
+
+    // Decodes UTF-8 as it reads, without first collecting the bytes in one array
+    private static String readText(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        Reader reader = new InputStreamReader(in, java.nio.charset.StandardCharsets.UTF_8);
+        char[] buffer = new char[8192];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            sb.append(buffer, 0, read);
+        }
+        return sb.toString();
+    }
+
+    public CompletableFuture<String> login(String username, String password) throws Exception {
+        this.myUsername = username; // Set username upon successful login attempt
+        this.lastUsername = username;
+        this.lastPassword = password;
+        Packet packet = loginPacket(username, password);
+
+        loginFuture = new CompletableFuture<>();
+        sendPacket(packet);
+        return loginFuture;
+    }
+
+    private static Packet loginPacket(String username, String password) {
+        String hashedPassword = ProtocolUtil.hashSHA256(password);
+        Packet packet = new Packet(PacketType.LOGIN, 1);
+        String payload = username + ":" + hashedPassword;
+        packet.setPayload(payload.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        return packet;
+    }
+
+    public void sendFile(File file, String groupName) throws Exception {
+        transferManager.submit(file, groupName, true);
+    }
+
+    public void sendDirectFile(File file, String username) throws Exception {
+        transferManager.submit(file, username, false);
+    }
+
+    public TransferManager getTransferManager() {
+        return transferManager;
+    }
+
+    // Runs on a TransferManager worker; the returned state decides whether the journal keeps it
+    private TransferManager.State performFileTransfer(TransferManager.Transfer transfer) throws Exception {
+        File file = transfer.getFile();
+        String target = transfer.getTarget();
+        boolean isGroup = transfer.isGroup();
+        // Content-derived ID: usually the sampled fingerprint at once, with the full hash + Merkle
+        // tree in the background (or from the cache) while the resume query and prompt are in flight
+        FileIdentityCache.FileIdentity identity = fileIdentities.identify(file);
+        String fileId = identity.getFileId();
+        long fileSize = file.length();
+        int totalChunks = (int) Math.ceil((double) fileSize / FileTransferUtil.CHUNK_SIZE);
+        if (totalChunks == 0 && fileSize == 0)
+            totalChunks = 1;
+
+        if (activeUploads.contains(fileId)) {
+            notice("System: Upload already in progress for " + file.getName());
+            return TransferManager.State.FAILED;
+        }
+        activeUploads.add(fileId);
+
+        // Generate transaction ID for this file transfer
+        String transactionId = java.util.UUID.randomUUID().toString();
+
+        // 1. Check for Resume
+        System.out.println("[RESUME] Querying server for existing progress of " + file.getName());
+        CompletableFuture<ChunkBitmap> resumeFuture = new CompletableFuture<>();
+        pendingResumeRequests.put(fileId, resumeFuture);
+
+        Packet query = new Packet(PacketType.RESUME_QUERY, 1);
+        query.setFileId(fileId);
+        query.setFileName(file.getName());
+        query.setReceiver(target); // Target name (Group or User)
+        sendPacket(query);
+
+        ChunkBitmap delivered = new ChunkBitmap();
+        try {
+            // Wait up to 2 seconds for response
+            delivered = resumeFuture.get(2, TimeUnit.SECONDS);
+            System.out.println("[RESUME] Server reports " + delivered.cardinality() + " of " + totalChunks
+                    + " chunks received");
+        } catch (Exception e) {
+            System.err.println("[RESUME] Timeout or error waiting for RESUME_INFO: " + e.getMessage());
+        } finally {
+            pendingResumeRequests.remove(fileId);
+        }
+
+        // Fix: Check if file is already fully transferred
+        if (delivered.isComplete(totalChunks)) {
+            String msg = "System: File '" + file.getName() + "' already exists (100% complete). Re-sending from start.";
+            System.out.println("[RESUME] " + msg);
+            notice(msg);
+            delivered = new ChunkBitmap(); // Force Restart
+        }
+
+        // --- REVISED PERMISSION LOGIC ---
+        // Send FILE_REQ
+        Packet req = new Packet(PacketType.FILE_REQ, 2);
+        req.setSender(myUsername);
+        if (isGroup)
+            req.setGroup(target);
+        else
+            req.setReceiver(target);
+        req.setFileId(fileId);
+        req.setFileName(file.getName());
+        req.setFileSize(fileSize);
+        req.setTransactionId(transactionId);
+
+        System.out.println("[FLOW] Asking permission to send " + file.getName() + " to " + target);
+        publish(ClientEvent.notice(target,
+                "System: Asking " + target + " for permission to send '" + file.getName() + "'..."));
+
+        CompletableFuture<Boolean> permissionFuture = new CompletableFuture<>();
+        pendingFileRequests.put(fileId, permissionFuture); // We need to define this map!
+
+        sendPacket(req);
+
+        try {
+            boolean approved = permissionFuture.get(30, TimeUnit.SECONDS); // 30s timeout for user to click Yes
+            if (!approved) {
+                System.out.println("[FLOW] Permission DENIED for " + file.getName());
+                publish(ClientEvent.notice(target, "System: Transfer denied by " + target));
+                activeUploads.remove(fileId);
+                return TransferManager.State.FAILED;
+            }
+        } catch (Exception e) {
+            System.out.println("[FLOW] Permission timeout for " + file.getName());
+            notice("System: Transfer timed out waiting for response from " + target);
+            activeUploads.remove(fileId);
+            return TransferManager.State.FAILED;
+        } finally {
+            pendingFileRequests.remove(fileId); // Memory Cleanup
+        }
+
+        publish(ClientEvent.notice(target,
+                "System: Permission Granted! Starting upload of '" + file.getName() + "'"));
+
+        // Per-chunk hashes (computed in parallel) let the receiver verify every chunk on arrival
+        MerkleTree tree;
+        try {
+            tree = identity.getTree().get();
+        } catch (java.util.concurrent.ExecutionException e) {
+            throw new IOException("Failed to hash " + file.getName(), e.getCause());
+        }
+
+        // 2. Send FILE_INIT (Only after permission!)
+        Packet init = new Packet(PacketType.FILE_INIT, 3);
+        init.setSender(myUsername != null ? myUsername : "Me");
+        if (isGroup) {
+            init.setGroup(target);
+        } else {
+            init.setReceiver(target);
+        }
+        init.setFileId(fileId);
+        init.setFileName(file.getName());
+        init.setFileSize(fileSize);
+        init.setTransactionId(transactionId); // Add transaction ID
+        // CRITICAL FIX: FILE_INIT is a SINGLE packet.
+        // Do NOT set totalChunks to the file's chunk count, otherwise the receiver
+        // will wait for 'totalChunks' packets to arrive before processing this INIT.
+        init.setTotalChunks(1);
+        init.setMerkleRoot(tree.getRoot());
+        sendPacket(init);
+
+        // 3. Setup ACK tracking for this file
+        pendingAcks.put(fileId, new ConcurrentHashMap<>());
+
+        // 4. Send with Serial Flow Control (Stop-and-Wait), skipping chunks the target already has
+        try (RandomAccessFile source = new RandomAccessFile(file, "r")) {
+            List<int[]> holes = delivered.missingRanges(totalChunks);
+            int remaining = totalChunks - delivered.cardinality();
+            if (remaining < totalChunks) {
+                notice("System: Resuming " + file.getName() + ": " + remaining + " chunk(s) missing in "
+                        + holes.size() + " range(s)");
+            }
+
+            byte[] buffer = new byte[FileTransferUtil.CHUNK_SIZE];
+
+            // Timeouts and the abort deadline follow the measured link, not constants
+            RttEstimator rtt = new RttEstimator();
+            long deadline = projectDeadline(rtt, remaining);
+
+            for (int currentChunk = delivered.nextMissing(0, totalChunks); currentChunk < totalChunks;
+                    currentChunk = delivered.nextMissing(currentChunk + 1, totalChunks)) {
+                long offset = (long) currentChunk * FileTransferUtil.CHUNK_SIZE;
+                if (offset >= fileSize)
+                    break; // Empty file: nothing to send
+                int bytesRead = (int) Math.min(FileTransferUtil.CHUNK_SIZE, fileSize - offset);
+                source.seek(offset);
+                source.readFully(buffer, 0, bytesRead);
+                byte[] chunkData = (bytesRead < FileTransferUtil.CHUNK_SIZE)
+                        ? java.util.Arrays.copyOf(buffer, bytesRead)
+                        : buffer.clone();
+
+                Packet chunk = new Packet(PacketType.FILE_CHUNK, 3);
+                if (isGroup) {
+                    chunk.setGroup(target);
+                } else {
+                    chunk.setReceiver(target);
+                }
+                chunk.setFileId(fileId);
+                chunk.setFileName(file.getName());
+                chunk.setChunkIndex(currentChunk);
+                chunk.setTotalChunks(totalChunks);
+                chunk.setTransactionId(transactionId); // Add transaction ID
+                chunk.setPayload(chunkData);
+
+                chunk.setChunkProof(tree.getProof(currentChunk));
+
+                String abortReason = deliverChunk(chunk, rtt, deadline);
+                if (abortReason != null) {
+                    System.err.println("[FLOW CONTROL] " + abortReason + ". ABORTING transfer to prevent corruption.");
+                    notice("System: Transfer of " + file.getName() + " ABORTED due to network timeout.");
+                    activeUploads.remove(fileId);
+                    return TransferManager.State.INTERRUPTED; // Retried on reconnect
+                }
+                delivered.set(currentChunk);
+                remaining--;
+                deadline = projectDeadline(rtt, remaining);
+
+                // Pause takes effect between chunks; resume picks up via RESUME_QUERY
+                if (transfer.isPauseRequested() && remaining > 0) {
+                    System.out.println("[TRANSFER] Paused " + file.getName() + " with " + remaining
+                            + " chunk(s) left");
+                    notice("System: Paused upload of " + file.getName());
+                    return TransferManager.State.PAUSED;
+                }
+            }
+
+            // --- POWERFUL SYSTEM: COMPLETION VERIFICATION ---
+            String finalHash;
+            try {
+                finalHash = identity.getFullHash().get(); // Usually finished long before the last chunk
+            } catch (java.util.concurrent.ExecutionException e) {
+                throw new IOException("Failed to hash " + file.getName(), e.getCause());
+            }
+            Packet complete = new Packet(PacketType.FILE_COMPLETE, 1);
+            if (isGroup) {
+                complete.setGroup(target);
+            } else {
+                complete.setReceiver(target);
+            }
+            complete.setFileId(fileId);
+            complete.setFileName(file.getName());
+            complete.setFileSize(fileSize);
+            complete.setMerkleRoot(tree.getRoot());
+            complete.setPayload(finalHash.getBytes()); // Send hash in payload
+            sendPacket(complete);
+            System.out.println("[INTEGRITY] FILE_COMPLETE sent with hash: " + finalHash);
+
+            // Keep the tree around so a receiver can ask for just its corrupted chunks
+            rememberForRepair(fileId, new CompletedUpload(file, fileSize, finalHash, tree, target, isGroup));
+
+        } finally {
+            pendingAcks.remove(fileId);
+            activeUploads.remove(fileId);
+        }
+
+        notice("System: Finished sending " + file.getName() + " (Powerful System)");
+        return TransferManager.State.COMPLETED;
+    }
+
+    // Stop-and-wait delivery of one chunk with adaptive retransmission. A CHUNK_NACK (failed
+    // Merkle proof on the receiver) triggers an immediate resend without backing off.
+    // Returns null once ACKed, otherwise the reason to abort.
+    private String deliverChunk(Packet chunk, RttEstimator rtt, long deadline) {
+        String fileId = chunk.getFileId();
+        int index = chunk.getChunkIndex();
+        Map<Integer, CompletableFuture<Void>> fileAcks = pendingAcks.computeIfAbsent(fileId,
+                k -> new ConcurrentHashMap<>());
+        int retryCount = 0;
+        int nackCount = 0;
+        while (true) {
+            // Create a future to wait for the ACK of this specific chunk
+            CompletableFuture<Void> ackFuture = new CompletableFuture<>();
+            fileAcks.put(index, ackFuture);
+
+            // Send the chunk
+            if (retryCount > 0)
+                System.out.println("[FLOW] RETRY " + retryCount + " for chunk " + index);
+            else
+                System.out.println("[FLOW] Sending chunk " + index + "/" + (chunk.getTotalChunks() - 1));
+
+            long timeoutMillis = rtt.getTimeoutMillis();
+            long sentAt = System.nanoTime();
+            sendPacket(chunk);
+
+            // Wait for ACK (Serial Flow Control)
+            try {
+                System.out.println("[FLOW] Waiting for ACK of chunk " + index + " (RTO " + timeoutMillis + " ms)...");
+                ackFuture.get(timeoutMillis, TimeUnit.MILLISECONDS);
+                // Karn's rule: an ACK for a retransmitted chunk is ambiguous, don't sample it
+                if (retryCount == 0) {
+                    rtt.onSample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt));
+                }
+                System.out.println("[FLOW] ACK received for chunk " + index + " (SRTT " + rtt.getSmoothedRttMillis()
+                        + " ms, RTO " + rtt.getTimeoutMillis() + " ms)");
+                return null;
+            } catch (java.util.concurrent.ExecutionException e) {
+                retryCount++;
+                nackCount++;
+                System.err.println("[INTEGRITY] Chunk " + index + " rejected by receiver, resending");
+                if (nackCount > MAX_CHUNK_NACKS) {
+                    return "chunk " + index + " failed verification " + nackCount + " times";
+                }
+            } catch (Exception e) {
+                retryCount++;
+                rtt.onTimeout();
+                System.err.println("[FLOW CONTROL] Attempt " + retryCount + " failed for chunk " + index + " after "
+                        + timeoutMillis + " ms, backing off to " + rtt.getTimeoutMillis() + " ms");
+                if (rtt.isExhausted()) {
+                    return "no ACK through " + retryCount + " backed-off retries";
+                } else if (System.currentTimeMillis() > deadline) {
+                    return "transfer deadline exceeded";
+                }
+            } finally {
+                fileAcks.remove(index);
+            }
+        }
+    }
+
+    private void rememberForRepair(String fileId, CompletedUpload upload) {
+        long now = System.currentTimeMillis();
+        completedUploads.values().removeIf(u -> now - u.completedAt > REPAIR_WINDOW_MILLIS);
+        completedUploads.put(fileId, upload);
+    }
+
+    // Only the receiver of a direct upload, or a current member of the group it went to
+    private boolean isRecipient(CompletedUpload upload, String user) {
+        if (user == null || user.equals(myUsername))
+            return false;
+        if (!upload.isGroup)
+            return upload.target.equals(user);
+        Set<String> members = groupMembers.get(upload.target);
+        return members != null && members.contains(user);
+    }
+
+    // Receiver found bad chunks after FILE_COMPLETE (on a transfer worker): re-send only the leaves that differ
+    private void repairUpload(String fileId, String requester, byte[] receiverLeaves) {
+        CompletedUpload upload = completedUploads.get(fileId);
+        if (upload == null || System.currentTimeMillis() - upload.completedAt > REPAIR_WINDOW_MILLIS) {
+            System.out.println("[INTEGRITY] Repair request for unknown or expired upload " + fileId);
+            return;
+        }
+        if (!activeUploads.add(fileId)) {
+            System.out.println("[INTEGRITY] Upload " + fileId + " is busy, ignoring repair request");
+            return;
+        }
+        try {
+            List<Integer> badChunks = upload.tree.diffLeaves(MerkleTree.split(receiverLeaves));
+            String fileName = upload.file.getName();
+            System.out.println("[INTEGRITY] Repairing " + badChunks.size() + " chunk(s) of " + fileName + " for "
+                    + requester);
+            notice("System: Re-sending " + badChunks.size() + " corrupted chunk(s) of '" + fileName + "' to "
+                    + requester);
+
+            int totalChunks = upload.tree.getLeafCount();
+            RttEstimator rtt = new RttEstimator();
+            try (RandomAccessFile raf = new RandomAccessFile(upload.file, "r")) {
+                for (int index : badChunks) {
+                    long offset = (long) index * FileTransferUtil.CHUNK_SIZE;
+                    byte[] chunkData = new byte[(int) Math.min(FileTransferUtil.CHUNK_SIZE, upload.fileSize - offset)];
+                    raf.seek(offset);
+                    raf.readFully(chunkData);
+
+                    // Repairs go straight to the requester, not the whole group
+                    Packet chunk = new Packet(PacketType.FILE_CHUNK, 3);
+                    chunk.setReceiver(requester);
+                    chunk.setFileId(fileId);
+                    chunk.setFileName(fileName);
+                    chunk.setChunkIndex(index);
+                    chunk.setTotalChunks(totalChunks);
+                    chunk.setPayload(chunkData);
+                    chunk.setChunkProof(upload.tree.getProof(index));
+
+                    String abortReason = deliverChunk(chunk, rtt, projectDeadline(rtt, 1));
+                    if (abortReason != null) {
+                        System.err.println("[INTEGRITY] Repair of " + fileName + " aborted: " + abortReason);
+                        return;
+                    }
+                }
+            }
+
+            Packet complete = new Packet(PacketType.FILE_COMPLETE, 1);
+            complete.setReceiver(requester);
+            complete.setFileId(fileId);
+            complete.setFileName(fileName);
+            complete.setFileSize(upload.fileSize);
+            complete.setMerkleRoot(upload.tree.getRoot());
+            complete.setPayload(upload.checksum.getBytes());
+            sendPacket(complete);
+        } catch (Exception e) {
+            System.err.println("[INTEGRITY] Repair failed: " + e.getMessage());
+        } finally {
+            pendingAcks.remove(fileId);
+            activeUploads.remove(fileId);
+        }
+    }
+
+    // Deadline for the rest of a transfer: projected ACK round trips with slack, plus room for
+    // one full backoff so a single slow chunk can't trip it on its own.
+    private static long projectDeadline(RttEstimator rtt, int remainingChunks) {
+        return System.currentTimeMillis() + rtt.projectMillis(remainingChunks) * TRANSFER_DEADLINE_SLACK
+                + RttEstimator.MAX_RTO_MILLIS;
+    }
+
+    // Unlocks (or creates) the user's E2EE key store off the network thread, then publishes the
+    // identity key as a prekey. Republished after every login in case the server restarted.
+    private void openPeerKeys() {
+        String username = lastUsername;
+        String password = lastPassword;
+        CompletableFuture<PeerKeyStore> store = peerKeys;
+        if (!username.equals(peerKeysUser)) {
+            CompletableFuture<PeerKeyStore> target = peerKeysUser == null ? store : new CompletableFuture<>();
+            peerKeysUser = username;
+            peerKeys = target;
+            e2eKeyMap.clear();
+            pendingKeyExchanges.clear();
+            CompletableFuture.runAsync(() -> {
+                try {
+                    PeerKeyStore opened = PeerKeyStore.open(dataDirectory, username, password);
+                    e2eKeyMap.putAll(opened.keys());
+                    target.complete(opened);
+                } catch (Throwable e) {
+                    // Completed either way, so nothing waits on the store forever
+                    target.completeExceptionally(e);
+                    notice("System: E2EE keys unavailable: " + e.getMessage());
+                }
+            });
+            store = target;
+        }
+        store.thenAccept(opened -> {
+            Packet publish = new Packet(PacketType.PREKEY_PUBLISH, 1);
+            publish.setPayload(opened.getPublicKey());
+            sendPacket(publish);
+        });
+    }
+
+    // Runs action on the e2e thread with the key store, or null if it failed to open or is not
+    // open within 10 s (it only takes long right after login). The listener never waits for it.
+    private void withPeerKeys(java.util.function.Consumer<PeerKeyStore> action) {
+        try {
+            e2eWork.execute(() -> {
+                PeerKeyStore store;
+                try {
+                    store = peerKeys.get(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return; // Disconnected
+                } catch (Exception e) {
+                    store = null;
+                }
+                action.accept(store);
+            });
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            // Disconnected
+        }
+    }
+
+    // KEY_EXCHANGE payload: byte 1 if the sender needs our key back, then its X25519 identity key
+    private void sendKeyExchange(String otherUser, PeerKeyStore store, boolean replyWanted) {
+        byte[] publicKey = store.getPublicKey();
+        byte[] payload = new byte[publicKey.length + 1];
+        payload[0] = (byte) (replyWanted ? 1 : 0);
+        System.arraycopy(publicKey, 0, payload, 1, publicKey.length);
+        Packet packet = new Packet(PacketType.KEY_EXCHANGE, 1);
+        packet.setReceiver(otherUser);
+        packet.setPayload(payload);
+        sendPacket(packet);
+    }
+
+    private void establish(PeerKeyStore store, String otherUser, byte[] theirKey) throws Exception {
+        if (!store.isCurrent(otherUser, theirKey) && store.agree(otherUser, theirKey)) {
+            notice("System: Warning: " + otherUser + "'s E2EE identity key has changed");
+        }
+        e2eKeyMap.put(otherUser, store.get(otherUser));
+    }
+
+    // The server's answer to PREKEY_QUERY: derive the key at once, or fall back to asking the peer
+    private void handlePrekey(Packet packet) {
+        withPeerKeys(store -> handlePrekey(packet, store));
+    }
+
+    private void handlePrekey(Packet packet, PeerKeyStore store) {
+        String otherUser = packet.getSender();
+        if (store == null || otherUser == null)
+            return;
+        try {
+            if (packet.getPayload() == null || packet.getPayload().length == 0) {
+                // Nothing published (e.g. an older client): the peer answers with its key
+                sendKeyExchange(otherUser, store, true);
+                return;
+            }
+            establish(store, otherUser, packet.getPayload());
+            pendingKeyExchanges.remove(otherUser);
+            notice("System: E2EE established with " + otherUser);
+            // Ahead of the queued DMs, so the peer holds the key before the first one arrives
+            sendCorked(() -> {
+                sendKeyExchange(otherUser, store, false);
+                flushPendingMessages(otherUser);
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+            notice("Error in E2EE handshake: " + e.getMessage());
+        }
+    }
+
+    private void handleKeyExchange(Packet packet) {
+        withPeerKeys(store -> handleKeyExchange(packet, store));
+    }
+
+    private void handleKeyExchange(Packet packet, PeerKeyStore store) {
+        String otherUser = packet.getSender();
+        byte[] payload = packet.getPayload();
+        if (store == null || payload == null || payload.length < 2)
+            return;
+        try {
+            boolean initiatedHere = pendingKeyExchanges.remove(otherUser);
+            establish(store, otherUser, java.util.Arrays.copyOfRange(payload, 1, payload.length));
+            notice("System: E2EE established with " + otherUser + (initiatedHere ? "" : " (Response)"));
+
+            // Our key back if they asked, then any pending messages, all in one flush
+            sendCorked(() -> {
+                if (payload[0] == 1) {
+                    sendKeyExchange(otherUser, store, false);
+                }
+                flushPendingMessages(otherUser);
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+            notice("Error in E2EE handshake: " + e.getMessage());
+        }
+    }
+
+    public void initiateE2E(String targetUser) {
+        peerKeys.whenComplete((store, error) -> {
+            if (error != null) {
+                // The store failed to open: nothing will ever send the buffered DMs
+                Queue<String> unsent = pendingMessages.remove(targetUser);
+                notice("System: Cannot secure connection with " + targetUser + ": E2EE keys unavailable"
+                        + (unsent != null ? " (" + unsent.size() + " message(s) not sent)" : ""));
+                return;
+            }
+            // Known contacts were loaded from the store: nothing to exchange
+            if (e2eKeyMap.containsKey(targetUser)) {
+                flushPendingMessages(targetUser);
+                return;
+            }
+            // Idempotency: Don't start another exchange if one is already pending
+            if (!pendingKeyExchanges.add(targetUser))
+                return;
+            Packet query = new Packet(PacketType.PREKEY_QUERY, 1);
+            query.setReceiver(targetUser);
+            sendPacket(query);
+            notice("System: Initiated E2EE with " + targetUser + "...");
+        });
+    }
+
+    // A DM we could not open: the sender holds a key we lack or a stale one, so send ours and ask for theirs
+    private void repairE2E(String otherUser) {
+        PeerKeyStore store = peerKeys.getNow(null);
+        if (store != null && pendingKeyExchanges.add(otherUser)) {
+            sendKeyExchange(otherUser, store, true);
+        }
+    }
+
+    private void flushPendingMessages(String targetUser) {
+        Queue<String> messages = pendingMessages.remove(targetUser);
+        if (messages != null) {
+            while (!messages.isEmpty()) {
+                String msg = messages.poll();
+                if (msg != null) {
+                    sendSecureDM(targetUser, msg);
+                }
+            }
+        }
+    }
+
+    public void sendSecureDM(String targetUser, String message) {
+        try {
+            SecretKey key = e2eKeyMap.get(targetUser);
+            if (key == null) {
+                // Buffer the message and initiate handshake if not already in progress
+                pendingMessages.computeIfAbsent(targetUser, k -> new LinkedBlockingQueue<>()).add(message);
+                initiateE2E(targetUser);
+                notice("System: Securing connection with " + targetUser + "... (Message will be sent automatically)");
+                return;
+            }
+            byte[] encryptedFullMsg = CryptoUtil.encryptAES(message.getBytes(java.nio.charset.StandardCharsets.UTF_8),
+                    key);
+            // One packet however long; the transport segments large ones
+            Packet packet = new Packet(PacketType.DM, 1);
+            packet.setReceiver(targetUser);
+            packet.setTransactionId(java.util.UUID.randomUUID().toString());
+            packet.setChunkIndex(0);
+            packet.setTotalChunks(1);
+            packet.setPayload(encryptedFullMsg);
+            sendPacket(packet);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void createGroup(String groupName) {
+        Packet packet = new Packet(PacketType.GROUP_CREATE, 1);
+        packet.setSender(myUsername);
+        packet.setGroup(groupName);
+        sendPacket(packet);
+    }
+
+    public void joinGroup(String groupName) {
+        Packet packet = new Packet(PacketType.GROUP_JOIN, 1);
+        packet.setSender(myUsername);
+        packet.setGroup(groupName);
+        sendPacket(packet);
+    }
+
+    public void updateStatus(String status) {
+        if (myUsername == null)
+            return;
+        Packet packet = new Packet(PacketType.STATUS_UPDATE, 1);
+        packet.setSender(myUsername);
+        packet.setPayload(status.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        sendPacket(packet);
+    }
+
+    // Sends the presence version we have, so the server can answer with just the changes since
+    public void requestUserList() {
+        Packet packet = new Packet(PacketType.USER_LIST_QUERY, 1);
+        if (presence.getVersion() >= 0)
+            packet.setPayload(Long.toString(presence.getVersion()).getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        sendPacket(packet);
+    }
+
+    public void requestGroupList() {
+        Packet packet = new Packet(PacketType.GROUP_LIST_QUERY, 1);
+        sendPacket(packet);
+    }
+
+    // Picks up the chunk map of an interrupted download of the same file, if any
+    private void openChunkMap(String fileId, File download) {
+        ChunkBitmap known = ChunkBitmap.load(ChunkBitmap.mapFileFor(download), fileId);
+        if (known != null) {
+            System.out.println("[RESUME] " + download.getName() + ": " + known.cardinality()
+                    + " chunks already on disk");
+        }
+        receivedChunks.put(fileId, known != null ? known : new ChunkBitmap());
+    }
+
+    private void handleResumeQuery(Packet packet) {
+        String fileName = packet.getFileName();
+        String fileId = packet.getFileId();
+        if (fileName == null || fileId == null)
+            return;
+
+        File downloadDir = new File("downloads");
+        File file = new File(downloadDir, fileName);
+        File partFile = new File(downloadDir, fileName + ".part");
+
+        ChunkBitmap received = receivedChunks.get(fileId);
+        if (received == null && partFile.exists())
+            received = ChunkBitmap.load(ChunkBitmap.mapFileFor(partFile), fileId);
+        if (received == null && file.exists())
+            received = ChunkBitmap.load(ChunkBitmap.mapFileFor(file), fileId);
+        if (received == null) {
+            // No map: a finished file counts as complete, anything else starts over
+            received = file.exists() ? ChunkBitmap.upTo(999999) : new ChunkBitmap();
+        }
+        System.out.println("[RESUME] " + fileName + ": " + received.cardinality() + " chunks on disk");
+
+        Packet info = new Packet(PacketType.RESUME_INFO, 1);
+        info.setFileId(fileId);
+        info.setChunkIndex(received.contiguousUpTo());
+        info.setPayload(received.toBytes());
+        info.setReceiver(packet.getSender());
+        info.setSender(myUsername);
+        sendPacket(info);
+    }
+}
@@ -0,0 +1,182 @@
+package com.securechat.client.core;
+
+import com.securechat.common.crypto.CryptoUtil;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This user's long-term X25519 identity and the DM key agreed with each
+ * peer, kept in e2e_keys_<user>.properties in the client's data directory
+ * so known contacts need no key exchange after a restart or reconnect.
+ * Private values are sealed with AES-GCM under a PBKDF2 key from the login
+ * password; a file that no longer opens (e.g. after a password change) is
+ * moved aside to <file>.unreadable-<millis>, never overwritten, and a fresh
+ * identity starts. Saves go through a temp file, so a crash mid-write
+ * leaves the previous version.
+ * The PBKDF2 cost (securechat.e2e.kdf.iterations, default 100000: ~100 ms
+ * warm) is paid once per login, in the background, and stored with the file.
+ */
+public class PeerKeyStore {
+
+    private static final int PBKDF2_ITERATIONS = Integer.getInteger("securechat.e2e.kdf.iterations", 100_000);
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static class PeerKey {
+        final byte[] publicKey;
+        final SecretKey key;
+
+        PeerKey(byte[] publicKey, SecretKey key) {
+            this.publicKey = publicKey;
+            this.key = key;
+        }
+    }
+
+    private final File file;
+    private final String username;
+    private final Properties props;
+    private final SecretKey storageKey;
+    private final KeyPair identity;
+    private final Map<String, PeerKey> peers = new ConcurrentHashMap<>();
+
+    private PeerKeyStore(File file, String username, Properties props, SecretKey storageKey, KeyPair identity) {
+        this.file = file;
+        this.username = username;
+        this.props = props;
+        this.storageKey = storageKey;
+        this.identity = identity;
+    }
+
+    // Slow (PBKDF2); call off the UI and network threads. directory null: the working directory
+    public static PeerKeyStore open(File directory, String username, String password) throws Exception {
+        File file = new File(directory, "e2e_keys_" + username + ".properties");
+        Properties props = new Properties();
+        if (file.exists()) {
+            try (FileInputStream fis = new FileInputStream(file)) {
+                props.load(fis);
+            }
+            try {
+                byte[] salt = decode(props.getProperty("salt"));
+                int iterations = Integer.parseInt(props.getProperty("iterations"));
+                SecretKey storageKey = CryptoUtil.deriveKeyFromPassword(password, salt, iterations);
+                KeyPair identity = new KeyPair(
+                        CryptoUtil.decodeX25519PublicKey(decode(props.getProperty("identity.public"))),
+                        CryptoUtil.decodeX25519PrivateKey(
+                                CryptoUtil.decryptAES(decode(props.getProperty("identity.private")), storageKey)));
+                PeerKeyStore store = new PeerKeyStore(file, username, props, storageKey, identity);
+                store.loadPeers();
+                return store;
+            } catch (Exception e) {
+                // Kept: the password may come back, and with it every stored peer key. If it can't be
+                // moved, fail rather than write over it
+                File aside = new File(file.getPath() + ".unreadable-" + System.currentTimeMillis());
+                Files.move(file.toPath(), aside.toPath());
+                System.err.println("E2EE key store for " + username + " unreadable (" + e.getMessage()
+                        + "); kept as " + aside.getName() + ", starting a new identity");
+                props.clear();
+            }
+        }
+        byte[] salt = new byte[16];
+        RANDOM.nextBytes(salt);
+        SecretKey storageKey = CryptoUtil.deriveKeyFromPassword(password, salt, PBKDF2_ITERATIONS);
+        KeyPair identity = CryptoUtil.generateX25519KeyPair();
+        props.setProperty("salt", encode(salt));
+        props.setProperty("iterations", String.valueOf(PBKDF2_ITERATIONS));
+        props.setProperty("identity.public", encode(identity.getPublic().getEncoded()));
+        props.setProperty("identity.private",
+                encode(CryptoUtil.encryptAES(identity.getPrivate().getEncoded(), storageKey)));
+        PeerKeyStore store = new PeerKeyStore(file, username, props, storageKey, identity);
+        store.save();
+        return store;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    // Published to the server as this user's prekey and sent in KEY_EXCHANGE
+    public byte[] getPublicKey() {
+        return identity.getPublic().getEncoded();
+    }
+
+    // Null until a key has been agreed with this peer
+    public SecretKey get(String peer) {
+        PeerKey known = peers.get(peer);
+        return known != null ? known.key : null;
+    }
+
+    public Map<String, SecretKey> keys() {
+        Map<String, SecretKey> keys = new ConcurrentHashMap<>();
+        peers.forEach((peer, known) -> keys.put(peer, known.key));
+        return keys;
+    }
+
+    // True if the peer's identity key is the one already stored (nothing to do)
+    public boolean isCurrent(String peer, byte[] peerPublicKey) {
+        PeerKey known = peers.get(peer);
+        return known != null && Arrays.equals(known.publicKey, peerPublicKey);
+    }
+
+    /**
+     * Derives and stores the key shared with peer. Returns true if a
+     * different identity key was stored for this peer before, i.e. the peer
+     * reinstalled or someone is impersonating them.
+     */
+    public synchronized boolean agree(String peer, byte[] peerPublicKey) throws Exception {
+        SecretKey key = CryptoUtil.deriveSharedSecret(identity.getPrivate(), peerPublicKey, username, peer);
+        PeerKey previous = peers.put(peer, new PeerKey(peerPublicKey, key));
+        props.setProperty("peer." + peer,
+                encode(peerPublicKey) + "," + encode(CryptoUtil.encryptAES(key.getEncoded(), storageKey)));
+        save();
+        return previous != null && !Arrays.equals(previous.publicKey, peerPublicKey);
+    }
+
+    private void loadPeers() {
+        for (String name : props.stringPropertyNames()) {
+            if (!name.startsWith("peer."))
+                continue;
+            try {
+                String[] parts = props.getProperty(name).split(",", 2);
+                byte[] keyBytes = CryptoUtil.decryptAES(decode(parts[1]), storageKey);
+                peers.put(name.substring(5), new PeerKey(decode(parts[0]), new SecretKeySpec(keyBytes, "AES")));
+            } catch (Exception e) {
+                System.err.println("Skipping unreadable E2EE key for " + name.substring(5));
+            }
+        }
+    }
+
+    private void save() {
+        // Through a temp file: a torn write would lose the identity and every peer key
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                props.store(fos, "SecureChat E2EE keys for " + username);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to save E2EE keys: " + e.getMessage());
+        }
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private static byte[] decode(String value) {
+        return Base64.getDecoder().decode(value);
+    }
+}
@@ -0,0 +1,365 @@
+package com.securechat.client.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queues file uploads behind a fixed number of worker threads and journals
+ * in-flight uploads/downloads so they continue after a client restart.
+ * Repairs of finished uploads share the workers but not the journal.
+ *
+ * Locking: a transfer's own monitor guards its state; the manager's guards
+ * the journal. The journal is only written after the transfer monitor is
+ * released, never inside it, so the two are always taken manager first.
+ */
+public class TransferManager {
+
+    public enum State {
+        QUEUED, ACTIVE, PAUSED, INTERRUPTED, COMPLETED, FAILED
+    }
+
+    public static final int DEFAULT_MAX_CONCURRENT = 2;
+    public static final int DEFAULT_PRIORITY = 5; // Lower number = sent first
+
+    public static class Transfer {
+        private final String id;
+        private final File file;
+        private final String target;
+        private final boolean group;
+        private volatile int priority;
+        private volatile long order; // FIFO tiebreak, refreshed on every (re)queue
+        private volatile State state = State.QUEUED;
+        private volatile boolean pauseRequested;
+        private final Uploader task; // Runs instead of the manager's uploader (repairs); null for uploads
+
+        Transfer(String id, File file, String target, boolean group, int priority) {
+            this(id, file, target, group, priority, null);
+        }
+
+        Transfer(String id, File file, String target, boolean group, int priority, Uploader task) {
+            this.id = id;
+            this.file = file;
+            this.target = target;
+            this.group = group;
+            this.priority = priority;
+            this.task = task;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public boolean isGroup() {
+            return group;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        // Polled by the sender between chunks
+        public boolean isPauseRequested() {
+            return pauseRequested;
+        }
+    }
+
+    // Runs one upload to completion (or until paused) and reports how it ended
+    public interface Uploader {
+        State upload(Transfer transfer) throws Exception;
+    }
+
+    private final Uploader uploader;
+    private final Map<String, Transfer> transfers = new ConcurrentHashMap<>();
+    private final PriorityBlockingQueue<Transfer> pending = new PriorityBlockingQueue<>(16, (t1, t2) -> {
+        int priorityComp = Integer.compare(t1.priority, t2.priority);
+        if (priorityComp == 0) {
+            return Long.compare(t1.order, t2.order);
+        }
+        return priorityComp;
+    });
+    private final AtomicLong orderCounter = new AtomicLong(0);
+
+    // Journal: accepted downloads by fileId -> "fileName|sender|group"
+    private final Map<String, String> journaledDownloads = new ConcurrentHashMap<>();
+    private volatile File journalFile;
+    private final File directory; // Where journals live; null = working directory
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean running = true;
+
+    public TransferManager(Uploader uploader, int maxConcurrent) {
+        this(uploader, maxConcurrent, null);
+    }
+
+    public TransferManager(Uploader uploader, int maxConcurrent, File directory) {
+        this.uploader = uploader;
+        this.directory = directory;
+        for (int i = 0; i < maxConcurrent; i++) {
+            Thread worker = new Thread(this::workerLoop, "transfer-worker-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    // Stops the workers; an upload in progress ends as INTERRUPTED and stays in the journal
+    public void shutdown() {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    public Transfer submit(File file, String target, boolean isGroup) {
+        return submit(file, target, isGroup, DEFAULT_PRIORITY);
+    }
+
+    public Transfer submit(File file, String target, boolean isGroup, int priority) {
+        Transfer transfer = new Transfer(java.util.UUID.randomUUID().toString(), file, target, isGroup, priority);
+        transfers.put(transfer.id, transfer);
+        enqueue(transfer);
+        saveJournal();
+        System.out.println("[TRANSFER] Queued " + file.getName() + " for " + target + " (position " + pending.size()
+                + ")");
+        return transfer;
+    }
+
+    /**
+     * Queues a repair of an upload that already finished, at priority 0
+     * (ahead of uploads at the default): task re-sends parts of file to
+     * target on the next free worker.
+     * Not journaled and not listed, so it can't be paused or resumed.
+     */
+    public Transfer submitRepair(File file, String target, Uploader task) {
+        Transfer repair = new Transfer(java.util.UUID.randomUUID().toString(), file, target, false, 0, task);
+        synchronized (repair) {
+            enqueue(repair);
+        }
+        return repair;
+    }
+
+    public boolean pause(String transferId) {
+        Transfer transfer = transfers.get(transferId);
+        if (transfer == null)
+            return false;
+        synchronized (transfer) {
+            if (transfer.state == State.ACTIVE) {
+                transfer.pauseRequested = true; // Worker parks it after the current chunk
+                return true;
+            }
+            if (transfer.state != State.QUEUED || !pending.remove(transfer))
+                return false;
+            transfer.state = State.PAUSED;
+        }
+        saveJournal();
+        return true;
+    }
+
+    public boolean resume(String transferId) {
+        Transfer transfer = transfers.get(transferId);
+        if (transfer == null)
+            return false;
+        synchronized (transfer) {
+            if (transfer.state != State.PAUSED && transfer.state != State.INTERRUPTED)
+                return false;
+            enqueue(transfer);
+        }
+        saveJournal();
+        return true;
+    }
+
+    public boolean reprioritize(String transferId, int priority) {
+        Transfer transfer = transfers.get(transferId);
+        if (transfer == null)
+            return false;
+        synchronized (transfer) {
+            // PriorityBlockingQueue doesn't re-sort in place: pull it out and put it back
+            boolean wasQueued = pending.remove(transfer);
+            transfer.priority = priority;
+            if (wasQueued) {
+                pending.put(transfer);
+            }
+        }
+        saveJournal();
+        return true;
+    }
+
+    // Requeue uploads that were cut off by a dropped connection
+    public void resumeInterrupted() {
+        boolean requeued = false;
+        for (Transfer transfer : transfers.values()) {
+            synchronized (transfer) {
+                if (transfer.state == State.INTERRUPTED) {
+                    enqueue(transfer);
+                    requeued = true;
+                }
+            }
+        }
+        if (requeued)
+            saveJournal();
+    }
+
+    public Collection<Transfer> getTransfers() {
+        return new ArrayList<>(transfers.values());
+    }
+
+    // Caller holds the transfer's monitor, and saves the journal after releasing it
+    private void enqueue(Transfer transfer) {
+        transfer.pauseRequested = false;
+        transfer.state = State.QUEUED;
+        transfer.order = orderCounter.getAndIncrement();
+        pending.put(transfer);
+    }
+
+    private void workerLoop() {
+        while (running) {
+            Transfer transfer;
+            try {
+                transfer = pending.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            synchronized (transfer) {
+                if (transfer.state != State.QUEUED)
+                    continue; // Paused while waiting in the queue
+                transfer.state = State.ACTIVE;
+            }
+
+            State outcome;
+            try {
+                outcome = (transfer.task != null ? transfer.task : uploader).upload(transfer);
+            } catch (Exception e) {
+                System.err.println("[TRANSFER] " + transfer.file.getName() + " interrupted: " + e.getMessage());
+                outcome = transfer.file.exists() ? State.INTERRUPTED : State.FAILED;
+            }
+
+            synchronized (transfer) {
+                transfer.pauseRequested = false;
+                transfer.state = outcome;
+                if (outcome == State.COMPLETED || outcome == State.FAILED) {
+                    transfers.remove(transfer.id);
+                }
+            }
+            System.out.println("[TRANSFER] " + transfer.file.getName() + " -> " + outcome);
+            saveJournal();
+        }
+    }
+
+    // --- Download journal (receiver side) ---
+
+    public void journalDownload(String fileId, String fileName, String sender, String group) {
+        journaledDownloads.put(fileId, fileName + "|" + sender + "|" + (group != null ? group : ""));
+        saveJournal();
+    }
+
+    public void completeDownload(String fileId) {
+        if (journaledDownloads.remove(fileId) != null) {
+            saveJournal();
+        }
+    }
+
+    public boolean isJournaledDownload(String fileId) {
+        return journaledDownloads.containsKey(fileId);
+    }
+
+    public Collection<String> getJournaledDownloadIds() {
+        return new ArrayList<>(journaledDownloads.keySet());
+    }
+
+    // --- Journal persistence ---
+
+    /**
+     * Binds the journal to a user and requeues whatever that user had in flight
+     * when the client last exited. Safe to call again on reconnect.
+     */
+    public synchronized void openJournal(String username) {
+        File file = new File(directory, "transfer_journal_" + username + ".properties");
+        if (file.equals(journalFile)) {
+            resumeInterrupted();
+            return;
+        }
+        journalFile = file;
+        if (!file.exists())
+            return;
+
+        List<Transfer> restored = new ArrayList<>();
+        try {
+            Properties props = new Properties();
+            try (FileInputStream fis = new FileInputStream(file)) {
+                props.load(fis);
+            }
+            for (String key : props.stringPropertyNames()) {
+                String[] parts = key.split("\\.", 3);
+                if (parts.length < 3)
+                    continue;
+                String id = parts[1];
+                if (parts[0].equals("upload") && parts[2].equals("path")) {
+                    File source = new File(props.getProperty(key));
+                    if (!source.exists())
+                        continue;
+                    Transfer transfer = new Transfer(id, source, props.getProperty("upload." + id + ".target"),
+                            Boolean.parseBoolean(props.getProperty("upload." + id + ".group")),
+                            Integer.parseInt(props.getProperty("upload." + id + ".priority",
+                                    String.valueOf(DEFAULT_PRIORITY))));
+                    transfer.state = "PAUSED".equals(props.getProperty("upload." + id + ".state")) ? State.PAUSED
+                            : State.INTERRUPTED;
+                    transfers.put(id, transfer);
+                    restored.add(transfer);
+                } else if (parts[0].equals("download") && parts[2].equals("info")) {
+                    journaledDownloads.put(id, props.getProperty(key));
+                }
+            }
+            System.out.println("[TRANSFER] Journal restored " + restored.size() + " uploads and "
+                    + journaledDownloads.size() + " downloads.");
+        } catch (Exception e) {
+            System.err.println("Failed to load transfer journal: " + e.getMessage());
+        }
+        resumeInterrupted();
+    }
+
+    private synchronized void saveJournal() {
+        if (journalFile == null)
+            return;
+        try {
+            Properties props = new Properties();
+            for (Transfer transfer : transfers.values()) {
+                String prefix = "upload." + transfer.id + ".";
+                props.setProperty(prefix + "path", transfer.file.getAbsolutePath());
+                props.setProperty(prefix + "target", transfer.target);
+                props.setProperty(prefix + "group", String.valueOf(transfer.group));
+                props.setProperty(prefix + "priority", String.valueOf(transfer.priority));
+                props.setProperty(prefix + "state", transfer.state.name());
+            }
+            for (Map.Entry<String, String> entry : journaledDownloads.entrySet()) {
+                props.setProperty("download." + entry.getKey() + ".info", entry.getValue());
+            }
+            try (FileOutputStream fos = new FileOutputStream(journalFile)) {
+                props.store(fos, "In-flight File Transfers");
+            }
+        } catch (Exception e) {
+            System.err.println("Failed to save transfer journal: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.securechat.client.core;
+
+import com.securechat.common.util.FileFingerprint;
+import com.securechat.common.util.FileTransferUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class FileIdentityCacheTest {
+
+    private static File randomFile(File dir, int size) throws Exception {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        File file = new File(dir, "data.bin");
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    // Hashes are cached once both are done, just after the futures complete
+    private static void awaitSaved(File dir) throws InterruptedException {
+        File cache = new File(dir, "file_identity_cache.properties");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!cache.exists()) {
+            if (System.nanoTime() > deadline)
+                throw new AssertionError("Timed out waiting for the identity cache to be saved");
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void unchangedFilesReuseTheirHashesAndTree() throws Exception {
+        File dir = Files.createTempDirectory("identities").toFile();
+        File file = randomFile(dir, 3 * FileTransferUtil.CHUNK_SIZE + 10);
+        FileIdentityCache cache = new FileIdentityCache(dir);
+        FileIdentityCache.FileIdentity first = cache.identify(file);
+        Assertions.assertEquals(FileFingerprint.sampled(file), first.getFileId());
+        byte[] root = first.getTree().get().getRoot();
+        String hash = first.getFullHash().get();
+        awaitSaved(dir);
+        cache.shutdown();
+
+        // A new cache (a restart) has both at once, without reading the file through
+        FileIdentityCache reloaded = new FileIdentityCache(dir);
+        FileIdentityCache.FileIdentity again = reloaded.identify(file);
+        Assertions.assertEquals(first.getFileId(), again.getFileId());
+        Assertions.assertTrue(again.getFullHash().isDone() && again.getTree().isDone());
+        Assertions.assertEquals(hash, again.getFullHash().get());
+        Assertions.assertArrayEquals(root, again.getTree().get().getRoot());
+        reloaded.shutdown();
+    }
+
+    @Test
+    public void editsBetweenSamplesGetTheirOwnId() throws Exception {
+        File dir = Files.createTempDirectory("identities").toFile();
+        File file = randomFile(dir, 2 * 1024 * 1024);
+        long mtime = file.lastModified();
+        FileIdentityCache cache = new FileIdentityCache(dir);
+        FileIdentityCache.FileIdentity original = cache.identify(file);
+        original.getFullHash().get();
+        awaitSaved(dir);
+
+        // Between the first two sample blocks, same size
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(40_000);
+            int b = raf.read();
+            raf.seek(40_000);
+            raf.write(b ^ 0xff);
+        }
+        file.setLastModified(mtime + 2000);
+        Assertions.assertEquals(original.getFileId(), FileFingerprint.sampled(file));
+
+        FileIdentityCache.FileIdentity edited = cache.identify(file);
+        String editedHash = edited.getFullHash().get();
+        Assertions.assertNotEquals(original.getFullHash().get(), editedHash);
+        // The fingerprint belongs to the original bytes; resume data under it must not be used
+        Assertions.assertEquals(editedHash, edited.getFileId());
+        Assertions.assertEquals(FileTransferUtil.calculateChecksum(file), editedHash);
+        cache.shutdown();
+    }
+}
@@ -0,0 +1,34 @@
+package com.securechat.client.core;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class PeerKeyStoreTest {
+
+    @Test
+    public void unreadableStoresAreKeptAsideNotOverwritten() throws Exception {
+        File dir = Files.createTempDirectory("e2e").toFile();
+        PeerKeyStore store = PeerKeyStore.open(dir, "alice", "secret");
+        byte[] bob = PeerKeyStore.open(dir, "bob", "secret").getPublicKey();
+        store.agree("bob", bob);
+
+        // Reopened with the same password: same identity, bob's key still there
+        PeerKeyStore reopened = PeerKeyStore.open(dir, "alice", "secret");
+        Assertions.assertArrayEquals(store.getPublicKey(), reopened.getPublicKey());
+        Assertions.assertEquals(store.get("bob"), reopened.get("bob"));
+
+        // A wrong password starts a new identity, with the old file moved aside byte for byte
+        File file = new File(dir, "e2e_keys_alice.properties");
+        byte[] before = Files.readAllBytes(file.toPath());
+        PeerKeyStore fresh = PeerKeyStore.open(dir, "alice", "changed");
+        Assertions.assertFalse(Arrays.equals(store.getPublicKey(), fresh.getPublicKey()));
+        Assertions.assertNull(fresh.get("bob"));
+        File[] aside = dir.listFiles((d, name) -> name.startsWith("e2e_keys_alice.properties.unreadable-"));
+        Assertions.assertEquals(1, aside.length);
+        Assertions.assertArrayEquals(before, Files.readAllBytes(aside[0].toPath()));
+    }
+}
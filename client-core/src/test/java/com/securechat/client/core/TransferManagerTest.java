@@ -0,0 +1,173 @@
+package com.securechat.client.core;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+public class TransferManagerTest {
+
+    private static void await(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline)
+                throw new AssertionError("Timed out waiting for " + what);
+            Thread.sleep(5);
+        }
+    }
+
+    private static File tempFile(File dir, String name) throws Exception {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), new byte[] { 1, 2, 3 });
+        return file;
+    }
+
+    @Test
+    public void runsNoMoreThanMaxConcurrentUploads() throws Exception {
+        File dir = Files.createTempDirectory("transfers").toFile();
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        TransferManager manager = new TransferManager(t -> {
+            peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+            release.await();
+            active.decrementAndGet();
+            done.incrementAndGet();
+            return TransferManager.State.COMPLETED;
+        }, 2, dir);
+
+        for (int i = 0; i < 5; i++) {
+            manager.submit(tempFile(dir, "f" + i), "bob", false);
+        }
+        await(() -> active.get() == 2, "two uploads to start");
+        Thread.sleep(50);
+        Assertions.assertEquals(2, peak.get());
+
+        release.countDown();
+        await(() -> done.get() == 5, "all uploads to finish");
+        Assertions.assertEquals(2, peak.get());
+        Assertions.assertTrue(manager.getTransfers().isEmpty());
+        manager.shutdown();
+    }
+
+    @Test
+    public void pausedTransfersWaitUntilResumed() throws Exception {
+        File dir = Files.createTempDirectory("transfers").toFile();
+        CountDownLatch started = new CountDownLatch(1);
+        TransferManager manager = new TransferManager(t -> {
+            started.countDown();
+            while (!t.isPauseRequested()) {
+                if (t.getFile().getName().equals("small"))
+                    return TransferManager.State.COMPLETED;
+                Thread.sleep(5);
+            }
+            return TransferManager.State.PAUSED;
+        }, 1, dir);
+        manager.openJournal("alice");
+
+        TransferManager.Transfer big = manager.submit(tempFile(dir, "big"), "bob", false);
+        Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+        TransferManager.Transfer small = manager.submit(tempFile(dir, "small"), "bob", false);
+
+        // Queued: parked at once; active: parked by the uploader after its current chunk
+        Assertions.assertTrue(manager.pause(small.getId()));
+        Assertions.assertEquals(TransferManager.State.PAUSED, small.getState());
+        Assertions.assertTrue(manager.pause(big.getId()));
+        await(() -> big.getState() == TransferManager.State.PAUSED, "the active upload to pause");
+        Assertions.assertFalse(manager.pause(big.getId()));
+
+        Assertions.assertTrue(manager.resume(small.getId()));
+        await(() -> small.getState() == TransferManager.State.COMPLETED, "the resumed upload to finish");
+        Assertions.assertEquals(TransferManager.State.PAUSED, big.getState());
+
+        // Pausing and resuming from one thread while another reopens the journal must not deadlock
+        Thread toggler = new Thread(() -> {
+            for (int i = 0; i < 500; i++) {
+                manager.resume(big.getId());
+                manager.pause(big.getId());
+                manager.reprioritize(big.getId(), i % 10);
+            }
+        });
+        Thread reopener = new Thread(() -> {
+            for (int i = 0; i < 500; i++) {
+                manager.openJournal("alice");
+            }
+        });
+        toggler.start();
+        reopener.start();
+        toggler.join(10_000);
+        reopener.join(10_000);
+        Assertions.assertFalse(toggler.isAlive() || reopener.isAlive(), "pause/resume deadlocked with openJournal");
+        manager.shutdown();
+    }
+
+    @Test
+    public void repairsRunOnTheWorkersAheadOfUploadsAndAreNotJournaled() throws Exception {
+        File dir = Files.createTempDirectory("transfers").toFile();
+        CountDownLatch busy = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        TransferManager manager = new TransferManager(t -> {
+            busy.countDown();
+            release.await();
+            order.add(t.getFile().getName());
+            return TransferManager.State.COMPLETED;
+        }, 1, dir);
+        manager.openJournal("alice");
+
+        manager.submit(tempFile(dir, "first"), "bob", false);
+        Assertions.assertTrue(busy.await(5, TimeUnit.SECONDS));
+        manager.submit(tempFile(dir, "second"), "bob", false);
+        TransferManager.Transfer repair = manager.submitRepair(tempFile(dir, "sent"), "bob", t -> {
+            order.add("repair:" + Thread.currentThread().getName());
+            return TransferManager.State.COMPLETED;
+        });
+        Assertions.assertEquals(2, manager.getTransfers().size());
+        Assertions.assertFalse(manager.pause(repair.getId()));
+
+        release.countDown();
+        await(() -> order.size() == 3, "the repair and both uploads");
+        Assertions.assertEquals(List.of("first", "repair:transfer-worker-0", "second"), order);
+        manager.shutdown();
+    }
+
+    @Test
+    public void journalRestoresUploadsAndDownloads() throws Exception {
+        File dir = Files.createTempDirectory("transfers").toFile();
+        // No workers: everything stays where the journal put it
+        TransferManager before = new TransferManager(t -> TransferManager.State.COMPLETED, 0, dir);
+        before.openJournal("alice");
+        TransferManager.Transfer queued = before.submit(tempFile(dir, "a"), "bob", false, 3);
+        TransferManager.Transfer paused = before.submit(tempFile(dir, "b"), "team", true);
+        before.pause(paused.getId());
+        before.journalDownload("file-1", "c.txt", "bob", null);
+        before.shutdown();
+
+        TransferManager after = new TransferManager(t -> TransferManager.State.COMPLETED, 0, dir);
+        after.openJournal("alice");
+        Assertions.assertEquals(2, after.getTransfers().size());
+        for (TransferManager.Transfer t : after.getTransfers()) {
+            if (t.getId().equals(queued.getId())) {
+                // Was in flight: requeued, with its priority
+                Assertions.assertEquals(TransferManager.State.QUEUED, t.getState());
+                Assertions.assertEquals(3, t.getPriority());
+                Assertions.assertEquals("bob", t.getTarget());
+            } else {
+                Assertions.assertEquals(paused.getId(), t.getId());
+                Assertions.assertEquals(TransferManager.State.PAUSED, t.getState());
+                Assertions.assertTrue(t.isGroup());
+            }
+        }
+        Assertions.assertTrue(after.isJournaledDownload("file-1"));
+        after.shutdown();
+    }
+}
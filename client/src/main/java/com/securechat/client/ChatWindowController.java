@@ -1,5 +1,6 @@
 package com.securechat.client;
 
+import com.securechat.client.core.NetworkClient;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.geometry.Pos;
@@ -28,20 +29,23 @@ public class ChatWindowController {
     private String targetName; // Username or GroupName
     private boolean isGroup;
     private NetworkClient networkClient;
+    private ClientEventRouter eventRouter;
     private Stage stage;
 
-    public void init(String targetName, boolean isGroup, NetworkClient networkClient, Stage stage) {
+    public void init(String targetName, boolean isGroup, NetworkClient networkClient, ClientEventRouter eventRouter,
+            Stage stage) {
         this.targetName = targetName;
         this.isGroup = isGroup;
         this.networkClient = networkClient;
+        this.eventRouter = eventRouter;
         this.stage = stage;
 
         chatTitleLabel.setText(isGroup ? "Group Chat: " + targetName : "Private Chat with: " + targetName);
         stage.setTitle(chatTitleLabel.getText());
 
         stage.setOnCloseRequest(event -> {
-            if (networkClient != null) {
-                networkClient.unregisterChatWindow(targetName);
+            if (eventRouter != null) {
+                eventRouter.unregisterChatWindow(targetName);
             }
         });
     }
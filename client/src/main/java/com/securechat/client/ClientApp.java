@@ -1,5 +1,6 @@
 package com.securechat.client;
 
+import com.securechat.client.core.NetworkClient;
 import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
@@ -11,13 +12,32 @@ public class ClientApp extends Application {
 
     private Stage stage;
     private NetworkClient networkClient;
+    private ClientEventRouter eventRouter;
 
-    public NetworkClient getNetworkClient() {
+    public synchronized NetworkClient getNetworkClient() {
         return networkClient;
     }
 
-    public void setNetworkClient(NetworkClient networkClient) {
+    // Routes this client's events from now on; a previous client (an earlier login attempt) is
+    // disconnected, which also ends its router's subscription
+    public synchronized void setNetworkClient(NetworkClient networkClient) {
+        if (this.networkClient != null && this.networkClient != networkClient)
+            this.networkClient.disconnect();
         this.networkClient = networkClient;
+        this.eventRouter = new ClientEventRouter(networkClient);
+    }
+
+    // For a client whose login failed: disconnected, and dropped unless a newer attempt replaced it
+    public synchronized void discardNetworkClient(NetworkClient failed) {
+        failed.disconnect();
+        if (networkClient == failed) {
+            networkClient = null;
+            eventRouter = null;
+        }
+    }
+
+    public synchronized ClientEventRouter getEventRouter() {
+        return eventRouter;
     }
 
     @Override
@@ -47,12 +67,16 @@ public class ClientApp extends Application {
         controller.setApp(this);
         controller.setUsername(username);
 
-        if (networkClient != null) {
-            networkClient.setController(controller);
-            controller.setNetworkClient(networkClient);
-            // Request fresh state immediately to avoid race conditions
-            networkClient.requestUserList();
-            networkClient.requestGroupList();
+        NetworkClient client;
+        ClientEventRouter router;
+        synchronized (this) {
+            client = networkClient;
+            router = eventRouter;
+        }
+        if (client != null) {
+            controller.setNetworkClient(client);
+            // Replays the user and group lists that arrived with the login response
+            router.setMainController(controller);
         }
 
         stage.setTitle("SecureChat - " + username);
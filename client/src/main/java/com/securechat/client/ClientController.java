@@ -1,5 +1,6 @@
 package com.securechat.client;
 
+import com.securechat.client.core.NetworkClient;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.geometry.Pos;
@@ -109,15 +110,14 @@ public class ClientController {
 
         int finalPort = port;
         new Thread(() -> {
+            NetworkClient client = null;
             try {
-                networkClient = new NetworkClient(ip, finalPort, this);
-                networkClient.connect(username);
-
-                // Give listener thread time to start
-                Thread.sleep(1000);
-
-                // Attempt login with password
-                java.util.concurrent.CompletableFuture<String> loginFuture = networkClient.login(username, password);
+                client = new NetworkClient(ip, finalPort);
+                networkClient = client;
+                // Subscribe before logging in: the user and group lists arrive with the auth result
+                app.setNetworkClient(client);
+                java.util.concurrent.CompletableFuture<String> loginFuture = client.connectAndLogin(username,
+                        password);
 
                 // Wait for response with timeout
                 try {
@@ -125,10 +125,11 @@ public class ClientController {
                     String[] parts = response.split(":", 2);
                     boolean success = parts[0].equals("SUCCESS");
                     String message = parts.length > 1 ? parts[1] : "";
+                    if (!success)
+                        app.discardNetworkClient(client);
 
                     Platform.runLater(() -> {
                         if (success) {
-                            app.setNetworkClient(networkClient);
                             try {
                                 app.showChatView(username);
                             } catch (Exception e) {
@@ -139,12 +140,16 @@ public class ClientController {
                         }
                     });
                 } catch (java.util.concurrent.TimeoutException e) {
+                    app.discardNetworkClient(client);
                     Platform.runLater(() -> statusLabel.setText("Login timeout - server not responding"));
                 } catch (Exception e) {
+                    app.discardNetworkClient(client);
                     Platform.runLater(() -> statusLabel.setText("Login error: " + e.getMessage()));
                 }
             } catch (Exception e) {
                 e.printStackTrace();
+                if (client != null)
+                    app.discardNetworkClient(client);
                 Platform.runLater(() -> statusLabel.setText("Connection failed: " + e.getMessage()));
             }
         }).start();
@@ -162,8 +167,9 @@ public class ClientController {
                 javafx.scene.Scene scene = new javafx.scene.Scene(root);
                 stage.setScene(scene);
 
-                controller.init(target, isGroup, networkClient, stage);
-                networkClient.registerChatWindow(target, controller);
+                ClientEventRouter router = app.getEventRouter();
+                controller.init(target, isGroup, networkClient, router, stage);
+                router.registerChatWindow(target, controller);
 
                 if (isGroup) {
                     // Automatically join the group on the server when opening the window
@@ -278,28 +284,56 @@ public class ClientController {
 
                     // Update the display list (Active Users) - show name and status with indicators
                     if (userListView != null) {
-                        String indicator = "";
-                        switch (status.toLowerCase()) {
-                            case "online":
-                                indicator = "●";
-                                break;
-                            case "away":
-                                indicator = "◐";
-                                break;
-                            case "busy":
-                                indicator = "⊘";
-                                break;
-                            case "offline":
-                                indicator = "○";
-                                break;
-                        }
-                        userListView.getItems().add(username + " [" + indicator + " " + status + "]");
+                        userListView.getItems().add(userRow(username, status));
                     }
                 }
             }
         });
     }
 
+    // One user's presence change: only their row is touched (status null = went offline)
+    public void updatePresence(String username, String status) {
+        Platform.runLater(() -> {
+            if (userListView == null)
+                return;
+            java.util.List<String> rows = userListView.getItems();
+            int index = -1;
+            for (int i = 0; i < rows.size(); i++) {
+                if (rows.get(i).startsWith(username + " [")) {
+                    index = i;
+                    break;
+                }
+            }
+            if (status == null) {
+                if (index >= 0)
+                    rows.remove(index);
+            } else if (index >= 0) {
+                rows.set(index, userRow(username, status));
+            } else {
+                rows.add(userRow(username, status));
+            }
+        });
+    }
+
+    private static String userRow(String username, String status) {
+        String indicator = "";
+        switch (status.toLowerCase()) {
+            case "online":
+                indicator = "●";
+                break;
+            case "away":
+                indicator = "◐";
+                break;
+            case "busy":
+                indicator = "⊘";
+                break;
+            case "offline":
+                indicator = "○";
+                break;
+        }
+        return username + " [" + indicator + " " + status + "]";
+    }
+
     public void setUsername(String username) {
         if (currentUserLabel != null) {
             currentUserLabel.setText(username);
@@ -0,0 +1,123 @@
+package com.securechat.client;
+
+import com.securechat.client.core.ClientEvent;
+import com.securechat.client.core.NetworkClient;
+import javafx.application.Platform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bridges NetworkClient events onto the JavaFX thread. Events are queued and
+ * applied in one Platform.runLater per burst; each is routed to the open
+ * chat window of its conversation or, failing that, to the main window.
+ */
+public class ClientEventRouter {
+
+    private final NetworkClient networkClient;
+    private final Map<String, ChatWindowController> activeWindows = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<ClientEvent> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile ClientController mainController;
+
+    public ClientEventRouter(NetworkClient networkClient) {
+        this.networkClient = networkClient;
+        networkClient.addListener(this::onEvent);
+    }
+
+    // Events arriving before the chat view exists are held until it does
+    public void setMainController(ClientController mainController) {
+        this.mainController = mainController;
+        schedule();
+    }
+
+    public void registerChatWindow(String target, ChatWindowController win) {
+        activeWindows.put(target, win);
+    }
+
+    public void unregisterChatWindow(String target) {
+        activeWindows.remove(target);
+    }
+
+    private void onEvent(ClientEvent event) {
+        pending.add(event);
+        schedule();
+    }
+
+    private void schedule() {
+        if (mainController != null && !pending.isEmpty() && scheduled.compareAndSet(false, true)) {
+            Platform.runLater(this::drain);
+        }
+    }
+
+    private void drain() {
+        scheduled.set(false);
+        List<ClientEvent> batch = new ArrayList<>();
+        ClientEvent event;
+        while ((event = pending.poll()) != null) {
+            batch.add(event);
+        }
+        for (ClientEvent e : batch) {
+            try {
+                route(e);
+            } catch (Exception ex) {
+                System.err.println("Failed to handle " + e + ": " + ex.getMessage());
+            }
+        }
+        schedule(); // Anything that arrived while we were busy
+    }
+
+    private void route(ClientEvent event) {
+        ClientController controller = mainController;
+        ChatWindowController chatWin = event.getConversation() != null ? activeWindows.get(event.getConversation())
+                : null;
+
+        switch (event.getType()) {
+            case NOTICE:
+                if (chatWin != null) {
+                    chatWin.appendChatMessage(event.getText());
+                } else {
+                    controller.appendChat(event.getFallbackText());
+                }
+                break;
+            case MESSAGE:
+                if (chatWin != null) {
+                    chatWin.appendChatMessage(event.getSender() + ": " + event.getText());
+                } else if (event.isGroup()) {
+                    controller.appendChat("System: New message in group " + event.getConversation());
+                } else {
+                    controller.appendChat("🔒 [System] New DM from " + event.getSender() + ": " + event.getText());
+                }
+                break;
+            case DELIVERY_ACK:
+                if (chatWin != null) {
+                    chatWin.appendChatMessage(event.isGroup() ? "System: Delivered to " + event.getSender() + " ✓"
+                            : "System: Message Delivered ✓");
+                } else if (!event.isGroup()) {
+                    controller.appendChat("System: Send confirmation received from " + event.getSender());
+                }
+                break;
+            case USER_LIST:
+                controller.updateUserList(event.getItems());
+                break;
+            case PRESENCE:
+                controller.updatePresence(event.getSender(), event.getText());
+                break;
+            case GROUP_LIST:
+                controller.updateGroupList(event.getItems());
+                break;
+            case FILE_OFFER:
+                String ctx = event.isGroup() ? "Group " + event.getConversation() : "Private Chat";
+                boolean accept = controller.showConfirmationAlert("File Request",
+                        event.getSender() + " wants to send '" + event.getFileName() + "' ("
+                                + (event.getFileSize() / 1024) + " KB) in " + ctx + ".\nAccept?");
+                String fileId = event.getFileId();
+                new Thread(() -> networkClient.respondToFileOffer(fileId, accept)).start();
+                break;
+        }
+    }
+}
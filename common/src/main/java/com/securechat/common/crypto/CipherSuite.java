@@ -0,0 +1,199 @@
+package com.securechat.common.crypto;
+
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Transport AEADs a connection can negotiate. Both take a 256-bit key and a
+ * 96-bit nonce and add a 16-byte tag, so SessionCipher treats them alike.
+ *
+ * Each side gives every suite a preference score, higher is better. By
+ * default the scores are fixed estimates of relative speed, chosen by
+ * whether the JVM runs AES-GCM on AES instructions (VM flags, read once per
+ * process; nothing is measured). The system property
+ * securechat.cipher.suites (e.g. "CHACHA20_POLY1305,AES_256_GCM") restricts
+ * the suites instead and scores them by rank, n down to 1. The client offers
+ * its scores and the server picks the suite whose lower score of the two
+ * ends is highest; on hosts without AES-NI/ARMv8 AES that is
+ * ChaCha20-Poly1305.
+ */
+public enum CipherSuite {
+    AES_256_GCM((byte) 1, "AES/GCM/NoPadding", "AES"),
+    CHACHA20_POLY1305((byte) 2, "ChaCha20-Poly1305", "ChaCha20");
+
+    // Read once: the VM flags cannot change while it runs
+    private static final boolean AES_INTRINSICS = hardwareAes();
+
+    private static volatile List<CipherSuite> enabled = parseSuites(System.getProperty("securechat.cipher.suites"));
+    // Preference score per suite (by ordinal), higher first; 0 = disabled
+    private static volatile int[] scores = initialScores();
+
+    private final byte id;
+    private final String transformation;
+    private final String keyAlgorithm;
+
+    CipherSuite(byte id, String transformation, String keyAlgorithm) {
+        this.id = id;
+        this.transformation = transformation;
+        this.keyAlgorithm = keyAlgorithm;
+    }
+
+    public byte getId() {
+        return id;
+    }
+
+    public String getTransformation() {
+        return transformation;
+    }
+
+    public SecretKeySpec key(byte[] keyBytes) {
+        return new SecretKeySpec(keyBytes, keyAlgorithm);
+    }
+
+    public AlgorithmParameterSpec parameters(byte[] nonce) {
+        return this == AES_256_GCM ? new GCMParameterSpec(128, nonce) : new IvParameterSpec(nonce);
+    }
+
+    public static CipherSuite fromId(byte id) throws IOException {
+        for (CipherSuite suite : values()) {
+            if (suite.id == id)
+                return suite;
+        }
+        throw new IOException("Unknown cipher suite " + id);
+    }
+
+    // --- Local preference ---
+
+    // Null or empty means all suites, ranked by speed
+    public static void restrictTo(List<CipherSuite> suites) {
+        enabled = suites == null || suites.isEmpty() ? null : List.copyOf(suites);
+        scores = initialScores();
+    }
+
+    public static List<CipherSuite> parseSuites(String names) {
+        if (names == null || names.isBlank())
+            return null;
+        List<CipherSuite> suites = new ArrayList<>();
+        for (String name : names.split(",")) {
+            suites.add(CipherSuite.valueOf(name.trim().toUpperCase()));
+        }
+        return suites;
+    }
+
+    // Enabled suites, fastest (or configured first) first
+    public static List<CipherSuite> ranked() {
+        int[] current = scores;
+        List<CipherSuite> suites = new ArrayList<>();
+        for (CipherSuite suite : values()) {
+            if (current[suite.ordinal()] > 0)
+                suites.add(suite);
+        }
+        suites.sort(Comparator.comparingInt((CipherSuite s) -> current[s.ordinal()]).reversed());
+        return suites;
+    }
+
+    public static int score(CipherSuite suite) {
+        return scores[suite.ordinal()];
+    }
+
+    public static String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (CipherSuite suite : ranked()) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(suite).append(" (score ").append(score(suite)).append(')');
+        }
+        return sb.toString();
+    }
+
+    // --- Negotiation ---
+
+    // ClientHello field: count, then (id, score) in preference order
+    public static byte[] offers() throws IOException {
+        List<CipherSuite> suites = ranked();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(1 + 3 * suites.size());
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(suites.size());
+        for (CipherSuite suite : suites) {
+            dos.writeByte(suite.id);
+            dos.writeShort(Math.min(score(suite), 0xFFFF));
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Server side: of the suites both ends support, the one with the best
+     * min(client score, server score), since the slower end bounds the
+     * connection. Ties go to the client's order.
+     */
+    public static CipherSuite select(byte[] clientOffers) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(clientOffers);
+        int count = buf.get() & 0xFF;
+        if (buf.remaining() != 3 * count)
+            throw new IOException("Malformed cipher suite offer");
+        CipherSuite best = null;
+        int bestScore = -1;
+        for (int i = 0; i < count; i++) {
+            byte id = buf.get();
+            int clientScore = buf.getShort() & 0xFFFF;
+            for (CipherSuite suite : values()) {
+                int localScore = score(suite);
+                if (suite.id == id && localScore > 0 && Math.min(clientScore, localScore) > bestScore) {
+                    best = suite;
+                    bestScore = Math.min(clientScore, localScore);
+                }
+            }
+        }
+        if (best == null)
+            throw new IOException("No cipher suite in common with the client");
+        return best;
+    }
+
+    // Client side: the server must pick something that was offered
+    public static void checkSelected(byte[] offers, CipherSuite selected) throws IOException {
+        for (int i = 1; i + 2 < offers.length; i += 3) {
+            if (offers[i] == selected.id)
+                return;
+        }
+        throw new IOException("Server selected cipher suite " + selected + " that was not offered");
+    }
+
+    // --- Scoring ---
+
+    // AES-GCM is ~2x ChaCha20 with AES instructions and ~15x slower without
+    private static int[] initialScores() {
+        int[] initial = new int[values().length];
+        List<CipherSuite> configured = enabled;
+        if (configured != null) {
+            for (int i = 0; i < configured.size(); i++) {
+                initial[configured.get(i).ordinal()] = configured.size() - i;
+            }
+            return initial;
+        }
+        initial[AES_256_GCM.ordinal()] = AES_INTRINSICS ? 1000 : 40;
+        initial[CHACHA20_POLY1305.ordinal()] = 500;
+        return initial;
+    }
+
+    // HotSpot's UseAES is only true when the CPU has AES instructions, and UseAESIntrinsics
+    // when the JIT will use them for the cipher
+    private static boolean hardwareAes() {
+        try {
+            com.sun.management.HotSpotDiagnosticMXBean vm = java.lang.management.ManagementFactory
+                    .getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class);
+            return Boolean.parseBoolean(vm.getVMOption("UseAES").getValue())
+                    && Boolean.parseBoolean(vm.getVMOption("UseAESIntrinsics").getValue());
+        } catch (Throwable t) {
+            return true; // Unknown VM: assume a typical server CPU
+        }
+    }
+}
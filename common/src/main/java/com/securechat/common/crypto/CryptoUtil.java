@@ -6,7 +6,9 @@ import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
 import java.security.*;
+import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
 
@@ -17,6 +19,17 @@ public class CryptoUtil {
     private static final int GCM_IV_LENGTH = 12; // 12 bytes recommended for GCM
     private static final int GCM_TAG_LENGTH = 128;
 
+    // Shared: SecureRandom is thread-safe and costly to seed per call
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // Cipher.getInstance does a provider lookup, so each thread keeps its own instance
+    private static final ThreadLocal<Cipher> AES_CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(AES_ALGO);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
     // RSA Generation
     public static KeyPair generateRSAKeyPair() throws Exception {
         KeyPairGenerator keyGen = KeyPairGenerator.getInstance(RSA_ALGO);
@@ -45,22 +58,20 @@ public class CryptoUtil {
         return keyGen.generateKey();
     }
 
-    // AES-GCM Encrypt -> Returns IV + Ciphertext (envelope)
+    // AES-GCM Encrypt -> Returns IV + Ciphertext (envelope). Random IVs, for keys shared by
+    // several senders (E2EE, tickets); connections use SessionCipher's counter nonces instead.
     public static byte[] encryptAES(byte[] data, SecretKey key) throws Exception {
         byte[] iv = new byte[GCM_IV_LENGTH];
-        SecureRandom random = new SecureRandom();
-        random.nextBytes(iv);
+        RANDOM.nextBytes(iv);
+        byte[] result = new byte[GCM_IV_LENGTH + data.length + GCM_TAG_LENGTH / 8];
+        System.arraycopy(iv, 0, result, 0, GCM_IV_LENGTH);
 
-        Cipher cipher = Cipher.getInstance(AES_ALGO);
+        Cipher cipher = AES_CIPHER.get();
         GCMParameterSpec parameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
         cipher.init(Cipher.ENCRYPT_MODE, key, parameterSpec);
 
-        byte[] ciphertext = cipher.doFinal(data);
-
-        // Concatenate IV + Ciphertext
-        byte[] result = new byte[iv.length + ciphertext.length];
-        System.arraycopy(iv, 0, result, 0, iv.length);
-        System.arraycopy(ciphertext, 0, result, iv.length, ciphertext.length);
+        // Ciphertext goes straight in after the IV
+        cipher.doFinal(data, 0, data.length, result, GCM_IV_LENGTH);
         return result;
     }
 
@@ -69,39 +80,83 @@ public class CryptoUtil {
         if (encryptedData.length < GCM_IV_LENGTH)
             throw new IllegalArgumentException("Invalid encrypted data length");
 
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        System.arraycopy(encryptedData, 0, iv, 0, GCM_IV_LENGTH);
+        Cipher cipher = AES_CIPHER.get();
+        GCMParameterSpec parameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH, encryptedData, 0, GCM_IV_LENGTH);
+        cipher.init(Cipher.DECRYPT_MODE, key, parameterSpec);
 
-        int ciphertextLength = encryptedData.length - GCM_IV_LENGTH;
-        byte[] ciphertext = new byte[ciphertextLength];
-        System.arraycopy(encryptedData, GCM_IV_LENGTH, ciphertext, 0, ciphertextLength);
+        return cipher.doFinal(encryptedData, GCM_IV_LENGTH, encryptedData.length - GCM_IV_LENGTH);
+    }
 
-        Cipher cipher = Cipher.getInstance(AES_ALGO);
-        GCMParameterSpec parameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-        cipher.init(Cipher.DECRYPT_MODE, key, parameterSpec);
+    // AES-GCM Decrypt of an IV + Ciphertext stream, for envelopes too large to hold as one array.
+    // The tag is checked at the end: a tampered stream fails with an IOException on the last read.
+    public static java.io.InputStream decryptAES(java.io.InputStream encrypted, SecretKey key) throws Exception {
+        byte[] iv = encrypted.readNBytes(GCM_IV_LENGTH);
+        if (iv.length < GCM_IV_LENGTH)
+            throw new IllegalArgumentException("Invalid encrypted data length");
+        Cipher cipher = Cipher.getInstance(AES_ALGO); // Outlives this call, so not the thread's shared one
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+        return new javax.crypto.CipherInputStream(encrypted, cipher);
+    }
 
-        return cipher.doFinal(ciphertext);
+    // X25519 Key Agreement (session handshake)
+    public static KeyPair generateX25519KeyPair() throws Exception {
+        return KeyPairGenerator.getInstance("X25519").generateKeyPair();
     }
 
-    // Diffie-Hellman Key Exchange Support
-    public static KeyPair generateDHKeyPair() throws Exception {
-        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DH");
-        keyGen.initialize(2048);
-        return keyGen.generateKeyPair();
+    public static PublicKey decodeX25519PublicKey(byte[] encoded) throws Exception {
+        return KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    public static PrivateKey decodeX25519PrivateKey(byte[] encoded) throws Exception {
+        return KeyFactory.getInstance("X25519").generatePrivate(new PKCS8EncodedKeySpec(encoded));
     }
 
-    public static SecretKey deriveSharedSecret(PrivateKey privateKey, byte[] otherPublicKeyBytes) throws Exception {
-        KeyFactory keyFactory = KeyFactory.getInstance("DH");
-        PublicKey otherPublicKey = keyFactory.generatePublic(new X509EncodedKeySpec(otherPublicKeyBytes));
+    // Raw 32-byte shared secret; feed it to hkdf, never use it as a key directly
+    public static byte[] x25519(PrivateKey privateKey, PublicKey publicKey) throws Exception {
+        KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+        agreement.init(privateKey);
+        agreement.doPhase(publicKey, true);
+        return agreement.generateSecret();
+    }
+
+    // HKDF-SHA256 (RFC 5869): extract with salt, then expand to length bytes bound to info
+    public static byte[] hkdf(byte[] salt, byte[] ikm, byte[] info, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt == null || salt.length == 0 ? new byte[32] : salt, "HmacSHA256"));
+        byte[] prk = mac.doFinal(ikm);
+
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        byte[] okm = new byte[length];
+        byte[] block = new byte[0];
+        int offset = 0;
+        for (int counter = 1; offset < length; counter++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            int n = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, okm, offset, n);
+            offset += n;
+        }
+        return okm;
+    }
 
-        KeyAgreement keyAgree = KeyAgreement.getInstance("DH");
-        keyAgree.init(privateKey);
-        keyAgree.doPhase(otherPublicKey, true);
+    // End-to-end DM keys: X25519 between two users' identity keys, bound to the pair of names so
+    // both ends derive the same key without another round trip
+    public static SecretKey deriveSharedSecret(PrivateKey privateKey, byte[] otherPublicKeyBytes, String userA,
+            String userB) throws Exception {
+        byte[] shared = x25519(privateKey, decodeX25519PublicKey(otherPublicKeyBytes));
+        String pair = userA.compareTo(userB) < 0 ? userA + "|" + userB : userB + "|" + userA;
+        byte[] info = ("securechat e2e v1 " + pair).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        return new SecretKeySpec(hkdf(null, shared, info, 32), "AES");
+    }
 
-        byte[] sharedSecret = keyAgree.generateSecret();
-        // Use SHA-256 to derive a 256-bit AES key from the secret
-        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-        byte[] keyBytes = sha256.digest(sharedSecret);
-        return new SecretKeySpec(keyBytes, "AES");
+    // Key for sealing local secrets under a password; deliberately slow (PBKDF2-HMAC-SHA256)
+    public static SecretKey deriveKeyFromPassword(String password, byte[] salt, int iterations)
+            throws GeneralSecurityException {
+        javax.crypto.SecretKeyFactory factory = javax.crypto.SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        byte[] key = factory.generateSecret(new javax.crypto.spec.PBEKeySpec(password.toCharArray(), salt,
+                iterations, AES_KEY_SIZE)).getEncoded();
+        return new SecretKeySpec(key, "AES");
     }
 }
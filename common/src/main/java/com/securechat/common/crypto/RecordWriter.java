@@ -0,0 +1,202 @@
+package com.securechat.common.crypto;
+
+import com.securechat.common.util.ProtocolUtil;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The send side of one connection. Small packets are queued and written by
+ * whichever sender finds no write in progress; everything queued while that
+ * write was on the socket goes out as a single BATCH record (one nonce, one
+ * tag) of up to BATCH_BYTES. Large packets are segmented (see
+ * SegmentedFrames) after anything queued before them, so per-thread order
+ * holds.
+ *
+ * Records are flushed when the queue runs empty, not per record: the stream
+ * is expected to buffer FLUSH_BYTES, so the records of one drain leave in a
+ * single socket write. Unflushed data is also flushed once it reaches
+ * FLUSH_BYTES or FLUSH_NANOS (checked on each send). While corked, packets are held until uncork()
+ * or those limits. An urgent packet is flushed as soon as it is written,
+ * together with everything before it, cork or not.
+ */
+public final class RecordWriter {
+
+    public static final int BATCH_BYTES = SegmentedFrames.MIN_SEGMENT;
+    public static final int FLUSH_BYTES = 64 * 1024;
+    public static final long FLUSH_NANOS = 2_000_000;
+
+    // Per record written: wire bytes (length prefix included) and encrypt time
+    public interface Listener {
+        void onRecord(int wireBytes, long encryptNanos);
+    }
+
+    public interface Encoding {
+        byte[] encode() throws IOException;
+    }
+
+    private final DataOutputStream out;
+    private final SessionCipher cipher;
+    private final Listener listener;
+    private final AtomicInteger nextMessageId = new AtomicInteger();
+
+    private final Object queueLock = new Object();
+    private List<byte[]> queued = new ArrayList<>(); // guarded by queueLock
+    private int queuedBytes; // guarded by queueLock
+    private long queuedSince; // guarded by queueLock
+    private boolean urgentQueued; // guarded by queueLock
+    private boolean draining; // guarded by queueLock
+    private boolean corked; // guarded by out
+    private int unflushedBytes; // guarded by out
+    private long unflushedSince; // guarded by out
+
+    public RecordWriter(DataOutputStream out, SessionCipher cipher, Listener listener) {
+        this.out = out;
+        this.cipher = cipher;
+        this.listener = listener;
+    }
+
+    public void send(byte[] packet) throws IOException, GeneralSecurityException {
+        send(packet, false);
+    }
+
+    public void send(byte[] packet, boolean urgent) throws IOException, GeneralSecurityException {
+        send(() -> packet, urgent);
+    }
+
+    // Encoded under the queue lock, so packets are queued in the order they were
+    // encoded (PacketCodec depends on it); packets too large for one record are segmented
+    public void send(Encoding encoding, boolean urgent) throws IOException, GeneralSecurityException {
+        byte[] packet;
+        synchronized (queueLock) {
+            packet = encoding.encode();
+            if (SegmentedFrames.fitsOneRecord(packet.length)) {
+                if (queued.isEmpty())
+                    queuedSince = System.nanoTime();
+                queued.add(packet);
+                queuedBytes += packet.length;
+                urgentQueued |= urgent;
+                if (draining)
+                    return; // The thread writing now will pick it up
+                draining = true;
+            }
+        }
+        if (SegmentedFrames.fitsOneRecord(packet.length))
+            drain();
+        else
+            sendSegmented(packet, urgent);
+    }
+
+    public void cork() {
+        synchronized (out) {
+            corked = true;
+        }
+    }
+
+    public void uncork() throws IOException, GeneralSecurityException {
+        synchronized (out) {
+            corked = false;
+            writeQueued(true, false);
+            flush();
+        }
+    }
+
+    // Writes batches until the queue is empty (or held by the cork), flushing at the end
+    private void drain() throws IOException, GeneralSecurityException {
+        boolean done = false;
+        try {
+            while (!done) {
+                synchronized (out) {
+                    done = !writeQueued(!corked, true);
+                    flushIfDue(done && !corked);
+                }
+            }
+        } finally {
+            if (!done) {
+                synchronized (queueLock) {
+                    draining = false;
+                }
+            }
+        }
+    }
+
+    // Caller holds out. Returns false if there was nothing to write now; for the
+    // draining thread that also ends the drain, in the same step as the check.
+    private boolean writeQueued(boolean all, boolean drainer) throws IOException, GeneralSecurityException {
+        List<byte[]> batch;
+        boolean urgent;
+        synchronized (queueLock) {
+            boolean due = all || urgentQueued || queuedBytes >= BATCH_BYTES
+                    || System.nanoTime() - queuedSince >= FLUSH_NANOS;
+            if (queued.isEmpty() || !due) {
+                if (drainer)
+                    draining = false;
+                return false;
+            }
+            batch = queued;
+            urgent = urgentQueued;
+            queued = new ArrayList<>();
+            queuedBytes = 0;
+            urgentQueued = false;
+        }
+        int from = 0;
+        while (from < batch.size()) {
+            int to = from;
+            int bytes = 0;
+            while (to < batch.size() && (to == from || bytes + 4 + batch.get(to).length <= BATCH_BYTES)) {
+                bytes += 4 + batch.get(to).length;
+                to++;
+            }
+            long start = System.nanoTime();
+            byte[] record = (to - from == 1) ? SegmentedFrames.encryptWhole(cipher, batch.get(from))
+                    : SegmentedFrames.encryptBatch(cipher, batch.subList(from, to), bytes);
+            write(record, start);
+            from = to;
+        }
+        if (urgent)
+            flush();
+        return true;
+    }
+
+    // One lock hold per segment, so other packets can go out between them
+    private void sendSegmented(byte[] packet, boolean urgent) throws IOException, GeneralSecurityException {
+        int id = nextMessageId.getAndIncrement();
+        int segment = SegmentedFrames.segmentSize(packet.length);
+        for (int offset = 0; offset < packet.length; offset += segment) {
+            synchronized (out) {
+                if (offset == 0)
+                    writeQueued(true, false); // Packets queued before this one go first
+                long start = System.nanoTime();
+                write(SegmentedFrames.encryptSegment(cipher, id, packet, offset, segment), start);
+                boolean last = offset + segment >= packet.length;
+                flushIfDue(last && (urgent || !corked));
+            }
+        }
+    }
+
+    private void write(byte[] record, long encryptStart) throws IOException {
+        long encryptNanos = System.nanoTime() - encryptStart;
+        ProtocolUtil.writeFrame(out, record);
+        if (unflushedBytes == 0)
+            unflushedSince = System.nanoTime();
+        unflushedBytes += 4 + record.length;
+        if (listener != null)
+            listener.onRecord(4 + record.length, encryptNanos);
+    }
+
+    // Caller holds out
+    private void flushIfDue(boolean now) throws IOException {
+        if (unflushedBytes > 0 && (now || unflushedBytes >= FLUSH_BYTES
+                || System.nanoTime() - unflushedSince >= FLUSH_NANOS))
+            flush();
+    }
+
+    private void flush() throws IOException {
+        out.flush();
+        unflushedBytes = 0;
+    }
+}
@@ -0,0 +1,252 @@
+package com.securechat.common.crypto;
+
+import com.securechat.common.util.BufferPool;
+import com.securechat.common.util.ProtocolUtil;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Carries whole serialized packets over SessionCipher records. A packet of
+ * up to MIN_SEGMENT bytes is one record; a larger one is split into
+ * segments, each its own record, sized to the message (about 16 records,
+ * 16 KB to 256 KB each). Every segment takes the write lock separately, so
+ * heartbeats, ACKs and small DMs interleave with a large transfer instead
+ * of waiting for all of it. The reader joins the segments back into the
+ * packet, so the application sees one packet however large. In the other
+ * direction RecordWriter packs small packets queued together into one BATCH
+ * record, which the reader hands back one packet per read().
+ *
+ * Record plaintext starts with a kind byte:
+ * WHOLE [0] packet; FIRST [1][int id][int total] data; NEXT [2][int id] data;
+ * BATCH [3] ([int length] packet)*.
+ *
+ * The static methods build records; an instance is one connection's
+ * receiving side (open assemblies, unread batch packets), not thread-safe.
+ * Records are read into buffers borrowed from a BufferPool and packets are
+ * returned as views of them, so small packets cost no allocation here.
+ * An assembly's buffer grows with the data that has arrived, never ahead of
+ * it, so an announced length costs nothing until the peer sends the bytes.
+ * Until setSegmentsAllowed(true) (a server: once the client is logged in)
+ * FIRST and NEXT records are refused.
+ */
+public final class SegmentedFrames {
+
+    public static final int MIN_SEGMENT = 16 * 1024;
+    public static final int MAX_SEGMENT = 256 * 1024;
+    public static final int MAX_MESSAGE_BYTES = 64 * 1024 * 1024;
+    private static final long MAX_OPEN_BYTES = 2L * MAX_MESSAGE_BYTES; // Per connection, as allocated
+    private static final int MAX_OPEN_MESSAGES = 256; // Per connection
+    // No valid record is larger (FIRST header + largest segment); longer length prefixes are rejected unread
+    public static final int MAX_RECORD_BYTES = SessionCipher.frameLength(9 + MAX_SEGMENT);
+
+    private static final byte WHOLE = 0;
+    private static final byte FIRST = 1;
+    private static final byte NEXT = 2;
+    private static final byte BATCH = 3;
+    private static final byte[] WHOLE_HEADER = { WHOLE };
+
+    private static class Assembly {
+        final int total;
+        byte[] message = new byte[0]; // Grown up to total as segments arrive
+        int filled;
+
+        Assembly(int total) {
+            this.total = total;
+        }
+    }
+
+    private final BufferPool pool;
+    private final Map<Integer, Assembly> open = new HashMap<>();
+    private long openBytes; // Allocated by open assemblies
+    private boolean segmentsAllowed = true;
+    private byte[] plaintext; // Borrowed: the record behind the packet last returned
+    private ByteBuffer batch; // Unread rest of a batch record, in plaintext
+    private int lastWireBytes;
+    private long lastDecryptNanos;
+
+    public SegmentedFrames() {
+        this(BufferPool.SHARED);
+    }
+
+    public SegmentedFrames(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    // False refuses segmented messages (FIRST and NEXT records); whole and batched packets still pass
+    public void setSegmentsAllowed(boolean segmentsAllowed) {
+        this.segmentsAllowed = segmentsAllowed;
+    }
+
+    // --- Sending ---
+
+    public static boolean fitsOneRecord(int length) {
+        return length <= MIN_SEGMENT;
+    }
+
+    // Bigger messages get bigger segments, keeping the record count (and per-record overhead) near 16
+    public static int segmentSize(int length) {
+        return Math.max(MIN_SEGMENT, Math.min(MAX_SEGMENT, Integer.highestOneBit(Math.max(1, length / 16))));
+    }
+
+    public static byte[] encryptWhole(SessionCipher cipher, byte[] message) throws GeneralSecurityException {
+        return cipher.encrypt(WHOLE_HEADER, message, 0, message.length);
+    }
+
+    // The record for the segment of message starting at offset
+    public static byte[] encryptSegment(SessionCipher cipher, int messageId, byte[] message, int offset,
+            int segmentSize) throws GeneralSecurityException {
+        ByteBuffer header = ByteBuffer.allocate(offset == 0 ? 9 : 5);
+        header.put(offset == 0 ? FIRST : NEXT).putInt(messageId);
+        if (offset == 0)
+            header.putInt(message.length);
+        return cipher.encrypt(header.array(), message, offset, Math.min(segmentSize, message.length - offset));
+    }
+
+    // packets hold `bytes` bytes including a 4-byte length prefix each
+    public static byte[] encryptBatch(SessionCipher cipher, List<byte[]> packets, int bytes)
+            throws GeneralSecurityException {
+        ByteBuffer body = ByteBuffer.allocate(bytes);
+        for (byte[] packet : packets) {
+            body.putInt(packet.length).put(packet);
+        }
+        return cipher.encrypt(new byte[] { BATCH }, body.array(), 0, bytes);
+    }
+
+    // --- Receiving ---
+
+    /**
+     * Reads records until a whole packet is available and returns it as a view
+     * that stays valid until the next call. Segments of other messages that
+     * arrive meanwhile are stored in their assemblies. Packets after the first
+     * of a batch are returned by the following calls without touching the
+     * stream.
+     */
+    public ByteBuffer next(DataInputStream in, SessionCipher cipher) throws IOException, GeneralSecurityException {
+        lastWireBytes = 0;
+        lastDecryptNanos = 0;
+        if (batch != null && batch.hasRemaining())
+            return nextInBatch();
+        batch = null;
+        pool.release(plaintext);
+        plaintext = null;
+        while (true) {
+            ByteBuffer frame = ProtocolUtil.readFrame(in, MAX_RECORD_BYTES, pool);
+            long start = System.nanoTime();
+            lastWireBytes += 4 + frame.remaining();
+            byte[] record = pool.acquire(frame.remaining());
+            ByteBuffer message = null;
+            try {
+                message = accept(record, cipher.decrypt(frame, ByteBuffer.wrap(record)));
+            } finally {
+                pool.release(frame.array());
+                if (message != null && message.array() == record)
+                    plaintext = record;
+                else
+                    pool.release(record);
+            }
+            lastDecryptNanos += System.nanoTime() - start;
+            if (message != null)
+                return message;
+        }
+    }
+
+    // The next packet as its own array, for callers that keep it
+    public byte[] read(DataInputStream in, SessionCipher cipher) throws IOException, GeneralSecurityException {
+        ByteBuffer packet = next(in, cipher);
+        byte[] copy = new byte[packet.remaining()];
+        packet.get(copy);
+        return copy;
+    }
+
+    // Wire bytes (length prefixes included) of the records behind the last packet read;
+    // a batch is counted against its first packet
+    public int getLastWireBytes() {
+        return lastWireBytes;
+    }
+
+    // Time spent decrypting and joining those records, excluding waits on the socket
+    public long getLastDecryptNanos() {
+        return lastDecryptNanos;
+    }
+
+    // A view of record for whole and batched packets, a completed assembly, or null
+    private ByteBuffer accept(byte[] record, int length) throws IOException {
+        if (length < 1)
+            throw new IOException("Empty record");
+        ByteBuffer buf = ByteBuffer.wrap(record, 0, length);
+        byte kind = buf.get();
+        if (kind == WHOLE) {
+            return ByteBuffer.wrap(record, 1, length - 1);
+        }
+        if (kind == BATCH) {
+            if (!buf.hasRemaining())
+                throw new IOException("Empty batch record");
+            for (int pos = 1; pos < length;) {
+                int size = length - pos >= 4 ? buf.getInt(pos) : -1;
+                if (size < 0 || size > length - pos - 4)
+                    throw new IOException("Malformed batch record");
+                pos += 4 + size;
+            }
+            batch = buf;
+            return nextInBatch();
+        }
+        if ((kind == FIRST || kind == NEXT) && !segmentsAllowed)
+            throw new IOException("Segmented message before authentication");
+        if (buf.remaining() < 4)
+            throw new IOException("Truncated segment header");
+        int id = buf.getInt();
+        Assembly a;
+        if (kind == FIRST) {
+            int total = buf.remaining() >= 4 ? buf.getInt() : -1;
+            if (total <= MIN_SEGMENT || total > MAX_MESSAGE_BYTES)
+                throw new IOException("Segmented message of " + total + " bytes out of range");
+            if (open.containsKey(id))
+                throw new IOException("Segmented message " + id + " started twice");
+            if (open.size() >= MAX_OPEN_MESSAGES)
+                throw new IOException("Too many segmented messages in flight");
+            a = new Assembly(total);
+            open.put(id, a);
+        } else if (kind == NEXT) {
+            a = open.get(id);
+            if (a == null)
+                throw new IOException("Segment for unknown message " + id);
+        } else {
+            throw new IOException("Unknown record kind " + kind);
+        }
+        int data = buf.remaining();
+        if (data > a.total - a.filled)
+            throw new IOException("Segmented message " + id + " overruns its length");
+        if (data > a.message.length - a.filled)
+            grow(a, a.filled + data);
+        buf.get(a.message, a.filled, data);
+        a.filled += data;
+        if (a.filled < a.total)
+            return null;
+        open.remove(id);
+        openBytes -= a.message.length;
+        return ByteBuffer.wrap(a.message);
+    }
+
+    // Doubling, capped at the announced length: the last growth lands on it exactly
+    private void grow(Assembly a, int needed) throws IOException {
+        int capacity = (int) Math.min(a.total, Math.max(needed, 2L * a.message.length));
+        if (openBytes + capacity - a.message.length > MAX_OPEN_BYTES)
+            throw new IOException("Too many segmented bytes in flight");
+        openBytes += capacity - a.message.length;
+        a.message = Arrays.copyOf(a.message, capacity);
+    }
+
+    private ByteBuffer nextInBatch() {
+        int size = batch.getInt();
+        ByteBuffer packet = ByteBuffer.wrap(batch.array(), batch.position(), size);
+        batch.position(batch.position() + size);
+        return packet;
+    }
+}
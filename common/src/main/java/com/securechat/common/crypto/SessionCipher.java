@@ -0,0 +1,177 @@
+package com.securechat.common.crypto;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+/**
+ * The negotiated AEAD (AES-256-GCM or ChaCha20-Poly1305, see CipherSuite)
+ * for one connection's packets. Each direction has its own key
+ * (HKDF of the session key) and a counter nonce: 4 bytes key generation, 8
+ * bytes message number. Nonces never repeat and need no random source. The
+ * receiver requires the exact next nonce, so replayed, reordered or dropped
+ * frames fail. After rekeyInterval messages a direction moves to the next key
+ * (HKDF of the current one); both ends do this at the same message.
+ *
+ * Frames are nonce || ciphertext || tag, the same layout as
+ * CryptoUtil.encryptAES. Cipher objects are reused. Not thread-safe: callers
+ * lock each direction, and the send lock must also cover the socket write so
+ * that frames go out in nonce order.
+ */
+public final class SessionCipher {
+
+    public static final int NONCE_LENGTH = 12;
+    public static final int TAG_LENGTH = 16;
+    // TLS 1.3 caps AES-GCM at 2^24.5 full-size records per key
+    public static final long DEFAULT_REKEY_INTERVAL = 1L << 24;
+
+    private static final byte[] CLIENT_TO_SERVER = "securechat c2s v1".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SERVER_TO_CLIENT = "securechat s2c v1".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] REKEY = "securechat rekey v1".getBytes(StandardCharsets.UTF_8);
+
+    private static final class Direction {
+        final CipherSuite suite;
+        final Cipher cipher;
+        final long rekeyInterval;
+        final byte[] nonce = new byte[NONCE_LENGTH];
+        SecretKeySpec key;
+        int generation;
+        long counter;
+
+        Direction(CipherSuite suite, byte[] key, long rekeyInterval) throws GeneralSecurityException {
+            this.suite = suite;
+            this.cipher = Cipher.getInstance(suite.getTransformation());
+            this.key = suite.key(key);
+            this.rekeyInterval = rekeyInterval;
+        }
+
+        // Writes the nonce for the current message into this.nonce and initialises the cipher with it
+        void init(int mode) throws GeneralSecurityException {
+            nonce[0] = (byte) (generation >>> 24);
+            nonce[1] = (byte) (generation >>> 16);
+            nonce[2] = (byte) (generation >>> 8);
+            nonce[3] = (byte) generation;
+            for (int i = 0; i < 8; i++) {
+                nonce[4 + i] = (byte) (counter >>> (56 - 8 * i));
+            }
+            cipher.init(mode, key, suite.parameters(nonce));
+        }
+
+        void advance() throws GeneralSecurityException {
+            if (++counter == rekeyInterval) {
+                key = suite.key(CryptoUtil.hkdf(null, key.getEncoded(), REKEY, 32));
+                generation++;
+                counter = 0;
+            }
+        }
+    }
+
+    private final CipherSuite suite;
+    private final Direction sending;
+    private final Direction receiving;
+
+    private SessionCipher(SecretKey sessionKey, CipherSuite suite, boolean client, long rekeyInterval)
+            throws GeneralSecurityException {
+        byte[] c2s = CryptoUtil.hkdf(null, sessionKey.getEncoded(), CLIENT_TO_SERVER, 32);
+        byte[] s2c = CryptoUtil.hkdf(null, sessionKey.getEncoded(), SERVER_TO_CLIENT, 32);
+        this.suite = suite;
+        this.sending = new Direction(suite, client ? c2s : s2c, rekeyInterval);
+        this.receiving = new Direction(suite, client ? s2c : c2s, rekeyInterval);
+    }
+
+    public static SessionCipher forClient(SecretKey sessionKey) throws GeneralSecurityException {
+        return forClient(sessionKey, CipherSuite.AES_256_GCM);
+    }
+
+    public static SessionCipher forServer(SecretKey sessionKey) throws GeneralSecurityException {
+        return forServer(sessionKey, CipherSuite.AES_256_GCM);
+    }
+
+    public static SessionCipher forClient(SecretKey sessionKey, CipherSuite suite) throws GeneralSecurityException {
+        return new SessionCipher(sessionKey, suite, true, DEFAULT_REKEY_INTERVAL);
+    }
+
+    public static SessionCipher forServer(SecretKey sessionKey, CipherSuite suite) throws GeneralSecurityException {
+        return new SessionCipher(sessionKey, suite, false, DEFAULT_REKEY_INTERVAL);
+    }
+
+    // Short intervals are only useful for exercising the rekey path
+    public static SessionCipher create(SecretKey sessionKey, CipherSuite suite, boolean client, long rekeyInterval)
+            throws GeneralSecurityException {
+        return new SessionCipher(sessionKey, suite, client, rekeyInterval);
+    }
+
+    public CipherSuite getSuite() {
+        return suite;
+    }
+
+    public static int frameLength(int plaintextLength) {
+        return NONCE_LENGTH + plaintextLength + TAG_LENGTH;
+    }
+
+    /**
+     * Encrypts the remaining bytes of plaintext into out as one frame.
+     * plaintext and out may be the same memory region shifted by
+     * NONCE_LENGTH; the JDK's GCM handles the overlap. Returns the frame length.
+     */
+    public int encrypt(ByteBuffer plaintext, ByteBuffer out) throws GeneralSecurityException {
+        Direction d = sending;
+        d.init(Cipher.ENCRYPT_MODE);
+        out.put(d.nonce);
+        int written = d.cipher.doFinal(plaintext, out);
+        d.advance();
+        return NONCE_LENGTH + written;
+    }
+
+    public byte[] encrypt(byte[] plaintext) throws GeneralSecurityException {
+        byte[] frame = new byte[frameLength(plaintext.length)];
+        encrypt(ByteBuffer.wrap(plaintext), ByteBuffer.wrap(frame));
+        return frame;
+    }
+
+    // One frame whose plaintext is header followed by data[offset, offset + length), without joining them first
+    public byte[] encrypt(byte[] header, byte[] data, int offset, int length) throws GeneralSecurityException {
+        Direction d = sending;
+        d.init(Cipher.ENCRYPT_MODE);
+        byte[] frame = new byte[frameLength(header.length + length)];
+        System.arraycopy(d.nonce, 0, frame, 0, NONCE_LENGTH);
+        int written = d.cipher.update(header, 0, header.length, frame, NONCE_LENGTH);
+        d.cipher.doFinal(data, offset, length, frame, NONCE_LENGTH + written);
+        d.advance();
+        return frame;
+    }
+
+    // Decrypts one frame (its remaining bytes) into out; returns the plaintext length
+    public int decrypt(ByteBuffer frame, ByteBuffer out) throws GeneralSecurityException {
+        Direction d = receiving;
+        d.init(Cipher.DECRYPT_MODE);
+        checkNonce(d, frame);
+        frame.position(frame.position() + NONCE_LENGTH);
+        int written = d.cipher.doFinal(frame, out);
+        d.advance();
+        return written;
+    }
+
+    public byte[] decrypt(byte[] frame) throws GeneralSecurityException {
+        Direction d = receiving;
+        d.init(Cipher.DECRYPT_MODE);
+        checkNonce(d, ByteBuffer.wrap(frame));
+        byte[] plaintext = d.cipher.doFinal(frame, NONCE_LENGTH, frame.length - NONCE_LENGTH);
+        d.advance();
+        return plaintext;
+    }
+
+    private static void checkNonce(Direction d, ByteBuffer frame) throws AEADBadTagException {
+        if (frame.remaining() < NONCE_LENGTH + TAG_LENGTH)
+            throw new AEADBadTagException("Frame too short");
+        int base = frame.position();
+        for (int i = 0; i < NONCE_LENGTH; i++) {
+            if (frame.get(base + i) != d.nonce[i])
+                throw new AEADBadTagException("Unexpected nonce: frame replayed, reordered or lost");
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package com.securechat.common.crypto;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.function.Consumer;
+
+/**
+ * Connection handshake: ephemeral X25519 key agreement authenticated by the
+ * server's long-term X25519 key. Client speaks first:
+ *
+ * ClientHello: int MAGIC, byte mode, [len][cipher offers][len][client ephemeral public key]
+ * ServerHello: [len][server static public key][len][server ephemeral public key], byte cipher suite
+ *
+ * Both sides compute ee = X25519(client eph, server eph) and
+ * es = X25519(client eph, server static). The session key is
+ * HKDF-SHA256(salt = SHA-256(transcript), ikm = ee || es). Only the holder of
+ * the static private key can derive es, so a client that pins the static key
+ * knows who it is talking to; ee gives forward secrecy.
+ *
+ * Every ClientHello starts with the client's CipherSuite offers (suites with
+ * its throughput scores) and every ServerHello ends with the suite the server
+ * picked for the session. Both are in the transcript, so a tampered offer
+ * yields different keys on each side and the connection fails.
+ *
+ * With the server key already pinned, MODE_FULL_EARLY adds 0-RTT early data
+ * (e.g. LOGIN) to the ClientHello, sealed under a key from es alone:
+ *
+ * ClientHello: int MAGIC, byte mode, [len][offers][len][client ephemeral][len][sealed early data]
+ * ServerHello: as above, then byte 1 if the early data was accepted, 0 if not
+ *
+ * Early data has no forward secrecy and can be replayed; it carries the
+ * client's clock and the server refuses it outside EARLY_DATA_WINDOW_MILLIS
+ * (servers should also drop repeats of the same client ephemeral).
+ *
+ * Resumption (MODE_RESUME) skips the key agreement. After login the server
+ * hands out a SessionTicket; both sides derive a resumption secret from the
+ * session key and the ticket nonce. On reconnect:
+ *
+ * ClientHello: int MAGIC, byte mode, [len][offers][len][ticket][len][client nonce][len][binder]
+ * ServerHello: byte 1, [len][server nonce], byte cipher suite   (or byte 0: declined, send a full ClientHello)
+ *
+ * The binder is an HMAC keyed from the resumption secret, proving the client
+ * holds it. The new session key is HKDF over the resumption secret and both
+ * nonces. Resumed sessions get no fresh forward secrecy; tickets are short
+ * lived and single use to bound that.
+ */
+public final class SessionHandshake {
+
+    public static final int MAGIC = 0x53435831; // "SCX1"
+    public static final byte MODE_FULL = 1;
+    public static final byte MODE_RESUME = 2;
+    public static final byte MODE_FULL_EARLY = 3;
+    public static final long EARLY_DATA_WINDOW_MILLIS = 60_000;
+
+    private static final byte[] SESSION_INFO = "securechat session v1".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RESUMPTION_INFO = "securechat resumption v1".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EARLY_DATA_INFO = "securechat early data v1".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BINDER_INFO = "securechat binder v1".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RESUMED_SESSION_INFO = "securechat resumed session v1".getBytes(StandardCharsets.UTF_8);
+    private static final int MAX_FIELD_BYTES = 512;
+    private static final int MAX_EARLY_DATA_BYTES = 16 * 1024;
+    private static final int NONCE_BYTES = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private SessionHandshake() {
+    }
+
+    public static final class ClientHello {
+        private final byte mode;
+        private final byte[] cipherOffers;
+        private final byte[] ephemeralPublic; // MODE_FULL, MODE_FULL_EARLY
+        private final byte[] sealedEarlyData; // MODE_FULL_EARLY
+        private final boolean earlyDataRefused;
+        private final byte[] ticket; // MODE_RESUME
+        private final byte[] clientNonce;
+        private final byte[] binder;
+
+        ClientHello(byte mode, byte[] cipherOffers, byte[] ephemeralPublic, byte[] sealedEarlyData,
+                boolean earlyDataRefused, byte[] ticket, byte[] clientNonce, byte[] binder) {
+            this.mode = mode;
+            this.cipherOffers = cipherOffers;
+            this.ephemeralPublic = ephemeralPublic;
+            this.sealedEarlyData = sealedEarlyData;
+            this.earlyDataRefused = earlyDataRefused;
+            this.ticket = ticket;
+            this.clientNonce = clientNonce;
+            this.binder = binder;
+        }
+
+        public byte getMode() {
+            return mode;
+        }
+
+        public byte[] getEphemeralPublic() {
+            return ephemeralPublic;
+        }
+
+        // Same hello, but respond() will not open the early data (e.g. a suspected replay)
+        public ClientHello refuseEarlyData() {
+            return new ClientHello(mode, cipherOffers, ephemeralPublic, sealedEarlyData, true, ticket, clientNonce,
+                    binder);
+        }
+
+        public byte[] getTicket() {
+            return ticket;
+        }
+    }
+
+    public static final class ServerReply {
+        private final byte[] hello;
+        private final SecretKey sessionKey;
+        private final CipherSuite cipherSuite;
+        private final byte[] earlyData;
+
+        ServerReply(byte[] hello, SecretKey sessionKey, CipherSuite cipherSuite, byte[] earlyData) {
+            this.hello = hello;
+            this.sessionKey = sessionKey;
+            this.cipherSuite = cipherSuite;
+            this.earlyData = earlyData;
+        }
+
+        public SecretKey getSessionKey() {
+            return sessionKey;
+        }
+
+        public CipherSuite getCipherSuite() {
+            return cipherSuite;
+        }
+
+        // Decrypted 0-RTT data, or null if there was none or it was refused
+        public byte[] getEarlyData() {
+            return earlyData;
+        }
+    }
+
+    public static final class ClientSession {
+        private final SecretKey sessionKey;
+        private final CipherSuite cipherSuite;
+        private final boolean earlyDataAccepted;
+
+        ClientSession(SecretKey sessionKey, CipherSuite cipherSuite, boolean earlyDataAccepted) {
+            this.sessionKey = sessionKey;
+            this.cipherSuite = cipherSuite;
+            this.earlyDataAccepted = earlyDataAccepted;
+        }
+
+        public SecretKey getSessionKey() {
+            return sessionKey;
+        }
+
+        public CipherSuite getCipherSuite() {
+            return cipherSuite;
+        }
+
+        // False means the server never saw the early data; send it again as ordinary packets
+        public boolean isEarlyDataAccepted() {
+            return earlyDataAccepted;
+        }
+    }
+
+    // --- Client side ---
+
+    /**
+     * Runs the whole client handshake. The verifier sees the server's static
+     * key before any key is derived and throws (e.g. SecurityException) to
+     * reject it.
+     */
+    public static ClientSession client(DataInputStream in, DataOutputStream out,
+            Consumer<PublicKey> serverKeyVerifier) throws Exception {
+        return client(in, out, serverKeyVerifier, null, null);
+    }
+
+    /**
+     * Full handshake that also carries earlyData in the ClientHello when the
+     * server's static key is already known (pinnedServerKey non-null), saving
+     * the round trip the early data would otherwise wait for.
+     */
+    public static ClientSession client(DataInputStream in, DataOutputStream out,
+            Consumer<PublicKey> serverKeyVerifier, PublicKey pinnedServerKey, byte[] earlyData) throws Exception {
+        KeyPair ephemeral = CryptoUtil.generateX25519KeyPair();
+        byte[] clientEphemeral = ephemeral.getPublic().getEncoded();
+        boolean early = pinnedServerKey != null && earlyData != null;
+        byte mode = early ? MODE_FULL_EARLY : MODE_FULL;
+        byte[] offers = CipherSuite.offers();
+        out.writeInt(MAGIC);
+        out.writeByte(mode);
+        writeBytes(out, offers);
+        writeBytes(out, clientEphemeral);
+        byte[] earlyEs = null;
+        byte[] sealedEarlyData = null;
+        if (early) {
+            earlyEs = CryptoUtil.x25519(ephemeral.getPrivate(), pinnedServerKey);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(earlyData.length + 8);
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeLong(System.currentTimeMillis());
+            dos.write(earlyData);
+            sealedEarlyData = CryptoUtil.encryptAES(bos.toByteArray(),
+                    earlyDataKey(earlyEs, clientEphemeral, pinnedServerKey.getEncoded()));
+            writeBytes(out, sealedEarlyData);
+        }
+        out.flush();
+
+        byte[] serverStatic = readBytes(in);
+        byte[] serverEphemeral = readBytes(in);
+        byte[] suiteId = { in.readByte() };
+        boolean earlyAccepted = early && in.readByte() == 1;
+        CipherSuite suite = CipherSuite.fromId(suiteId[0]);
+        CipherSuite.checkSelected(offers, suite);
+        PublicKey staticKey = CryptoUtil.decodeX25519PublicKey(serverStatic);
+        serverKeyVerifier.accept(staticKey);
+
+        byte[] ee = CryptoUtil.x25519(ephemeral.getPrivate(), CryptoUtil.decodeX25519PublicKey(serverEphemeral));
+        byte[] es = early && java.util.Arrays.equals(serverStatic, pinnedServerKey.getEncoded()) ? earlyEs
+                : CryptoUtil.x25519(ephemeral.getPrivate(), staticKey);
+        byte[] transcript = early
+                ? transcript(mode, offers, clientEphemeral, sealedEarlyData, serverStatic, serverEphemeral, suiteId)
+                : transcript(mode, offers, clientEphemeral, serverStatic, serverEphemeral, suiteId);
+        return new ClientSession(deriveSessionKey(ee, es, transcript), suite, earlyAccepted);
+    }
+
+    /**
+     * Offers a ticket from an earlier session. Returns the new session, or
+     * null if the server declined; the caller then continues with client()
+     * on the same streams. The cipher suite is negotiated afresh.
+     */
+    public static ClientSession resume(DataInputStream in, DataOutputStream out, byte[] ticket,
+            byte[] resumptionSecret) throws Exception {
+        byte[] clientNonce = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(clientNonce);
+        byte[] offers = CipherSuite.offers();
+        out.writeInt(MAGIC);
+        out.writeByte(MODE_RESUME);
+        writeBytes(out, offers);
+        writeBytes(out, ticket);
+        writeBytes(out, clientNonce);
+        writeBytes(out, binder(resumptionSecret, offers, ticket, clientNonce));
+        out.flush();
+
+        if (in.readByte() != 1)
+            return null;
+        byte[] serverNonce = readBytes(in);
+        byte[] suiteId = { in.readByte() };
+        CipherSuite suite = CipherSuite.fromId(suiteId[0]);
+        CipherSuite.checkSelected(offers, suite);
+        SecretKey key = deriveResumedKey(resumptionSecret,
+                transcript(MODE_RESUME, offers, ticket, clientNonce, serverNonce, suiteId));
+        return new ClientSession(key, suite, false);
+    }
+
+    // Both sides derive the secret a ticket stands for from the session it was issued on
+    public static byte[] resumptionSecret(SecretKey sessionKey, byte[] ticketNonce) throws Exception {
+        return CryptoUtil.hkdf(ticketNonce, sessionKey.getEncoded(), RESUMPTION_INFO, 32);
+    }
+
+    // --- Server side: read on the connection thread, compute on the handshake pool, write back ---
+
+    public static ClientHello readClientHello(DataInputStream in) throws IOException {
+        int magic = in.readInt();
+        if (magic != MAGIC)
+            throw new IOException("Not a SecureChat handshake (magic " + Integer.toHexString(magic) + ")");
+        byte mode = in.readByte();
+        if (mode != MODE_FULL && mode != MODE_FULL_EARLY && mode != MODE_RESUME)
+            throw new IOException("Unsupported handshake mode " + mode);
+        byte[] offers = readBytes(in);
+        if (mode == MODE_FULL)
+            return new ClientHello(mode, offers, readBytes(in), null, false, null, null, null);
+        if (mode == MODE_FULL_EARLY)
+            return new ClientHello(mode, offers, readBytes(in), readBytes(in, MAX_EARLY_DATA_BYTES), false, null, null,
+                    null);
+        return new ClientHello(mode, offers, null, null, false, readBytes(in), readBytes(in), readBytes(in));
+    }
+
+    public static ServerReply respond(ClientHello hello, KeyPair staticKey) throws Exception {
+        return respond(hello, staticKey, CryptoUtil.generateX25519KeyPair());
+    }
+
+    // Caller-supplied server ephemeral, so a server may reuse one for a short window
+    public static ServerReply respond(ClientHello hello, KeyPair staticKey, KeyPair ephemeral) throws Exception {
+        CipherSuite suite = CipherSuite.select(hello.cipherOffers);
+        byte[] suiteId = { suite.getId() };
+        PublicKey clientEphemeral = CryptoUtil.decodeX25519PublicKey(hello.ephemeralPublic);
+        byte[] serverStatic = staticKey.getPublic().getEncoded();
+        byte[] serverEphemeral = ephemeral.getPublic().getEncoded();
+
+        byte[] ee = CryptoUtil.x25519(ephemeral.getPrivate(), clientEphemeral);
+        byte[] es = CryptoUtil.x25519(staticKey.getPrivate(), clientEphemeral);
+        boolean early = hello.mode == MODE_FULL_EARLY;
+        SecretKey key = deriveSessionKey(ee, es, early
+                ? transcript(hello.mode, hello.cipherOffers, hello.ephemeralPublic, hello.sealedEarlyData, serverStatic,
+                        serverEphemeral, suiteId)
+                : transcript(hello.mode, hello.cipherOffers, hello.ephemeralPublic, serverStatic, serverEphemeral,
+                        suiteId));
+        byte[] earlyData = early && !hello.earlyDataRefused ? openEarlyData(hello, es, serverStatic) : null;
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeBytes(dos, serverStatic);
+        writeBytes(dos, serverEphemeral);
+        dos.writeByte(suite.getId());
+        if (early)
+            dos.writeByte(earlyData != null ? 1 : 0);
+        return new ServerReply(bos.toByteArray(), key, suite, earlyData);
+    }
+
+    // Null if the client sealed it for another server key, or its clock stamp is outside the window
+    private static byte[] openEarlyData(ClientHello hello, byte[] es, byte[] serverStatic) {
+        try {
+            byte[] plain = CryptoUtil.decryptAES(hello.sealedEarlyData,
+                    earlyDataKey(es, hello.ephemeralPublic, serverStatic));
+            DataInputStream dis = new DataInputStream(new java.io.ByteArrayInputStream(plain));
+            long sentAt = dis.readLong();
+            if (Math.abs(System.currentTimeMillis() - sentAt) > EARLY_DATA_WINDOW_MILLIS)
+                return null;
+            return dis.readAllBytes();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // Constant-time check that the client holds the resumption secret for its ticket
+    public static boolean verifyBinder(ClientHello hello, byte[] resumptionSecret) throws Exception {
+        return MessageDigest.isEqual(hello.binder, binder(resumptionSecret, hello.cipherOffers, hello.ticket,
+                hello.clientNonce));
+    }
+
+    // Only call once verifyBinder has passed
+    public static ServerReply resume(ClientHello hello, byte[] resumptionSecret) throws Exception {
+        CipherSuite suite = CipherSuite.select(hello.cipherOffers);
+        byte[] suiteId = { suite.getId() };
+        byte[] serverNonce = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(serverNonce);
+        SecretKey key = deriveResumedKey(resumptionSecret,
+                transcript(MODE_RESUME, hello.cipherOffers, hello.ticket, hello.clientNonce, serverNonce, suiteId));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(1);
+        writeBytes(dos, serverNonce);
+        dos.writeByte(suite.getId());
+        return new ServerReply(bos.toByteArray(), key, suite, null);
+    }
+
+    public static void writeResumeDeclined(DataOutputStream out) throws IOException {
+        out.writeByte(0);
+        out.flush();
+    }
+
+    // Not flushed, so the first encrypted responses can follow in the same segment
+    public static void writeServerHello(DataOutputStream out, ServerReply reply) throws IOException {
+        out.write(reply.hello);
+    }
+
+    // --- Key schedule ---
+
+    // Short, stable identifier for showing and comparing server keys
+    public static String fingerprint(PublicKey key) throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getEncoded());
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            if (i > 0)
+                sb.append(':');
+            sb.append(String.format("%02x", digest[i]));
+        }
+        return sb.toString();
+    }
+
+    private static SecretKey deriveSessionKey(byte[] ee, byte[] es, byte[] transcriptHash) throws Exception {
+        byte[] ikm = new byte[ee.length + es.length];
+        System.arraycopy(ee, 0, ikm, 0, ee.length);
+        System.arraycopy(es, 0, ikm, ee.length, es.length);
+        return new SecretKeySpec(CryptoUtil.hkdf(transcriptHash, ikm, SESSION_INFO, 32), "AES");
+    }
+
+    private static SecretKey earlyDataKey(byte[] es, byte[] clientEphemeral, byte[] serverStatic) throws Exception {
+        return new SecretKeySpec(CryptoUtil.hkdf(transcript(MODE_FULL_EARLY, clientEphemeral, serverStatic), es,
+                EARLY_DATA_INFO, 32), "AES");
+    }
+
+    private static SecretKey deriveResumedKey(byte[] resumptionSecret, byte[] transcriptHash) throws Exception {
+        return new SecretKeySpec(CryptoUtil.hkdf(transcriptHash, resumptionSecret, RESUMED_SESSION_INFO, 32), "AES");
+    }
+
+    private static byte[] binder(byte[] resumptionSecret, byte[] offers, byte[] ticket, byte[] clientNonce)
+            throws Exception {
+        byte[] binderKey = CryptoUtil.hkdf(null, resumptionSecret, BINDER_INFO, 32);
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(binderKey, "HmacSHA256"));
+        return mac.doFinal(transcript(MODE_RESUME, offers, ticket, clientNonce));
+    }
+
+    private static byte[] transcript(byte mode, byte[]... parts) throws Exception {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        sha256.update(new byte[] { (byte) (MAGIC >>> 24), (byte) (MAGIC >>> 16), (byte) (MAGIC >>> 8), (byte) MAGIC,
+                mode });
+        for (byte[] part : parts) {
+            sha256.update(part);
+        }
+        return sha256.digest();
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        return readBytes(in, MAX_FIELD_BYTES);
+    }
+
+    private static byte[] readBytes(DataInputStream in, int max) throws IOException {
+        int len = in.readUnsignedShort();
+        if (len == 0 || len > max)
+            throw new IOException("Invalid handshake field length: " + len);
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,58 @@
+package com.securechat.common.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Payload of a SESSION_TICKET packet: the opaque ticket (encrypted by the
+ * server, unreadable to the client), the nonce both sides feed into
+ * SessionHandshake.resumptionSecret, and how long the server will honour it.
+ */
+public final class SessionTicket {
+
+    private final byte[] ticket;
+    private final byte[] nonce;
+    private final int lifetimeSeconds;
+
+    public SessionTicket(byte[] ticket, byte[] nonce, int lifetimeSeconds) {
+        this.ticket = ticket;
+        this.nonce = nonce;
+        this.lifetimeSeconds = lifetimeSeconds;
+    }
+
+    public byte[] getTicket() {
+        return ticket;
+    }
+
+    public byte[] getNonce() {
+        return nonce;
+    }
+
+    public int getLifetimeSeconds() {
+        return lifetimeSeconds;
+    }
+
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(ticket.length + nonce.length + 8);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(lifetimeSeconds);
+        dos.writeShort(nonce.length);
+        dos.write(nonce);
+        dos.writeShort(ticket.length);
+        dos.write(ticket);
+        return bos.toByteArray();
+    }
+
+    public static SessionTicket fromBytes(byte[] bytes) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+        int lifetimeSeconds = dis.readInt();
+        byte[] nonce = new byte[dis.readUnsignedShort()];
+        dis.readFully(nonce);
+        byte[] ticket = new byte[dis.readUnsignedShort()];
+        dis.readFully(ticket);
+        return new SessionTicket(ticket, nonce, lifetimeSeconds);
+    }
+}
@@ -13,6 +13,12 @@ public class Packet implements Serializable {
     private String group; // For Group Chat
     private String transactionId; // Unique ID to link chunks of the same message/file
     private long sequenceNumber; // For stable ordering in PriorityQueue
+    private transient long enqueuedAtNanos; // Server-local: when it entered the dispatch queue (not sent)
+    // Server-local: sender, receiver, group and fileId as Symbols, 0 if not resolved (not sent)
+    private transient int senderSymbol;
+    private transient int receiverSymbol;
+    private transient int groupSymbol;
+    private transient int fileSymbol;
 
     // File Metadata (Optional/Contextual)
     private String fileId;
@@ -21,6 +27,10 @@ public class Packet implements Serializable {
     private int chunkIndex;
     private int totalChunks;
 
+    // Chunk Integrity (Merkle root on FILE_INIT/FILE_COMPLETE, sibling path on FILE_CHUNK)
+    private byte[] merkleRoot;
+    private byte[] chunkProof;
+
     // Payload
     private byte[] payload; // Encrypted data or raw content depending on stage
 
@@ -54,6 +64,7 @@ public class Packet implements Serializable {
 
     public void setSender(String sender) {
         this.sender = sender;
+        this.senderSymbol = 0;
     }
 
     public String getReceiver() {
@@ -62,6 +73,7 @@ public class Packet implements Serializable {
 
     public void setReceiver(String receiver) {
         this.receiver = receiver;
+        this.receiverSymbol = 0;
     }
 
     public String getGroup() {
@@ -70,6 +82,7 @@ public class Packet implements Serializable {
 
     public void setGroup(String group) {
         this.group = group;
+        this.groupSymbol = 0;
     }
 
     public String getTransactionId() {
@@ -80,6 +93,46 @@ public class Packet implements Serializable {
         this.transactionId = transactionId;
     }
 
+    public long getEnqueuedAtNanos() {
+        return enqueuedAtNanos;
+    }
+
+    public void setEnqueuedAtNanos(long enqueuedAtNanos) {
+        this.enqueuedAtNanos = enqueuedAtNanos;
+    }
+
+    public int getSenderSymbol() {
+        return senderSymbol;
+    }
+
+    public void setSenderSymbol(int senderSymbol) {
+        this.senderSymbol = senderSymbol;
+    }
+
+    public int getReceiverSymbol() {
+        return receiverSymbol;
+    }
+
+    public void setReceiverSymbol(int receiverSymbol) {
+        this.receiverSymbol = receiverSymbol;
+    }
+
+    public int getGroupSymbol() {
+        return groupSymbol;
+    }
+
+    public void setGroupSymbol(int groupSymbol) {
+        this.groupSymbol = groupSymbol;
+    }
+
+    public int getFileSymbol() {
+        return fileSymbol;
+    }
+
+    public void setFileSymbol(int fileSymbol) {
+        this.fileSymbol = fileSymbol;
+    }
+
     public long getSequenceNumber() {
         return sequenceNumber;
     }
@@ -94,6 +147,7 @@ public class Packet implements Serializable {
 
     public void setFileId(String fileId) {
         this.fileId = fileId;
+        this.fileSymbol = 0;
     }
 
     public String getFileName() {
@@ -128,6 +182,22 @@ public class Packet implements Serializable {
         this.totalChunks = totalChunks;
     }
 
+    public byte[] getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    public void setMerkleRoot(byte[] merkleRoot) {
+        this.merkleRoot = merkleRoot;
+    }
+
+    public byte[] getChunkProof() {
+        return chunkProof;
+    }
+
+    public void setChunkProof(byte[] chunkProof) {
+        this.chunkProof = chunkProof;
+    }
+
     public byte[] getPayload() {
         return payload;
     }
@@ -0,0 +1,394 @@
+package com.securechat.common.protocol;
+
+import com.securechat.common.crypto.SegmentedFrames;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The wire format of a Packet: type, priority, a bitmask of the fields that
+ * are set, then those fields as varints, length-prefixed bytes and UTF-8.
+ *
+ * Names (sender, receiver, group) and IDs (transaction, file) are symbols:
+ * the first time a session sends one it binds it to a slot, later packets
+ * send just the slot number. Each direction has a table per kind (NAME_SLOTS
+ * names, ID_SLOTS IDs) whose slots are reused round-robin once full, so both
+ * ends stay in step without acknowledgements as long as packets are decoded
+ * in the order they were encoded (see RecordWriter.send(Encoding, boolean)).
+ * Packets too large for one record are segmented and may be overtaken, so
+ * they carry their strings literally and leave the tables alone, as does
+ * early data, which the server may ignore.
+ *
+ * A symbol is a varint tag: 0 = literal string follows, 2n+1 = slot n,
+ * 2n+2 = bind slot n to the string that follows.
+ *
+ * One instance per connection, not thread-safe: encode is called in send
+ * order, decode on the reading thread. On the server, decode also resolves
+ * names and file IDs to Symbols numbers, once per slot.
+ */
+public final class PacketCodec {
+
+    public static final int NAME_SLOTS = 1024;
+    public static final int ID_SLOTS = 256;
+    private static final int MAX_SYMBOLIC_BYTES = SegmentedFrames.MIN_SEGMENT;
+
+    private static final int SENDER = 1;
+    private static final int RECEIVER = 1 << 1;
+    private static final int GROUP = 1 << 2;
+    private static final int TRANSACTION_ID = 1 << 3;
+    private static final int FILE_ID = 1 << 4;
+    private static final int FILE_NAME = 1 << 5;
+    private static final int FILE_SIZE = 1 << 6;
+    private static final int CHUNK_INDEX = 1 << 7;
+    private static final int TOTAL_CHUNKS = 1 << 8;
+    private static final int MERKLE_ROOT = 1 << 9;
+    private static final int CHUNK_PROOF = 1 << 10;
+    private static final int PAYLOAD = 1 << 11;
+
+    private static final PacketType[] TYPES = PacketType.values();
+
+    // One kind of symbol, sending side. Slots grow to capacity, then wrap.
+    private static final class SlotWriter {
+        final int capacity;
+        final Map<String, Integer> index = new HashMap<>();
+        String[] slots = new String[16];
+        int next;
+
+        SlotWriter(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+
+    // One kind of symbol, receiving side, with each slot's Symbols number once looked up
+    private static final class SlotReader {
+        final int capacity;
+        String[] slots = new String[16];
+        int[] symbols = new int[16];
+
+        SlotReader(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+
+    // A binding made by the packet being encoded, undone if it has to go out literally
+    private static final class Binding {
+        final SlotWriter table;
+        final int slot;
+        final String previous;
+        final int previousNext;
+
+        Binding(SlotWriter table, int slot, String previous, int previousNext) {
+            this.table = table;
+            this.slot = slot;
+            this.previous = previous;
+            this.previousNext = previousNext;
+        }
+    }
+
+    private final Symbols symbols;
+    private final SlotWriter namesOut = new SlotWriter(NAME_SLOTS);
+    private final SlotWriter idsOut = new SlotWriter(ID_SLOTS);
+    private final SlotReader namesIn = new SlotReader(NAME_SLOTS);
+    private final SlotReader idsIn = new SlotReader(ID_SLOTS);
+    private final List<Binding> bindings = new ArrayList<>();
+    private int lastSlot; // Slot of the symbol just read, -1 if literal
+
+    public PacketCodec() {
+        this(null);
+    }
+
+    // With symbols, decoded packets carry the Symbols numbers of their names and file ID
+    public PacketCodec(Symbols symbols) {
+        this.symbols = symbols;
+    }
+
+    // --- Encoding ---
+
+    public byte[] encode(Packet packet) {
+        if (length(packet.getPayload()) + length(packet.getChunkProof()) <= MAX_SYMBOLIC_BYTES / 2) {
+            bindings.clear();
+            byte[] symbolic = write(packet, this);
+            if (symbolic.length <= MAX_SYMBOLIC_BYTES)
+                return symbolic;
+            for (int i = bindings.size() - 1; i >= 0; i--) {
+                unbind(bindings.get(i));
+            }
+        }
+        return write(packet, null);
+    }
+
+    // For packets outside the session's order
+    public static byte[] encodeLiteral(Packet packet) {
+        return write(packet, null);
+    }
+
+    private static byte[] write(Packet p, PacketCodec codec) {
+        Out out = new Out(64 + length(p.getPayload()) + length(p.getChunkProof()) + length(p.getMerkleRoot()));
+        int flags = (p.getSender() != null ? SENDER : 0)
+                | (p.getReceiver() != null ? RECEIVER : 0)
+                | (p.getGroup() != null ? GROUP : 0)
+                | (p.getTransactionId() != null ? TRANSACTION_ID : 0)
+                | (p.getFileId() != null ? FILE_ID : 0)
+                | (p.getFileName() != null ? FILE_NAME : 0)
+                | (p.getFileSize() != 0 ? FILE_SIZE : 0)
+                | (p.getChunkIndex() != 0 ? CHUNK_INDEX : 0)
+                | (p.getTotalChunks() != 1 ? TOTAL_CHUNKS : 0)
+                | (p.getMerkleRoot() != null ? MERKLE_ROOT : 0)
+                | (p.getChunkProof() != null ? CHUNK_PROOF : 0)
+                | (p.getPayload() != null ? PAYLOAD : 0);
+        out.put(p.getType().ordinal());
+        out.put(p.getPriority());
+        out.varint(flags);
+        if ((flags & SENDER) != 0)
+            writeSymbol(out, codec, codec == null ? null : codec.namesOut, p.getSender());
+        if ((flags & RECEIVER) != 0)
+            writeSymbol(out, codec, codec == null ? null : codec.namesOut, p.getReceiver());
+        if ((flags & GROUP) != 0)
+            writeSymbol(out, codec, codec == null ? null : codec.namesOut, p.getGroup());
+        if ((flags & TRANSACTION_ID) != 0)
+            writeSymbol(out, codec, codec == null ? null : codec.idsOut, p.getTransactionId());
+        if ((flags & FILE_ID) != 0)
+            writeSymbol(out, codec, codec == null ? null : codec.idsOut, p.getFileId());
+        if ((flags & FILE_NAME) != 0)
+            out.string(p.getFileName());
+        if ((flags & FILE_SIZE) != 0)
+            out.varint(zigzag(p.getFileSize()));
+        if ((flags & CHUNK_INDEX) != 0)
+            out.varint(zigzag(p.getChunkIndex()));
+        if ((flags & TOTAL_CHUNKS) != 0)
+            out.varint(zigzag(p.getTotalChunks()));
+        if ((flags & MERKLE_ROOT) != 0)
+            out.bytes(p.getMerkleRoot());
+        if ((flags & CHUNK_PROOF) != 0)
+            out.bytes(p.getChunkProof());
+        if ((flags & PAYLOAD) != 0)
+            out.bytes(p.getPayload());
+        return out.toArray();
+    }
+
+    private static void writeSymbol(Out out, PacketCodec codec, SlotWriter table, String value) {
+        if (codec == null) {
+            out.varint(0);
+            out.string(value);
+            return;
+        }
+        Integer bound = table.index.get(value);
+        if (bound != null) {
+            out.varint(2L * bound + 1);
+            return;
+        }
+        int slot = table.next;
+        if (slot == table.slots.length) {
+            if (table.slots.length < table.capacity)
+                table.slots = Arrays.copyOf(table.slots, Math.min(table.capacity, 2 * table.slots.length));
+            else
+                slot = 0;
+        }
+        String previous = table.slots[slot];
+        codec.bindings.add(new Binding(table, slot, previous, table.next));
+        if (previous != null)
+            table.index.remove(previous);
+        table.slots[slot] = value;
+        table.index.put(value, slot);
+        table.next = slot + 1;
+        out.varint(2L * slot + 2);
+        out.string(value);
+    }
+
+    private static void unbind(Binding b) {
+        b.table.index.remove(b.table.slots[b.slot]);
+        b.table.slots[b.slot] = b.previous;
+        if (b.previous != null)
+            b.table.index.put(b.previous, b.slot);
+        b.table.next = b.previousNext;
+    }
+
+    // --- Decoding ---
+
+    // Reads one packet from the remaining bytes of in
+    public Packet decode(ByteBuffer in) throws IOException {
+        try {
+            int type = in.get() & 0xFF;
+            if (type >= TYPES.length)
+                throw new IOException("Unknown packet type " + type);
+            Packet packet = new Packet(TYPES[type], in.get());
+            int flags = (int) readVarint(in);
+            if ((flags & SENDER) != 0) {
+                packet.setSender(readSymbol(in, namesIn));
+                packet.setSenderSymbol(resolve(namesIn, packet.getSender()));
+            }
+            if ((flags & RECEIVER) != 0) {
+                packet.setReceiver(readSymbol(in, namesIn));
+                packet.setReceiverSymbol(resolve(namesIn, packet.getReceiver()));
+            }
+            if ((flags & GROUP) != 0) {
+                packet.setGroup(readSymbol(in, namesIn));
+                packet.setGroupSymbol(resolve(namesIn, packet.getGroup()));
+            }
+            if ((flags & TRANSACTION_ID) != 0)
+                packet.setTransactionId(readSymbol(in, idsIn));
+            if ((flags & FILE_ID) != 0) {
+                packet.setFileId(readSymbol(in, idsIn));
+                packet.setFileSymbol(resolve(idsIn, packet.getFileId()));
+            }
+            if ((flags & FILE_NAME) != 0)
+                packet.setFileName(readString(in));
+            if ((flags & FILE_SIZE) != 0)
+                packet.setFileSize(unzigzag(readVarint(in)));
+            if ((flags & CHUNK_INDEX) != 0)
+                packet.setChunkIndex((int) unzigzag(readVarint(in)));
+            if ((flags & TOTAL_CHUNKS) != 0)
+                packet.setTotalChunks((int) unzigzag(readVarint(in)));
+            if ((flags & MERKLE_ROOT) != 0)
+                packet.setMerkleRoot(readBytes(in));
+            if ((flags & CHUNK_PROOF) != 0)
+                packet.setChunkProof(readBytes(in));
+            if ((flags & PAYLOAD) != 0)
+                packet.setPayload(readBytes(in));
+            if (in.hasRemaining())
+                throw new IOException(in.remaining() + " bytes after " + packet.getType() + " packet");
+            return packet;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated packet");
+        }
+    }
+
+    private String readSymbol(ByteBuffer in, SlotReader table) throws IOException {
+        long tag = readVarint(in);
+        if (tag == 0) {
+            lastSlot = -1;
+            return readString(in);
+        }
+        long slot = (tag - 1) >>> 1;
+        if (slot >= table.capacity)
+            throw new IOException("Symbol slot " + slot + " out of range");
+        lastSlot = (int) slot;
+        if ((tag & 1) == 0) {
+            if (lastSlot >= table.slots.length) {
+                int size = Math.min(table.capacity, Math.max(lastSlot + 1, 2 * table.slots.length));
+                table.slots = Arrays.copyOf(table.slots, size);
+                table.symbols = Arrays.copyOf(table.symbols, size);
+            }
+            table.slots[lastSlot] = readString(in);
+            table.symbols[lastSlot] = 0;
+        } else if (lastSlot >= table.slots.length || table.slots[lastSlot] == null) {
+            throw new IOException("Unbound symbol slot " + slot);
+        }
+        return table.slots[lastSlot];
+    }
+
+    // The Symbols number of the symbol just read; lookups that find nothing are retried next time
+    private int resolve(SlotReader table, String value) {
+        if (symbols == null)
+            return 0;
+        if (lastSlot < 0)
+            return symbols.find(value);
+        int symbol = table.symbols[lastSlot];
+        if (symbol == 0) {
+            symbol = symbols.find(value);
+            table.symbols[lastSlot] = symbol;
+        }
+        return symbol;
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = readLength(in);
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    private static byte[] readBytes(ByteBuffer in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static int readLength(ByteBuffer in) throws IOException {
+        long length = readVarint(in);
+        if (length > in.remaining())
+            throw new IOException("Field of " + length + " bytes overruns the packet");
+        return (int) length;
+    }
+
+    private static long readVarint(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    // Growable output, sized up front for the byte fields
+    private static final class Out {
+        byte[] buf;
+        int pos;
+
+        Out(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void ensure(int n) {
+            if (pos + n > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(2 * buf.length, pos + n));
+        }
+
+        void put(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void varint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        void bytes(byte[] bytes) {
+            varint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void string(String value) {
+            bytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        byte[] toArray() {
+            return pos == buf.length ? buf : Arrays.copyOf(buf, pos);
+        }
+    }
+}
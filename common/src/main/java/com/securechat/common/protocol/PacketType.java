@@ -21,6 +21,7 @@ public enum PacketType {
     FILE_RESP, // Permission Granted
     FILE_CHUNK,
     CHUNK_ACK,
+    CHUNK_NACK, // Chunk failed Merkle verification (index >= 0) or repair request with leaf hashes (index -1)
     FILE_COMPLETE,
 
     // Resume Support
@@ -35,5 +36,20 @@ public enum PacketType {
     USER_LIST_UPDATE,
     USER_LIST_QUERY,
     GROUP_LIST_QUERY,
-    KEY_EXCHANGE
+    KEY_EXCHANGE,
+
+    // Session resumption: server -> client after login, redeemed in the next handshake
+    SESSION_TICKET,
+
+    // E2EE prekeys: client -> server publishes its identity key; server -> client answers a query
+    PREKEY_PUBLISH,
+    PREKEY_QUERY, // receiver = the user whose prekey is wanted
+
+    // Presence: server -> client changes since the USER_LIST snapshot (see Presence)
+    PRESENCE_DELTA;
+
+    // Flushed as soon as written, even from a corked writer: the peer times or waits on these
+    public boolean isUrgent() {
+        return this == HEARTBEAT || this == DM_ACK || this == CHUNK_ACK || this == CHUNK_NACK;
+    }
 }
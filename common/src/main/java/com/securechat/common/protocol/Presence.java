@@ -0,0 +1,169 @@
+package com.securechat.common.protocol;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Who is online and with what status, as a versioned change log. Every
+ * change (a user added, removed, or changing status) is the next version.
+ * The server keeps the last LOG_SIZE changes, so a client that missed some
+ * can be sent just those; a longer gap gets a snapshot. Clients load a
+ * snapshot once, then apply deltas strictly in version order and report a
+ * gap instead of guessing.
+ *
+ * Payloads (UTF-8): snapshot (USER_LIST) "version|user:status|...", where
+ * version is the last change included; delta (PRESENCE_DELTA)
+ * "version|+user:status|-user|~user:status|...", where version is that of
+ * the first change and each further change is the next one. Names may not
+ * contain '|', ':' or line breaks and statuses not '|' or line breaks (see
+ * isValidName/isValidStatus); set() refuses them rather than let one change
+ * parse as several.
+ *
+ * Thread-safe.
+ */
+public final class Presence {
+
+    public static final int LOG_SIZE = 1024;
+
+    private final Map<String, String> statuses = new LinkedHashMap<>();
+    private final String[] log = new String[LOG_SIZE]; // Change n at n % LOG_SIZE (server side)
+    private long version; // Last change applied; -1 on a client until its first snapshot
+    private long logged; // Changes held in the log
+
+    public Presence() {
+    }
+
+    // A client's view, empty until loadSnapshot()
+    public static Presence unsynced() {
+        Presence p = new Presence();
+        p.version = -1;
+        return p;
+    }
+
+    // --- Server side: recording changes ---
+
+    public static boolean isValidName(String user) {
+        return user != null && !user.isEmpty() && user.chars().noneMatch(c -> c == '|' || c == ':' || c == '\n'
+                || c == '\r');
+    }
+
+    public static boolean isValidStatus(String status) {
+        return status != null && !status.isEmpty() && status.chars().noneMatch(c -> c == '|' || c == '\n'
+                || c == '\r');
+    }
+
+    // The delta payload for this change, null if the user already had this status
+    public synchronized String set(String user, String status) {
+        if (!isValidName(user) || !isValidStatus(status))
+            throw new IllegalArgumentException("Name or status not allowed in presence: " + user + ":" + status);
+        String previous = statuses.put(user, status);
+        if (status.equals(previous))
+            return null;
+        return record((previous == null ? "+" : "~") + user + ":" + status);
+    }
+
+    // The delta payload for this change, null if the user was not present
+    public synchronized String remove(String user) {
+        if (statuses.remove(user) == null)
+            return null;
+        return record("-" + user);
+    }
+
+    private String record(String change) {
+        version++;
+        log[(int) (version % LOG_SIZE)] = change;
+        logged = Math.min(LOG_SIZE, logged + 1);
+        return version + "|" + change;
+    }
+
+    public synchronized String snapshot() {
+        StringBuilder sb = new StringBuilder().append(version);
+        for (Map.Entry<String, String> entry : statuses.entrySet()) {
+            sb.append('|').append(entry.getKey()).append(':').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    // A delta payload with every change after since, "" if there are none, or null if the
+    // log no longer holds them all (or since is not a version of this log): send a snapshot
+    public synchronized String changesSince(long since) {
+        if (since == version)
+            return "";
+        if (since < 0 || since > version || version - since > logged)
+            return null;
+        StringBuilder sb = new StringBuilder().append(since + 1);
+        for (long v = since + 1; v <= version; v++) {
+            sb.append('|').append(log[(int) (v % LOG_SIZE)]);
+        }
+        return sb.toString();
+    }
+
+    // --- Client side: applying snapshots and deltas ---
+
+    // Replaces the whole view, whatever version it was at
+    public synchronized void loadSnapshot(String payload) {
+        String[] parts = payload.split("\\|");
+        statuses.clear();
+        for (int i = 1; i < parts.length; i++) {
+            String[] entry = parts[i].split(":", 2);
+            if (!entry[0].isEmpty())
+                statuses.put(entry[0], entry.length > 1 ? entry[1] : "Online");
+        }
+        version = Long.parseLong(parts[0]);
+    }
+
+    /**
+     * Applies the changes in a delta payload that are newer than this view
+     * and returns them as {user, status} pairs, status null for a user who
+     * left. Returns null, changing nothing, if changes before the delta are
+     * missing (resync with getVersion()); before the first snapshot deltas
+     * are ignored.
+     */
+    public synchronized List<String[]> applyDelta(String payload) {
+        List<String[]> applied = new ArrayList<>();
+        String[] parts = payload.split("\\|");
+        long first = Long.parseLong(parts[0]);
+        if (version < 0)
+            return applied;
+        if (first > version + 1)
+            return null;
+        for (int i = 1; i < parts.length; i++) {
+            if (first + i - 1 <= version)
+                continue; // Already applied
+            String change = parts[i];
+            if (change.startsWith("-")) {
+                String user = change.substring(1);
+                statuses.remove(user);
+                applied.add(new String[] { user, null });
+            } else {
+                String[] entry = change.substring(1).split(":", 2);
+                String status = entry.length > 1 ? entry[1] : "Online";
+                statuses.put(entry[0], status);
+                applied.add(new String[] { entry[0], status });
+            }
+            version = first + i - 1;
+        }
+        return applied;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    // Null if the user is not present
+    public synchronized String getStatus(String user) {
+        return statuses.get(user);
+    }
+
+    // "user:status" entries, in the order users appeared
+    public synchronized String[] entries() {
+        String[] entries = new String[statuses.size()];
+        int i = 0;
+        for (Map.Entry<String, String> entry : statuses.entrySet()) {
+            entries[i++] = entry.getKey() + ":" + entry.getValue();
+        }
+        return entries;
+    }
+}
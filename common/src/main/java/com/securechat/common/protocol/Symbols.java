@@ -0,0 +1,52 @@
+package com.securechat.common.protocol;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide numbering of names and IDs (users, groups, files) as small
+ * ints from 1; 0 means none. The server keys its routing and resume tables
+ * by these, and PacketCodec resolves each session symbol to one once, when
+ * it is first used, so routing a packet hashes no strings. Numbers are never
+ * reused. Lookups (find) never add, so names from unknown peers do not grow
+ * the table.
+ */
+public final class Symbols {
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[256];
+    private int next = 1; // guarded by this
+
+    // The number for name, assigned if it has none
+    public int id(String name) {
+        if (name == null)
+            return 0;
+        Integer id = ids.get(name);
+        return id != null ? id : assign(name);
+    }
+
+    // The number for name, 0 if it has none
+    public int find(String name) {
+        if (name == null)
+            return 0;
+        Integer id = ids.get(name);
+        return id != null ? id : 0;
+    }
+
+    public String name(int id) {
+        String[] current = names;
+        return id > 0 && id < current.length ? current[id] : null;
+    }
+
+    private synchronized int assign(String name) {
+        Integer id = ids.get(name);
+        if (id != null)
+            return id;
+        int assigned = next++;
+        if (assigned >= names.length)
+            names = Arrays.copyOf(names, names.length * 2);
+        names[assigned] = name;
+        ids.put(name, assigned); // Publishes names[assigned] to readers that found the number
+        return assigned;
+    }
+}
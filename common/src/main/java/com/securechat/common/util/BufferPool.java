@@ -0,0 +1,70 @@
+package com.securechat.common.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable byte arrays in power-of-two size classes (4 KB to 512 KB), shared
+ * by all connections. Readers borrow a buffer for each frame and return it
+ * once the packet in it has been decoded, so steady-state reading allocates
+ * nothing and idle connections hold no buffers. Each class keeps at most
+ * bytesPerClass bytes of arrays (at least two); larger requests are
+ * allocated and not kept.
+ *
+ * Heap arrays, not direct buffers: the JCE AEAD ciphers work on the backing
+ * array, and the streams around the sockets copy through heap arrays anyway.
+ */
+public final class BufferPool {
+
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 19;
+
+    public static final BufferPool SHARED = new BufferPool(4 << 20);
+
+    private final ArrayBlockingQueue<byte[]>[] classes;
+    private final AtomicLong allocations = new AtomicLong();
+
+    @SuppressWarnings({ "unchecked", "rawtypes" }) // No generic array creation
+    public BufferPool(int bytesPerClass) {
+        classes = new ArrayBlockingQueue[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new ArrayBlockingQueue<>(Math.max(2, bytesPerClass >> (MIN_SHIFT + i)));
+        }
+    }
+
+    // An array of at least minLength bytes; its contents are undefined
+    public byte[] acquire(int minLength) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, minLength) - 1));
+        if (shift > MAX_SHIFT) {
+            allocations.incrementAndGet();
+            return new byte[minLength];
+        }
+        byte[] pooled = classes[shift - MIN_SHIFT].poll();
+        if (pooled != null)
+            return pooled;
+        allocations.incrementAndGet();
+        return new byte[1 << shift];
+    }
+
+    // Arrays not from this pool (or beyond its largest class) are dropped
+    public void release(byte[] buffer) {
+        if (buffer == null)
+            return;
+        int shift = Integer.numberOfTrailingZeros(buffer.length);
+        if (buffer.length == 1 << shift && shift >= MIN_SHIFT && shift <= MAX_SHIFT)
+            classes[shift - MIN_SHIFT].offer(buffer);
+    }
+
+    // Arrays allocated because the pool had none to hand out; flat in steady state
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    public long getPooledBytes() {
+        long bytes = 0;
+        for (int i = 0; i < classes.length; i++) {
+            bytes += (long) classes[i].size() << (MIN_SHIFT + i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,171 @@
+package com.securechat.common.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Which chunks of a file have been received, as a bitset. Serialized as
+ * alternating run lengths (missing, received, missing, ...) in unsigned
+ * varints, so an in-order download is a few bytes however large the file.
+ * Receivers keep one next to each partial download (<file>.map), the server
+ * keeps one per receiver from CHUNK_ACKs, and RESUME_INFO carries it so the
+ * sender re-sends only the holes.
+ */
+public class ChunkBitmap {
+
+    private final BitSet received = new BitSet();
+
+    // Everything up to and including lastChunk, as reported by pre-bitmap peers
+    public static ChunkBitmap upTo(int lastChunk) {
+        ChunkBitmap bitmap = new ChunkBitmap();
+        if (lastChunk >= 0)
+            bitmap.received.set(0, lastChunk + 1);
+        return bitmap;
+    }
+
+    public synchronized boolean set(int chunkIndex) {
+        boolean added = !received.get(chunkIndex);
+        received.set(chunkIndex);
+        return added;
+    }
+
+    public synchronized boolean get(int chunkIndex) {
+        return received.get(chunkIndex);
+    }
+
+    public synchronized int cardinality() {
+        return received.cardinality();
+    }
+
+    public synchronized boolean isComplete(int totalChunks) {
+        return received.nextClearBit(0) >= totalChunks;
+    }
+
+    // Highest chunk below which nothing is missing, -1 if chunk 0 is missing
+    public synchronized int contiguousUpTo() {
+        return received.nextClearBit(0) - 1;
+    }
+
+    // First missing chunk at or after from, or totalChunks if none
+    public synchronized int nextMissing(int from, int totalChunks) {
+        return Math.min(received.nextClearBit(from), totalChunks);
+    }
+
+    // Missing chunks of a totalChunks-chunk file as [start, end) ranges
+    public synchronized List<int[]> missingRanges(int totalChunks) {
+        List<int[]> ranges = new ArrayList<>();
+        int start = received.nextClearBit(0);
+        while (start < totalChunks) {
+            int next = received.nextSetBit(start);
+            int end = next < 0 ? totalChunks : Math.min(next, totalChunks);
+            ranges.add(new int[] { start, end });
+            start = received.nextClearBit(end);
+        }
+        return ranges;
+    }
+
+    // Chunks present in both, e.g. what every member of a group has
+    public synchronized ChunkBitmap and(ChunkBitmap other) {
+        ChunkBitmap both = new ChunkBitmap();
+        both.received.or(received);
+        synchronized (other) {
+            both.received.and(other.received);
+        }
+        return both;
+    }
+
+    public synchronized byte[] toBytes() {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        int pos = 0;
+        while (pos < received.length()) {
+            int set = received.nextSetBit(pos);
+            int clear = received.nextClearBit(set);
+            writeVarint(bos, set - pos);
+            writeVarint(bos, clear - set);
+            pos = clear;
+        }
+        return bos.toByteArray();
+    }
+
+    public static ChunkBitmap fromBytes(byte[] runs) throws IOException {
+        ChunkBitmap bitmap = new ChunkBitmap();
+        int[] cursor = { 0 };
+        long pos = 0;
+        while (cursor[0] < runs.length) {
+            pos += readVarint(runs, cursor);
+            long end = pos + readVarint(runs, cursor);
+            if (end > MessageReassembler.MAX_CHUNKS)
+                throw new IOException("Chunk bitmap run out of range");
+            bitmap.received.set((int) pos, (int) end);
+            pos = end;
+        }
+        return bitmap;
+    }
+
+    // --- Persistence next to a partial download ---
+
+    // The file ID guards against a map left over from an earlier transfer of the same name.
+    // Not fsynced: chunk data is synced before the map, so a lost update only means re-sending chunks.
+    public void save(File mapFile, String fileId) throws IOException {
+        File tmp = new File(mapFile.getPath() + ".tmp");
+        byte[] runs = toBytes();
+        try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(tmp))) {
+            dos.writeUTF(fileId);
+            dos.writeInt(runs.length);
+            dos.write(runs);
+        }
+        Files.move(tmp.toPath(), mapFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Null if there is no map for this file ID
+    public static ChunkBitmap load(File mapFile, String fileId) {
+        if (!mapFile.exists())
+            return null;
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(mapFile))) {
+            if (!dis.readUTF().equals(fileId))
+                return null;
+            byte[] runs = new byte[dis.readInt()];
+            dis.readFully(runs);
+            return fromBytes(runs);
+        } catch (IOException e) {
+            System.err.println("[RESUME] Ignoring unreadable chunk map " + mapFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public static File mapFileFor(File download) {
+        return new File(download.getPath() + ".map");
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static long readVarint(byte[] in, int[] cursor) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (cursor[0] >= in.length)
+                throw new IOException("Truncated chunk bitmap");
+            int b = in[cursor[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed chunk bitmap");
+    }
+}
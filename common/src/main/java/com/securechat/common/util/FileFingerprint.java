@@ -0,0 +1,60 @@
+package com.securechat.common.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+
+/**
+ * Fast content identity for a file: SHA-256 over its length and a fixed set
+ * of evenly spaced sample blocks (always including the first and last). Small
+ * files are hashed completely. Cost is bounded by SAMPLE_COUNT block reads,
+ * independent of file size.
+ */
+public class FileFingerprint {
+
+    public static final int SAMPLE_BLOCK_SIZE = 16 * 1024;
+    public static final int SAMPLE_COUNT = 32;
+
+    // Below this the samples would cover the whole file anyway
+    private static final long FULL_READ_THRESHOLD = (long) SAMPLE_BLOCK_SIZE * SAMPLE_COUNT;
+
+    public static String sampled(File file) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            long size = file.length();
+            digest.update(longToBytes(size));
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                byte[] block = new byte[SAMPLE_BLOCK_SIZE];
+                if (size <= FULL_READ_THRESHOLD) {
+                    int read;
+                    while ((read = raf.read(block)) != -1) {
+                        digest.update(block, 0, read);
+                    }
+                } else {
+                    long lastOffset = size - SAMPLE_BLOCK_SIZE;
+                    for (int i = 0; i < SAMPLE_COUNT; i++) {
+                        long offset = lastOffset * i / (SAMPLE_COUNT - 1);
+                        raf.seek(offset);
+                        raf.readFully(block);
+                        digest.update(longToBytes(offset));
+                        digest.update(block);
+                    }
+                }
+            }
+            return ProtocolUtil.bytesToHex(digest.digest());
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] longToBytes(long value) {
+        byte[] bytes = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+        return bytes;
+    }
+}
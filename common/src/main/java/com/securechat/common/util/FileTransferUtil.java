@@ -47,7 +47,7 @@ public class FileTransferUtil {
         try {
             MessageDigest digest = MessageDigest.getInstance("SHA-256");
             try (InputStream fis = new FileInputStream(file)) {
-                byte[] byteArray = new byte[1024];
+                byte[] byteArray = new byte[CHUNK_SIZE];
                 int bytesCount;
                 while ((bytesCount = fis.read(byteArray)) != -1) {
                     digest.update(byteArray, 0, bytesCount);
@@ -0,0 +1,178 @@
+package com.securechat.common.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * SHA-256 Merkle tree over file chunks. Leaves and inner nodes are domain
+ * separated (0x00 / 0x01 prefix); an unpaired node at the end of a level is
+ * promoted unchanged, so a proof is just the list of sibling hashes.
+ */
+public class MerkleTree {
+
+    public static final int HASH_SIZE = 32;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    // levels.get(0) = leaves, last level = [root]
+    private final List<byte[][]> levels = new ArrayList<>();
+
+    public MerkleTree(byte[][] leaves) {
+        if (leaves.length == 0)
+            throw new IllegalArgumentException("Merkle tree needs at least one leaf");
+        byte[][] level = leaves;
+        levels.add(level);
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < next.length; i++) {
+                int left = 2 * i;
+                next[i] = (left + 1 < level.length) ? hashNode(level[left], level[left + 1]) : level[left];
+            }
+            level = next;
+            levels.add(level);
+        }
+    }
+
+    // Hash every chunk of the file in parallel and build the tree
+    public static MerkleTree build(File file, int chunkSize) throws IOException {
+        return new MerkleTree(hashChunks(file, chunkSize));
+    }
+
+    // Leaf hashes of all chunks, read with positional I/O across the common pool
+    public static byte[][] hashChunks(File file, int chunkSize) throws IOException {
+        long size = file.length();
+        int count = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+        byte[][] leaves = new byte[count][];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            IntStream.range(0, count).parallel().forEach(i -> {
+                long offset = (long) i * chunkSize;
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(chunkSize, Math.max(0, size - offset)));
+                try {
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, offset + buffer.position()) < 0)
+                            break;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                leaves[i] = hashLeaf(buffer.array(), 0, buffer.position());
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return leaves;
+    }
+
+    public byte[] getRoot() {
+        return levels.get(levels.size() - 1)[0];
+    }
+
+    public int getLeafCount() {
+        return levels.get(0).length;
+    }
+
+    public byte[] getLeaf(int index) {
+        return levels.get(0)[index];
+    }
+
+    // Sibling hashes from the leaf up, concatenated (HASH_SIZE bytes each)
+    public byte[] getProof(int index) {
+        List<byte[]> siblings = new ArrayList<>();
+        int idx = index;
+        for (int l = 0; l < levels.size() - 1; l++) {
+            byte[][] level = levels.get(l);
+            int sibling = idx ^ 1;
+            if (sibling < level.length) {
+                siblings.add(level[sibling]);
+            }
+            idx >>= 1;
+        }
+        byte[] proof = new byte[siblings.size() * HASH_SIZE];
+        for (int i = 0; i < siblings.size(); i++) {
+            System.arraycopy(siblings.get(i), 0, proof, i * HASH_SIZE, HASH_SIZE);
+        }
+        return proof;
+    }
+
+    // Indexes whose leaf differs from the given list (or are missing from it)
+    public List<Integer> diffLeaves(byte[][] otherLeaves) {
+        List<Integer> bad = new ArrayList<>();
+        byte[][] leaves = levels.get(0);
+        for (int i = 0; i < leaves.length; i++) {
+            if (i >= otherLeaves.length || !MessageDigest.isEqual(leaves[i], otherLeaves[i])) {
+                bad.add(i);
+            }
+        }
+        return bad;
+    }
+
+    public static boolean verify(byte[] chunk, int index, int leafCount, byte[] proof, byte[] root) {
+        if (chunk == null || proof == null || root == null || index < 0 || index >= leafCount
+                || proof.length % HASH_SIZE != 0)
+            return false;
+        byte[] hash = hashLeaf(chunk, 0, chunk.length);
+        int idx = index;
+        int width = leafCount;
+        int pos = 0;
+        while (width > 1) {
+            int sibling = idx ^ 1;
+            if (sibling < width) {
+                if (pos + HASH_SIZE > proof.length)
+                    return false;
+                byte[] other = Arrays.copyOfRange(proof, pos, pos + HASH_SIZE);
+                pos += HASH_SIZE;
+                hash = (idx & 1) == 0 ? hashNode(hash, other) : hashNode(other, hash);
+            }
+            idx >>= 1;
+            width = (width + 1) / 2;
+        }
+        return pos == proof.length && MessageDigest.isEqual(hash, root);
+    }
+
+    public static byte[] hashLeaf(byte[] data, int offset, int length) {
+        MessageDigest digest = SHA256.get();
+        digest.update((byte) 0x00);
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    private static byte[] hashNode(byte[] left, byte[] right) {
+        MessageDigest digest = SHA256.get();
+        digest.update((byte) 0x01);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+    public static byte[] concat(byte[][] hashes) {
+        byte[] out = new byte[hashes.length * HASH_SIZE];
+        for (int i = 0; i < hashes.length; i++) {
+            System.arraycopy(hashes[i], 0, out, i * HASH_SIZE, HASH_SIZE);
+        }
+        return out;
+    }
+
+    public static byte[][] split(byte[] concatenated) {
+        byte[][] hashes = new byte[concatenated.length / HASH_SIZE][];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = Arrays.copyOfRange(concatenated, i * HASH_SIZE, (i + 1) * HASH_SIZE);
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,320 @@
+package com.securechat.common.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Joins chunked chat messages. Chunks of a transaction are equal-sized except
+ * the last, so the whole message is preallocated once the chunk size is known
+ * and each chunk is copied straight to its offset; arrival is tracked in a
+ * BitSet. Messages larger than the spill threshold are assembled in a temp
+ * file instead of the heap and handed over as that file, never read back
+ * into one array.
+ *
+ * Memory and spill space are bounded per transaction and in total; a spilled
+ * message counts against the spill budget until its consumer closes it. A
+ * transaction that has not
+ * received a chunk for the TTL is dropped (its sender probably died
+ * mid-message), so partial messages can no longer leak.
+ */
+public class MessageReassembler {
+
+    public static final int MAX_CHUNKS = 2_000_000;
+
+    private final long maxMessageBytes;
+    private final long maxBufferedBytes;
+    private final long maxSpilledBytes;
+    private final long ttlMillis;
+    private final long spillThreshold;
+    private final File spillDir;
+
+    private final Map<String, Assembly> assemblies = new ConcurrentHashMap<>();
+    private long bufferedBytes; // Heap reserved by in-memory assemblies
+    private long spilledBytes; // Disk reserved by spilled assemblies and unclosed spilled messages
+    private long nextEvictionCheck;
+
+    private static class Assembly {
+        final int totalChunks;
+        final BitSet received;
+        int chunkSize = -1; // Unknown until a chunk other than the last arrives
+        byte[] lastChunk; // Held aside if the last chunk comes first
+        int lastLength;
+        byte[] buffer;
+        RandomAccessFile spill;
+        File spillFile;
+        long reserved; // Against bufferedBytes, or spilledBytes if spill != null
+        long lastActivity;
+
+        Assembly(int totalChunks, long now) {
+            this.totalChunks = totalChunks;
+            this.received = new BitSet(totalChunks);
+            this.lastActivity = now;
+        }
+    }
+
+    /**
+     * A completed message, in memory or in its spill file. Closing it deletes
+     * the file and returns its space to the spill budget.
+     */
+    public final class Message implements Closeable {
+        private final byte[] bytes;
+        private final File file;
+        private final long length;
+        private long reserved;
+
+        private Message(byte[] bytes) {
+            this.bytes = bytes;
+            this.file = null;
+            this.length = bytes.length;
+        }
+
+        private Message(File file, long length, long reserved) {
+            this.bytes = null;
+            this.file = file;
+            this.length = length;
+            this.reserved = reserved;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        // The whole message, or null if it was spilled to disk (use openStream())
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public boolean isSpilled() {
+            return file != null;
+        }
+
+        public InputStream openStream() throws IOException {
+            return (file != null) ? new FileInputStream(file) : new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public void close() {
+            if (file == null)
+                return;
+            file.delete();
+            synchronized (MessageReassembler.this) {
+                spilledBytes -= reserved;
+                reserved = 0;
+            }
+        }
+    }
+
+    public MessageReassembler(long maxMessageBytes, long maxBufferedBytes, long maxSpilledBytes, long ttlMillis,
+            long spillThreshold, File spillDir) {
+        this.maxMessageBytes = maxMessageBytes;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.maxSpilledBytes = maxSpilledBytes;
+        this.ttlMillis = ttlMillis;
+        this.spillThreshold = spillThreshold;
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * Adds one chunk. Returns the whole message once the last missing chunk
+     * arrives, otherwise null; the caller must close it. Invalid, duplicate
+     * and over-limit chunks are logged and dropped.
+     */
+    public synchronized Message accept(String transactionId, int chunkIndex, int totalChunks, byte[] chunk) {
+        long now = System.currentTimeMillis();
+        if (now >= nextEvictionCheck) {
+            evictExpired(now);
+        }
+        if (totalChunks <= 0 || totalChunks > MAX_CHUNKS) {
+            System.err.println("[REASSEMBLY] Rejecting packet with suspicious chunk count: " + totalChunks);
+            return null;
+        }
+        if (chunkIndex < 0 || chunkIndex >= totalChunks) {
+            System.err.println("[REASSEMBLY] Invalid chunk index: " + chunkIndex + "/" + totalChunks);
+            return null;
+        }
+        if (chunk == null)
+            chunk = new byte[0];
+        // Single-chunk message: nothing to join or track
+        if (totalChunks == 1 && !assemblies.containsKey(transactionId))
+            return new Message(chunk);
+
+        Assembly a = assemblies.get(transactionId);
+        if (a == null) {
+            a = new Assembly(totalChunks, now);
+            assemblies.put(transactionId, a);
+        } else if (a.totalChunks != totalChunks) {
+            // The first packet's count is the source of truth for the transaction
+            System.err.println("[REASSEMBLY] Chunk count changed for " + transactionId + " (" + totalChunks
+                    + " vs " + a.totalChunks + "); dropping chunk");
+            return null;
+        }
+        if (a.received.get(chunkIndex))
+            return null; // Duplicate
+        a.lastActivity = now;
+
+        try {
+            boolean last = chunkIndex == totalChunks - 1;
+            if (a.chunkSize < 0) {
+                if (last) {
+                    a.lastChunk = chunk;
+                    a.received.set(chunkIndex);
+                    return a.received.cardinality() == totalChunks ? finish(transactionId, a) : null;
+                }
+                if (!allocate(transactionId, a, chunk.length))
+                    return null;
+                if (a.lastChunk != null && !store(transactionId, a, totalChunks - 1, a.lastChunk))
+                    return null;
+                a.lastChunk = null;
+            }
+            if (!store(transactionId, a, chunkIndex, chunk))
+                return null;
+            a.received.set(chunkIndex);
+            return a.received.cardinality() == totalChunks ? finish(transactionId, a) : null;
+        } catch (IOException e) {
+            System.err.println("[REASSEMBLY] Spill file error for " + transactionId + ": " + e.getMessage());
+            drop(transactionId);
+            return null;
+        }
+    }
+
+    // Drops transactions idle for longer than the TTL
+    public synchronized int evictExpired(long now) {
+        nextEvictionCheck = now + Math.max(1, ttlMillis / 4);
+        int evicted = 0;
+        Iterator<Map.Entry<String, Assembly>> it = assemblies.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Assembly> e = it.next();
+            Assembly a = e.getValue();
+            if (now - a.lastActivity >= ttlMillis) {
+                System.err.println("[REASSEMBLY] Evicting stale transaction " + e.getKey() + " ("
+                        + a.received.cardinality() + "/" + a.totalChunks + " chunks)");
+                it.remove();
+                release(a);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    public synchronized int getPendingCount() {
+        return assemblies.size();
+    }
+
+    public synchronized long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    public synchronized long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    // Sizes the target once the chunk size is known, in memory or in a spill file
+    private boolean allocate(String transactionId, Assembly a, int chunkSize) throws IOException {
+        long capacity = (long) chunkSize * a.totalChunks;
+        if (chunkSize == 0 || capacity > maxMessageBytes) {
+            System.err.println("[REASSEMBLY] Message " + transactionId + " too large (" + a.totalChunks + " x "
+                    + chunkSize + " bytes); dropping");
+            drop(transactionId);
+            return false;
+        }
+        a.chunkSize = chunkSize;
+        boolean spill = capacity > spillThreshold;
+        if ((spill ? spilledBytes : bufferedBytes) + capacity > (spill ? maxSpilledBytes : maxBufferedBytes)) {
+            evictExpired(System.currentTimeMillis());
+            long used = spill ? spilledBytes : bufferedBytes;
+            if (used + capacity > (spill ? maxSpilledBytes : maxBufferedBytes)) {
+                System.err.println("[REASSEMBLY] Reassembly " + (spill ? "spill space" : "memory") + " full (" + used
+                        + " bytes); dropping " + transactionId);
+                drop(transactionId);
+                return false;
+            }
+        }
+        if (spill) {
+            a.spillFile = File.createTempFile("securechat-msg-", ".part", spillDir);
+            a.spillFile.deleteOnExit();
+            a.spill = new RandomAccessFile(a.spillFile, "rw");
+            a.reserved = capacity;
+            spilledBytes += capacity;
+            return true;
+        }
+        a.buffer = new byte[(int) capacity];
+        a.reserved = capacity;
+        bufferedBytes += capacity;
+        return true;
+    }
+
+    private boolean store(String transactionId, Assembly a, int chunkIndex, byte[] chunk) throws IOException {
+        boolean last = chunkIndex == a.totalChunks - 1;
+        if (last ? chunk.length > a.chunkSize : chunk.length != a.chunkSize) {
+            System.err.println("[REASSEMBLY] Chunk " + chunkIndex + " of " + transactionId + " has " + chunk.length
+                    + " bytes, expected " + a.chunkSize + "; dropping message");
+            drop(transactionId);
+            return false;
+        }
+        if (last)
+            a.lastLength = chunk.length;
+        long offset = (long) chunkIndex * a.chunkSize;
+        if (a.spill != null) {
+            a.spill.seek(offset);
+            a.spill.write(chunk);
+        } else {
+            System.arraycopy(chunk, 0, a.buffer, (int) offset, chunk.length);
+        }
+        return true;
+    }
+
+    private Message finish(String transactionId, Assembly a) throws IOException {
+        assemblies.remove(transactionId);
+        try {
+            if (a.chunkSize < 0)
+                return new Message(a.lastChunk); // Only reachable for a one-chunk message
+            long length = (long) (a.totalChunks - 1) * a.chunkSize + a.lastLength;
+            if (a.spill != null) {
+                // The file and its reservation pass to the message
+                a.spill.setLength(length);
+                a.spill.close();
+                Message message = new Message(a.spillFile, length, a.reserved);
+                a.spill = null;
+                a.spillFile = null;
+                a.reserved = 0;
+                return message;
+            }
+            // The last chunk is usually short, and the message length is only known once it arrives
+            return new Message(length == a.buffer.length ? a.buffer : java.util.Arrays.copyOf(a.buffer, (int) length));
+        } finally {
+            release(a);
+        }
+    }
+
+    private void drop(String transactionId) {
+        Assembly a = assemblies.remove(transactionId);
+        if (a != null)
+            release(a);
+    }
+
+    private void release(Assembly a) {
+        if (a.spill != null)
+            spilledBytes -= a.reserved;
+        else
+            bufferedBytes -= a.reserved;
+        a.reserved = 0;
+        a.buffer = null;
+        if (a.spill != null) {
+            try {
+                a.spill.close();
+            } catch (IOException ignored) {
+            }
+            a.spillFile.delete();
+            a.spill = null;
+        }
+    }
+}
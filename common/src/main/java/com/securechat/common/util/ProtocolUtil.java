@@ -3,6 +3,7 @@ package com.securechat.common.util;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.UUID;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -24,7 +25,7 @@ public class ProtocolUtil {
         }
     }
 
-    private static String bytesToHex(byte[] hash) {
+    public static String bytesToHex(byte[] hash) {
         StringBuilder hexString = new StringBuilder(2 * hash.length);
         for (int i = 0; i < hash.length; i++) {
             String hex = Integer.toHexString(0xff & hash[i]);
@@ -38,18 +39,40 @@ public class ProtocolUtil {
 
     // TCP Framing logic (Length-Prefixed)
     public static void writePacket(DataOutputStream out, byte[] data) throws IOException {
-        out.writeInt(data.length);
-        out.write(data);
+        writeFrame(out, data);
         out.flush();
     }
 
-    public static byte[] readPacket(DataInputStream in) throws IOException {
-        int length = in.readInt();
-        if (length < 0)
-            throw new IOException("Invalid packet length: " + length);
+    // Same framing without the flush, for callers batching several packets into one write
+    public static void writeFrame(DataOutputStream out, byte[] data) throws IOException {
+        out.writeInt(data.length);
+        out.write(data);
+    }
 
-        byte[] data = new byte[length];
+    // The length prefix is checked before anything is allocated for it
+    public static byte[] readPacket(DataInputStream in, int maxLength) throws IOException {
+        byte[] data = new byte[readLength(in, maxLength)];
         in.readFully(data);
         return data;
     }
+
+    // Reads a frame into a pooled array; the caller releases frame.array() when done with it
+    public static ByteBuffer readFrame(DataInputStream in, int maxLength, BufferPool pool) throws IOException {
+        int length = readLength(in, maxLength);
+        byte[] data = pool.acquire(length);
+        try {
+            in.readFully(data, 0, length);
+        } catch (IOException e) {
+            pool.release(data);
+            throw e;
+        }
+        return ByteBuffer.wrap(data, 0, length);
+    }
+
+    private static int readLength(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxLength)
+            throw new IOException("Invalid packet length: " + length + " (max " + maxLength + ")");
+        return length;
+    }
 }
@@ -0,0 +1,67 @@
+package com.securechat.common.util;
+
+/**
+ * Retransmission timer for stop-and-wait chunk transfers (RFC 6298 style).
+ * Smoothed RTT and RTT variance are learned from ACK timings; a timeout
+ * doubles the RTO until the estimator gives up.
+ */
+public class RttEstimator {
+
+    public static final long INITIAL_RTO_MILLIS = 1000;
+    public static final long MIN_RTO_MILLIS = 200;
+    public static final long MAX_RTO_MILLIS = 60_000;
+    private static final long CLOCK_GRANULARITY_MILLIS = 10;
+    private static final int MAX_BACKOFFS = 6; // 1s -> 2s -> ... -> 64s (capped)
+
+    private double srtt = -1; // -1 = no sample yet
+    private double rttvar;
+    private long rto = INITIAL_RTO_MILLIS;
+    private int backoffs = 0;
+
+    // Feed one ACK round trip. Callers must skip retransmitted chunks (Karn's rule).
+    public synchronized void onSample(long rttMillis) {
+        double r = Math.max(0, rttMillis);
+        if (srtt < 0) {
+            srtt = r;
+            rttvar = r / 2;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - r);
+            srtt = 0.875 * srtt + 0.125 * r;
+        }
+        rto = clamp((long) Math.ceil(srtt + Math.max(CLOCK_GRANULARITY_MILLIS, 4 * rttvar)));
+        backoffs = 0;
+    }
+
+    // Exponential backoff after a lost chunk or ACK
+    public synchronized void onTimeout() {
+        backoffs++;
+        rto = clamp(rto * 2);
+    }
+
+    // True once the link stayed silent through the whole backoff series
+    public synchronized boolean isExhausted() {
+        return backoffs > MAX_BACKOFFS;
+    }
+
+    public synchronized long getTimeoutMillis() {
+        return rto;
+    }
+
+    public synchronized long getSmoothedRttMillis() {
+        return srtt < 0 ? INITIAL_RTO_MILLIS : (long) srtt;
+    }
+
+    public synchronized long getRttVarianceMillis() {
+        return srtt < 0 ? INITIAL_RTO_MILLIS / 2 : (long) rttvar;
+    }
+
+    // Projected time for the given number of ACKed round trips, with headroom for variance
+    public synchronized long projectMillis(int roundTrips) {
+        double perTrip = (srtt < 0 ? INITIAL_RTO_MILLIS : srtt) + 4 * (srtt < 0 ? 0 : rttvar);
+        return (long) Math.ceil(Math.max(0, roundTrips) * perTrip);
+    }
+
+    private static long clamp(long value) {
+        return Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS, value));
+    }
+}
@@ -0,0 +1,44 @@
+package com.securechat.common;
+
+import com.securechat.common.util.ChunkBitmap;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+public class ChunkBitmapTest {
+
+    @Test
+    public void outOfOrderProgressRoundTripsAsHoles() throws Exception {
+        ChunkBitmap received = new ChunkBitmap();
+        for (int i : new int[] { 0, 1, 2, 5, 6, 9 }) {
+            received.set(i);
+        }
+        ChunkBitmap decoded = ChunkBitmap.fromBytes(received.toBytes());
+
+        List<int[]> holes = decoded.missingRanges(12);
+        Assertions.assertEquals(3, holes.size());
+        Assertions.assertArrayEquals(new int[] { 3, 5 }, holes.get(0));
+        Assertions.assertArrayEquals(new int[] { 7, 9 }, holes.get(1));
+        Assertions.assertArrayEquals(new int[] { 10, 12 }, holes.get(2));
+        Assertions.assertEquals(2, decoded.contiguousUpTo());
+        Assertions.assertEquals(3, decoded.nextMissing(0, 12));
+
+        // An in-order download of any size stays a couple of bytes
+        Assertions.assertTrue(ChunkBitmap.upTo(100_000).toBytes().length <= 4);
+        Assertions.assertTrue(ChunkBitmap.upTo(11).isComplete(12));
+    }
+
+    @Test
+    public void groupProgressIsWhatEveryMemberHas() {
+        ChunkBitmap alice = ChunkBitmap.upTo(7);
+        ChunkBitmap bob = new ChunkBitmap();
+        bob.set(2);
+        bob.set(6);
+        bob.set(9);
+
+        ChunkBitmap both = alice.and(bob);
+        Assertions.assertEquals(2, both.cardinality());
+        Assertions.assertTrue(both.get(2) && both.get(6) && !both.get(9));
+    }
+}
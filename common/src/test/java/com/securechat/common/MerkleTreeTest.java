@@ -0,0 +1,62 @@
+package com.securechat.common;
+
+import com.securechat.common.util.FileTransferUtil;
+import com.securechat.common.util.MerkleTree;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+public class MerkleTreeTest {
+
+    @Test
+    public void everyChunkVerifiesAgainstRoot() throws IOException {
+        // 5 chunks (4 full + 1 partial) exercises the unpaired-node promotion
+        File file = new File("test_merkle.dat");
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            byte[] data = new byte[4 * FileTransferUtil.CHUNK_SIZE + 1234];
+            new Random(7).nextBytes(data);
+            fos.write(data);
+        }
+
+        try {
+            MerkleTree tree = MerkleTree.build(file, FileTransferUtil.CHUNK_SIZE);
+            List<byte[]> chunks = FileTransferUtil.splitFile(file);
+            Assertions.assertEquals(chunks.size(), tree.getLeafCount());
+
+            for (int i = 0; i < chunks.size(); i++) {
+                Assertions.assertTrue(MerkleTree.verify(chunks.get(i), i, chunks.size(), tree.getProof(i),
+                        tree.getRoot()), "Chunk " + i + " should verify");
+            }
+
+            // A flipped byte or a proof for the wrong index must fail
+            byte[] tampered = chunks.get(2).clone();
+            tampered[100] ^= 1;
+            Assertions.assertFalse(MerkleTree.verify(tampered, 2, chunks.size(), tree.getProof(2), tree.getRoot()));
+            Assertions.assertFalse(
+                    MerkleTree.verify(chunks.get(2), 3, chunks.size(), tree.getProof(3), tree.getRoot()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void diffLeavesFindsOnlyDamagedChunks() {
+        byte[][] leaves = new byte[6][];
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = MerkleTree.hashLeaf(new byte[] { (byte) i }, 0, 1);
+        }
+        MerkleTree tree = new MerkleTree(leaves);
+
+        byte[][] received = MerkleTree.split(MerkleTree.concat(leaves));
+        received[1] = MerkleTree.hashLeaf(new byte[] { 42 }, 0, 1);
+        received[4] = MerkleTree.hashLeaf(new byte[] { 43 }, 0, 1);
+
+        Assertions.assertEquals(List.of(1, 4), tree.diffLeaves(received));
+        Assertions.assertFalse(java.util.Arrays.equals(tree.getRoot(), new MerkleTree(received).getRoot()));
+    }
+}
@@ -0,0 +1,101 @@
+package com.securechat.common;
+
+import com.securechat.common.util.MessageReassembler;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+public class MessageReassemblerTest {
+
+    private final File tempDir = new File(System.getProperty("java.io.tmpdir"));
+
+    private static byte[] chunk(byte[] message, int index, int chunkSize) {
+        return Arrays.copyOfRange(message, index * chunkSize, Math.min(message.length, (index + 1) * chunkSize));
+    }
+
+    @Test
+    public void joinsChunksInAnyOrderInMemoryAndOnDisk() throws Exception {
+        byte[] message = new byte[10 * 1024 + 300];
+        new Random(7).nextBytes(message);
+        int total = 11;
+        int[] order = { 10, 3, 0, 7, 1, 9, 2, 8, 4, 6, 5 }; // Last chunk first, before the chunk size is known
+
+        for (long spillThreshold : new long[] { Long.MAX_VALUE, 0 }) {
+            MessageReassembler r = new MessageReassembler(1 << 20, 1 << 20, 1 << 20, 60_000, spillThreshold, tempDir);
+            MessageReassembler.Message result = null;
+            for (int i : order) {
+                Assertions.assertNull(result, "Completed early");
+                result = r.accept("tx", i, total, chunk(message, i, 1024));
+                if (i == 3)
+                    Assertions.assertNull(r.accept("tx", 3, total, chunk(message, 3, 1024)), "Duplicate completed");
+            }
+            Assertions.assertEquals(spillThreshold == 0, result.isSpilled());
+            Assertions.assertEquals(message.length, result.getLength());
+            try (java.io.InputStream in = result.openStream()) {
+                Assertions.assertArrayEquals(message, in.readAllBytes());
+            }
+            Assertions.assertEquals(0, r.getPendingCount());
+            Assertions.assertEquals(0, r.getBufferedBytes());
+            // A spilled message holds its share of the spill budget until closed
+            Assertions.assertEquals(spillThreshold == 0 ? 11 * 1024 : 0, r.getSpilledBytes());
+            result.close();
+            Assertions.assertEquals(0, r.getSpilledBytes());
+        }
+        Assertions.assertEquals(0, tempDir.listFiles((d, name) -> name.startsWith("securechat-msg-")).length,
+                "Spill file left behind");
+    }
+
+    @Test
+    public void singleChunkMessagesPassStraightThrough() {
+        MessageReassembler r = new MessageReassembler(1 << 20, 1 << 20, 1 << 20, 60_000, Long.MAX_VALUE, tempDir);
+        byte[] payload = "hi".getBytes();
+        Assertions.assertSame(payload, r.accept("tx", 0, 1, payload).getBytes());
+        Assertions.assertEquals(0, r.getPendingCount());
+    }
+
+    @Test
+    public void capsAndIdleTimeoutBoundMemory() {
+        MessageReassembler r = new MessageReassembler(8 * 1024, 12 * 1024, 0, 1000, Long.MAX_VALUE, tempDir);
+
+        // Over the per-message cap: dropped as soon as the size is known
+        Assertions.assertNull(r.accept("huge", 0, 100, new byte[1024]));
+        Assertions.assertEquals(0, r.getPendingCount());
+
+        // Two 8 KB messages do not fit in 12 KB; the second is refused while the first is live
+        Assertions.assertNull(r.accept("a", 0, 8, new byte[1024]));
+        Assertions.assertNull(r.accept("b", 0, 8, new byte[1024]));
+        Assertions.assertEquals(1, r.getPendingCount());
+        Assertions.assertEquals(8 * 1024, r.getBufferedBytes());
+
+        // A sender that died mid-message is evicted after the TTL
+        Assertions.assertEquals(1, r.evictExpired(System.currentTimeMillis() + 1000));
+        Assertions.assertEquals(0, r.getPendingCount());
+        Assertions.assertEquals(0, r.getBufferedBytes());
+    }
+
+    @Test
+    public void spilledMessagesAreBoundedByTheSpillBudget() throws Exception {
+        // Everything spills; room on disk for one 8 KB message
+        MessageReassembler r = new MessageReassembler(1 << 20, 1 << 20, 12 * 1024, 60_000, 0, tempDir);
+        Assertions.assertNull(r.accept("a", 0, 8, new byte[1024]));
+        Assertions.assertNull(r.accept("b", 0, 8, new byte[1024]));
+        Assertions.assertEquals(1, r.getPendingCount());
+        Assertions.assertEquals(8 * 1024, r.getSpilledBytes());
+        Assertions.assertEquals(0, r.getBufferedBytes());
+
+        MessageReassembler.Message a = null;
+        for (int i = 1; i < 8; i++) {
+            a = r.accept("a", i, 8, new byte[1024]);
+        }
+        // Still held by the unclosed message, then freed for the next one
+        Assertions.assertNull(r.accept("c", 0, 8, new byte[1024]));
+        a.close();
+        Assertions.assertNull(r.accept("c", 0, 8, new byte[1024]));
+        Assertions.assertEquals(1, r.getPendingCount());
+        r.evictExpired(System.currentTimeMillis() + 60_000);
+        Assertions.assertEquals(0, r.getSpilledBytes());
+    }
+}
@@ -0,0 +1,119 @@
+package com.securechat.common;
+
+import com.securechat.common.protocol.Packet;
+import com.securechat.common.protocol.PacketCodec;
+import com.securechat.common.protocol.PacketType;
+import com.securechat.common.protocol.Symbols;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+public class PacketCodecTest {
+
+    private static final String FILE_ID = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    private static Packet chunk(String sender, int index, int payload) {
+        Packet p = new Packet(PacketType.FILE_CHUNK, 3);
+        p.setSender(sender);
+        p.setReceiver("bob");
+        p.setTransactionId("d1f2c3b4-0000-4000-8000-123456789abc");
+        p.setFileId(FILE_ID);
+        p.setChunkIndex(index);
+        p.setTotalChunks(100);
+        p.setPayload(new byte[payload]);
+        return p;
+    }
+
+    @Test
+    public void everyFieldRoundTripsAndServerResolvesSymbols() throws Exception {
+        Symbols symbols = new Symbols();
+        int bob = symbols.id("bob");
+        PacketCodec client = new PacketCodec();
+        PacketCodec server = new PacketCodec(symbols);
+
+        Packet p = chunk("alice", -1, 10);
+        p.setGroup("team");
+        p.setFileName("report.pdf");
+        p.setFileSize(5_000_000_000L);
+        p.setMerkleRoot(new byte[] { 1, 2, 3 });
+        p.setChunkProof(new byte[] { 4, 5 });
+        Packet decoded = server.decode(ByteBuffer.wrap(client.encode(p)));
+
+        Assertions.assertEquals(PacketType.FILE_CHUNK, decoded.getType());
+        Assertions.assertEquals(3, decoded.getPriority());
+        Assertions.assertEquals("alice", decoded.getSender());
+        Assertions.assertEquals("bob", decoded.getReceiver());
+        Assertions.assertEquals("team", decoded.getGroup());
+        Assertions.assertEquals(p.getTransactionId(), decoded.getTransactionId());
+        Assertions.assertEquals(FILE_ID, decoded.getFileId());
+        Assertions.assertEquals("report.pdf", decoded.getFileName());
+        Assertions.assertEquals(5_000_000_000L, decoded.getFileSize());
+        Assertions.assertEquals(-1, decoded.getChunkIndex());
+        Assertions.assertEquals(100, decoded.getTotalChunks());
+        Assertions.assertArrayEquals(p.getMerkleRoot(), decoded.getMerkleRoot());
+        Assertions.assertArrayEquals(p.getChunkProof(), decoded.getChunkProof());
+        Assertions.assertEquals(10, decoded.getPayload().length);
+        // Known names resolve to their symbol, unknown ones to 0 (decoding never adds)
+        Assertions.assertEquals(bob, decoded.getReceiverSymbol());
+        Assertions.assertEquals(0, decoded.getSenderSymbol());
+
+        // Unset fields stay at their defaults
+        Packet bare = server.decode(ByteBuffer.wrap(client.encode(new Packet(PacketType.HEARTBEAT, 1))));
+        Assertions.assertNull(bare.getSender());
+        Assertions.assertNull(bare.getPayload());
+        Assertions.assertEquals(1, bare.getTotalChunks());
+    }
+
+    @Test
+    public void repeatedNamesAndIdsAreSentAsSlotNumbers() throws Exception {
+        PacketCodec sender = new PacketCodec();
+        PacketCodec receiver = new PacketCodec();
+
+        byte[] first = sender.encode(chunk("alice", 0, 100));
+        byte[] second = sender.encode(chunk("alice", 1, 100));
+        // sender, receiver, transaction and file ID: over 100 bytes of strings become four small numbers
+        Assertions.assertTrue(first.length - second.length > 100, first.length + " vs " + second.length);
+
+        Assertions.assertEquals(0, receiver.decode(ByteBuffer.wrap(first)).getChunkIndex());
+        Packet decoded = receiver.decode(ByteBuffer.wrap(second));
+        Assertions.assertEquals("alice", decoded.getSender());
+        Assertions.assertEquals(FILE_ID, decoded.getFileId());
+        Assertions.assertEquals(1, decoded.getChunkIndex());
+
+        // A reference the receiver never saw bound is rejected, not guessed
+        Assertions.assertThrows(java.io.IOException.class,
+                () -> new PacketCodec().decode(ByteBuffer.wrap(second)));
+    }
+
+    @Test
+    public void tablesStayInStepWhenSlotsAreReused() throws Exception {
+        PacketCodec sender = new PacketCodec();
+        PacketCodec receiver = new PacketCodec();
+        for (int i = 0; i < PacketCodec.NAME_SLOTS * 2 + 10; i++) {
+            String name = "user" + (i % (PacketCodec.NAME_SLOTS + 7));
+            Packet p = new Packet(PacketType.DM, 1);
+            p.setSender("alice"); // Bound first, evicted and rebound as the table wraps
+            p.setReceiver(name);
+            Packet decoded = receiver.decode(ByteBuffer.wrap(sender.encode(p)));
+            Assertions.assertEquals(name, decoded.getReceiver());
+            Assertions.assertEquals("alice", decoded.getSender());
+        }
+    }
+
+    @Test
+    public void largePacketsAreLiteralAndLeaveTheTablesAlone() throws Exception {
+        PacketCodec sender = new PacketCodec();
+        PacketCodec receiver = new PacketCodec();
+
+        // Segmented on the wire, so later packets may overtake it: it must not bind anything
+        byte[] large = sender.encode(chunk("alice", 0, 64 * 1024));
+        byte[] small = sender.encode(chunk("alice", 1, 100));
+        Assertions.assertEquals(1, receiver.decode(ByteBuffer.wrap(small)).getChunkIndex());
+        Assertions.assertEquals(64 * 1024, receiver.decode(ByteBuffer.wrap(large)).getPayload().length);
+
+        // Literal encoding decodes with any codec
+        byte[] literal = PacketCodec.encodeLiteral(chunk("carol", 2, 10));
+        Assertions.assertEquals("carol", new PacketCodec().decode(ByteBuffer.wrap(literal)).getSender());
+    }
+}
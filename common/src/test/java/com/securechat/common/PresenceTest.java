@@ -0,0 +1,82 @@
+package com.securechat.common;
+
+import com.securechat.common.protocol.Presence;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+public class PresenceTest {
+
+    @Test
+    public void clientFollowsSnapshotThenDeltas() {
+        Presence server = new Presence();
+        server.set("alice", "Online");
+        server.set("bob", "Online");
+        Presence client = Presence.unsynced();
+
+        // Deltas before the first snapshot are ignored, not reported as gaps
+        Assertions.assertTrue(client.applyDelta(server.set("carol", "Online")).isEmpty());
+        client.loadSnapshot(server.snapshot());
+        Assertions.assertEquals(3, client.getVersion());
+        Assertions.assertArrayEquals(new String[] { "alice:Online", "bob:Online", "carol:Online" },
+                client.entries());
+
+        Assertions.assertNull(server.set("alice", "Online")); // No change, no version
+        List<String[]> changes = client.applyDelta(server.set("alice", "Away"));
+        Assertions.assertEquals(1, changes.size());
+        Assertions.assertArrayEquals(new String[] { "alice", "Away" }, changes.get(0));
+        changes = client.applyDelta(server.remove("bob"));
+        Assertions.assertArrayEquals(new String[] { "bob", null }, changes.get(0));
+        Assertions.assertNull(client.getStatus("bob"));
+        Assertions.assertEquals(server.getVersion(), client.getVersion());
+    }
+
+    @Test
+    public void gapsAreReportedAndFilledFromTheLog() {
+        Presence server = new Presence();
+        Presence client = Presence.unsynced();
+        client.loadSnapshot(server.snapshot());
+
+        server.set("alice", "Online"); // Lost on the way
+        String later = server.set("bob", "Busy");
+        Assertions.assertNull(client.applyDelta(later));
+        Assertions.assertEquals(0, client.getVersion());
+
+        // The resync covers both; replaying a change already applied is harmless
+        String resync = server.changesSince(client.getVersion());
+        Assertions.assertEquals(2, client.applyDelta(resync).size());
+        Assertions.assertTrue(client.applyDelta(later).isEmpty());
+        Assertions.assertEquals("", server.changesSince(client.getVersion()));
+        Assertions.assertEquals("Busy", client.getStatus("bob"));
+
+        // Too far behind, or a version from before a server restart: snapshot instead
+        for (int i = 0; i <= Presence.LOG_SIZE; i++) {
+            server.set("user" + i, "Online");
+        }
+        Assertions.assertNull(server.changesSince(client.getVersion()));
+        Assertions.assertNull(server.changesSince(server.getVersion() + 5));
+    }
+
+    @Test
+    public void delimitersCannotSmuggleExtraChanges() {
+        Presence server = new Presence();
+        Presence client = Presence.unsynced();
+        client.loadSnapshot(server.snapshot());
+
+        Assertions.assertFalse(Presence.isValidStatus("x|+ghost:Online"));
+        Assertions.assertFalse(Presence.isValidStatus("Busy | in a meeting"));
+        Assertions.assertFalse(Presence.isValidStatus("Away\n"));
+        Assertions.assertFalse(Presence.isValidName("eve|mallory"));
+        Assertions.assertFalse(Presence.isValidName("eve:Online"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> server.set("alice", "x|+ghost:Online"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> server.set("a|+ghost", "Online"));
+        Assertions.assertEquals(0, server.getVersion());
+
+        // A status may still contain ':' and spaces: it is everything after the name's ':'
+        client.applyDelta(server.set("alice", "Busy: in a meeting"));
+        Assertions.assertEquals("Busy: in a meeting", client.getStatus("alice"));
+        Assertions.assertNull(client.getStatus("ghost"));
+        Assertions.assertEquals(server.getVersion(), client.getVersion());
+    }
+}
@@ -0,0 +1,50 @@
+package com.securechat.common;
+
+import com.securechat.common.util.RttEstimator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class RttEstimatorTest {
+
+    @Test
+    public void timeoutTracksMeasuredRoundTrips() {
+        RttEstimator rtt = new RttEstimator();
+        Assertions.assertEquals(RttEstimator.INITIAL_RTO_MILLIS, rtt.getTimeoutMillis());
+
+        // Steady 20ms LAN round trips -> RTO collapses to the floor instead of 10s
+        for (int i = 0; i < 50; i++) {
+            rtt.onSample(20);
+        }
+        Assertions.assertEquals(20, rtt.getSmoothedRttMillis());
+        Assertions.assertEquals(RttEstimator.MIN_RTO_MILLIS, rtt.getTimeoutMillis());
+
+        // A jittery slow link keeps headroom above its mean
+        RttEstimator slow = new RttEstimator();
+        for (int i = 0; i < 50; i++) {
+            slow.onSample(i % 2 == 0 ? 800 : 1600);
+        }
+        Assertions.assertTrue(slow.getTimeoutMillis() > 1600, "RTO must cover variance: " + slow.getTimeoutMillis());
+    }
+
+    @Test
+    public void backoffDoublesUntilExhausted() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.onSample(100);
+        long base = rtt.getTimeoutMillis();
+
+        rtt.onTimeout();
+        Assertions.assertEquals(base * 2, rtt.getTimeoutMillis());
+
+        int timeouts = 1;
+        while (!rtt.isExhausted()) {
+            rtt.onTimeout();
+            timeouts++;
+        }
+        Assertions.assertTrue(timeouts > 3, "Backoff series should outlast the old 3 fixed retries");
+        Assertions.assertTrue(rtt.getTimeoutMillis() <= RttEstimator.MAX_RTO_MILLIS);
+
+        // A fresh sample resets the backoff
+        rtt.onSample(100);
+        Assertions.assertFalse(rtt.isExhausted());
+    }
+}
@@ -0,0 +1,222 @@
+package com.securechat.common;
+
+import com.securechat.common.crypto.CipherSuite;
+import com.securechat.common.crypto.CryptoUtil;
+import com.securechat.common.crypto.RecordWriter;
+import com.securechat.common.crypto.SegmentedFrames;
+import com.securechat.common.crypto.SessionCipher;
+import com.securechat.common.util.BufferPool;
+import com.securechat.common.util.ProtocolUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+public class SessionCipherTest {
+
+    @Test
+    public void directionsUseDifferentKeysAndSurviveRekeys() throws Exception {
+        SecretKey sessionKey = CryptoUtil.generateAESKey();
+        for (CipherSuite suite : CipherSuite.values()) {
+            SessionCipher client = SessionCipher.create(sessionKey, suite, true, 3);
+            SessionCipher server = SessionCipher.create(sessionKey, suite, false, 3);
+
+            for (int i = 0; i < 10; i++) { // Crosses three rekeys in each direction
+                byte[] up = ("up " + i).getBytes();
+                byte[] down = ("down " + i).getBytes();
+                Assertions.assertArrayEquals(up, server.decrypt(client.encrypt(up)));
+                Assertions.assertArrayEquals(down, client.decrypt(server.encrypt(down)));
+            }
+            // A frame can't be reflected back to its sender
+            Assertions.assertThrows(AEADBadTagException.class, () -> client.decrypt(client.encrypt(new byte[4])));
+        }
+    }
+
+    @Test
+    public void negotiationFavoursTheSuiteTheSlowerEndRunsFastest() throws Exception {
+        // A client without AES instructions: AES-GCM scores 40, ChaCha20 500
+        byte[] slowAesClient = { 2, CipherSuite.AES_256_GCM.getId(), 0, 40, CipherSuite.CHACHA20_POLY1305.getId(), 1,
+                (byte) 0xF4 };
+        Assertions.assertEquals(CipherSuite.CHACHA20_POLY1305, CipherSuite.select(slowAesClient));
+
+        byte[] unknownOnly = { 1, 99, 0, 100 };
+        Assertions.assertThrows(java.io.IOException.class, () -> CipherSuite.select(unknownOnly));
+        Assertions.assertThrows(java.io.IOException.class,
+                () -> CipherSuite.checkSelected(CipherSuite.offers(), CipherSuite.fromId((byte) 3)));
+    }
+
+    @Test
+    public void largePacketsTravelAsSegmentsThatSmallOnesCanOvertake() throws Exception {
+        SecretKey sessionKey = CryptoUtil.generateAESKey();
+        SessionCipher client = SessionCipher.forClient(sessionKey);
+        SessionCipher server = SessionCipher.forServer(sessionKey);
+        byte[] paste = new byte[2 * 1024 * 1024 + 17];
+        new java.util.Random(3).nextBytes(paste);
+        byte[] heartbeat = "hb".getBytes();
+        int segment = SegmentedFrames.segmentSize(paste.length);
+        int id = 7;
+
+        // Half the paste, a small packet, then the rest
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(wire);
+        int records = 0;
+        for (int offset = 0; offset < paste.length; offset += segment) {
+            ProtocolUtil.writeFrame(out, SegmentedFrames.encryptSegment(client, id, paste, offset, segment));
+            records++;
+            if (records == 8)
+                ProtocolUtil.writeFrame(out, SegmentedFrames.encryptWhole(client, heartbeat));
+        }
+        Assertions.assertTrue(records <= 17, "2 MB should need about 16 records, not " + records);
+
+        SegmentedFrames receiving = new SegmentedFrames();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(wire.toByteArray()));
+        Assertions.assertArrayEquals(heartbeat, receiving.read(in, server));
+        Assertions.assertArrayEquals(paste, receiving.read(in, server));
+        Assertions.assertEquals(0, in.available());
+    }
+
+    @Test
+    public void smallPacketsQueuedTogetherShareOneRecord() throws Exception {
+        SecretKey sessionKey = CryptoUtil.generateAESKey();
+        SessionCipher client = SessionCipher.forClient(sessionKey);
+        SessionCipher server = SessionCipher.forServer(sessionKey);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        int[] records = { 0 };
+        RecordWriter writer = new RecordWriter(new DataOutputStream(wire), client, (bytes, nanos) -> records[0]++);
+
+        writer.cork();
+        for (int i = 0; i < 5; i++) {
+            writer.send(("ack " + i).getBytes());
+        }
+        writer.uncork();
+        writer.send("idle".getBytes());
+        Assertions.assertEquals(2, records[0]);
+
+        SegmentedFrames receiving = new SegmentedFrames();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(wire.toByteArray()));
+        for (int i = 0; i < 5; i++) {
+            Assertions.assertArrayEquals(("ack " + i).getBytes(), receiving.read(in, server));
+        }
+        Assertions.assertArrayEquals("idle".getBytes(), receiving.read(in, server));
+        Assertions.assertEquals(0, in.available());
+    }
+
+    @Test
+    public void urgentPacketsFlushThroughACork() throws Exception {
+        SecretKey sessionKey = CryptoUtil.generateAESKey();
+        SessionCipher client = SessionCipher.forClient(sessionKey);
+        SessionCipher server = SessionCipher.forServer(sessionKey);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(wire, RecordWriter.FLUSH_BYTES));
+        RecordWriter writer = new RecordWriter(out, client, null);
+
+        writer.cork();
+        writer.send("status".getBytes());
+        writer.send("typing".getBytes());
+        Assertions.assertEquals(0, wire.size());
+        writer.send("ack".getBytes(), true);
+        Assertions.assertTrue(wire.size() > 0);
+
+        SegmentedFrames receiving = new SegmentedFrames();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(wire.toByteArray()));
+        Assertions.assertArrayEquals("status".getBytes(), receiving.read(in, server));
+        Assertions.assertArrayEquals("typing".getBytes(), receiving.read(in, server));
+        Assertions.assertArrayEquals("ack".getBytes(), receiving.read(in, server));
+        Assertions.assertEquals(0, in.available());
+    }
+
+    @Test
+    public void announcedLengthsCostNothingUntilTheDataArrives() throws Exception {
+        SecretKey sessionKey = CryptoUtil.generateAESKey();
+        SessionCipher client = SessionCipher.forClient(sessionKey);
+        SessionCipher server = SessionCipher.forServer(sessionKey);
+        byte[] data = new byte[SegmentedFrames.MIN_SEGMENT];
+
+        // FIRST records announcing 64 MB each, with 16 KB behind them
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(wire);
+        for (int id = 0; id < 200; id++) {
+            ByteBuffer header = ByteBuffer.allocate(9).put((byte) 1).putInt(id)
+                    .putInt(SegmentedFrames.MAX_MESSAGE_BYTES);
+            ProtocolUtil.writeFrame(out, client.encrypt(header.array(), data, 0, data.length));
+        }
+        ProtocolUtil.writeFrame(out, SegmentedFrames.encryptWhole(client, "hb".getBytes()));
+        SegmentedFrames receiving = new SegmentedFrames();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(wire.toByteArray()));
+        Assertions.assertArrayEquals("hb".getBytes(), receiving.read(in, server));
+
+        // Before login a server refuses them outright
+        SessionCipher client2 = SessionCipher.forClient(sessionKey);
+        SessionCipher server2 = SessionCipher.forServer(sessionKey);
+        byte[] paste = new byte[SegmentedFrames.MIN_SEGMENT + 1];
+        wire.reset();
+        ProtocolUtil.writeFrame(out, SegmentedFrames.encryptSegment(client2, 1, paste, 0, SegmentedFrames.MIN_SEGMENT));
+        SegmentedFrames anonymous = new SegmentedFrames();
+        anonymous.setSegmentsAllowed(false);
+        DataInputStream in2 = new DataInputStream(new ByteArrayInputStream(wire.toByteArray()));
+        Assertions.assertThrows(java.io.IOException.class, () -> anonymous.next(in2, server2));
+    }
+
+    @Test
+    public void readerReusesPooledBuffersAndRejectsOversizedFrames() throws Exception {
+        SecretKey sessionKey = CryptoUtil.generateAESKey();
+        SessionCipher client = SessionCipher.forClient(sessionKey);
+        SessionCipher server = SessionCipher.forServer(sessionKey);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        RecordWriter writer = new RecordWriter(new DataOutputStream(wire), client, null);
+        for (int i = 0; i < 100; i++) {
+            writer.send(("message " + i).getBytes());
+        }
+        DataOutputStream hostile = new DataOutputStream(wire);
+        hostile.writeInt(Integer.MAX_VALUE);
+
+        BufferPool pool = new BufferPool(64 * 1024);
+        SegmentedFrames receiving = new SegmentedFrames(pool);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(wire.toByteArray()));
+        for (int i = 0; i < 100; i++) {
+            ByteBuffer packet = receiving.next(in, server);
+            Assertions.assertEquals("message " + i, new String(packet.array(), packet.position(), packet.remaining()));
+        }
+        Assertions.assertTrue(pool.getAllocations() <= 3, pool.getAllocations() + " buffers for 100 frames");
+        Assertions.assertThrows(java.io.IOException.class, () -> receiving.next(in, server));
+    }
+
+    @Test
+    public void rejectsReplayedFrames() throws Exception {
+        SecretKey sessionKey = CryptoUtil.generateAESKey();
+        SessionCipher client = SessionCipher.forClient(sessionKey);
+        SessionCipher server = SessionCipher.forServer(sessionKey);
+
+        byte[] frame = client.encrypt("once".getBytes());
+        server.decrypt(frame);
+        Assertions.assertThrows(AEADBadTagException.class, () -> server.decrypt(frame));
+    }
+
+    @Test
+    public void byteBufferPathEncryptsInPlace() throws Exception {
+        SecretKey sessionKey = CryptoUtil.generateAESKey();
+        SessionCipher client = SessionCipher.forClient(sessionKey);
+        SessionCipher server = SessionCipher.forServer(sessionKey);
+
+        byte[] message = "in place".getBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(SessionCipher.frameLength(message.length));
+        buffer.position(SessionCipher.NONCE_LENGTH);
+        buffer.put(message).flip().position(SessionCipher.NONCE_LENGTH);
+        ByteBuffer plaintext = buffer.slice();
+        buffer.clear();
+        int frameLength = client.encrypt(plaintext, buffer);
+        Assertions.assertEquals(buffer.capacity(), frameLength);
+
+        buffer.flip();
+        ByteBuffer out = ByteBuffer.allocate(message.length);
+        Assertions.assertEquals(message.length, server.decrypt(buffer, out));
+        Assertions.assertArrayEquals(message, out.array());
+    }
+}
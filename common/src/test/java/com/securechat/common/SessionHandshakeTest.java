@@ -0,0 +1,145 @@
+package com.securechat.common;
+
+import com.securechat.common.crypto.CryptoUtil;
+import com.securechat.common.crypto.SessionHandshake;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.security.KeyPair;
+import java.util.HexFormat;
+import java.util.concurrent.CompletableFuture;
+
+public class SessionHandshakeTest {
+
+    @Test
+    public void hkdfMatchesRfc5869() throws Exception {
+        // RFC 5869 Appendix A, test case 1
+        HexFormat hex = HexFormat.of();
+        byte[] okm = CryptoUtil.hkdf(hex.parseHex("000102030405060708090a0b0c"),
+                hex.parseHex("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b"), hex.parseHex("f0f1f2f3f4f5f6f7f8f9"),
+                42);
+        Assertions.assertEquals("3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf"
+                + "34007208d5b887185865", hex.formatHex(okm));
+    }
+
+    @Test
+    public void bothSidesDeriveTheSameKeyAndClientSeesStaticKey() throws Exception {
+        KeyPair serverIdentity = CryptoUtil.generateX25519KeyPair();
+        PipedOutputStream clientToServer = new PipedOutputStream();
+        DataInputStream serverIn = new DataInputStream(new PipedInputStream(clientToServer));
+        PipedOutputStream serverToClient = new PipedOutputStream();
+        DataInputStream clientIn = new DataInputStream(new PipedInputStream(serverToClient));
+
+        CompletableFuture<SessionHandshake.ServerReply> server = CompletableFuture.supplyAsync(() -> {
+            try {
+                SessionHandshake.ClientHello hello = SessionHandshake.readClientHello(serverIn);
+                SessionHandshake.ServerReply reply = SessionHandshake.respond(hello, serverIdentity);
+                SessionHandshake.writeServerHello(new DataOutputStream(serverToClient), reply);
+                return reply;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        SessionHandshake.ClientSession session = SessionHandshake.client(clientIn,
+                new DataOutputStream(clientToServer),
+                key -> Assertions.assertArrayEquals(serverIdentity.getPublic().getEncoded(), key.getEncoded()));
+
+        SecretKey serverKey = server.get().getSessionKey();
+        Assertions.assertArrayEquals(serverKey.getEncoded(), session.getSessionKey().getEncoded());
+        Assertions.assertEquals(server.get().getCipherSuite(), session.getCipherSuite());
+        byte[] sealed = CryptoUtil.encryptAES("hello".getBytes(), session.getSessionKey());
+        Assertions.assertEquals("hello", new String(CryptoUtil.decryptAES(sealed, serverKey)));
+    }
+
+    @Test
+    public void earlyDataReachesServerUnlessRefused() throws Exception {
+        KeyPair serverIdentity = CryptoUtil.generateX25519KeyPair();
+        for (boolean refuse : new boolean[] { false, true }) {
+            PipedOutputStream clientToServer = new PipedOutputStream();
+            DataInputStream serverIn = new DataInputStream(new PipedInputStream(clientToServer));
+            PipedOutputStream serverToClient = new PipedOutputStream();
+            DataInputStream clientIn = new DataInputStream(new PipedInputStream(serverToClient));
+
+            CompletableFuture<SessionHandshake.ServerReply> server = CompletableFuture.supplyAsync(() -> {
+                try {
+                    SessionHandshake.ClientHello hello = SessionHandshake.readClientHello(serverIn);
+                    Assertions.assertEquals(SessionHandshake.MODE_FULL_EARLY, hello.getMode());
+                    SessionHandshake.ServerReply reply = SessionHandshake
+                            .respond(refuse ? hello.refuseEarlyData() : hello, serverIdentity);
+                    SessionHandshake.writeServerHello(new DataOutputStream(serverToClient), reply);
+                    return reply;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            SessionHandshake.ClientSession session = SessionHandshake.client(clientIn,
+                    new DataOutputStream(clientToServer), key -> {
+                    }, serverIdentity.getPublic(), "LOGIN".getBytes());
+
+            Assertions.assertEquals(!refuse, session.isEarlyDataAccepted());
+            Assertions.assertEquals(refuse ? null : "LOGIN",
+                    server.get().getEarlyData() == null ? null : new String(server.get().getEarlyData()));
+            Assertions.assertArrayEquals(server.get().getSessionKey().getEncoded(),
+                    session.getSessionKey().getEncoded());
+        }
+    }
+
+    @Test
+    public void resumedSessionMatchesOnlyWithTheRightSecret() throws Exception {
+        SecretKey earlierSession = CryptoUtil.generateAESKey();
+        byte[] secret = SessionHandshake.resumptionSecret(earlierSession, new byte[16]);
+        byte[] ticket = new byte[] { 1, 2, 3, 4 };
+
+        PipedOutputStream clientToServer = new PipedOutputStream();
+        DataInputStream serverIn = new DataInputStream(new PipedInputStream(clientToServer));
+        PipedOutputStream serverToClient = new PipedOutputStream();
+        DataInputStream clientIn = new DataInputStream(new PipedInputStream(serverToClient));
+
+        CompletableFuture<SecretKey> server = CompletableFuture.supplyAsync(() -> {
+            try {
+                SessionHandshake.ClientHello hello = SessionHandshake.readClientHello(serverIn);
+                Assertions.assertArrayEquals(ticket, hello.getTicket());
+                Assertions.assertFalse(SessionHandshake.verifyBinder(hello, new byte[32]));
+                Assertions.assertTrue(SessionHandshake.verifyBinder(hello, secret));
+                SessionHandshake.ServerReply reply = SessionHandshake.resume(hello, secret);
+                SessionHandshake.writeServerHello(new DataOutputStream(serverToClient), reply);
+                return reply.getSessionKey();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        SecretKey clientKey = SessionHandshake.resume(clientIn, new DataOutputStream(clientToServer), ticket, secret)
+                .getSessionKey();
+
+        Assertions.assertArrayEquals(server.get().getEncoded(), clientKey.getEncoded());
+        Assertions.assertFalse(java.util.Arrays.equals(earlierSession.getEncoded(), clientKey.getEncoded()));
+    }
+
+    @Test
+    public void e2eKeysMatchForTheSamePairOfUsersOnly() throws Exception {
+        KeyPair alice = CryptoUtil.generateX25519KeyPair();
+        KeyPair bob = CryptoUtil.generateX25519KeyPair();
+        SecretKey aliceSide = CryptoUtil.deriveSharedSecret(alice.getPrivate(), bob.getPublic().getEncoded(),
+                "alice", "bob");
+        SecretKey bobSide = CryptoUtil.deriveSharedSecret(bob.getPrivate(), alice.getPublic().getEncoded(), "bob",
+                "alice");
+        SecretKey otherPair = CryptoUtil.deriveSharedSecret(alice.getPrivate(), bob.getPublic().getEncoded(),
+                "alice", "mallory");
+
+        Assertions.assertArrayEquals(aliceSide.getEncoded(), bobSide.getEncoded());
+        Assertions.assertFalse(java.util.Arrays.equals(aliceSide.getEncoded(), otherPair.getEncoded()));
+    }
+
+    @Test
+    public void rejectsNonHandshakeBytes() {
+        byte[] legacy = new byte[] { 0, 0, 1, 38, 1, 2, 3 }; // e.g. an old RSA-era length prefix
+        Assertions.assertThrows(java.io.IOException.class,
+                () -> SessionHandshake.readClientHello(new DataInputStream(new ByteArrayInputStream(legacy))));
+    }
+}
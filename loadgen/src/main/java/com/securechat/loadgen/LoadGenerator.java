@@ -0,0 +1,346 @@
+package com.securechat.loadgen;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command-line load generator: opens N simulated sessions against a server,
+ * drives a weighted mix of DMs, group messages, key exchanges and file
+ * uploads, and reports end-to-end latency percentiles, throughput and
+ * errors.
+ *
+ * Usage: java -jar loadgen/target/loadgen.jar --clients 1000 --profile ramp
+ *
+ * Profiles:
+ * ramp - clients connect evenly over --ramp seconds, then --duration more
+ * steady - all clients connect first; only the following --duration is measured
+ * storm - all clients connect at once, hold, disconnect; repeated --waves times
+ *
+ * Run it from a scratch directory: received files land in ./downloads and
+ * E2EE key stores in the working directory, exactly as for a real client;
+ * each client's transfer journal, file identity cache and pinned server keys
+ * go in its own ./clients/<username>. The key stores use a cheap password KDF unless
+ * securechat.e2e.kdf.iterations is set, so unlocking N stores at login does
+ * not dominate the measurement.
+ */
+public class LoadGenerator {
+
+    public enum Profile {
+        RAMP, STEADY, STORM
+    }
+
+    // Weighted action mix, in percent of each client's actions
+    private static final class Mix {
+        int dm = 45;
+        int group = 45;
+        int key = 5;
+        int file = 5;
+
+        int total() {
+            return dm + group + key + file;
+        }
+    }
+
+    private String host = "127.0.0.1";
+    private int port = 5000;
+    private int clients = 100;
+    private Profile profile = Profile.RAMP;
+    private int rampSeconds = 30;
+    private int durationSeconds = 60;
+    private double ratePerClient = 1.0; // Actions per client per second
+    private final Mix mix = new Mix();
+    private int groups = 10;
+    private int messageSize = 64;
+    private int fileSize = 64 * 1024;
+    private int waves = 3;
+    private int connectParallelism = 64;
+    private boolean verbose;
+
+    private final LoadStats stats = new LoadStats();
+    private final List<SimulatedClient> simulated = new ArrayList<>();
+    private ScheduledExecutorService scheduler;
+    private final List<ScheduledFuture<?>> traffic = new ArrayList<>();
+    private PrintStream report = System.out;
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("securechat.e2e.kdf.iterations") == null)
+            System.setProperty("securechat.e2e.kdf.iterations", "1000");
+        LoadGenerator generator = new LoadGenerator();
+        if (!generator.parseArgs(args)) {
+            printUsage();
+            System.exit(2);
+        }
+        generator.run();
+        System.exit(0);
+    }
+
+    private boolean parseArgs(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("-h") || arg.equals("--help"))
+                    return false;
+                if (arg.equals("--verbose")) {
+                    verbose = true;
+                    continue;
+                }
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                String value = args[++i];
+                switch (arg) {
+                    case "--host" -> host = value;
+                    case "--port" -> port = Integer.parseInt(value);
+                    case "--clients" -> clients = Integer.parseInt(value);
+                    case "--profile" -> profile = Profile.valueOf(value.toUpperCase());
+                    case "--ramp" -> rampSeconds = Integer.parseInt(value);
+                    case "--duration" -> durationSeconds = Integer.parseInt(value);
+                    case "--rate" -> ratePerClient = Double.parseDouble(value);
+                    case "--mix" -> parseMix(value);
+                    case "--groups" -> groups = Integer.parseInt(value);
+                    case "--message-size" -> messageSize = Integer.parseInt(value);
+                    case "--file-size" -> fileSize = Integer.parseInt(value);
+                    case "--waves" -> waves = Integer.parseInt(value);
+                    case "--connect-parallelism" -> connectParallelism = Integer.parseInt(value);
+                    default -> throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (clients < 2 || groups < 1 || ratePerClient <= 0 || mix.total() <= 0)
+                throw new IllegalArgumentException(
+                        "Need --clients >= 2, --groups >= 1, --rate > 0 and a non-empty mix");
+            return true;
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // e.g. dm=40,group=40,key=10,file=10
+    private void parseMix(String value) {
+        mix.dm = mix.group = mix.key = mix.file = 0;
+        for (String part : value.split(",")) {
+            String[] kv = part.split("=", 2);
+            int weight = Integer.parseInt(kv[1].trim());
+            switch (kv[0].trim()) {
+                case "dm" -> mix.dm = weight;
+                case "group" -> mix.group = weight;
+                case "key" -> mix.key = weight;
+                case "file" -> mix.file = weight;
+                default -> throw new IllegalArgumentException("Unknown mix entry " + kv[0]);
+            }
+        }
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: java -jar loadgen.jar [options]");
+        System.err.println("  --host H                 server host (127.0.0.1)");
+        System.err.println("  --port P                 server port (5000)");
+        System.err.println("  --clients N              simulated sessions (100)");
+        System.err.println("  --profile ramp|steady|storm (ramp)");
+        System.err.println("  --ramp S                 ramp-up seconds (30)");
+        System.err.println("  --duration S             measured seconds after connecting (60)");
+        System.err.println("  --rate R                 actions per client per second (1.0)");
+        System.err.println("  --mix dm=45,group=45,key=5,file=5");
+        System.err.println("  --groups G               groups the clients are spread over (10)");
+        System.err.println("  --message-size B         chat message size in bytes (64)");
+        System.err.println("  --file-size B            uploaded file size in bytes (65536)");
+        System.err.println("  --waves W                storm: connect/disconnect cycles (3)");
+        System.err.println("  --connect-parallelism C  concurrent connects for ramp/steady (64)");
+        System.err.println("  --verbose                keep the clients' own console and error output");
+    }
+
+    private void run() throws Exception {
+        if (!verbose) {
+            // Thousands of clients each printing handshakes, reassemblies and disconnect traces would swamp
+            // the report; errors are counted in LoadStats instead
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+        }
+        String runId = Integer.toHexString(ThreadLocalRandom.current().nextInt(0x1000, 0x10000));
+        for (int i = 0; i < clients; i++) {
+            String username = "lg" + runId + "-" + i;
+            simulated.add(new SimulatedClient(username, "lg" + runId + "-g" + (i % groups), stats,
+                    new java.io.File("clients", username)));
+        }
+        // Sends block on the socket, so give the scheduler more threads than cores
+        int trafficThreads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+        scheduler = Executors.newScheduledThreadPool(trafficThreads, r -> {
+            Thread t = new Thread(r, "loadgen-traffic");
+            t.setDaemon(true);
+            return t;
+        });
+
+        report.println(String.format("[LoadGen] %s profile: %d clients -> %s:%d, %.2f actions/client/s, mix dm=%d "
+                + "group=%d key=%d file=%d", profile.name().toLowerCase(), clients, host, port, ratePerClient, mix.dm,
+                mix.group, mix.key, mix.file));
+        ScheduledFuture<?> progress = startProgressReports();
+
+        switch (profile) {
+            case RAMP -> runRamp();
+            case STEADY -> runSteady();
+            case STORM -> runStorm();
+        }
+
+        progress.cancel(false);
+        stopTraffic();
+        stats.printSummary(report);
+        report.println(String.format("target rate:        %.0f actions/s (a lower achieved rate means the generator "
+                + "or server is saturated)", clients * ratePerClient));
+        for (SimulatedClient client : simulated) {
+            client.disconnect();
+        }
+    }
+
+    private void runRamp() throws InterruptedException {
+        ExecutorService connectors = Executors.newFixedThreadPool(connectParallelism);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(rampSeconds) / clients;
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            long due = start + i * intervalNanos;
+            long wait = due - System.nanoTime();
+            if (wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+            SimulatedClient client = simulated.get(i);
+            connectors.execute(() -> {
+                if (client.connect(host, port))
+                    startTraffic(client);
+            });
+        }
+        connectors.shutdown();
+        connectors.awaitTermination(1, TimeUnit.MINUTES);
+        report.println("[LoadGen] Ramp complete: " + stats.online.get() + "/" + clients + " online");
+        TimeUnit.SECONDS.sleep(durationSeconds);
+    }
+
+    private void runSteady() throws InterruptedException {
+        connectAll(connectParallelism);
+        report.println("[LoadGen] Warm-up complete: " + stats.online.get() + "/" + clients
+                + " online. Measuring steady state...");
+        for (SimulatedClient client : simulated) {
+            if (client.isOnline())
+                startTraffic(client);
+        }
+        TimeUnit.SECONDS.sleep(Math.min(5, durationSeconds)); // Let key exchanges settle before measuring
+        stats.reset();
+        TimeUnit.SECONDS.sleep(durationSeconds);
+    }
+
+    private void runStorm() throws InterruptedException {
+        long holdSeconds = Math.max(1, durationSeconds / waves);
+        for (int wave = 1; wave <= waves; wave++) {
+            long start = System.nanoTime();
+            connectAll(clients); // Everyone at once
+            report.println(String.format("[LoadGen] Storm wave %d/%d: %d/%d online after %s", wave, waves,
+                    stats.online.get(), clients, LoadStats.formatNanos(System.nanoTime() - start)));
+            for (SimulatedClient client : simulated) {
+                if (client.isOnline())
+                    startTraffic(client);
+            }
+            TimeUnit.SECONDS.sleep(holdSeconds);
+            stopTraffic();
+            if (wave < waves) {
+                for (SimulatedClient client : simulated) {
+                    client.disconnect();
+                }
+                TimeUnit.SECONDS.sleep(2); // Let the server notice the disconnects
+            }
+        }
+    }
+
+    // All connects released together through a start gate, parallelism threads at a time
+    private void connectAll(int parallelism) throws InterruptedException {
+        ExecutorService connectors = Executors.newFixedThreadPool(Math.min(parallelism, clients));
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(clients);
+        for (SimulatedClient client : simulated) {
+            connectors.execute(() -> {
+                try {
+                    gate.await();
+                    client.connect(host, port);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        gate.countDown();
+        done.await();
+        connectors.shutdown();
+    }
+
+    private synchronized void startTraffic(SimulatedClient client) {
+        long periodMicros = Math.max(1, (long) (1_000_000 / ratePerClient));
+        long initialDelay = ThreadLocalRandom.current().nextLong(periodMicros); // Spread clients over the period
+        traffic.add(scheduler.scheduleAtFixedRate(() -> act(client), initialDelay, periodMicros,
+                TimeUnit.MICROSECONDS));
+    }
+
+    private synchronized void stopTraffic() {
+        for (ScheduledFuture<?> f : traffic) {
+            f.cancel(false);
+        }
+        traffic.clear();
+    }
+
+    private void act(SimulatedClient client) {
+        if (!client.isOnline())
+            return;
+        try {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int roll = random.nextInt(mix.total());
+            if (roll < mix.group) {
+                client.sendGroupMessage(messageSize);
+                return;
+            }
+            SimulatedClient peer = randomPeer(client, random);
+            if (peer == null)
+                return;
+            roll -= mix.group;
+            if (roll < mix.dm) {
+                client.sendDm(peer, messageSize);
+            } else if (roll < mix.dm + mix.key) {
+                client.exchangeKeys(peer);
+            } else {
+                client.sendFile(peer, fileSize);
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel this client's schedule
+            stats.sendErrors.increment();
+        }
+    }
+
+    private SimulatedClient randomPeer(SimulatedClient self, ThreadLocalRandom random) {
+        for (int attempt = 0; attempt < 8; attempt++) {
+            SimulatedClient peer = simulated.get(random.nextInt(simulated.size()));
+            if (peer != self && peer.isOnline())
+                return peer;
+        }
+        return null;
+    }
+
+    private ScheduledFuture<?> startProgressReports() {
+        long[] last = new long[2];
+        long[] lastTime = { System.nanoTime() };
+        return scheduler.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime();
+            long sent = stats.dmSent.sum() + stats.groupSent.sum();
+            long delivered = stats.delivered();
+            double seconds = (now - lastTime[0]) / 1e9;
+            // Counters go backwards after a warm-up reset
+            report.println("[LoadGen] " + stats.progressLine(Math.max(0, sent - last[0]),
+                    Math.max(0, delivered - last[1]), seconds));
+            last[0] = sent;
+            last[1] = delivered;
+            lastTime[0] = now;
+        }, 5, 5, TimeUnit.SECONDS);
+    }
+}
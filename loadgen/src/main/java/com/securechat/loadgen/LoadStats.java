@@ -0,0 +1,100 @@
+package com.securechat.loadgen;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Everything the load generator measures, shared by all simulated clients.
+ * Latencies are end to end: stamped by the sending client, recorded by the
+ * receiving one (all clients live in one JVM, so nanoTime is comparable).
+ */
+public class LoadStats {
+
+    public final LatencyRecorder connect = new LatencyRecorder(); // TCP + RSA/AES handshake
+    public final LatencyRecorder login = new LatencyRecorder();
+    public final LatencyRecorder dm = new LatencyRecorder();
+    public final LatencyRecorder group = new LatencyRecorder();
+    public final LatencyRecorder keyExchange = new LatencyRecorder();
+
+    public final LongAdder dmSent = new LongAdder();
+    public final LongAdder groupSent = new LongAdder();
+    public final LongAdder keyExchangesStarted = new LongAdder();
+    public final LongAdder filesOffered = new LongAdder();
+    public final LongAdder filesReceived = new LongAdder();
+    public final LongAdder connectErrors = new LongAdder();
+    public final LongAdder loginErrors = new LongAdder();
+    public final LongAdder sendErrors = new LongAdder();
+    public final LongAdder protocolErrors = new LongAdder(); // Undecryptable or unkeyed messages
+
+    public final AtomicInteger online = new AtomicInteger();
+
+    private long windowStartNanos = System.nanoTime();
+
+    // Drops warm-up samples so the report only covers the measured phase
+    public void reset() {
+        connect.reset();
+        login.reset();
+        dm.reset();
+        group.reset();
+        keyExchange.reset();
+        for (LongAdder a : new LongAdder[] { dmSent, groupSent, keyExchangesStarted, filesOffered, filesReceived,
+                connectErrors, loginErrors, sendErrors, protocolErrors }) {
+            a.reset();
+        }
+        windowStartNanos = System.nanoTime();
+    }
+
+    public long errors() {
+        return connectErrors.sum() + loginErrors.sum() + sendErrors.sum() + protocolErrors.sum();
+    }
+
+    public long delivered() {
+        return dm.getCount() + group.getCount();
+    }
+
+    // One line for the periodic progress report
+    public String progressLine(long sentSinceLast, long deliveredSinceLast, double seconds) {
+        return String.format("online=%d sent/s=%.0f delivered/s=%.0f group e2e p50=%s p99=%s errors=%d",
+                online.get(), sentSinceLast / seconds, deliveredSinceLast / seconds, formatNanos(group.quantile(0.50)),
+                formatNanos(group.quantile(0.99)), errors());
+    }
+
+    public void printSummary(PrintStream out) {
+        double seconds = (System.nanoTime() - windowStartNanos) / 1e9;
+        long sent = dmSent.sum() + groupSent.sum();
+        out.println();
+        out.println(String.format("=== Load summary (%.1f s measured) ===", seconds));
+        out.println(String.format("%-14s %9s %9s %9s %9s %9s %9s", "latency", "count", "p50", "p90", "p99",
+                "p99.9", "max"));
+        printRow(out, "connect", connect);
+        printRow(out, "login", login);
+        printRow(out, "key exchange", keyExchange);
+        printRow(out, "dm e2e", dm);
+        printRow(out, "group e2e", group);
+        out.println();
+        out.println(String.format("messages sent:      %d (%.0f/s)  dm=%d group=%d", sent, sent / seconds,
+                dmSent.sum(), groupSent.sum()));
+        out.println(String.format("deliveries:         %d (%.0f/s)", delivered(), delivered() / seconds));
+        out.println(String.format("key exchanges:      %d started, %d completed", keyExchangesStarted.sum(),
+                keyExchange.getCount()));
+        out.println(String.format("files:              %d offered, %d received", filesOffered.sum(),
+                filesReceived.sum()));
+        out.println(String.format("errors:             connect=%d login=%d send=%d protocol=%d", connectErrors.sum(),
+                loginErrors.sum(), sendErrors.sum(), protocolErrors.sum()));
+    }
+
+    private static void printRow(PrintStream out, String name, LatencyRecorder r) {
+        out.println(String.format("%-14s %9d %9s %9s %9s %9s %9s", name, r.getCount(), formatNanos(r.quantile(0.50)),
+                formatNanos(r.quantile(0.90)), formatNanos(r.quantile(0.99)), formatNanos(r.quantile(0.999)),
+                formatNanos(r.getMax())));
+    }
+
+    static String formatNanos(long nanos) {
+        if (nanos < 1_000_000)
+            return String.format("%.0fus", nanos / 1e3);
+        if (nanos < 1_000_000_000)
+            return String.format("%.1fms", nanos / 1e6);
+        return String.format("%.2fs", nanos / 1e9);
+    }
+}
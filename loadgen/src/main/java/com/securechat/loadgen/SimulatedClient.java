@@ -0,0 +1,204 @@
+package com.securechat.loadgen;
+
+import com.securechat.client.core.ClientEvent;
+import com.securechat.client.core.NetworkClient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One simulated user: a real NetworkClient driven by the generator instead of
+ * a UI. Outgoing messages carry their send time ("LG <nanoTime> ..."), so the
+ * receiving client can record end-to-end latency.
+ */
+public class SimulatedClient {
+
+    private static final String PASSWORD = "loadgen";
+    private static final String STAMP = "LG ";
+
+    private final String username;
+    private final String group;
+    private final LoadStats stats;
+    private final File dataDirectory;
+    private final AtomicInteger fileSeq = new AtomicInteger();
+    private final Map<String, Long> keyExchangeStarted = new ConcurrentHashMap<>();
+    private volatile NetworkClient client;
+    private volatile boolean online;
+
+    // dataDirectory: this client's own transfer journal, file identity cache and pinned keys
+    public SimulatedClient(String username, String group, LoadStats stats, File dataDirectory) {
+        this.username = username;
+        this.group = group;
+        this.stats = stats;
+        this.dataDirectory = dataDirectory;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public boolean isOnline() {
+        return online;
+    }
+
+    // Connect, handshake with LOGIN in the same flight, and join the client's group. Blocking.
+    public boolean connect(String host, int port) {
+        NetworkClient c = new NetworkClient(host, port, dataDirectory);
+        c.addListener(this::onEvent);
+        long start = System.nanoTime();
+        java.util.concurrent.CompletableFuture<String> auth;
+        try {
+            auth = c.connectAndLogin(username, PASSWORD);
+        } catch (Exception e) {
+            stats.connectErrors.increment();
+            c.disconnect();
+            return false;
+        }
+        stats.connect.recordSince(start);
+
+        long loginStart = System.nanoTime();
+        try {
+            String response = auth.get(30, TimeUnit.SECONDS);
+            if (!response.startsWith("SUCCESS")) {
+                stats.loginErrors.increment();
+                c.disconnect();
+                return false;
+            }
+        } catch (Exception e) {
+            stats.loginErrors.increment();
+            c.disconnect();
+            return false;
+        }
+        stats.login.recordSince(loginStart);
+
+        c.createGroup(group); // Idempotent on the server; also joins
+        client = c;
+        keyExchangeStarted.clear();
+        online = true;
+        stats.online.incrementAndGet();
+        return true;
+    }
+
+    public void disconnect() {
+        NetworkClient c = client;
+        if (c == null)
+            return;
+        if (online) {
+            online = false;
+            stats.online.decrementAndGet();
+        }
+        client = null;
+        c.disconnect();
+    }
+
+    // --- Actions (called from the generator's scheduler threads) ---
+
+    public void sendDm(SimulatedClient peer, int messageSize) {
+        NetworkClient c = client;
+        if (c == null)
+            return;
+        try {
+            c.sendSecureDM(peer.username, stamp(messageSize));
+            stats.dmSent.increment();
+        } catch (Exception e) {
+            stats.sendErrors.increment();
+        }
+    }
+
+    public void sendGroupMessage(int messageSize) {
+        NetworkClient c = client;
+        if (c == null)
+            return;
+        try {
+            c.sendGroupMessage(group, stamp(messageSize));
+            stats.groupSent.increment();
+        } catch (Exception e) {
+            stats.sendErrors.increment();
+        }
+    }
+
+    // Only the first exchange per peer does real work; NetworkClient ignores repeats
+    public void exchangeKeys(SimulatedClient peer) {
+        NetworkClient c = client;
+        if (c == null || keyExchangeStarted.putIfAbsent(peer.username, System.nanoTime()) != null)
+            return;
+        c.initiateE2E(peer.username);
+        stats.keyExchangesStarted.increment();
+    }
+
+    public void sendFile(SimulatedClient peer, int fileSize) {
+        NetworkClient c = client;
+        if (c == null)
+            return;
+        try {
+            // Fresh random content per upload: file IDs are content-derived
+            File file = File.createTempFile("lg-" + username + "-" + fileSeq.incrementAndGet() + "-", ".bin");
+            file.deleteOnExit();
+            byte[] data = new byte[fileSize];
+            ThreadLocalRandom.current().nextBytes(data);
+            try (FileOutputStream fos = new FileOutputStream(file)) {
+                fos.write(data);
+            }
+            c.sendDirectFile(file, peer.username);
+            stats.filesOffered.increment();
+        } catch (Exception e) {
+            stats.sendErrors.increment();
+        }
+    }
+
+    private static String stamp(int messageSize) {
+        StringBuilder sb = new StringBuilder(Math.max(messageSize, 32));
+        sb.append(STAMP).append(System.nanoTime()).append(' ');
+        while (sb.length() < messageSize) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    // --- Incoming events (NetworkClient publisher threads) ---
+
+    private void onEvent(ClientEvent event) {
+        switch (event.getType()) {
+            case MESSAGE:
+                String text = event.getText();
+                if (text != null && text.startsWith(STAMP)) {
+                    int end = text.indexOf(' ', STAMP.length());
+                    try {
+                        long sentAt = Long.parseLong(text.substring(STAMP.length(), end));
+                        (event.isGroup() ? stats.group : stats.dm).recordSince(sentAt);
+                    } catch (RuntimeException e) {
+                        stats.protocolErrors.increment();
+                    }
+                } else {
+                    stats.protocolErrors.increment(); // e.g. "[Encrypted Content - No Key]"
+                }
+                break;
+            case NOTICE:
+                String notice = event.getText();
+                if (notice == null)
+                    break;
+                if (notice.startsWith("System: E2EE established with ") && !notice.endsWith("(Response)")) {
+                    Long started = keyExchangeStarted.get(notice.substring("System: E2EE established with ".length()));
+                    if (started != null)
+                        stats.keyExchange.recordSince(started);
+                } else if (notice.startsWith("System: File download complete")) {
+                    stats.filesReceived.increment();
+                } else if (notice.startsWith("[System] Failed to decrypt")) {
+                    stats.protocolErrors.increment();
+                }
+                break;
+            case FILE_OFFER:
+                NetworkClient c = client;
+                if (c != null)
+                    c.respondToFileOffer(event.getFileId(), true);
+                break;
+            default:
+                break;
+        }
+    }
+}
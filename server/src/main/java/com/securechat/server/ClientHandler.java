@@ -1,18 +1,25 @@
 package com.securechat.server;
 
-import com.securechat.common.crypto.CryptoUtil;
+import com.securechat.common.crypto.RecordWriter;
+import com.securechat.common.crypto.SegmentedFrames;
+import com.securechat.common.crypto.SessionCipher;
+import com.securechat.common.crypto.SessionHandshake;
 import com.securechat.common.protocol.Packet;
+import com.securechat.common.protocol.PacketCodec;
 import com.securechat.common.protocol.PacketType;
+import com.securechat.common.protocol.Presence;
+import com.securechat.common.util.ChunkBitmap;
 import com.securechat.common.util.ProtocolUtil;
 
 import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
 import java.net.Socket;
 import java.util.*;
 
 public class ClientHandler implements Runnable {
 
+    private static final int HANDSHAKE_READ_TIMEOUT_MS = 10_000;
+
     private final Socket socket;
     private final ServerState serverState;
 
@@ -20,33 +27,55 @@ public class ClientHandler implements Runnable {
     private DataOutputStream out;
 
     private SecretKey aesKey;
+    // Packet encryption for this connection; decrypt is confined to the read loop, encrypt to the out lock
+    private SessionCipher sessionCipher;
+    // Joins incoming segments and batches back into packets
+    private final SegmentedFrames frames = new SegmentedFrames();
+    // Batches small outgoing packets and segments large ones; created with the session
+    private RecordWriter writer;
+    // Packet encoding with this session's name and ID tables; encode runs under the writer's queue lock
+    private final PacketCodec codec;
     private String username;
+    private int userSymbol; // username as a ServerState symbol, 0 until authenticated
     private boolean running = true;
 
+    // Wire bytes for this connection (metrics)
+    private final java.util.concurrent.atomic.LongAdder bytesIn = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder bytesOut = new java.util.concurrent.atomic.LongAdder();
+
     public ClientHandler(Socket socket) {
         this.socket = socket;
         this.serverState = ServerState.getInstance();
+        this.codec = new PacketCodec(serverState.getSymbols());
+        frames.setSegmentsAllowed(false); // Until onAuthenticated: LOGIN and friends fit one record
     }
 
     @Override
     public void run() {
         try {
             in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-
-            // 1. Handshake (RSA -> AES)
-            performHandshake();
+            // Sized so that everything written between flushes leaves in one socket write
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), RecordWriter.FLUSH_BYTES));
+
+            // 1. Handshake (X25519 -> AES), or a ticket that restores an authenticated session.
+            // The ServerHello and whatever it triggers (auth result, ticket, user and group lists)
+            // leave in a single flush: the writer starts corked.
+            String resumedUser = performHandshake();
+            if (resumedUser != null) {
+                onAuthenticated(resumedUser, "Welcome back");
+            }
+            writer.uncork();
 
             // 2. Main Loop
             while (running) {
-                // Read length-prefixed packet
-                byte[] encryptedData = ProtocolUtil.readPacket(in);
-
-                // Decrypt
-                byte[] packetData = CryptoUtil.decryptAES(encryptedData, aesKey);
+                // Read and decrypt length-prefixed records until a whole packet is in (a pooled view)
+                java.nio.ByteBuffer packetData = frames.next(in, sessionCipher);
+                long decryptStart = System.nanoTime() - frames.getLastDecryptNanos();
 
                 // Deserialize
-                Packet packet = deserialize(packetData);
+                Packet packet = codec.decode(packetData);
+                bytesIn.add(frames.getLastWireBytes());
+                serverState.getMetrics().onReceived(packet, frames.getLastWireBytes(), decryptStart);
 
                 // Handle Control Packets Immediately (Login, Group Mgmt)
                 // Push Data Packets to Queue (DM, Group Msg, File)
@@ -55,6 +84,7 @@ public class ClientHandler implements Runnable {
                 } else {
                     // Validate Sender
                     packet.setSender(this.username);
+                    packet.setSenderSymbol(userSymbol);
                     serverState.enqueue(packet);
                 }
             }
@@ -69,23 +99,73 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    private void performHandshake() throws Exception {
-        // Step 1: Send RSA Public Key
-        byte[] publicKeyBytes = serverState.getRsaKeyPair().getPublic().getEncoded();
-        out.writeInt(publicKeyBytes.length);
-        out.write(publicKeyBytes);
-        out.flush();
+    // Returns the username when the client resumed with a valid ticket, null after a full handshake
+    private String performHandshake() throws Exception {
+        // Bound the wait for the hello so a silent socket can't hold a handler thread
+        socket.setSoTimeout(HANDSHAKE_READ_TIMEOUT_MS);
+        SessionHandshake.ClientHello hello = SessionHandshake.readClientHello(in);
+
+        if (hello.getMode() == SessionHandshake.MODE_RESUME) {
+            // Symmetric crypto only, so it stays on the connection thread
+            long start = System.nanoTime();
+            SessionTickets.Redeemed redeemed = serverState.getSessionTickets().redeem(hello);
+            serverState.getMetrics().onResumption(start, redeemed != null);
+            if (redeemed != null) {
+                socket.setSoTimeout(0);
+                SessionHandshake.ServerReply reply = SessionHandshake.resume(hello,
+                        redeemed.getResumptionSecret());
+                SessionHandshake.writeServerHello(out, reply);
+                setSession(reply);
+                System.out.println("Session resumed for " + redeemed.getUsername() + " (" + reply.getCipherSuite()
+                        + ")");
+                return redeemed.getUsername();
+            }
+            // Declined: the client follows up with a full hello on the same connection
+            SessionHandshake.writeResumeDeclined(out);
+            hello = SessionHandshake.readClientHello(in);
+            if (hello.getMode() == SessionHandshake.MODE_RESUME)
+                throw new IOException("Expected a full handshake after a declined ticket");
+        }
+        socket.setSoTimeout(0);
 
-        // Step 2: Read Encrypted AES Key
-        int length = in.readInt();
-        byte[] encryptedAesKey = new byte[length];
-        in.readFully(encryptedAesKey);
+        // Key agreement runs on the bounded handshake pool
+        SessionHandshake.ServerReply reply = serverState.getHandshakeService().respond(hello);
+        SessionHandshake.writeServerHello(out, reply);
+        setSession(reply);
 
-        // Step 3: Decrypt AES Key
-        byte[] aesKeyBytes = CryptoUtil.decryptRSA(encryptedAesKey, serverState.getRsaKeyPair().getPrivate());
-        this.aesKey = new SecretKeySpec(aesKeyBytes, "AES");
+        System.out.println("Handshake successful. Session key established (" + reply.getCipherSuite() + ").");
+        if (reply.getEarlyData() != null) {
+            handleEarlyData(reply.getEarlyData());
+        }
+        return null;
+    }
 
-        System.out.println("Handshake successful. AES Key established.");
+    // 0-RTT packets from the ClientHello, framed like the wire but already decrypted. Early data
+    // can be replayed, so only LOGIN is honoured; everything else waits for the session.
+    private void handleEarlyData(byte[] earlyData) throws Exception {
+        DataInputStream early = new DataInputStream(new ByteArrayInputStream(earlyData));
+        while (early.available() > 0) {
+            long start = System.nanoTime();
+            byte[] packetData = ProtocolUtil.readPacket(early, earlyData.length);
+            Packet packet = codec.decode(java.nio.ByteBuffer.wrap(packetData));
+            serverState.getMetrics().onReceived(packet, packetData.length, start);
+            if (packet.getType() == PacketType.LOGIN) {
+                handleControlPacket(packet);
+            } else {
+                System.err.println("Ignoring " + packet.getType() + " in early data");
+            }
+        }
+    }
+
+    private void setSession(SessionHandshake.ServerReply reply) throws Exception {
+        this.aesKey = reply.getSessionKey();
+        this.sessionCipher = SessionCipher.forServer(reply.getSessionKey(), reply.getCipherSuite());
+        serverState.getMetrics().onCipherSuite(reply.getCipherSuite());
+        this.writer = new RecordWriter(out, sessionCipher, (wireBytes, encryptNanos) -> {
+            bytesOut.add(wireBytes);
+            serverState.getMetrics().onRecordWritten(wireBytes, encryptNanos);
+        });
+        writer.cork(); // Behind the unflushed ServerHello until run() uncorks
     }
 
     private boolean isControlPacket(Packet packet) {
@@ -102,6 +182,10 @@ public class ClientHandler implements Runnable {
             case STATUS_UPDATE: // Handle status changes immediately
             case USER_LIST_QUERY: // Handle list requests immediately
             case GROUP_LIST_QUERY: // Handle group list requests immediately
+            case PREKEY_PUBLISH: // Stored here, never routed
+            case PREKEY_QUERY: // Answered from the prekey table
+            case USER_LIST: // Server -> client only; dropped
+            case PRESENCE_DELTA:
                 return true;
             default:
                 return false;
@@ -120,20 +204,13 @@ public class ClientHandler implements Runnable {
                 }
                 String requestedUsername = parts[0];
                 String hashedPassword = parts[1];
+                if (!Presence.isValidName(requestedUsername)) {
+                    sendAuthResponse(false, "Invalid username");
+                    return;
+                }
 
                 if (serverState.authenticate(requestedUsername, hashedPassword)) {
-                    this.username = requestedUsername;
-                    serverState.addClient(requestedUsername, this);
-                    serverState.setUserStatus(requestedUsername, "Online");
-                    System.out.println("User logged in: " + requestedUsername);
-                    sendAuthResponse(true, "Welcome");
-                    broadcastUserList(); // Detailed list to everyone
-                    serverState.log("System: " + username + " connected.");
-                    serverState.notifyUserChange();
-
-                    // ENHANCED: Send group list to new user immediately
-                    sendAllGroupsUpdate();
-                    System.out.println("[LATE_JOINER] Sent group list to " + username);
+                    onAuthenticated(requestedUsername, "Welcome");
                 } else {
                     sendAuthResponse(false, "Invalid password");
                 }
@@ -174,62 +251,63 @@ public class ClientHandler implements Runnable {
                 // The `sender` field in ACK packet is the original receiver of the file.
 
                 // Update LSTCI: FileId -> Receiver (which is ACK sender) -> ChunkIndex
-                serverState.updateLSTCI(packet.getFileId(), packet.getSender(), packet.getChunkIndex());
+                if (packet.getFileSymbol() != 0 && packet.getSenderSymbol() != 0)
+                    serverState.updateLSTCI(packet.getFileSymbol(), packet.getSenderSymbol(), packet.getChunkIndex());
+                else
+                    serverState.updateLSTCI(packet.getFileId(), packet.getSender(), packet.getChunkIndex());
 
                 // Forward ACK to original sender so they know progress
                 serverState.enqueue(packet);
                 break;
 
             case STATUS_UPDATE:
+                if (username == null)
+                    break;
                 String newStatus = new String(packet.getPayload(), java.nio.charset.StandardCharsets.UTF_8);
-                serverState.setUserStatus(this.username, newStatus);
+                if (!Presence.isValidStatus(newStatus)) {
+                    System.err.println("Ignoring invalid status from " + username);
+                    break;
+                }
+                serverState.setUserStatus(this.username, newStatus); // Sends the change to every client
                 serverState.log("System: " + this.username + " status changed to " + newStatus);
                 serverState.notifyUserChange(); // Refresh server UI list
-                broadcastUserList(); // Update other clients
                 break;
 
             case RESUME_QUERY:
                 String target = packet.getReceiver();
                 String fileId = packet.getFileId();
-                int lastChunk = -1;
+                ChunkBitmap received = null;
 
                 // Check if target is a group
-                if (serverState.getGroups().containsKey(target)) {
-                    Set<ClientHandler> members = serverState.getGroups().get(target);
-                    int minChunk = Integer.MAX_VALUE;
-                    boolean foundAny = false;
-
+                Set<ClientHandler> members = serverState.getGroupMembers(packet.getReceiverSymbol());
+                if (members != null) {
+                    // A chunk only counts once every member has it
                     synchronized (members) {
                         for (ClientHandler member : members) {
                             if (member.getUsername() != null) {
-                                int memberProgress = serverState.getLSTCI(fileId, member.getUsername());
-                                if (memberProgress != -1) {
-                                    minChunk = Math.min(minChunk, memberProgress);
-                                    foundAny = true;
-                                } else {
-                                    // At least one member hasn't started
-                                    minChunk = -1;
-                                    foundAny = true;
-                                    break;
-                                }
+                                ChunkBitmap memberProgress = serverState.getLSTCI(packet.getFileSymbol(),
+                                        member.getUserSymbol());
+                                received = (received == null) ? memberProgress : received.and(memberProgress);
                             }
                         }
                     }
-                    lastChunk = foundAny ? minChunk : -1;
                 } else {
                     // Assume single user
-                    lastChunk = serverState.getLSTCI(fileId, target);
+                    received = serverState.getLSTCI(packet.getFileSymbol(), packet.getReceiverSymbol());
                 }
+                if (received == null)
+                    received = new ChunkBitmap();
 
-                // Send RESUME_INFO back
+                // Send RESUME_INFO back: the received-chunk runs, plus the contiguous prefix for older clients
                 Packet infoPacket = new Packet(PacketType.RESUME_INFO, 1);
                 infoPacket.setFileId(fileId);
                 infoPacket.setReceiver(target);
-                infoPacket.setChunkIndex(lastChunk);
+                infoPacket.setChunkIndex(received.contiguousUpTo());
+                infoPacket.setPayload(received.toBytes());
 
                 this.sendPacket(infoPacket);
-                System.out
-                        .println("Responded to RESUME_QUERY for " + fileId + " (Target: " + target + "): " + lastChunk);
+                System.out.println("Responded to RESUME_QUERY for " + fileId + " (Target: " + target + "): "
+                        + received.cardinality() + " chunks received, contiguous to " + received.contiguousUpTo());
                 break;
 
             case FILE_INIT:
@@ -241,9 +319,25 @@ public class ClientHandler implements Runnable {
                 break;
 
             case USER_LIST_QUERY:
-                System.out.println("[LATE_JOINER] " + username + " requested user list");
-                broadcastUserList(); // Send latest list to everyone (or just the requester, but everyone is safer
-                                     // for sync)
+                // Payload: the presence version the client has, if any; it gets the changes since
+                // then, or a snapshot. Only the requester is sent anything.
+                if (username == null)
+                    break;
+                long since = -1;
+                if (packet.getPayload() != null && packet.getPayload().length > 0) {
+                    try {
+                        since = Long.parseLong(
+                                new String(packet.getPayload(), java.nio.charset.StandardCharsets.UTF_8));
+                    } catch (NumberFormatException e) {
+                        // Treated as no version: snapshot
+                    }
+                }
+                System.out.println("[LATE_JOINER] " + username + " requested user list (has version " + since + ")");
+                serverState.syncPresence(username, since);
+                break;
+
+            case USER_LIST:
+            case PRESENCE_DELTA:
                 break;
 
             case GROUP_LIST_QUERY:
@@ -251,6 +345,24 @@ public class ClientHandler implements Runnable {
                 sendAllGroupsUpdate(); // Send current group list to the requester
                 break;
 
+            case PREKEY_PUBLISH:
+                if (username != null && packet.getPayload() != null && packet.getPayload().length > 0) {
+                    serverState.publishPrekey(username, packet.getPayload());
+                }
+                break;
+
+            case PREKEY_QUERY:
+                // Answered as PREKEY_PUBLISH from the queried user; an empty payload means none is known.
+                // Only for logged-in users, so the prekey table cannot be scraped before auth.
+                if (username == null || packet.getReceiver() == null)
+                    break;
+                byte[] prekey = serverState.getPrekey(packet.getReceiver());
+                Packet prekeyPacket = new Packet(PacketType.PREKEY_PUBLISH, 1);
+                prekeyPacket.setSender(packet.getReceiver());
+                prekeyPacket.setPayload(prekey != null ? prekey : new byte[0]);
+                this.sendPacket(prekeyPacket);
+                break;
+
             case DM:
             case GROUP_MESSAGE:
             case GROUP_LIST_UPDATE:
@@ -268,27 +380,83 @@ public class ClientHandler implements Runnable {
 
     public void sendPacket(Packet packet) {
         try {
-            // Serialize
-            byte[] packetBytes = serialize(packet);
+            long start = System.nanoTime();
+            long[] encodeNanos = new long[1];
+
+            // Encoded in queue order (names already sent this session go as slot numbers), then
+            // queued behind a write in progress, or written (with whatever queued meanwhile) now;
+            // flushed when nothing more is queued, or at once if urgent.
+            // Wire bytes and encrypt time are counted per record by the writer's listener.
+            writer.send(() -> {
+                long encodeStart = System.nanoTime();
+                byte[] encoded = codec.encode(packet);
+                encodeNanos[0] = System.nanoTime() - encodeStart;
+                return encoded;
+            }, packet.getType().isUrgent());
+            serverState.getMetrics().onSent(packet, encodeNanos[0], System.nanoTime() - start - encodeNanos[0]);
+        } catch (Exception e) {
+            onWriteFailed(e);
+        }
+    }
 
-            // Encrypt
-            byte[] encryptedBytes = CryptoUtil.encryptAES(packetBytes, aesKey);
+    // The dispatcher corks a connection while it routes a run of queued packets to it
+    public void cork() {
+        writer.cork();
+    }
+
+    public void uncork() {
+        try {
+            writer.uncork();
+        } catch (Exception e) {
+            onWriteFailed(e);
+        }
+    }
 
-            // Send
-            synchronized (out) { // Ensure atomic writes
-                ProtocolUtil.writePacket(out, encryptedBytes);
+    private void onWriteFailed(Exception e) {
+        System.err.println("Failed to send packet to " + username + ": " + e.getMessage());
+        // If we can't write, the client is dead. Cleanup.
+        try {
+            if (socket != null && !socket.isClosed()) {
+                serverState.log("System: Heartbeat failed for " + username + ". Disconnecting.");
+                socket.close();
             }
+        } catch (IOException ex) {
+            /* fast fail */ }
+        // The read loop will catch SocketException and call cleanup()
+    }
+
+    // Shared by LOGIN and ticket resumption
+    private void onAuthenticated(String user, String welcome) {
+        this.username = user;
+        frames.setSegmentsAllowed(true);
+        serverState.addClient(user, this);
+        this.userSymbol = serverState.getSymbols().id(user);
+        serverState.getMetrics().registerConnection(user, bytesIn::sum, bytesOut::sum);
+        System.out.println("User logged in: " + user);
+        sendAuthResponse(true, welcome);
+        sendSessionTicket();
+        // The change goes to everyone, then a snapshot to this client; both via the dispatcher, in order
+        serverState.setUserStatus(user, "Online");
+        serverState.syncPresence(user, -1);
+        serverState.log("System: " + username + " connected.");
+        serverState.notifyUserChange();
+
+        // ENHANCED: Send group list to new user immediately
+        sendAllGroupsUpdate();
+        System.out.println("[LATE_JOINER] Sent group list to " + username);
+    }
+
+    // Tickets are single use, so every login and every resumption hands out the next one
+    private void sendSessionTicket() {
+        SessionTickets tickets = serverState.getSessionTickets();
+        if (!tickets.isEnabled())
+            return;
+        try {
+            Packet p = new Packet(PacketType.SESSION_TICKET, 1);
+            p.setPayload(tickets.issue(username, aesKey));
+            sendPacket(p);
         } catch (Exception e) {
-            System.err.println("Failed to send packet to " + username + ": " + e.getMessage());
-            // If we can't write, the client is dead. Cleanup.
-            try {
-                if (socket != null && !socket.isClosed()) {
-                    serverState.log("System: Heartbeat failed for " + username + ". Disconnecting.");
-                    socket.close();
-                }
-            } catch (IOException ex) {
-                /* fast fail */ }
-            // The read loop will catch SocketException and call cleanup()
+            System.err.println("Failed to issue session ticket: " + e.getMessage());
         }
     }
 
@@ -299,25 +467,6 @@ public class ClientHandler implements Runnable {
         sendPacket(p);
     }
 
-    private void broadcastUserList() {
-        Map<String, String> statusMap = serverState.getAllUserStatuses();
-        StringBuilder sb = new StringBuilder();
-        for (Map.Entry<String, String> entry : statusMap.entrySet()) {
-            if (sb.length() > 0)
-                sb.append("|");
-            sb.append(entry.getKey()).append(":").append(entry.getValue());
-        }
-
-        System.out.println("[LATE_JOINER] Broadcasting user list: " + sb.toString());
-
-        Packet listPacket = new Packet(PacketType.USER_LIST, 2); // Priority 2 as per PDF
-        listPacket.setPayload(sb.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
-
-        for (ClientHandler handler : serverState.getConnectedUsers().values()) {
-            handler.sendPacket(listPacket);
-        }
-    }
-
     public void forceDisconnect() {
         try {
             running = false;
@@ -338,8 +487,9 @@ public class ClientHandler implements Runnable {
 
     private void cleanup() {
         if (username != null) {
-            serverState.removeClient(username);
-            broadcastUserList(); // Update everyone else
+            // Sends the change to everyone else. A newer login under this name keeps its gauges.
+            if (serverState.removeClient(username, this))
+                serverState.getMetrics().unregisterConnection(username);
             serverState.log("System: " + username + " disconnected.");
             serverState.notifyUserChange();
         }
@@ -350,28 +500,18 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    // Java Serialization Helper
-    private byte[] serialize(Packet packet) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(bos);
-        oos.writeObject(packet);
-        return bos.toByteArray();
-    }
-
-    private Packet deserialize(byte[] data) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
-        ObjectInputStream ois = new ObjectInputStream(bis);
-        return (Packet) ois.readObject();
-    }
-
     public String getUsername() {
         return username;
     }
 
+    public int getUserSymbol() {
+        return userSymbol;
+    }
+
     private void sendAllGroupsUpdate() {
         if (username == null)
             return;
-        Set<String> allGroups = serverState.getGroups().keySet();
+        List<String> allGroups = serverState.getGroupNames();
         String payload = String.join(",", allGroups);
 
         System.out.println("[LATE_JOINER] Sending groups to " + username + ": " + payload);
@@ -383,7 +523,7 @@ public class ClientHandler implements Runnable {
     }
 
     private void broadcastAllGroups() {
-        Set<String> allGroups = serverState.getGroups().keySet();
+        List<String> allGroups = serverState.getGroupNames();
         String payload = String.join(",", allGroups);
 
         System.out.println("[LATE_JOINER] Broadcasting groups to all clients: " + payload);
@@ -391,7 +531,7 @@ public class ClientHandler implements Runnable {
         Packet updatePacket = new Packet(PacketType.GROUP_LIST_UPDATE, 1);
         updatePacket.setPayload(payload.getBytes(java.nio.charset.StandardCharsets.UTF_8));
 
-        for (ClientHandler client : serverState.getConnectedUsers().values()) {
+        for (ClientHandler client : serverState.getConnectedClients()) {
             client.sendPacket(updatePacket);
         }
     }
@@ -399,7 +539,7 @@ public class ClientHandler implements Runnable {
     private void broadcastUserList(String groupName) {
         // Keeping this for group-specific context if needed later,
         // but transitioning main view to global list as requested.
-        Set<ClientHandler> members = serverState.getGroups().get(groupName);
+        Set<ClientHandler> members = serverState.getGroupMembers(groupName);
         if (members == null)
             return;
 
@@ -0,0 +1,117 @@
+package com.securechat.server;
+
+import com.securechat.common.crypto.CryptoUtil;
+import com.securechat.common.crypto.SessionHandshake;
+import com.securechat.server.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Bounded pool for handshake key agreement. Connection threads only read the
+ * ClientHello and write the reply; the X25519 work runs here on a fixed
+ * number of workers, so a reconnect storm queues up in this pool instead of
+ * competing with established sessions for every core. When the queue is
+ * full, or a handshake waits too long, the connection is refused.
+ *
+ * The server's ephemeral key is reused for ten seconds, which saves
+ * one of the three X25519 operations per handshake. Session keys stay unique
+ * because every client ephemeral is fresh; forward secrecy applies to
+ * everything older than the window.
+ *
+ * 0-RTT early data is opened at most once per client ephemeral key; a
+ * replayed ClientHello still completes, but without its early data.
+ */
+public class HandshakeService {
+
+    private static final long HANDSHAKE_TIMEOUT_MS = 10_000;
+    private static final long EPHEMERAL_LIFETIME_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final ThreadPoolExecutor pool;
+    private final CompletableFuture<KeyPair> identity;
+    private final ServerMetrics metrics;
+    private volatile long ephemeralCreatedNanos;
+    private volatile KeyPair ephemeral;
+
+    // Client ephemerals (Base64) that already delivered early data -> when first seen
+    private final Map<String, Long> earlyDataSeen = new ConcurrentHashMap<>();
+    private volatile long earlyDataPrunedAt = System.currentTimeMillis();
+
+    public HandshakeService(int workers, int queueCapacity, CompletableFuture<KeyPair> identity,
+            ServerMetrics metrics) {
+        this.identity = identity;
+        this.metrics = metrics;
+        this.pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "handshake");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    // Blocks the calling connection thread until its handshake has been computed
+    public SessionHandshake.ServerReply respond(SessionHandshake.ClientHello hello) throws Exception {
+        long start = System.nanoTime();
+        SessionHandshake.ClientHello checked = hello.getMode() == SessionHandshake.MODE_FULL_EARLY
+                && !firstEarlyData(hello) ? hello.refuseEarlyData() : hello;
+        Future<SessionHandshake.ServerReply> future;
+        try {
+            future = pool.submit(() -> SessionHandshake.respond(checked, identity.join(), currentEphemeral()));
+        } catch (RejectedExecutionException e) {
+            metrics.onHandshakeRejected();
+            throw new IOException("Server busy: handshake queue full");
+        }
+        try {
+            SessionHandshake.ServerReply reply = future.get(HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            metrics.onHandshake(start);
+            return reply;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            metrics.onHandshakeRejected();
+            throw new IOException("Server busy: handshake timed out");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private KeyPair currentEphemeral() throws Exception {
+        KeyPair keyPair = ephemeral;
+        if (keyPair == null || System.nanoTime() - ephemeralCreatedNanos > EPHEMERAL_LIFETIME_NANOS) {
+            synchronized (this) {
+                keyPair = ephemeral;
+                if (keyPair == null || System.nanoTime() - ephemeralCreatedNanos > EPHEMERAL_LIFETIME_NANOS) {
+                    keyPair = CryptoUtil.generateX25519KeyPair();
+                    ephemeralCreatedNanos = System.nanoTime();
+                    ephemeral = keyPair;
+                }
+            }
+        }
+        return keyPair;
+    }
+
+    // Older stamps are refused by SessionHandshake anyway, so entries only need to outlive the window
+    private boolean firstEarlyData(SessionHandshake.ClientHello hello) {
+        long now = System.currentTimeMillis();
+        if (now - earlyDataPrunedAt > SessionHandshake.EARLY_DATA_WINDOW_MILLIS) {
+            earlyDataPrunedAt = now;
+            earlyDataSeen.values().removeIf(seen -> now - seen > 2 * SessionHandshake.EARLY_DATA_WINDOW_MILLIS);
+        }
+        String id = Base64.getEncoder().encodeToString(hello.getEphemeralPublic());
+        return earlyDataSeen.putIfAbsent(id, now) == null;
+    }
+
+    public int getQueuedCount() {
+        return pool.getQueue().size();
+    }
+}
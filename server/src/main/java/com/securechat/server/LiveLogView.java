@@ -0,0 +1,141 @@
+package com.securechat.server;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives a ListView from any thread without flooding the FX thread: lines
+ * are queued and applied as one batch per animation pulse into a bounded
+ * RingBufferList. In live-tail mode the view follows the newest line; when
+ * paused the visible list is frozen and new lines are held (bounded) until
+ * the view is resumed.
+ */
+public class LiveLogView {
+
+    private final ListView<String> listView;
+    private final RingBufferList<String> model;
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final ArrayDeque<String> held = new ArrayDeque<>(); // FX thread only
+    private final AtomicInteger discarded = new AtomicInteger();
+    private volatile boolean liveTail = true;
+    private Runnable onHeldChange;
+
+    public LiveLogView(ListView<String> listView, int capacity) {
+        this.listView = listView;
+        this.model = new RingBufferList<>(capacity);
+        listView.setItems(model);
+        listView.setCellFactory(lv -> new CardCell());
+
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                drain();
+            }
+        }.start();
+    }
+
+    // Thread-safe. Lines beyond what the view can ever show are discarded here.
+    public void append(String line) {
+        if (pendingCount.incrementAndGet() > model.getCapacity()) {
+            pendingCount.decrementAndGet();
+            discarded.incrementAndGet();
+            return;
+        }
+        pending.add(line);
+    }
+
+    public boolean isLiveTail() {
+        return liveTail;
+    }
+
+    public void setLiveTail(boolean liveTail) {
+        this.liveTail = liveTail;
+    }
+
+    // Lines waiting while paused
+    public int getHeldCount() {
+        return held.size();
+    }
+
+    public void setOnHeldChange(Runnable onHeldChange) {
+        this.onHeldChange = onHeldChange;
+    }
+
+    private void drain() {
+        List<String> batch = new ArrayList<>();
+        String line;
+        while ((line = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            batch.add(line);
+        }
+        int lost = discarded.getAndSet(0);
+        if (lost > 0) {
+            batch.add("(" + lost + " events skipped: display could not keep up)");
+        }
+
+        if (!liveTail) {
+            if (!batch.isEmpty()) {
+                for (String l : batch) {
+                    if (held.size() == model.getCapacity())
+                        held.pollFirst();
+                    held.addLast(l);
+                }
+                if (onHeldChange != null)
+                    onHeldChange.run();
+            }
+            return;
+        }
+
+        if (!held.isEmpty()) {
+            List<String> resumed = new ArrayList<>(held.size() + batch.size());
+            resumed.addAll(held);
+            resumed.addAll(batch);
+            held.clear();
+            batch = resumed;
+            if (onHeldChange != null)
+                onHeldChange.run();
+        }
+        if (batch.isEmpty())
+            return;
+
+        model.appendAll(batch);
+        listView.scrollTo(model.size() - 1);
+    }
+
+    // One reusable card label per cell instead of a new Label per update
+    private static class CardCell extends ListCell<String> {
+        private final Label label = new Label();
+
+        CardCell() {
+            label.setWrapText(true);
+            label.setMaxWidth(Double.MAX_VALUE); // Allow it to fill width
+            label.getStyleClass().add("card-item"); // Apply the CSS Card Style
+            label.setStyle("-fx-text-fill: #333333;"); // FORCE Dark Text Visibility
+        }
+
+        @Override
+        protected void updateItem(String item, boolean empty) {
+            super.updateItem(item, empty);
+            setText(null);
+            if (empty || item == null) {
+                setGraphic(null);
+                setStyle("-fx-background-color: transparent;");
+            } else {
+                label.setText(item);
+                setGraphic(label);
+                // Ensure the cell background itself is transparent so the spacing works
+                // visually
+                setStyle("-fx-background-color: transparent; -fx-padding: 2 5;");
+            }
+        }
+    }
+}
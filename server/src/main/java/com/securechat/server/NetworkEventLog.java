@@ -0,0 +1,384 @@
+package com.securechat.server;
+
+import com.securechat.common.protocol.Packet;
+import com.securechat.common.protocol.PacketType;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous network event log. Producers (dispatcher, client handlers)
+ * only copy a few references and primitives into a preallocated ring slot;
+ * a single background thread formats the text and feeds the console, the
+ * rolling log file (UTF-8) and the GUI callback. The consumer parks when the
+ * ring is empty and a producer unparks it only then, so an idle log costs no
+ * CPU and a busy one no wakeups. When the ring is full or a
+ * category is over its rate limit, events are dropped and counted instead
+ * of blocking routing.
+ */
+public class NetworkEventLog {
+
+    public enum Category {
+        ROUTE(1, 2000), // Direct routing of chunks/ACKs/DMs (sample 1 in N, then cap per second)
+        BROADCAST(1, 2000),
+        TRAFFIC_SHAPING(1, 50),
+        SYSTEM(1, 500);
+
+        private final int sampleEvery;
+        private final int maxPerSecond;
+
+        Category(int sampleEvery, int maxPerSecond) {
+            this.sampleEvery = sampleEvery;
+            this.maxPerSecond = maxPerSecond;
+        }
+    }
+
+    private static final int DEFAULT_CAPACITY = 8192; // Power of two
+    private static final long ROLL_SIZE_BYTES = 10L * 1024 * 1024;
+    private static final int ROLL_KEEP_FILES = 5;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    // Mutable ring slot, reused forever
+    private static final class Slot {
+        volatile long published = -1; // Sequence number once the producer is done writing
+        long timestamp;
+        Category category;
+        PacketType type;
+        int chunkIndex;
+        int totalChunks;
+        long value;
+        String from;
+        String to;
+        String text;
+    }
+
+    // Per-category sampling and rate limit state
+    private static final class Limiter {
+        final AtomicLong seen = new AtomicLong();
+        final AtomicLong windowStart = new AtomicLong();
+        final AtomicInteger inWindow = new AtomicInteger();
+        final AtomicLong suppressed = new AtomicLong();
+        volatile int sampleEvery;
+        volatile int maxPerSecond;
+    }
+
+    private final Slot[] ring;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong(0);
+    private final AtomicLong consumed = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0); // Since start
+    private long reportedDropped; // Consumer thread only
+    private final Limiter[] limiters = new Limiter[Category.values().length];
+    private final Thread consumer;
+    private volatile boolean consumerParked; // Set by the consumer before it parks on an empty ring
+
+    private volatile Consumer<String> listener;
+    private volatile boolean consoleEnabled = true;
+    private final File logFile;
+    private BufferedWriter fileWriter;
+    private long fileBytes; // Encoded bytes in the current file
+
+    public NetworkEventLog(File logFile) {
+        this(logFile, DEFAULT_CAPACITY);
+    }
+
+    public NetworkEventLog(File logFile, int capacity) {
+        if (Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        this.logFile = logFile;
+        this.ring = new Slot[capacity];
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Slot();
+        }
+        for (Category category : Category.values()) {
+            Limiter limiter = new Limiter();
+            limiter.sampleEvery = category.sampleEvery;
+            limiter.maxPerSecond = category.maxPerSecond;
+            limiters[category.ordinal()] = limiter;
+        }
+
+        consumer = new Thread(this::consumeLoop, "network-event-log");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    public void setListener(Consumer<String> listener) {
+        this.listener = listener;
+    }
+
+    public void setConsoleEnabled(boolean consoleEnabled) {
+        this.consoleEnabled = consoleEnabled;
+    }
+
+    // Log 1 in sampleEvery events of a category, and at most maxPerSecond of those
+    public void setSampling(Category category, int sampleEvery, int maxPerSecond) {
+        Limiter limiter = limiters[category.ordinal()];
+        limiter.sampleEvery = Math.max(1, sampleEvery);
+        limiter.maxPerSecond = Math.max(1, maxPerSecond);
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    // --- Producer side (hot path) ---
+
+    public void routed(Packet packet, String receiver) {
+        record(Category.ROUTE, packet.getType(), packet.getChunkIndex(), packet.getTotalChunks(), 0,
+                packet.getSender(), receiver, null);
+    }
+
+    public void broadcast(Packet packet, String group) {
+        record(Category.BROADCAST, packet.getType(), packet.getChunkIndex(), packet.getTotalChunks(), 0,
+                packet.getSender(), group, null);
+    }
+
+    public void trafficShaping(Packet packet, int bypassedChunks) {
+        record(Category.TRAFFIC_SHAPING, packet.getType(), 0, 0, bypassedChunks, null, null,
+                String.valueOf(packet.getPriority()));
+    }
+
+    public void message(String text) {
+        record(Category.SYSTEM, null, 0, 0, 0, null, null, text);
+    }
+
+    private void record(Category category, PacketType type, int chunkIndex, int totalChunks, long value,
+            String from, String to, String text) {
+        if (!admit(limiters[category.ordinal()]))
+            return;
+
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed.get() >= ring.length) {
+                dropped.incrementAndGet(); // Consumer is behind: never block the caller
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+
+        Slot slot = ring[(int) (seq & mask)];
+        slot.timestamp = System.currentTimeMillis();
+        slot.category = category;
+        slot.type = type;
+        slot.chunkIndex = chunkIndex;
+        slot.totalChunks = totalChunks;
+        slot.value = value;
+        slot.from = from;
+        slot.to = to;
+        slot.text = text;
+        slot.published = seq; // Volatile write publishes the fields above
+        // Read after the publish: either the consumer sees this slot on its re-check, or we see it parked
+        if (consumerParked)
+            LockSupport.unpark(consumer);
+    }
+
+    private static boolean admit(Limiter limiter) {
+        int sampleEvery = limiter.sampleEvery;
+        if (sampleEvery > 1 && limiter.seen.getAndIncrement() % sampleEvery != 0) {
+            limiter.suppressed.incrementAndGet();
+            return false;
+        }
+        long second = System.currentTimeMillis() / 1000;
+        long window = limiter.windowStart.get();
+        if (window != second && limiter.windowStart.compareAndSet(window, second)) {
+            limiter.inWindow.set(0);
+        }
+        if (limiter.inWindow.incrementAndGet() > limiter.maxPerSecond) {
+            limiter.suppressed.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    // --- Consumer side ---
+
+    private void consumeLoop() {
+        StringBuilder sb = new StringBuilder(256);
+        long lastSuppressedReport = System.currentTimeMillis();
+        while (true) {
+            long seq = consumed.get();
+            Slot slot = ring[(int) (seq & mask)];
+            if (slot.published != seq) {
+                // Ring drained: flush the batch and report what rate limiting hid
+                flushFile();
+                long now = System.currentTimeMillis();
+                if (now - lastSuppressedReport >= 1000) {
+                    reportSuppressed(sb);
+                    lastSuppressedReport = now;
+                }
+                consumerParked = true;
+                if (slot.published != seq) // Re-check: a producer that published before the flag was set won't unpark
+                    LockSupport.parkNanos(Math.max(1, 1000 - (now - lastSuppressedReport)) * 1_000_000);
+                consumerParked = false;
+                continue;
+            }
+
+            sb.setLength(0);
+            format(slot, sb);
+            slot.from = null; // Don't pin packet strings in the ring
+            slot.to = null;
+            slot.text = null;
+            long timestamp = slot.timestamp;
+            consumed.lazySet(seq + 1);
+            emit(sb.toString(), timestamp);
+        }
+    }
+
+    private void reportSuppressed(StringBuilder sb) {
+        long total = dropped.get();
+        long lost = total - reportedDropped;
+        reportedDropped = total;
+        for (Category category : Category.values()) {
+            long suppressed = limiters[category.ordinal()].suppressed.getAndSet(0);
+            if (suppressed > 0) {
+                sb.setLength(0);
+                sb.append("(").append(suppressed).append(' ').append(category).append(" events sampled out)");
+                emit(sb.toString(), System.currentTimeMillis());
+            }
+        }
+        if (lost > 0) {
+            emit("(" + lost + " events dropped: log consumer fell behind)", System.currentTimeMillis());
+        }
+    }
+
+    private static void format(Slot slot, StringBuilder sb) {
+        switch (slot.category) {
+            case ROUTE:
+                sb.append("Routing ").append(label(slot.type)).append(" [").append(slot.chunkIndex + 1).append('/')
+                        .append(slot.totalChunks).append("] from ").append(slot.from).append(" to ").append(slot.to);
+                break;
+            case BROADCAST:
+                sb.append("Broadcasting ").append(slot.type == PacketType.DM ? "DM (in Group?)" : label(slot.type)).append(" [").append(slot.chunkIndex + 1)
+                        .append('/').append(slot.totalChunks).append("] from ").append(slot.from).append(" to Group ")
+                        .append(slot.to);
+                break;
+            case TRAFFIC_SHAPING:
+                sb.append("*** TRAFFIC SHAPING ACTIVE ***\n")
+                        .append("   [Congestion Control] High Priority Packet (").append(slot.type).append(", P")
+                        .append(slot.text).append(") SKIPPED AHEAD of ").append(slot.value)
+                        .append(" queued File Chunks.\n")
+                        .append("   Status: Prioritizing real-time chat over background file transfer.");
+                break;
+            default:
+                sb.append(slot.text);
+        }
+    }
+
+    private static String label(PacketType type) {
+        if (type == null)
+            return "Data";
+        return switch (type) {
+            case FILE_INIT -> "File Init";
+            case FILE_REQ -> "File Req";
+            case FILE_RESP -> "File Resp";
+            case FILE_CHUNK -> "File Chunk";
+            case FILE_COMPLETE -> "File Complete";
+            case CHUNK_ACK -> "ACK";
+            case CHUNK_NACK -> "NACK";
+            case DM -> "DM";
+            case GROUP_MESSAGE -> "Group Msg";
+            case RESUME_INFO -> "Resume Info";
+            case KEY_EXCHANGE -> "Key Exchange";
+            default -> "Data";
+        };
+    }
+
+    private void emit(String line, long timestamp) {
+        if (consoleEnabled) {
+            System.out.println("[Network] " + line);
+        }
+        writeFile(line, timestamp);
+        Consumer<String> l = listener;
+        if (l != null) {
+            try {
+                l.accept(line);
+            } catch (Exception e) {
+                // A broken UI must not kill the log thread
+            }
+        }
+    }
+
+    private void writeFile(String line, long timestamp) {
+        if (logFile == null)
+            return;
+        try {
+            if (fileWriter == null) {
+                File dir = logFile.getAbsoluteFile().getParentFile();
+                if (dir != null && !dir.exists())
+                    dir.mkdirs();
+                fileBytes = logFile.length();
+                fileWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true),
+                        StandardCharsets.UTF_8), 64 * 1024);
+            }
+            String stamped = TIME_FORMAT.format(Instant.ofEpochMilli(timestamp)) + " " + line;
+            fileWriter.write(stamped);
+            fileWriter.newLine();
+            fileBytes += utf8Length(stamped) + System.lineSeparator().length();
+            if (fileBytes >= ROLL_SIZE_BYTES) {
+                roll();
+            }
+        } catch (IOException e) {
+            System.err.println("Network log file error: " + e.getMessage());
+            fileWriter = null;
+        }
+    }
+
+    // What the writer will encode line to, without encoding it twice
+    private static int utf8Length(String line) {
+        int bytes = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < line.length()
+                    && Character.isLowSurrogate(line.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    // network.log -> network.log.1 -> ... -> network.log.N (oldest deleted)
+    private void roll() throws IOException {
+        fileWriter.close();
+        fileWriter = null;
+        File oldest = new File(logFile.getPath() + "." + ROLL_KEEP_FILES);
+        if (oldest.exists())
+            oldest.delete();
+        for (int i = ROLL_KEEP_FILES - 1; i >= 1; i--) {
+            File from = new File(logFile.getPath() + "." + i);
+            if (from.exists())
+                from.renameTo(new File(logFile.getPath() + "." + (i + 1)));
+        }
+        logFile.renameTo(new File(logFile.getPath() + ".1"));
+        fileBytes = 0;
+    }
+
+    private void flushFile() {
+        if (fileWriter != null) {
+            try {
+                fileWriter.flush();
+            } catch (IOException e) {
+                fileWriter = null;
+            }
+        }
+    }
+}
@@ -3,12 +3,18 @@ package com.securechat.server;
 import com.securechat.common.protocol.Packet;
 import com.securechat.common.protocol.PacketType;
 
+import java.util.HashSet;
 import java.util.Set;
 
 public class PacketDispatcher implements Runnable {
 
+    // Packets routed per run before the corked connections are flushed
+    private static final int MAX_RUN = 64;
+
     private final ServerState serverState;
-    private boolean running = true;
+    private volatile boolean running = true;
+    // Connections written to in the current run; their small packets batch until it ends
+    private final Set<ClientHandler> corked = new HashSet<>();
 
     public PacketDispatcher() {
         this.serverState = ServerState.getInstance();
@@ -19,20 +25,47 @@ public class PacketDispatcher implements Runnable {
         System.out.println("PacketDispatcher started.");
         while (running) {
             try {
-                // Take packet from Priority Queue (Blocking)
+                // Take packet from Priority Queue (Blocking), then whatever else is already waiting
                 Packet packet = serverState.getPacketQueue().take();
-                processPacket(packet);
+                int run = 0;
+                do {
+                    dispatch(packet);
+                } while (++run < MAX_RUN && (packet = serverState.getPacketQueue().poll()) != null);
+                flushCorked();
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 break;
-            } catch (Exception e) {
-                System.err.println("Error processing packet: " + e.getMessage());
-                e.printStackTrace();
             }
         }
     }
 
-    private void processPacket(Packet packet) {
+    private void dispatch(Packet packet) {
+        try {
+            serverState.getMetrics().onDequeued(packet);
+            long start = System.nanoTime();
+            processPacket(packet);
+            serverState.getMetrics().onRouted(start);
+        } catch (Exception e) {
+            System.err.println("Error processing packet: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void deliver(ClientHandler receiver, Packet packet) {
+        if (corked.add(receiver))
+            receiver.cork();
+        receiver.sendPacket(packet);
+    }
+
+    private void flushCorked() {
+        for (ClientHandler handler : corked) {
+            handler.uncork();
+        }
+        corked.clear();
+    }
+
+    // Package-private for the dispatch benchmark
+    void processPacket(Packet packet) {
         PacketType type = packet.getType();
 
         // Route based on type
@@ -65,6 +98,7 @@ public class PacketDispatcher implements Runnable {
                 break;
 
             case CHUNK_ACK:
+            case CHUNK_NACK:
             case DM_ACK:
             case GROUP_ACK:
             case RESUME_INFO:
@@ -87,6 +121,19 @@ public class PacketDispatcher implements Runnable {
                 }
                 break;
 
+            case USER_LIST:
+            case PRESENCE_DELTA:
+                // From ServerState: a snapshot or resync for one client, or a change for everyone.
+                // Queued in version order, so every client sees the changes in that order.
+                if (packet.getReceiver() != null) {
+                    routeDirectly(packet);
+                } else {
+                    for (ClientHandler client : serverState.getConnectedClients()) {
+                        deliver(client, packet);
+                    }
+                }
+                break;
+
             case STATUS_UPDATE:
             case USER_LIST_QUERY:
             case HEARTBEAT:
@@ -106,13 +153,7 @@ public class PacketDispatcher implements Runnable {
             }
         }
         if (bypassed > 0) {
-            String msg = String.format(
-                    "*** TRAFFIC SHAPING ACTIVE ***\n" +
-                            "   [Congestion Control] High Priority Packet (%s, P%d) SKIPPED AHEAD of %d queued File Chunks.\n"
-                            +
-                            "   Status: Prioritizing real-time chat over background file transfer.",
-                    packet.getType(), packet.getPriority(), bypassed);
-            serverState.logNetwork(msg);
+            serverState.getNetworkLog().trafficShaping(packet, bypassed);
         }
     }
 
@@ -121,35 +162,13 @@ public class PacketDispatcher implements Runnable {
         if (receiverName == null)
             return;
 
-        ClientHandler receiver = serverState.getConnectedUsers().get(receiverName);
+        // Decoded packets carry the receiver's symbol; packets made on the server only the name
+        ClientHandler receiver = packet.getReceiverSymbol() != 0 ? serverState.getClient(packet.getReceiverSymbol())
+                : serverState.getClient(receiverName);
         if (receiver != null) {
-            // Universal Logging for all packet types that carry data/progress
-            String typeLabel = switch (packet.getType()) {
-                case FILE_INIT -> "File Init";
-                case FILE_REQ -> "File Req";
-                case FILE_RESP -> "File Resp";
-                case FILE_CHUNK -> "File Chunk";
-                case FILE_COMPLETE -> "File Complete";
-                case CHUNK_ACK -> "ACK";
-                case DM -> "DM";
-                case RESUME_INFO -> "Resume Info";
-                case KEY_EXCHANGE -> "Key Exchange";
-                default -> "Data";
-            };
-
-            String logMsg = String.format("Routing %s [%d/%d] from %s to %s",
-                    typeLabel, (packet.getChunkIndex() + 1), packet.getTotalChunks(),
-                    packet.getSender(), packet.getReceiver());
-
-            // Add transaction ID if present (for file transfers and messages)
-            if (packet.getTransactionId() != null) {
-                // logMsg += " [Trans: " + packet.getTransactionId() + "]"; // Verbose trans ID
-                // removed
-            }
-
-            // Universal Logging enabled as requested to show Flow Control (Chunk/ACK)
-            serverState.logNetwork(logMsg);
-            receiver.sendPacket(packet);
+            // Universal Logging to show Flow Control (Chunk/ACK); formatted off this thread
+            serverState.getNetworkLog().routed(packet, receiverName);
+            deliver(receiver, packet);
         } else {
             System.out.println("User not found: " + receiverName);
         }
@@ -160,39 +179,23 @@ public class PacketDispatcher implements Runnable {
         if (groupName == null)
             return;
 
-        Set<ClientHandler> members = serverState.getGroups().get(groupName);
+        Set<ClientHandler> members = packet.getGroupSymbol() != 0 ? serverState.getGroupMembers(packet.getGroupSymbol())
+                : serverState.getGroupMembers(groupName);
         if (members != null) {
-            // Universal Logging for all packet types that carry data/progress
-            String typeLabel = switch (packet.getType()) {
-                case FILE_INIT -> "File Init";
-                case FILE_REQ -> "File Req";
-                case FILE_RESP -> "File Resp";
-                case FILE_CHUNK -> "File Chunk";
-                case FILE_COMPLETE -> "File Complete";
-                case CHUNK_ACK -> "ACK";
-                case GROUP_MESSAGE -> "Group Msg";
-                case RESUME_INFO -> "Resume Info";
-                case KEY_EXCHANGE -> "Key Exchange";
-                case DM -> "DM (in Group?)";
-                default -> "Data";
-            };
-
-            String logMsg = String.format("Broadcasting %s [%d/%d] from %s to Group %s",
-                    typeLabel, (packet.getChunkIndex() + 1), packet.getTotalChunks(),
-                    packet.getSender(), groupName);
-
-            serverState.logNetwork(logMsg);
+            serverState.getNetworkLog().broadcast(packet, groupName);
 
+            int sender = packet.getSenderSymbol();
             synchronized (members) {
                 for (ClientHandler member : members) {
-                    if (!member.getUsername().equals(packet.getSender())) {
-                        member.sendPacket(packet);
+                    if (sender != 0 ? member.getUserSymbol() != sender : !member.getUsername().equals(packet.getSender())) {
+                        deliver(member, packet);
                     }
                 }
             }
         }
     }
 
+    // Takes effect after the current run; interrupt the thread to end a wait for packets
     public void stop() {
         running = false;
     }
@@ -0,0 +1,89 @@
+package com.securechat.server;
+
+import javafx.collections.ObservableListBase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-capacity observable list backed by a circular array. Appending a
+ * batch evicts the oldest entries in O(batch) and fires a single change, so
+ * a ListView showing it never sees O(n) head removals.
+ */
+public class RingBufferList<E> extends ObservableListBase<E> {
+
+    private final Object[] items;
+    private int head; // Index of the oldest element
+    private int size;
+
+    public RingBufferList(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.items = new Object[capacity];
+    }
+
+    public int getCapacity() {
+        return items.length;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        return (E) items[(head + index) % items.length];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // Append in order, dropping the oldest entries that no longer fit. FX thread only.
+    public void appendAll(List<? extends E> batch) {
+        if (batch.isEmpty())
+            return;
+        int capacity = items.length;
+        List<? extends E> incoming = batch.size() > capacity ? batch.subList(batch.size() - capacity, batch.size())
+                : batch;
+        int evict = Math.max(0, size + incoming.size() - capacity);
+
+        beginChange();
+        try {
+            if (evict > 0) {
+                List<E> removed = new ArrayList<>(evict);
+                for (int i = 0; i < evict; i++) {
+                    removed.add(get(i));
+                    items[(head + i) % capacity] = null;
+                }
+                head = (head + evict) % capacity;
+                size -= evict;
+                nextRemove(0, removed);
+            }
+            int from = size;
+            for (E item : incoming) {
+                items[(head + size) % capacity] = item;
+                size++;
+            }
+            nextAdd(from, size);
+        } finally {
+            endChange();
+        }
+    }
+
+    @Override
+    public void clear() {
+        if (size == 0)
+            return;
+        beginChange();
+        try {
+            List<E> removed = new ArrayList<>(this);
+            java.util.Arrays.fill(items, null);
+            head = 0;
+            size = 0;
+            nextRemove(0, removed);
+        } finally {
+            endChange();
+        }
+    }
+}
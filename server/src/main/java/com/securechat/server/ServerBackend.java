@@ -0,0 +1,175 @@
+package com.securechat.server;
+
+import com.securechat.common.crypto.CipherSuite;
+import com.securechat.common.crypto.SessionHandshake;
+import com.securechat.common.protocol.Packet;
+import com.securechat.common.protocol.PacketType;
+import com.securechat.server.metrics.MetricsServer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server without any UI: dispatcher, metrics endpoint, TCP acceptor and
+ * heartbeat service. Used directly by the headless ServerMain and embedded
+ * by the JavaFX console (ServerApp), which only attaches to the log and
+ * metrics surfaces.
+ */
+public class ServerBackend {
+
+    private final ServerConfig config;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private ServerSocket serverSocket;
+    private PacketDispatcher dispatcher;
+    private Thread dispatcherThread;
+    private Thread heartbeatThread;
+    private MetricsServer metricsServer;
+    private ExecutorService connectionWorkers;
+    private volatile boolean running;
+
+    public ServerBackend(ServerConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Binds the listening socket before returning, so once this completes the
+     * server is accepting connections; nothing else is started if the bind
+     * fails. Reports cold-start time from JVM launch.
+     */
+    public synchronized void start() throws IOException {
+        if (running)
+            return;
+        long backendStart = System.nanoTime();
+        ServerState.configure(config);
+        CipherSuite.restrictTo(CipherSuite.parseSuites(config.getCipherSuites()));
+        ServerState state = ServerState.getInstance();
+        state.log("Starting backend services... (" + config + ")");
+        state.log("Cipher suites by preference: " + CipherSuite.describe());
+        state.getIdentity().whenComplete((keyPair, error) -> {
+            long ms = (System.nanoTime() - backendStart) / 1_000_000;
+            try {
+                state.log(error == null ? "Server identity " + SessionHandshake.fingerprint(keyPair.getPublic())
+                        + " ready after " + ms + " ms" : "Server identity unavailable: " + error.getMessage());
+            } catch (Exception e) {
+                state.log("Server identity ready after " + ms + " ms");
+            }
+        });
+
+        // Bind first: if the port is taken, there is nothing to stop
+        serverSocket = new ServerSocket(config.getPort());
+
+        // Start Dispatcher
+        dispatcher = new PacketDispatcher();
+        dispatcherThread = new Thread(dispatcher, "packet-dispatcher");
+        dispatcherThread.setDaemon(true);
+        dispatcherThread.start();
+
+        // Start Metrics Endpoint (loopback only; port 0 disables it)
+        if (config.getMetricsPort() > 0) {
+            try {
+                metricsServer = new MetricsServer(state.getMetrics().getRegistry());
+                metricsServer.start(config.getMetricsPort());
+                state.log("Metrics available at http://127.0.0.1:" + config.getMetricsPort() + "/metrics");
+            } catch (IOException e) {
+                state.log("Metrics endpoint unavailable: " + e.getMessage());
+            }
+        }
+
+        // Start TCP Acceptor
+        connectionWorkers = config.getConnectionWorkers() > 0
+                ? Executors.newFixedThreadPool(config.getConnectionWorkers(), r -> new Thread(r, "client-handler"))
+                : Executors.newCachedThreadPool(r -> new Thread(r, "client-handler"));
+        running = true;
+        Thread acceptorThread = new Thread(this::acceptLoop, "acceptor");
+        acceptorThread.setDaemon(true);
+        acceptorThread.start();
+
+        // Start Heartbeat Service
+        heartbeatThread = new Thread(this::heartbeatLoop, "heartbeat");
+        heartbeatThread.setDaemon(true);
+        heartbeatThread.start();
+
+        long backendMs = (System.nanoTime() - backendStart) / 1_000_000;
+        long coldStartMs = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        state.getMetrics().getRegistry().gauge("securechat_startup_milliseconds",
+                "Cold start: JVM launch to accepting connections").set(coldStartMs);
+        state.log("Server listening on port " + config.getPort() + " (cold start " + coldStartMs
+                + " ms since JVM launch, backend init " + backendMs + " ms)");
+    }
+
+    private void acceptLoop() {
+        ServerState state = ServerState.getInstance();
+        try {
+            while (running) {
+                Socket clientSocket = serverSocket.accept();
+                // Writes are already whole packets (or corked batches); Nagle would hold a DM behind
+                // the KEY_EXCHANGE routed just before it until the client's delayed ACK
+                clientSocket.setTcpNoDelay(true);
+                state.log("New connection from " + clientSocket.getInetAddress());
+
+                ClientHandler handler = new ClientHandler(clientSocket);
+                connectionWorkers.execute(handler);
+            }
+        } catch (Exception e) {
+            if (running) {
+                e.printStackTrace();
+                state.log("Server error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void heartbeatLoop() {
+        ServerState state = ServerState.getInstance();
+        Packet heartbeat = new Packet(PacketType.HEARTBEAT, 1);
+        while (running) {
+            try {
+                Thread.sleep(config.getHeartbeatIntervalMs());
+                state.getConnectedClients().forEach(client -> {
+                    // This calls sendPacket. If it fails, client is removed.
+                    client.sendPacket(heartbeat);
+                });
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                // ignore iteration errors
+            }
+        }
+    }
+
+    public void stop() {
+        synchronized (this) {
+            if (!running)
+                return;
+            running = false;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        if (metricsServer != null) {
+            metricsServer.stop();
+            metricsServer = null;
+        }
+        dispatcher.stop();
+        dispatcherThread.interrupt(); // Blocked on the packet queue
+        heartbeatThread.interrupt();
+        connectionWorkers.shutdownNow();
+        ServerState.getInstance().log("Server stopped.");
+        stopped.countDown();
+    }
+
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    public boolean awaitStop(long timeout, TimeUnit unit) throws InterruptedException {
+        return stopped.await(timeout, unit);
+    }
+}
@@ -0,0 +1,147 @@
+package com.securechat.server;
+
+import com.securechat.common.crypto.CipherSuite;
+import com.securechat.server.metrics.MetricsServer;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Server settings. Defaults are overridden by a properties file
+ * (--config server.properties), which is in turn overridden by flags:
+ *
+ * --port 5000 --metrics-port 9100 --connection-workers 0 --heartbeat-interval-ms 3000
+ * --handshake-workers <cores> --handshake-queue 1024 --ticket-lifetime-seconds 3600
+ * --cipher-suites AES_256_GCM,CHACHA20_POLY1305
+ * --resume-state resume_state.properties --network-log logs/network.log
+ * --key-file server_identity.properties --quiet
+ *
+ * File keys are the flag names without the leading dashes.
+ */
+public class ServerConfig {
+
+    private int port = 5000;
+    private int metricsPort = Integer.getInteger("securechat.metrics.port", MetricsServer.DEFAULT_PORT); // 0 = off
+    private int connectionWorkers = 0; // Handler threads; further connections wait for one. 0 = thread per connection
+    private int heartbeatIntervalMs = 3000;
+    private int handshakeWorkers = Runtime.getRuntime().availableProcessors();
+    private int handshakeQueue = 1024; // Handshakes waiting beyond this are refused
+    private int ticketLifetimeSeconds = 3600; // Session resumption tickets; 0 = always full handshake
+    // Allowed transport ciphers in preference order; empty = all, ranked by measured speed
+    private String cipherSuites = System.getProperty("securechat.cipher.suites", "");
+    private String resumeStateFile = "resume_state.properties";
+    private String networkLogFile = "logs/network.log";
+    private String keyFile = "server_identity.properties"; // Long-term X25519 key, pinned by clients
+    private boolean networkLogConsole = true;
+
+    public static ServerConfig fromArgs(String[] args) throws IOException {
+        ServerConfig config = new ServerConfig();
+        // The file goes first so flags always win, wherever --config appears
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--config")) {
+                Properties props = new Properties();
+                try (FileInputStream fis = new FileInputStream(args[i + 1])) {
+                    props.load(fis);
+                }
+                for (String key : props.stringPropertyNames()) {
+                    config.set(key, props.getProperty(key).trim());
+                }
+            }
+        }
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--"))
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            if (arg.equals("--quiet")) {
+                config.networkLogConsole = false;
+                continue;
+            }
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + arg);
+            String value = args[++i];
+            if (!arg.equals("--config")) {
+                config.set(arg.substring(2), value);
+            }
+        }
+        return config;
+    }
+
+    private void set(String key, String value) {
+        switch (key) {
+            case "port" -> port = Integer.parseInt(value);
+            case "metrics-port" -> metricsPort = Integer.parseInt(value);
+            case "connection-workers" -> connectionWorkers = Integer.parseInt(value);
+            case "heartbeat-interval-ms" -> heartbeatIntervalMs = Integer.parseInt(value);
+            case "handshake-workers" -> handshakeWorkers = Math.max(1, Integer.parseInt(value));
+            case "handshake-queue" -> handshakeQueue = Math.max(1, Integer.parseInt(value));
+            case "ticket-lifetime-seconds" -> ticketLifetimeSeconds = Math.max(0, Integer.parseInt(value));
+            case "cipher-suites" -> {
+                CipherSuite.parseSuites(value); // Reject unknown names at startup
+                cipherSuites = value;
+            }
+            case "resume-state" -> resumeStateFile = value;
+            case "network-log" -> networkLogFile = value;
+            case "key-file" -> keyFile = value;
+            case "quiet" -> networkLogConsole = !Boolean.parseBoolean(value);
+            default -> throw new IllegalArgumentException("Unknown server setting: " + key);
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public int getConnectionWorkers() {
+        return connectionWorkers;
+    }
+
+    public int getHeartbeatIntervalMs() {
+        return heartbeatIntervalMs;
+    }
+
+    public int getHandshakeWorkers() {
+        return handshakeWorkers;
+    }
+
+    public int getHandshakeQueue() {
+        return handshakeQueue;
+    }
+
+    public int getTicketLifetimeSeconds() {
+        return ticketLifetimeSeconds;
+    }
+
+    public String getCipherSuites() {
+        return cipherSuites;
+    }
+
+    public String getResumeStateFile() {
+        return resumeStateFile;
+    }
+
+    public String getNetworkLogFile() {
+        return networkLogFile;
+    }
+
+    public String getKeyFile() {
+        return keyFile;
+    }
+
+    public boolean isNetworkLogConsole() {
+        return networkLogConsole;
+    }
+
+    @Override
+    public String toString() {
+        return "port=" + port + " metrics-port=" + metricsPort + " connection-workers=" + connectionWorkers
+                + " heartbeat-interval-ms=" + heartbeatIntervalMs + " handshake-workers=" + handshakeWorkers
+                + " handshake-queue=" + handshakeQueue + " ticket-lifetime-seconds=" + ticketLifetimeSeconds
+                + (cipherSuites.isEmpty() ? "" : " cipher-suites=" + cipherSuites) + " resume-state="
+                + resumeStateFile + " network-log=" + networkLogFile + " key-file=" + keyFile;
+    }
+}
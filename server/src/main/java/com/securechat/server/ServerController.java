@@ -1,11 +1,13 @@
 package com.securechat.server;
 
+import com.securechat.server.metrics.ServerMetrics;
+import javafx.animation.AnimationTimer;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.Label;
-import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
 import javafx.scene.control.ScrollPane;
+import javafx.scene.control.ToggleButton;
 import javafx.scene.layout.VBox;
 import javafx.scene.layout.Region; // For spacer if needed, but padding works
 import java.net.InetAddress;
@@ -14,15 +16,13 @@ import java.util.Enumeration;
 
 public class ServerController {
 
+    // Both logs are virtualized ListViews over bounded ring buffers
     @FXML
-    private ScrollPane logScrollPane;
-    @FXML
-    private VBox logVBox;
-
-    // CHANGED: Using ListView instead of VBox for Virtualization and High
-    // Performance
+    private ListView<String> logListView;
     @FXML
     private ListView<String> networkHealthListView;
+    @FXML
+    private ToggleButton liveTailToggle;
 
     @FXML
     private ScrollPane userScrollPane;
@@ -31,46 +31,49 @@ public class ServerController {
 
     @FXML
     private Label ipLabel;
+    @FXML
+    private Label metricsLabel;
 
     private ServerState serverState;
 
+    private static final int NETWORK_LOG_CAPACITY = 10000;
+    private static final int SERVER_LOG_CAPACITY = 500;
+    private LiveLogView networkLog;
+    private LiveLogView serverLog;
+
+    // Previous totals for the per-second rates in the metrics bar
+    private long lastMetricsNanos;
+    private long lastReceived;
+    private long lastSent;
+    private long lastBytesIn;
+    private long lastBytesOut;
+
     @FXML
     public void initialize() {
         serverState = ServerState.getInstance();
 
-        // 1. Setup Custom Cell Factory for ListView to look like Cards
-        networkHealthListView.setCellFactory(listView -> new ListCell<String>() {
-            @Override
-            protected void updateItem(String item, boolean empty) {
-                super.updateItem(item, empty);
-                if (empty || item == null) {
-                    setGraphic(null);
-                    setText(null);
-                    setStyle("-fx-background-color: transparent;");
-                } else {
-                    // Create the Card UI
-                    Label label = new Label(item);
-                    label.setWrapText(true);
-                    label.setMaxWidth(Double.MAX_VALUE); // Allow it to fill width
-                    label.getStyleClass().add("card-item"); // Apply the CSS Card Style
-                    label.setStyle("-fx-text-fill: #333333;"); // FORCE Dark Text Visibility
-
-                    // We set the label as the graphic of the cell
-                    setGraphic(label);
-                    setText(null);
-
-                    // Ensure the cell background itself is transparent so the spacing works
-                    // visually
-                    setStyle("-fx-background-color: transparent; -fx-padding: 2 5;");
-                }
-            }
-        });
+        // Events are coalesced into one list update per pulse
+        networkLog = new LiveLogView(networkHealthListView, NETWORK_LOG_CAPACITY);
+        serverLog = new LiveLogView(logListView, SERVER_LOG_CAPACITY);
+
+        liveTailToggle.setSelected(true);
+        networkLog.setOnHeldChange(this::updateLiveTailLabel);
+        updateLiveTailLabel();
 
         // Register log callbacks
         serverState.setLogCallback(this::appendLog);
         serverState.setNetworkLogCallback(this::logNetworkEvent);
         serverState.setUserChangeCallback(this::updateUserList);
 
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                if (now - lastMetricsNanos >= 1_000_000_000L) {
+                    updateMetricsSummary(now);
+                }
+            }
+        }.start();
+
         appendLog("Server GUI Initialized.");
         updateUserList();
         displayServerIp();
@@ -104,43 +107,70 @@ public class ServerController {
     }
 
     public void logNetworkEvent(String event) {
-        Platform.runLater(() -> {
-            // Add to ListView items list
-            networkHealthListView.getItems().add(event);
+        networkLog.append(event);
+    }
 
-            // Updated Limit: 1,000,000 items (Very Robust)
-            if (networkHealthListView.getItems().size() > 1000000) {
-                networkHealthListView.getItems().remove(0);
-            }
+    public void appendLog(String message) {
+        serverLog.append(message);
+    }
 
-            // Auto-scroll to the bottom
-            networkHealthListView.scrollTo(networkHealthListView.getItems().size() - 1);
-        });
+    @FXML
+    private void toggleLiveTail() {
+        networkLog.setLiveTail(liveTailToggle.isSelected());
+        updateLiveTailLabel();
     }
 
-    public void appendLog(String message) {
-        Platform.runLater(() -> {
-            Label label = new Label(message);
-            label.setWrapText(true);
-            label.getStyleClass().add("card-item"); // Apply Card Style
-            logVBox.getChildren().add(label);
-
-            // Keep traditional log short for cleanliness, but network log is massive now
-            if (logVBox.getChildren().size() > 500) {
-                logVBox.getChildren().remove(0);
-            }
+    private void updateLiveTailLabel() {
+        if (networkLog.isLiveTail()) {
+            liveTailToggle.setText("Live");
+        } else {
+            liveTailToggle.setText("Paused (" + networkLog.getHeldCount() + " new)");
+        }
+    }
 
-            // Smooth scroll to bottom
-            logVBox.layout();
-            logScrollPane.layout();
-            logScrollPane.setVvalue(1.0);
-        });
+    private void updateMetricsSummary(long now) {
+        ServerMetrics metrics = serverState.getMetrics();
+        double seconds = lastMetricsNanos == 0 ? 1.0 : (now - lastMetricsNanos) / 1e9;
+        long received = metrics.getReceivedTotal();
+        long sent = metrics.getSentTotal();
+        long bytesIn = metrics.getBytesIn();
+        long bytesOut = metrics.getBytesOut();
+
+        metricsLabel.setText(String.format(
+                "In %.0f pkt/s (%s/s) | Out %.0f pkt/s (%s/s) | Queue P1 %d, P2 %d, P3 %d | "
+                        + "Dwell p50 %s p99 %s | Route p99 %s | Write p99 %s",
+                (received - lastReceived) / seconds, formatBytes((long) ((bytesIn - lastBytesIn) / seconds)),
+                (sent - lastSent) / seconds, formatBytes((long) ((bytesOut - lastBytesOut) / seconds)),
+                metrics.getQueueDepth(1), metrics.getQueueDepth(2), metrics.getQueueDepth(3),
+                formatNanos(metrics.getDwell().quantile(0.5)), formatNanos(metrics.getDwell().quantile(0.99)),
+                formatNanos(metrics.getRoute().quantile(0.99)), formatNanos(metrics.getWrite().quantile(0.99))));
+
+        lastMetricsNanos = now;
+        lastReceived = received;
+        lastSent = sent;
+        lastBytesIn = bytesIn;
+        lastBytesOut = bytesOut;
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos < 1_000_000)
+            return (nanos / 1000) + "us";
+        return String.format("%.1fms", nanos / 1e6);
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024)
+            return bytes + " B";
+        if (bytes < 1024 * 1024)
+            return String.format("%.1f KB", bytes / 1024.0);
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
     }
 
     public void updateUserList() {
         Platform.runLater(() -> {
             userVBox.getChildren().clear();
-            for (String user : serverState.getConnectedUsers().keySet()) {
+            for (ClientHandler client : serverState.getConnectedClients()) {
+                String user = client.getUsername();
                 String status = serverState.getUserStatus(user);
                 Label label = new Label(user + " (" + status + ")");
                 label.setWrapText(true);
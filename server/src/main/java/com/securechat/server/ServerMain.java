@@ -0,0 +1,29 @@
+package com.securechat.server;
+
+/**
+ * Headless entry point: no JavaFX toolkit is loaded. Configuration comes from
+ * --config and flags (see ServerConfig); logs go to the console and the
+ * network log file, numbers to the metrics endpoint.
+ */
+public class ServerMain {
+
+    public static void main(String[] args) throws Exception {
+        ServerConfig config;
+        try {
+            config = ServerConfig.fromArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println("Usage: ServerMain [--config server.properties] [--port 5000] [--metrics-port 9100]"
+                    + " [--connection-workers N] [--heartbeat-interval-ms 3000] [--handshake-workers N]"
+                    + " [--handshake-queue 1024] [--ticket-lifetime-seconds 3600] [--resume-state FILE]"
+                    + " [--network-log FILE] [--key-file FILE] [--quiet]");
+            System.exit(2);
+            return;
+        }
+
+        ServerBackend backend = new ServerBackend(config);
+        Runtime.getRuntime().addShutdownHook(new Thread(backend::stop, "shutdown"));
+        backend.start();
+        backend.awaitStop();
+    }
+}
@@ -2,49 +2,85 @@ package com.securechat.server;
 
 import com.securechat.common.crypto.CryptoUtil;
 import com.securechat.common.protocol.Packet;
+import com.securechat.common.protocol.PacketType;
+import com.securechat.common.protocol.Presence;
+import com.securechat.common.protocol.Symbols;
+import com.securechat.common.util.ChunkBitmap;
+import com.securechat.server.metrics.ServerMetrics;
 
 import java.security.KeyPair;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class ServerState {
     private static ServerState instance;
+    private static ServerConfig config = new ServerConfig();
 
-    // Security Identity
-    private final KeyPair rsaKeyPair;
+    // Long-term X25519 identity, pinned by clients; loaded off the startup path, the first handshake waits for it
+    private final CompletableFuture<KeyPair> identity;
+
+    // Handshake crypto runs on a bounded pool, never on the connection threads
+    private final HandshakeService handshakeService;
+
+    // Resumption tickets let a reconnecting client skip key agreement and LOGIN
+    private final SessionTickets sessionTickets;
+
+    // Usernames, group names and file IDs as ints; the routing and resume tables are keyed by these,
+    // and each connection's PacketCodec resolves incoming names to them once per session
+    private final Symbols symbols = new Symbols();
 
     // Connection State
-    // Map<Username, ClientHandler>
-    private final Map<String, ClientHandler> activeClients = new ConcurrentHashMap<>();
-    private final Map<String, String> userStatuses = new ConcurrentHashMap<>(); // username -> status
+    // Map<Username symbol, ClientHandler>
+    private final Map<Integer, ClientHandler> activeClients = new ConcurrentHashMap<>();
+    // Online users and their statuses, versioned. Each change is enqueued for every client while
+    // holding it, so the dispatcher delivers changes (and snapshots) in version order.
+    private final Presence presence = new Presence();
     private final Map<String, String> userCredentials = new ConcurrentHashMap<>(); // username -> hashed password
+    // E2EE identity keys published by clients; kept after logout so contacts can still reach them
+    private final Map<String, byte[]> prekeys = new ConcurrentHashMap<>(); // username -> X25519 public key
 
-    // Map<GroupName, Set<ClientHandler>>
-    private final Map<String, Set<ClientHandler>> groups = new ConcurrentHashMap<>();
+    // Map<GroupName symbol, Set<ClientHandler>>
+    private final Map<Integer, Set<ClientHandler>> groups = new ConcurrentHashMap<>();
 
     // Log Callback (Simple helper for UI)
     private java.util.function.Consumer<String> logCallback;
-    private java.util.function.Consumer<String> networkLogCallback;
     private Runnable userChangeCallback;
 
     // Resume Support State
-    // Map<FileId, Map<ReceiverUsername, LastChunkIndex>>
-    private final Map<String, Map<String, Integer>> lstciTable = new ConcurrentHashMap<>();
+    // Map<FileId symbol, Map<ReceiverUsername symbol, chunks ACKed by that receiver>>
+    private final Map<Integer, Map<Integer, ChunkBitmap>> lstciTable = new ConcurrentHashMap<>();
 
     // High-Performance Priority Queue
     private final PriorityBlockingQueue<Packet> packetQueue;
     private final AtomicLong sequenceCounter = new AtomicLong(0);
 
+    // Counters/histograms for capacity planning (scraped via MetricsServer)
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    // Per-packet network events are formatted and written off the dispatcher thread
+    private final NetworkEventLog networkLog = new NetworkEventLog(new java.io.File(config.getNetworkLogFile()));
+
     private ServerState() throws Exception {
-        this.rsaKeyPair = CryptoUtil.generateRSAKeyPair();
+        this.identity = CompletableFuture.supplyAsync(() -> {
+            try {
+                return loadOrCreateIdentity();
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to create server identity", e);
+            }
+        });
+        networkLog.setConsoleEnabled(config.isNetworkLogConsole());
+        this.handshakeService = new HandshakeService(config.getHandshakeWorkers(), config.getHandshakeQueue(),
+                identity, metrics);
+        this.sessionTickets = new SessionTickets(config.getTicketLifetimeSeconds());
 
         // PriorityBlockingQueue orders elements naturally if they implement Comparable.
         // Packet doesn't implement Comparable yet, need a comparator.
@@ -59,6 +95,12 @@ public class ServerState {
             return priorityComp;
         });
 
+        metrics.getRegistry().gauge("securechat_connected_users", "Logged-in clients", activeClients::size);
+        metrics.getRegistry().gauge("securechat_handshake_queue_depth", "Handshakes waiting for a worker",
+                handshakeService::getQueuedCount);
+        metrics.getRegistry().gauge("securechat_network_log_dropped", "Network log events dropped since start",
+                networkLog::getDroppedCount);
+
         // Load persisted resume state
         loadLSTCI();
     }
@@ -74,25 +116,113 @@ public class ServerState {
         return instance;
     }
 
-    public KeyPair getRsaKeyPair() {
-        return rsaKeyPair;
+    // Must be called before the first getInstance()
+    public static synchronized void configure(ServerConfig serverConfig) {
+        if (instance != null)
+            throw new IllegalStateException("ServerState is already initialized");
+        config = serverConfig;
+    }
+
+    public static synchronized ServerConfig getConfig() {
+        return config;
+    }
+
+    public KeyPair getIdentityKeyPair() {
+        return identity.join();
+    }
+
+    public CompletableFuture<KeyPair> getIdentity() {
+        return identity;
+    }
+
+    public HandshakeService getHandshakeService() {
+        return handshakeService;
+    }
+
+    public SessionTickets getSessionTickets() {
+        return sessionTickets;
+    }
+
+    // Clients pin this key, so it is persisted and reused across restarts
+    private static KeyPair loadOrCreateIdentity() throws Exception {
+        java.io.File file = new java.io.File(config.getKeyFile());
+        java.util.Base64.Decoder decoder = java.util.Base64.getDecoder();
+        if (file.exists()) {
+            restrictToOwner(file.toPath()); // Files written before keys were created owner-only
+            java.util.Properties props = new java.util.Properties();
+            try (java.io.FileInputStream fis = new java.io.FileInputStream(file)) {
+                props.load(fis);
+            }
+            String pub = props.getProperty("x25519.public");
+            String priv = props.getProperty("x25519.private");
+            if (pub != null && priv != null) {
+                return new KeyPair(CryptoUtil.decodeX25519PublicKey(decoder.decode(pub)),
+                        CryptoUtil.decodeX25519PrivateKey(decoder.decode(priv)));
+            }
+        }
+
+        KeyPair keyPair = CryptoUtil.generateX25519KeyPair();
+        java.util.Properties props = new java.util.Properties();
+        java.util.Base64.Encoder encoder = java.util.Base64.getEncoder();
+        props.setProperty("x25519.public", encoder.encodeToString(keyPair.getPublic().getEncoded()));
+        props.setProperty("x25519.private", encoder.encodeToString(keyPair.getPrivate().getEncoded()));
+        // Owner-only from the start, and complete or absent: a torn file would change the key clients pinned
+        java.nio.file.Path tmp = new java.io.File(file.getPath() + ".tmp").toPath();
+        java.nio.file.Files.deleteIfExists(tmp);
+        try {
+            java.nio.file.Files.createFile(tmp, java.nio.file.attribute.PosixFilePermissions.asFileAttribute(
+                    java.nio.file.attribute.PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            java.nio.file.Files.createFile(tmp); // Not POSIX: best effort below
+            restrictToOwner(tmp);
+        }
+        try (java.io.OutputStream os = java.nio.file.Files.newOutputStream(tmp)) {
+            props.store(os, "SecureChat Server Identity (keep private)");
+        }
+        java.nio.file.Files.move(tmp, file.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        return keyPair;
+    }
+
+    private static void restrictToOwner(java.nio.file.Path path) throws java.io.IOException {
+        try {
+            java.nio.file.Files.setPosixFilePermissions(path,
+                    java.nio.file.attribute.PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            java.io.File f = path.toFile();
+            f.setReadable(false, false);
+            f.setReadable(true, true);
+            f.setWritable(false, false);
+            f.setWritable(true, true);
+        }
+    }
+
+    public Symbols getSymbols() {
+        return symbols;
     }
 
     public void addClient(String username, ClientHandler handler) {
-        ClientHandler oldHandler = activeClients.get(username);
+        int user = symbols.id(username);
+        ClientHandler oldHandler = activeClients.get(user);
         if (oldHandler != null && oldHandler != handler) {
             log("System: Primary session already exists for " + username + ". Forcing disconnect of old session.");
             oldHandler.forceDisconnect();
         }
-        activeClients.put(username, handler);
+        activeClients.put(user, handler);
+    }
+
+    // Null if the user is not connected
+    public ClientHandler getClient(int user) {
+        return activeClients.get(user);
     }
 
-    public Map<String, ClientHandler> getConnectedUsers() {
-        return activeClients;
+    public ClientHandler getClient(String username) {
+        int user = symbols.find(username);
+        return user != 0 ? activeClients.get(user) : null;
     }
 
-    public Map<String, Set<ClientHandler>> getGroups() {
-        return groups;
+    public Collection<ClientHandler> getConnectedClients() {
+        return activeClients.values();
     }
 
     public PriorityBlockingQueue<Packet> getPacketQueue() {
@@ -101,31 +231,49 @@ public class ServerState {
 
     // Helper methods for Groups
     public void createGroup(String groupName) {
-        groups.putIfAbsent(groupName, Collections.synchronizedSet(new HashSet<>()));
+        groups.putIfAbsent(symbols.id(groupName), Collections.synchronizedSet(new HashSet<>()));
     }
 
     public void joinGroup(String groupName, ClientHandler client) {
-        groups.computeIfPresent(groupName, (k, members) -> {
+        groups.computeIfPresent(symbols.find(groupName), (k, members) -> {
             members.add(client);
             return members;
         });
     }
 
     public void leaveGroup(String groupName, ClientHandler client) {
-        groups.computeIfPresent(groupName, (k, members) -> {
+        groups.computeIfPresent(symbols.find(groupName), (k, members) -> {
             members.remove(client);
             return members;
         });
     }
 
+    // Null if there is no such group
+    public Set<ClientHandler> getGroupMembers(int group) {
+        return groups.get(group);
+    }
+
+    public Set<ClientHandler> getGroupMembers(String groupName) {
+        int group = symbols.find(groupName);
+        return group != 0 ? groups.get(group) : null;
+    }
+
+    public List<String> getGroupNames() {
+        List<String> names = new ArrayList<>();
+        for (Integer group : groups.keySet()) {
+            names.add(symbols.name(group));
+        }
+        return names;
+    }
+
     /**
      * Helper to get list of groups a user is in.
      */
     public List<String> getUserGroups(ClientHandler client) {
         List<String> userGroups = new ArrayList<>();
-        for (Map.Entry<String, Set<ClientHandler>> entry : groups.entrySet()) {
+        for (Map.Entry<Integer, Set<ClientHandler>> entry : groups.entrySet()) {
             if (entry.getValue().contains(client)) {
-                userGroups.add(entry.getKey());
+                userGroups.add(symbols.name(entry.getKey()));
             }
         }
         return userGroups;
@@ -133,14 +281,26 @@ public class ServerState {
 
     // Resume Support Helpers
     public void updateLSTCI(String fileId, String receiver, int chunkIndex) {
-        lstciTable.computeIfAbsent(fileId, k -> new ConcurrentHashMap<>())
-                .put(receiver, chunkIndex);
-        saveLSTCI();
+        updateLSTCI(symbols.id(fileId), symbols.id(receiver), chunkIndex);
+    }
+
+    public void updateLSTCI(int file, int receiver, int chunkIndex) {
+        if (chunkIndex < 0 || file == 0 || receiver == 0)
+            return;
+        boolean added = lstciTable.computeIfAbsent(file, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(receiver, k -> new ChunkBitmap()).set(chunkIndex);
+        if (added)
+            saveLSTCI();
+    }
+
+    // Chunks this receiver has ACKed, empty if none
+    public ChunkBitmap getLSTCI(String fileId, String receiver) {
+        return getLSTCI(symbols.find(fileId), symbols.find(receiver));
     }
 
-    public int getLSTCI(String fileId, String receiver) {
-        return lstciTable.getOrDefault(fileId, Collections.emptyMap())
-                .getOrDefault(receiver, -1);
+    public ChunkBitmap getLSTCI(int file, int receiver) {
+        ChunkBitmap received = lstciTable.getOrDefault(file, Collections.emptyMap()).get(receiver);
+        return received != null ? received : new ChunkBitmap();
     }
 
     public void setLogCallback(java.util.function.Consumer<String> callback) {
@@ -148,7 +308,15 @@ public class ServerState {
     }
 
     public void setNetworkLogCallback(java.util.function.Consumer<String> callback) {
-        this.networkLogCallback = callback;
+        networkLog.setListener(callback);
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public NetworkEventLog getNetworkLog() {
+        return networkLog;
     }
 
     public boolean authenticate(String username, String hashedPassword) {
@@ -160,20 +328,57 @@ public class ServerState {
     }
 
     public void setUserStatus(String username, String status) {
-        userStatuses.put(username, status);
+        synchronized (presence) {
+            publishPresence(presence.set(username, status));
+        }
     }
 
-    public String getUserStatus(String username) {
-        return userStatuses.getOrDefault(username, "Online");
+    // Caller holds presence
+    private void publishPresence(String delta) {
+        if (delta == null)
+            return;
+        Packet packet = new Packet(PacketType.PRESENCE_DELTA, 2);
+        packet.setPayload(delta.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        enqueue(packet); // No receiver: the dispatcher sends it to every connected client
     }
 
-    public Map<String, String> getAllUserStatuses() {
-        return new HashMap<>(userStatuses);
+    // Brings one client up to date: the changes after `since` if still logged, else a snapshot (since < 0)
+    public void syncPresence(String username, long since) {
+        synchronized (presence) {
+            String changes = since >= 0 ? presence.changesSince(since) : null;
+            if ("".equals(changes))
+                return;
+            Packet packet = new Packet(changes != null ? PacketType.PRESENCE_DELTA : PacketType.USER_LIST, 2);
+            packet.setReceiver(username);
+            packet.setPayload((changes != null ? changes : presence.snapshot())
+                    .getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            enqueue(packet);
+        }
     }
 
-    public void removeClient(String username) {
-        activeClients.remove(username);
-        userStatuses.remove(username);
+    public void publishPrekey(String username, byte[] publicKey) {
+        prekeys.put(username, publicKey);
+    }
+
+    // Null if the user never published one
+    public byte[] getPrekey(String username) {
+        return prekeys.get(username);
+    }
+
+    public String getUserStatus(String username) {
+        String status = presence.getStatus(username);
+        return status != null ? status : "Online";
+    }
+
+    // Does nothing if a newer session of the same user has taken the handler's place
+    // False if the name now belongs to another connection (a newer login), which is left alone
+    public boolean removeClient(String username, ClientHandler handler) {
+        if (!activeClients.remove(symbols.find(username), handler))
+            return false;
+        synchronized (presence) {
+            publishPresence(presence.remove(username));
+        }
+        return true;
     }
 
     public void log(String message) {
@@ -184,10 +389,7 @@ public class ServerState {
     }
 
     public void logNetwork(String message) {
-        System.out.println("[Network] " + message);
-        if (networkLogCallback != null) {
-            networkLogCallback.accept(message);
-        }
+        networkLog.message(message);
     }
 
     public void setUserChangeCallback(Runnable callback) {
@@ -206,20 +408,22 @@ public class ServerState {
 
     public void enqueue(Packet packet) {
         packet.setSequenceNumber(getNextSequenceNumber());
+        metrics.onEnqueued(packet);
         packetQueue.put(packet);
     }
 
     private void saveLSTCI() {
         try {
             java.util.Properties props = new java.util.Properties();
-            for (Map.Entry<String, Map<String, Integer>> entry : lstciTable.entrySet()) {
-                String fileId = entry.getKey();
-                for (Map.Entry<String, Integer> inner : entry.getValue().entrySet()) {
-                    String receiver = inner.getKey();
-                    props.setProperty(fileId + ":" + receiver, String.valueOf(inner.getValue()));
+            for (Map.Entry<Integer, Map<Integer, ChunkBitmap>> entry : lstciTable.entrySet()) {
+                String fileId = symbols.name(entry.getKey());
+                for (Map.Entry<Integer, ChunkBitmap> inner : entry.getValue().entrySet()) {
+                    String receiver = symbols.name(inner.getKey());
+                    props.setProperty(fileId + ":" + receiver,
+                            "runs:" + java.util.Base64.getEncoder().encodeToString(inner.getValue().toBytes()));
                 }
             }
-            try (java.io.FileOutputStream fos = new java.io.FileOutputStream("resume_state.properties")) {
+            try (java.io.FileOutputStream fos = new java.io.FileOutputStream(config.getResumeStateFile())) {
                 props.store(fos, "File Transfer Resume State");
             }
         } catch (Exception e) {
@@ -228,7 +432,7 @@ public class ServerState {
     }
 
     private void loadLSTCI() {
-        java.io.File file = new java.io.File("resume_state.properties");
+        java.io.File file = new java.io.File(config.getResumeStateFile());
         if (!file.exists())
             return;
 
@@ -242,9 +446,13 @@ public class ServerState {
                 if (parts.length == 2) {
                     String fileId = parts[0];
                     String receiver = parts[1];
-                    int index = Integer.parseInt(props.getProperty(key));
-                    lstciTable.computeIfAbsent(fileId, k -> new ConcurrentHashMap<>())
-                            .put(receiver, index);
+                    String value = props.getProperty(key);
+                    // Older files hold only the last chunk index
+                    ChunkBitmap received = value.startsWith("runs:")
+                            ? ChunkBitmap.fromBytes(java.util.Base64.getDecoder().decode(value.substring(5)))
+                            : ChunkBitmap.upTo(Integer.parseInt(value));
+                    lstciTable.computeIfAbsent(symbols.id(fileId), k -> new ConcurrentHashMap<>())
+                            .put(symbols.id(receiver), received);
                 }
             }
             System.out.println("Loaded " + props.size() + " resume states from disk.");
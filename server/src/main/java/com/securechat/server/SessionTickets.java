@@ -0,0 +1,132 @@
+package com.securechat.server;
+
+import com.securechat.common.crypto.CryptoUtil;
+import com.securechat.common.crypto.SessionHandshake;
+import com.securechat.common.crypto.SessionTicket;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Issues and redeems session resumption tickets. A ticket is the username,
+ * expiry and resumption secret sealed with AES-GCM under a ticket key that
+ * only lives in this process, so the server keeps no per-ticket state until
+ * one is redeemed. Ticket keys rotate every lifetime; tickets under the
+ * current and previous key are accepted. Each ticket is single use.
+ */
+public class SessionTickets {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // One ticket key and the IVs of the tickets already redeemed under it
+    private static class Generation {
+        final SecretKey key;
+        final long createdAtMillis = System.currentTimeMillis();
+        final Set<String> redeemed = ConcurrentHashMap.newKeySet();
+
+        Generation(SecretKey key) {
+            this.key = key;
+        }
+    }
+
+    // A ticket that passed every check: the session resumes as this user
+    public static class Redeemed {
+        private final String username;
+        private final byte[] resumptionSecret;
+
+        Redeemed(String username, byte[] resumptionSecret) {
+            this.username = username;
+            this.resumptionSecret = resumptionSecret;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public byte[] getResumptionSecret() {
+            return resumptionSecret;
+        }
+    }
+
+    private final int lifetimeSeconds;
+    private volatile Generation current;
+    private volatile Generation previous;
+
+    public SessionTickets(int lifetimeSeconds) throws Exception {
+        this.lifetimeSeconds = lifetimeSeconds;
+        this.current = new Generation(CryptoUtil.generateAESKey());
+    }
+
+    public boolean isEnabled() {
+        return lifetimeSeconds > 0;
+    }
+
+    // Returns the SESSION_TICKET payload for a freshly authenticated session
+    public byte[] issue(String username, SecretKey sessionKey) throws Exception {
+        byte[] nonce = new byte[16];
+        RANDOM.nextBytes(nonce);
+        byte[] secret = SessionHandshake.resumptionSecret(sessionKey, nonce);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeLong(System.currentTimeMillis() + lifetimeSeconds * 1000L);
+        dos.writeUTF(username);
+        dos.write(secret);
+        byte[] ticket = CryptoUtil.encryptAES(bos.toByteArray(), rotate().key);
+        return new SessionTicket(ticket, nonce, lifetimeSeconds).toBytes();
+    }
+
+    // Null if the ticket is forged, expired, from a retired key, already used, or the binder is wrong
+    public Redeemed redeem(SessionHandshake.ClientHello hello) {
+        if (!isEnabled())
+            return null;
+        byte[] ticket = hello.getTicket();
+        rotate();
+        for (Generation generation : new Generation[] { current, previous }) {
+            if (generation == null)
+                continue;
+            byte[] plain;
+            try {
+                plain = CryptoUtil.decryptAES(ticket, generation.key);
+            } catch (Exception e) {
+                continue; // Not sealed under this key
+            }
+            try {
+                DataInputStream dis = new DataInputStream(new ByteArrayInputStream(plain));
+                long expiresAt = dis.readLong();
+                String username = dis.readUTF();
+                byte[] secret = dis.readNBytes(32);
+                if (System.currentTimeMillis() > expiresAt || !SessionHandshake.verifyBinder(hello, secret))
+                    return null;
+                // The GCM IV (first 12 bytes) is unique per ticket
+                String id = Base64.getEncoder().encodeToString(java.util.Arrays.copyOf(ticket, 12));
+                if (!generation.redeemed.add(id))
+                    return null;
+                return new Redeemed(username, secret);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    // A ticket never outlives two generations, so the redeemed set of an older one can go with its key
+    private synchronized Generation rotate() {
+        if (System.currentTimeMillis() - current.createdAtMillis > lifetimeSeconds * 1000L) {
+            try {
+                previous = current;
+                current = new Generation(CryptoUtil.generateAESKey());
+            } catch (Exception e) {
+                System.err.println("Failed to rotate ticket key: " + e.getMessage());
+            }
+        }
+        return current;
+    }
+}
@@ -0,0 +1,33 @@
+package com.securechat.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Point-in-time value. Either set/adjusted directly or, when built with a
+ * supplier, sampled only when the registry is scraped.
+ */
+public class Gauge {
+
+    private final AtomicLong value = new AtomicLong();
+    private final java.util.function.LongSupplier supplier;
+
+    public Gauge() {
+        this(null);
+    }
+
+    public Gauge(java.util.function.LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    public void set(long v) {
+        value.set(v);
+    }
+
+    public void add(long delta) {
+        value.addAndGet(delta);
+    }
+
+    public long get() {
+        return supplier != null ? supplier.getAsLong() : value.get();
+    }
+}
@@ -0,0 +1,164 @@
+package com.securechat.server.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Named metrics with optional labels, rendered as Prometheus text or JSON.
+ * Registration is a map lookup and happens once; the returned instrument is
+ * then recorded to directly, so the hot path never touches this map.
+ */
+public class MetricsRegistry {
+
+    private static final class Entry {
+        final String name;
+        final String labels; // Rendered label set, e.g. type="DM" (empty if none)
+        final String help;
+        final String type; // counter | gauge | histogram
+        final Object metric;
+
+        Entry(String name, String labels, String help, String type, Object metric) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            this.type = type;
+            this.metric = metric;
+        }
+    }
+
+    // Sorted so all series of one metric render together
+    private final Map<String, Entry> entries = new ConcurrentSkipListMap<>();
+
+    public Counter counter(String name, String help, String... labelPairs) {
+        return (Counter) register(name, help, "counter", labelPairs, new Counter());
+    }
+
+    public Gauge gauge(String name, String help, String... labelPairs) {
+        return (Gauge) register(name, help, "gauge", labelPairs, new Gauge());
+    }
+
+    // Replaces any existing series with the same labels (e.g. a user reconnecting)
+    public Gauge gauge(String name, String help, LongSupplier supplier, String... labelPairs) {
+        String labels = renderLabels(labelPairs);
+        Gauge gauge = new Gauge(supplier);
+        entries.put(key(name, labels), new Entry(name, labels, help, "gauge", gauge));
+        return gauge;
+    }
+
+    // Nanosecond histogram, exported in seconds
+    public Histogram histogram(String name, String help, String... labelPairs) {
+        return (Histogram) register(name, help, "histogram", labelPairs, new Histogram());
+    }
+
+    public void unregister(String name, String... labelPairs) {
+        entries.remove(key(name, renderLabels(labelPairs)));
+    }
+
+    private Object register(String name, String help, String type, String[] labelPairs, Object metric) {
+        String labels = renderLabels(labelPairs);
+        Entry entry = entries.computeIfAbsent(key(name, labels), k -> new Entry(name, labels, help, type, metric));
+        return entry.metric;
+    }
+
+    private static String key(String name, String labels) {
+        return name + "{" + labels + "}";
+    }
+
+    private static String renderLabels(String[] labelPairs) {
+        if (labelPairs.length % 2 != 0)
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labelPairs.length; i += 2) {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(labelPairs[i]).append("=\"").append(escape(labelPairs[i + 1])).append('"');
+        }
+        return sb.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // --- Rendering ---
+
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        String lastName = null;
+        for (Entry e : entries.values()) {
+            if (!e.name.equals(lastName)) {
+                sb.append("# HELP ").append(e.name).append(' ').append(e.help).append('\n');
+                sb.append("# TYPE ").append(e.name).append(' ').append(e.type).append('\n');
+                lastName = e.name;
+            }
+            if (e.metric instanceof Histogram h) {
+                long[] counts = h.getBucketCounts();
+                int top = highestNonEmpty(counts);
+                long cumulative = 0;
+                for (int i = 0; i <= top; i++) {
+                    cumulative += counts[i];
+                    sb.append(e.name).append("_bucket{").append(withLabel(e.labels, "le"))
+                            .append(seconds(Histogram.upperBound(i))).append("\"} ").append(cumulative).append('\n');
+                }
+                sb.append(e.name).append("_bucket{").append(withLabel(e.labels, "le")).append("+Inf\"} ")
+                        .append(h.getCount()).append('\n');
+                sb.append(e.name).append("_sum").append(braces(e.labels)).append(' ').append(seconds(h.getSum()))
+                        .append('\n');
+                sb.append(e.name).append("_count").append(braces(e.labels)).append(' ').append(h.getCount())
+                        .append('\n');
+            } else {
+                sb.append(e.name).append(braces(e.labels)).append(' ').append(value(e.metric)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(4096).append("{\"metrics\":[");
+        boolean first = true;
+        for (Entry e : entries.values()) {
+            if (!first)
+                sb.append(',');
+            first = false;
+            sb.append("{\"name\":\"").append(e.name).append("\",\"type\":\"").append(e.type)
+                    .append("\",\"labels\":{").append(e.labels.replaceAll("(\\w+)=\"", "\"$1\":\"")).append('}');
+            if (e.metric instanceof Histogram h) {
+                sb.append(",\"count\":").append(h.getCount())
+                        .append(",\"sumSeconds\":").append(seconds(h.getSum()))
+                        .append(",\"maxSeconds\":").append(seconds(h.getMax()))
+                        .append(",\"p50Seconds\":").append(seconds(h.quantile(0.50)))
+                        .append(",\"p99Seconds\":").append(seconds(h.quantile(0.99)))
+                        .append(",\"p999Seconds\":").append(seconds(h.quantile(0.999)));
+            } else {
+                sb.append(",\"value\":").append(value(e.metric));
+            }
+            sb.append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static long value(Object metric) {
+        return metric instanceof Counter c ? c.get() : ((Gauge) metric).get();
+    }
+
+    private static int highestNonEmpty(long[] counts) {
+        for (int i = counts.length - 1; i >= 0; i--) {
+            if (counts[i] > 0)
+                return i;
+        }
+        return 0;
+    }
+
+    private static String withLabel(String labels, String name) {
+        return (labels.isEmpty() ? "" : labels + ",") + name + "=\"";
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private static String seconds(long nanos) {
+        return nanos == Long.MAX_VALUE ? "+Inf" : Double.toString(nanos / 1e9);
+    }
+}
@@ -0,0 +1,54 @@
+package com.securechat.server.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Local scrape endpoint. Bound to loopback only:
+ * /metrics (Prometheus text) and /metrics.json.
+ */
+public class MetricsServer {
+
+    public static final int DEFAULT_PORT = 9100;
+
+    private final MetricsRegistry registry;
+    private HttpServer http;
+
+    public MetricsServer(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    public void start(int port) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", ex -> respond(ex, "text/plain; version=0.0.4", registry.toPrometheus()));
+        http.createContext("/metrics.json", ex -> respond(ex, "application/json", registry.toJson()));
+        http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics-http");
+            t.setDaemon(true);
+            return t;
+        }));
+        http.start();
+    }
+
+    public void stop() {
+        if (http != null) {
+            http.stop(0);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}
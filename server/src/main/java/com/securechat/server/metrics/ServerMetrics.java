@@ -0,0 +1,216 @@
+package com.securechat.server.metrics;
+
+import com.securechat.common.crypto.CipherSuite;
+import com.securechat.common.util.BufferPool;
+import com.securechat.common.protocol.Packet;
+import com.securechat.common.protocol.PacketType;
+
+import java.util.function.LongSupplier;
+
+/**
+ * The server's instruments, recorded at the four points a packet passes:
+ * receive (read + decrypt), enqueue, dequeue/route, and write (serialize,
+ * then encrypt + socket per record). Per-type counters are arrays indexed by PacketType ordinal so
+ * recording never does a map lookup.
+ */
+public class ServerMetrics {
+
+    public static final int PRIORITY_LEVELS = 3; // 1: Control/DM, 2: Group, 3: File
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+
+    private final Counter[] received = new Counter[PacketType.values().length];
+    private final Counter[] routed = new Counter[PacketType.values().length];
+    private final Counter[] sent = new Counter[PacketType.values().length];
+    private final Gauge[] queueDepth = new Gauge[PRIORITY_LEVELS];
+    private final Counter[] cipherSuites = new Counter[CipherSuite.values().length];
+
+    private final Counter bytesIn;
+    private final Counter bytesOut;
+    private final Counter recordsOut;
+    private final Histogram dwell;
+    private final Histogram route;
+    private final Histogram decrypt;
+    private final Histogram serialize;
+    private final Histogram encrypt;
+    private final Histogram write;
+    private final Histogram handshake;
+    private final Counter handshakesRejected;
+    private final Counter resumptionsAccepted;
+    private final Counter resumptionsDeclined;
+
+    public ServerMetrics() {
+        for (PacketType type : PacketType.values()) {
+            int i = type.ordinal();
+            received[i] = registry.counter("securechat_packets_received_total",
+                    "Packets read from clients by type", "type", type.name());
+            routed[i] = registry.counter("securechat_packets_routed_total",
+                    "Packets taken off the dispatch queue by type", "type", type.name());
+            sent[i] = registry.counter("securechat_packets_sent_total",
+                    "Packets written to clients by type (one per recipient)", "type", type.name());
+        }
+        for (CipherSuite suite : CipherSuite.values()) {
+            cipherSuites[suite.ordinal()] = registry.counter("securechat_sessions_total",
+                    "Sessions established by negotiated cipher suite", "suite", suite.name());
+        }
+        for (int p = 0; p < PRIORITY_LEVELS; p++) {
+            queueDepth[p] = registry.gauge("securechat_queue_depth", "Packets waiting in the dispatch queue",
+                    "priority", String.valueOf(p + 1));
+        }
+        bytesIn = registry.counter("securechat_bytes_in_total", "Encrypted bytes read from all clients");
+        bytesOut = registry.counter("securechat_bytes_out_total", "Encrypted bytes written to all clients");
+        dwell = registry.histogram("securechat_dispatch_dwell_seconds", "Time from enqueue to dispatcher take");
+        route = registry.histogram("securechat_route_seconds", "Dispatcher time to route one packet");
+        decrypt = registry.histogram("securechat_decrypt_seconds", "Decrypt + deserialize time per packet");
+        recordsOut = registry.counter("securechat_records_out_total",
+                "Encrypted records written to all clients (batches carry several packets)");
+        serialize = registry.histogram("securechat_serialize_seconds", "Serialize time per packet");
+        encrypt = registry.histogram("securechat_encrypt_seconds", "Encrypt time per record");
+        write = registry.histogram("securechat_write_seconds",
+                "Send time per packet after serializing: queueing or lock wait, encrypt and socket write");
+        registry.gauge("securechat_buffer_pool_allocations", "Frame buffers allocated because the pool was empty",
+                BufferPool.SHARED::getAllocations);
+        registry.gauge("securechat_buffer_pool_bytes", "Frame buffer bytes idle in the pool",
+                BufferPool.SHARED::getPooledBytes);
+        handshake = registry.histogram("securechat_handshake_seconds",
+                "Key agreement time per connection, incl. handshake pool queueing");
+        handshakesRejected = registry.counter("securechat_handshakes_rejected_total",
+                "Connections refused because the handshake pool was full or too slow");
+        resumptionsAccepted = registry.counter("securechat_resumptions_total",
+                "Reconnects offering a session ticket", "result", "accepted");
+        resumptionsDeclined = registry.counter("securechat_resumptions_total",
+                "Reconnects offering a session ticket", "result", "declined");
+    }
+
+    public MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    // --- Recording points ---
+
+    public void onReceived(Packet packet, int wireBytes, long decryptStartNanos) {
+        decrypt.recordSince(decryptStartNanos);
+        bytesIn.add(wireBytes);
+        received[packet.getType().ordinal()].increment();
+    }
+
+    public void onEnqueued(Packet packet) {
+        packet.setEnqueuedAtNanos(System.nanoTime());
+        queueDepth[priorityIndex(packet)].add(1);
+    }
+
+    public void onDequeued(Packet packet) {
+        queueDepth[priorityIndex(packet)].add(-1);
+        dwell.recordSince(packet.getEnqueuedAtNanos());
+        routed[packet.getType().ordinal()].increment();
+    }
+
+    public void onRouted(long routeStartNanos) {
+        route.recordSince(routeStartNanos);
+    }
+
+    public void onSent(Packet packet, long serializeNanos, long writeNanos) {
+        serialize.record(serializeNanos);
+        write.record(writeNanos);
+        sent[packet.getType().ordinal()].increment();
+    }
+
+    // One record on the wire: a packet, a batch of small packets, or a segment of a large one
+    public void onRecordWritten(int wireBytes, long encryptNanos) {
+        encrypt.record(encryptNanos);
+        bytesOut.add(wireBytes);
+        recordsOut.increment();
+    }
+
+    public void onHandshake(long startNanos) {
+        handshake.recordSince(startNanos);
+    }
+
+    public void onHandshakeRejected() {
+        handshakesRejected.increment();
+    }
+
+    // Declined tickets fall back to a full handshake, which is counted separately
+    public void onResumption(long startNanos, boolean accepted) {
+        if (accepted) {
+            handshake.recordSince(startNanos);
+            resumptionsAccepted.increment();
+        } else {
+            resumptionsDeclined.increment();
+        }
+    }
+
+    public void onCipherSuite(CipherSuite suite) {
+        cipherSuites[suite.ordinal()].increment();
+    }
+
+    // Per-connection byte gauges, read from the handler only when scraped
+    public void registerConnection(String username, LongSupplier in, LongSupplier out) {
+        registry.gauge("securechat_connection_bytes_in", "Encrypted bytes read from one client", in, "user",
+                username);
+        registry.gauge("securechat_connection_bytes_out", "Encrypted bytes written to one client", out, "user",
+                username);
+    }
+
+    public void unregisterConnection(String username) {
+        registry.unregister("securechat_connection_bytes_in", "user", username);
+        registry.unregister("securechat_connection_bytes_out", "user", username);
+    }
+
+    private static int priorityIndex(Packet packet) {
+        return Math.max(1, Math.min(PRIORITY_LEVELS, packet.getPriority())) - 1;
+    }
+
+    // --- Summary accessors (GUI) ---
+
+    public long getReceivedTotal() {
+        return sum(received);
+    }
+
+    public long getSentTotal() {
+        return sum(sent);
+    }
+
+    public long getQueueDepth(int priority) {
+        return queueDepth[priority - 1].get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public Histogram getDwell() {
+        return dwell;
+    }
+
+    public Histogram getRoute() {
+        return route;
+    }
+
+    public Histogram getWrite() {
+        return write;
+    }
+
+    public Histogram getEncrypt() {
+        return encrypt;
+    }
+
+    public Histogram getDecrypt() {
+        return decrypt;
+    }
+
+    public Histogram getHandshake() {
+        return handshake;
+    }
+
+    private static long sum(Counter[] counters) {
+        long total = 0;
+        for (Counter c : counters)
+            total += c.get();
+        return total;
+    }
+}